@@ -2,7 +2,9 @@ package selrach.bnetbuilder.data;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -10,6 +12,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.log4j.Logger;
 
@@ -232,7 +235,7 @@ public class FileAccessor implements DataAccessor {
 		if (file != null && file.exists()) {
 			try {
 				String line = null;
-				final InputStreamReader isr = new FileReader(file);
+				final InputStreamReader isr = openReader();
 				final BufferedReader br = new BufferedReader(isr);
 				int offset = 0;
 				parsedData.clear();
@@ -375,6 +378,20 @@ public class FileAccessor implements DataAccessor {
 		}
 	}
 
+	/**
+	 * Opens the file for reading, decompressing it if its name ends in .gz
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	private InputStreamReader openReader() throws IOException {
+		if (file.getName().endsWith(".gz")) {
+			return new InputStreamReader(new GZIPInputStream(
+					new FileInputStream(file)));
+		}
+		return new FileReader(file);
+	}
+
 	/**
 	 * Process the file and set up the metadata
 	 */
@@ -385,7 +402,7 @@ public class FileAccessor implements DataAccessor {
 				String line = null;
 				parsedData.clear();
 				unparsedData.clear();
-				final InputStreamReader isr = new FileReader(file);
+				final InputStreamReader isr = openReader();
 				final BufferedReader br = new BufferedReader(isr);
 				int size = -1;
 				int offset = 0;
@@ -0,0 +1,432 @@
+package selrach.bnetbuilder.data;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+import selrach.bnetbuilder.model.DynamicBayesNetModel;
+import selrach.bnetbuilder.model.distributions.Random;
+import selrach.bnetbuilder.model.distributions.RandomStream;
+import selrach.bnetbuilder.model.distributions.interfaces.ConditionalDistribution;
+import selrach.bnetbuilder.model.variable.DiscreteVariable;
+import selrach.bnetbuilder.model.variable.RandomVariable;
+import selrach.bnetbuilder.model.variable.TransientVariable;
+import cern.colt.matrix.DoubleFactory1D;
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.jet.random.Uniform;
+
+/**
+ * Generates trials from a model by ancestral sampling, for load testing
+ * learning and inference without having to find the data. Each trial draws
+ * every variable of every slice in topological order from its distribution
+ * given the values drawn for its parents, ignoring any evidence set on the
+ * model.
+ *
+ * The trials are written in the layout FileAccessor reads, one line per
+ * timestep with a column per model variable in the order of the model, and
+ * each trial taking as many lines as it has timesteps. Discrete variables are
+ * written as the names of their states. Hidden variables, and any value that
+ * goes missing at random, are written as the missing value, which
+ * TrialDao will not map and so leaves hidden. Files whose name ends in .gz are
+ * compressed.
+ *
+ * Trials are drawn in fixed size chunks on the pool, each into its own
+ * buffer and from its own stream seeded from the caller's, and the chunks
+ * are written out in order a few at a time. A seeded run writes the same
+ * file however many threads there are, and nothing is kept in memory but the
+ * chunks in flight, so there is no limit on how many trials can be written.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public class TrialGenerator {
+
+	private static final Logger logger = Logger.getLogger(TrialGenerator.class);
+
+	/**
+	 * Trials drawn by each task
+	 */
+	static final int CHUNK_SIZE = 256;
+
+	private static final ForkJoinPool pool = new ForkJoinPool(Runtime
+			.getRuntime().availableProcessors());
+
+	private final DynamicBayesNetModel model;
+
+	private final boolean parallel;
+
+	private String variableDeliminator = " ";
+
+	private boolean hasHeader = false;
+
+	private String missingValue = "?";
+
+	private double missingRate = 0.0;
+
+	/**
+	 * Ids of the model variables that are never written
+	 */
+	private final Set<String> hiddenVariables = new HashSet<String>();
+
+	/**
+	 * A generator that runs on every processor
+	 *
+	 * @param model
+	 */
+	public TrialGenerator(DynamicBayesNetModel model) {
+		this(model, true);
+	}
+
+	/**
+	 * @param model
+	 * @param parallel
+	 *            draw the chunks of trials on the pool, otherwise one after
+	 *            the other in the calling thread
+	 */
+	public TrialGenerator(DynamicBayesNetModel model, boolean parallel) {
+		this.model = model;
+		this.parallel = parallel;
+	}
+
+	/**
+	 * @return the variableDeliminator
+	 */
+	public String getVariableDeliminator() {
+		return variableDeliminator;
+	}
+
+	/**
+	 * @param variableDeliminator
+	 *            written between the values of a line
+	 */
+	public void setVariableDeliminator(String variableDeliminator) {
+		this.variableDeliminator = variableDeliminator;
+	}
+
+	/**
+	 * @return the hasHeader
+	 */
+	public boolean isHasHeader() {
+		return hasHeader;
+	}
+
+	/**
+	 * @param hasHeader
+	 *            write a line of the names of the variables first
+	 */
+	public void setHasHeader(boolean hasHeader) {
+		this.hasHeader = hasHeader;
+	}
+
+	/**
+	 * @return the missingValue
+	 */
+	public String getMissingValue() {
+		return missingValue;
+	}
+
+	/**
+	 * @param missingValue
+	 *            written for values that are hidden or missing, it should not
+	 *            be a number or the name of a state. It should not be empty
+	 *            either, as empty values at the end of a line are lost when
+	 *            the line is split.
+	 */
+	public void setMissingValue(String missingValue) {
+		this.missingValue = missingValue;
+	}
+
+	/**
+	 * @return the missingRate
+	 */
+	public double getMissingRate() {
+		return missingRate;
+	}
+
+	/**
+	 * @param missingRate
+	 *            the chance of each value not hidden going missing
+	 */
+	public void setMissingRate(double missingRate) {
+		this.missingRate = missingRate;
+	}
+
+	/**
+	 * @param variable
+	 * @param hidden
+	 *            never write the values of this variable
+	 */
+	public void setHidden(RandomVariable variable, boolean hidden) {
+		if (hidden) {
+			hiddenVariables.add(variable.getId());
+		} else {
+			hiddenVariables.remove(variable.getId());
+		}
+	}
+
+	/**
+	 * @param variable
+	 * @return whether the values of this variable are never written
+	 */
+	public boolean isHidden(RandomVariable variable) {
+		return hiddenVariables.contains(variable.getId());
+	}
+
+	/**
+	 * Writes trials to a file, compressed if its name ends in .gz
+	 *
+	 * @param filename
+	 * @param numberTrials
+	 * @param numberTimesteps
+	 *            the model is unrolled to this many slices if it has fewer
+	 * @throws Exception
+	 */
+	public void generate(String filename, int numberTrials,
+			int numberTimesteps) throws Exception {
+		OutputStream os = new FileOutputStream(filename);
+		if (filename.endsWith(".gz")) {
+			os = new GZIPOutputStream(os, 1 << 16);
+		}
+		final Writer out = new BufferedWriter(new OutputStreamWriter(os),
+				1 << 16);
+		try {
+			generate(out, numberTrials, numberTimesteps);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes trials, the writer is left open
+	 *
+	 * @param out
+	 * @param numberTrials
+	 * @param numberTimesteps
+	 *            the model is unrolled to this many slices if it has fewer
+	 * @throws Exception
+	 */
+	public void generate(Writer out, int numberTrials, int numberTimesteps)
+			throws Exception {
+		if (numberTrials < 0 || numberTimesteps < 1) {
+			throw new Exception(
+					"There must be at least one timestep and no negative number of trials.");
+		}
+		if (missingRate < 0 || missingRate > 1) {
+			throw new Exception("The missing rate must be between 0 and 1.");
+		}
+		if (model.getMaxNumberSlices() < numberTimesteps) {
+			model.setMaxNumberSlices(numberTimesteps);
+		}
+
+		// The slices are topologically sorted and come in order, so this is
+		// an order every parent comes before its children in
+		List<TransientVariable> variables = new ArrayList<TransientVariable>();
+		for (int i = 0; i < numberTimesteps; i++) {
+			for (TransientVariable tv : model.getSlice(i).getVariables()) {
+				if (tv.getTime() == i) {
+					variables.add(tv);
+				}
+			}
+		}
+		final int numVariables = variables.size();
+		Map<TransientVariable, Integer> indices = new HashMap<TransientVariable, Integer>();
+		for (int v = 0; v < numVariables; v++) {
+			indices.put(variables.get(v), v);
+		}
+		int[][] parentIndices = new int[numVariables][];
+		for (int v = 0; v < numVariables; v++) {
+			List<TransientVariable> parents = variables.get(v).getParents();
+			parentIndices[v] = new int[parents.size()];
+			for (int k = 0; k < parents.size(); k++) {
+				Integer index = indices.get(parents.get(k));
+				if (index == null || index >= v) {
+					throw new Exception("The parent " + parents.get(k) + " of "
+							+ variables.get(v)
+							+ " does not come before it in the slices");
+				}
+				parentIndices[v][k] = index;
+			}
+		}
+
+		// Which sampled variable goes in each column of each line, -1 for
+		// the ones that are always missing
+		List<RandomVariable> rvs = model.getVariables();
+		final int numColumns = rvs.size();
+		int[][] columns = new int[numberTimesteps][numColumns];
+		String[][] stateNames = new String[numVariables][];
+		for (int t = 0; t < numberTimesteps; t++) {
+			for (int c = 0; c < numColumns; c++) {
+				columns[t][c] = -1;
+			}
+		}
+		for (int v = 0; v < numVariables; v++) {
+			TransientVariable tv = variables.get(v);
+			RandomVariable rv = tv.getReference();
+			if (rv instanceof DiscreteVariable) {
+				stateNames[v] = ((DiscreteVariable) rv).getStates().toArray(
+						new String[0]);
+			}
+			int c = rvs.indexOf(rv);
+			if (c >= 0 && !hiddenVariables.contains(rv.getId())) {
+				columns[tv.getTime()][c] = v;
+			}
+		}
+
+		if (hasHeader) {
+			for (int c = 0; c < numColumns; c++) {
+				if (c > 0) {
+					out.write(variableDeliminator);
+				}
+				out.write(rvs.get(c).getName());
+			}
+			out.write('\n');
+		}
+
+		TransientVariable[] sampledVariables = variables
+				.toArray(new TransientVariable[numVariables]);
+		RandomStream random = Random.getStream();
+		final int numChunks = (numberTrials + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		final int perRound = parallel ? 2 * pool.getParallelism() : 1;
+		for (int first = 0; first < numChunks; first += perRound) {
+			GenerateTask[] tasks = new GenerateTask[Math.min(perRound,
+					numChunks - first)];
+			for (int c = 0; c < tasks.length; c++) {
+				int from = (first + c) * CHUNK_SIZE;
+				tasks[c] = new GenerateTask(Math.min(CHUNK_SIZE, numberTrials
+						- from), random.getGenerator(), random.nextLong(),
+						sampledVariables, parentIndices, columns, stateNames);
+			}
+			if (parallel && tasks.length > 1) {
+				pool.invoke(new RunAllTask(tasks));
+			} else {
+				for (GenerateTask task : tasks) {
+					task.invoke();
+				}
+			}
+			for (GenerateTask task : tasks) {
+				if (task.error != null) {
+					throw task.error;
+				}
+				task.writeTo(out);
+			}
+			if (logger.isDebugEnabled()) {
+				logger.debug("Generated "
+						+ Math.min(numberTrials, (first + tasks.length)
+								* CHUNK_SIZE) + " of " + numberTrials
+						+ " trials");
+			}
+		}
+		out.flush();
+	}
+
+	private static class RunAllTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final GenerateTask[] tasks;
+
+		RunAllTask(GenerateTask[] tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			ForkJoinTask.invokeAll(tasks);
+		}
+	}
+
+	/**
+	 * Draws and formats one chunk of the trials. Distributions cache their
+	 * densities so each chunk works on its own copies.
+	 */
+	private class GenerateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int numberTrials;
+		private final RandomStream random;
+		private final TransientVariable[] variables;
+		private final int[][] parentIndices;
+		private final int[][] columns;
+		private final String[][] stateNames;
+		private final StringBuilder text = new StringBuilder();
+		private Exception error = null;
+
+		GenerateTask(int numberTrials, RandomStream.Generator generator,
+				long seed, TransientVariable[] variables, int[][] parentIndices,
+				int[][] columns, String[][] stateNames) {
+			this.numberTrials = numberTrials;
+			this.random = new RandomStream(generator, seed);
+			this.variables = variables;
+			this.parentIndices = parentIndices;
+			this.columns = columns;
+			this.stateNames = stateNames;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				work();
+			} catch (Exception ex) {
+				error = ex;
+			}
+		}
+
+		private void work() throws Exception {
+			final int numVariables = variables.length;
+			ConditionalDistribution[] cpds = new ConditionalDistribution[numVariables];
+			DoubleMatrix1D[] parentValues = new DoubleMatrix1D[numVariables];
+			for (int v = 0; v < numVariables; v++) {
+				cpds[v] = variables[v].getDistribution().copy();
+				parentValues[v] = DoubleFactory1D.dense.make(cpds[v]
+						.getNumberParentDimensions());
+			}
+			double[] values = new double[numVariables];
+			Uniform uniform = random.getUniform();
+
+			for (int trial = 0; trial < numberTrials; trial++) {
+				for (int v = 0; v < numVariables; v++) {
+					int[] pi = parentIndices[v];
+					DoubleMatrix1D pv = parentValues[v];
+					for (int k = 0; k < pi.length; k++) {
+						pv.setQuick(k, values[pi[k]]);
+					}
+					values[v] = cpds[v].sample(pv, random).getQuick(0);
+				}
+				for (int[] line : columns) {
+					for (int c = 0; c < line.length; c++) {
+						if (c > 0) {
+							text.append(variableDeliminator);
+						}
+						int v = line[c];
+						if (v < 0 || missingRate > 0
+								&& uniform.nextDouble() < missingRate) {
+							text.append(missingValue);
+						} else if (stateNames[v] != null) {
+							text.append(stateNames[v][(int) values[v]]);
+						} else {
+							text.append(values[v]);
+						}
+					}
+					text.append('\n');
+				}
+			}
+		}
+
+		void writeTo(Writer out) throws IOException {
+			out.append(text);
+			text.setLength(0);
+		}
+	}
+}
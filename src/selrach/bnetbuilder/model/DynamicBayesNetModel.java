@@ -16,6 +16,7 @@ import selrach.bnetbuilder.data.TrialDao;
 import selrach.bnetbuilder.model.dao.DynamicBayesNetDao;
 import selrach.bnetbuilder.model.listener.interfaces.EdgeUpdatedListener;
 import selrach.bnetbuilder.model.listener.interfaces.ModelUpdatedListener;
+import selrach.bnetbuilder.model.listener.interfaces.SliceInferredListener;
 import selrach.bnetbuilder.model.listener.interfaces.VariableUpdatedListener;
 import selrach.bnetbuilder.model.variable.ContinuousVariable;
 import selrach.bnetbuilder.model.variable.DiscreteVariable;
@@ -143,6 +144,48 @@ public class DynamicBayesNetModel implements StateUpdatedListener {
 		}
 	}
 
+	/**
+	 * Handles SliceInferredListener subscribers
+	 * 
+	 * @author <a href="mailto:charleswrobertson@gmail.com">Charles
+	 *         Robertson</a>
+	 * 
+	 */
+	static private class SliceInferredEvent {
+		static private SliceInferredEvent instance = null;
+
+		static public SliceInferredEvent getInstance() {
+			if (instance == null) {
+				instance = new SliceInferredEvent();
+			}
+			return instance;
+		}
+
+		private final ArrayList<SliceInferredListener> subscribers = new ArrayList<SliceInferredListener>();
+
+		private SliceInferredEvent() {
+		}
+
+		public void sliceInferred(DynamicBayesNetModel model,
+				BayesNetSlice slice, int time) {
+			for (SliceInferredListener l : subscribers) {
+				l.sliceInferred(model, slice, time);
+			}
+		}
+
+		public void subscribe(SliceInferredListener listener) {
+			if (!subscribers.contains(listener)) {
+				subscribers.add(listener);
+			}
+		}
+
+		public void unsubscribe(SliceInferredListener listener) {
+			if (subscribers.contains(listener)) {
+				subscribers.remove(listener);
+			}
+		}
+	}
+
 	/**
 	 * Allows for notification of different variable changes.
 	 * 
@@ -270,11 +313,36 @@ public class DynamicBayesNetModel implements StateUpdatedListener {
 
 	/**
 	 * This is the maximum amount of slices allowed in memory...useful if we
-	 * want to limit our memory footprint in filtering applications. Currently
-	 * we are just going to keep everything in memory.
+	 * want to limit our memory footprint in filtering applications. By default
+	 * we keep everything in memory.
 	 */
 	int maxSlicesInMemory = Integer.MAX_VALUE;
 
+	/**
+	 * The time of the first slice in memory, everything before it has been
+	 * released
+	 */
+	int firstSliceInMemory = 0;
+
+	/**
+	 * Evidence of the slices that have been released, from the slice at
+	 * releasedEvidenceStart on and then by the topologically sorted
+	 * variables, NaN for anything that was not evidence. It is put back if a
+	 * released slice is generated again.
+	 */
+	private final List<double[]> releasedEvidence = new ArrayList<double[]>();
+
+	/**
+	 * The time of the first entry of releasedEvidence
+	 */
+	private int releasedEvidenceStart = 0;
+
+	/**
+	 * Slices before this have had their evidence discarded and cannot be
+	 * generated again
+	 */
+	private int evidenceHorizon = 0;
+
 	/**
 	 * This should always be bigger than the largest order variable in the
 	 * network We do this to impose a consistent outlay on all random variable
@@ -305,6 +373,20 @@ public class DynamicBayesNetModel implements StateUpdatedListener {
 	private final ModelUpdatedEvent modelUpdatedEvent = ModelUpdatedEvent
 			.getInstance();
 
+	private final SliceInferredEvent sliceInferredEvent = SliceInferredEvent
+			.getInstance();
+
+	/**
+	 * Lets everyone know that the marginals of a slice are done, this is the
+	 * chance to read them before the slice is released from memory.
+	 * 
+	 * @param time
+	 * @throws Exception
+	 */
+	public void notifySliceInferred(int time) throws Exception {
+		sliceInferredEvent.sliceInferred(this, getSlice(time), time);
+	}
+
 	Point nextIntra = new Point(20, -20);
 
 	public DynamicBayesNetModel(DynamicBayesNetDao dao) {
@@ -495,7 +577,7 @@ public class DynamicBayesNetModel implements StateUpdatedListener {
 	 */
 	public void generateFirstSlice() {
 		clearTransientVariables();
-		generateSlice(slices.size());
+		generateSlice(0);
 	}
 
 	/**
@@ -506,12 +588,12 @@ public class DynamicBayesNetModel implements StateUpdatedListener {
 	 * @return
 	 */
 	public int generateNextSlice() throws Exception {
-		if (slices.size() >= maxNumberSlices) {
+		if (firstSliceInMemory + slices.size() >= maxNumberSlices) {
 			throw new Exception(
 					"We cannot generate the next slice as it is bigger than our upper bound");
 		}
-		generateSlice(slices.size());
-		return slices.size();
+		generateSlice(firstSliceInMemory + slices.size());
+		return firstSliceInMemory + slices.size();
 	}
 
 	/**
@@ -533,16 +615,108 @@ public class DynamicBayesNetModel implements StateUpdatedListener {
 			currentVariableMap.put(rv.getId(), tv);
 		}
 
+		int index = timeslice - releasedEvidenceStart;
+		if (index >= 0 && index < releasedEvidence.size()
+				&& releasedEvidence.get(index) != null) {
+			double[] evidence = releasedEvidence.get(index);
+			for (int i = 0; i < evidence.length; i++) {
+				if (!Double.isNaN(evidence[i])) {
+					currentVariables.get(i).setEvidence(evidence[i], false);
+				}
+			}
+		}
+
 		slices.add(new BayesNetSlice(currentVariables, currentVariableMap));
-		if (slices.size() > maxSlicesInMemory) {
-			// Do stuff to marginalize distributions in slice we are going
-			// to remove to a slice that is going to remain (slices.get(1))
-			slices.remove(0);
+		while (slices.size() > maxSlicesInMemory) {
+			releaseSlice();
 		}
 	}
 
+	/**
+	 * Drops the oldest slice in memory. Its evidence is kept so it can be
+	 * generated again, unless it is behind the evidence horizon, the
+	 * transient variables are kept as long as a slice still in memory can
+	 * have them as parents.
+	 */
+	private void releaseSlice() {
+		BayesNetSlice slice = slices.remove(0);
+		if (firstSliceInMemory >= evidenceHorizon) {
+			List<TransientVariable> sliceVariables = slice.getVariables();
+			double[] evidence = new double[sliceVariables.size()];
+			for (int i = 0; i < evidence.length; i++) {
+				TransientVariable tv = sliceVariables.get(i);
+				evidence[i] = tv.isEvidence() ? tv.getEvidence() : Double.NaN;
+			}
+			if (releasedEvidence.isEmpty()) {
+				releasedEvidenceStart = firstSliceInMemory;
+			}
+			while (releasedEvidenceStart + releasedEvidence.size()
+					<= firstSliceInMemory) {
+				releasedEvidence.add(null);
+			}
+			releasedEvidence.set(firstSliceInMemory - releasedEvidenceStart,
+					evidence);
+		}
+		firstSliceInMemory++;
+
+		int keep = firstSliceInMemory - (numberTemplateSlices - 1);
+		for (RandomVariable rv : variables.values()) {
+			rv.releaseTransientVariables(keep);
+		}
+	}
+
+	/**
+	 * Releases everything in memory and starts generating slices again from
+	 * an earlier time
+	 * 
+	 * @param time
+	 */
+	private void rewindSlices(int time) {
+		while (slices.size() > 0) {
+			releaseSlice();
+		}
+		firstSliceInMemory = time;
+		int keep = Math.max(0, time - (numberTemplateSlices - 1));
+		for (RandomVariable rv : variables.values()) {
+			rv.clearTransientVariables(keep);
+		}
+	}
+
+	/**
+	 * Throws away the evidence kept for the released slices before a time,
+	 * so a long run through the slices does not have to keep the evidence of
+	 * all of them. Those slices cannot be generated again until the slices
+	 * are cleared.
+	 * 
+	 * @param time
+	 */
+	public void discardEvidenceBefore(int time) {
+		if (time <= evidenceHorizon) {
+			return;
+		}
+		evidenceHorizon = time;
+		int drop = Math.min(time - releasedEvidenceStart, releasedEvidence
+				.size());
+		if (drop > 0) {
+			releasedEvidence.subList(0, drop).clear();
+			releasedEvidenceStart += drop;
+		}
+	}
+
+	/**
+	 * @return the first slice that can still be generated, slices before it
+	 *         had their evidence discarded
+	 */
+	public int getEvidenceHorizon() {
+		return evidenceHorizon;
+	}
+
 	public void clearTransientVariables() {
 		slices.clear();
+		firstSliceInMemory = 0;
+		releasedEvidence.clear();
+		releasedEvidenceStart = 0;
+		evidenceHorizon = 0;
 		for (RandomVariable rv : variables.values()) {
 			rv.clearTransientVariables();
 		}
@@ -591,13 +765,24 @@ public class DynamicBayesNetModel implements StateUpdatedListener {
 		if (time > maxNumberSlices || time < 0) {
 			throw new Exception("Slice outside of valid range.");
 		}
+		if (time < firstSliceInMemory) {
+			if (time < evidenceHorizon) {
+				throw new Exception("Slice " + time
+						+ " was released and its evidence discarded");
+			}
+			rewindSlices(time);
+		}
 		if (slices.size() == 0) {
-			generateFirstSlice();
+			if (firstSliceInMemory == 0 && releasedEvidence.isEmpty()) {
+				generateFirstSlice();
+			} else {
+				generateSlice(firstSliceInMemory);
+			}
 		}
-		while (time >= slices.size()) {
+		while (time >= firstSliceInMemory + slices.size()) {
 			generateNextSlice();
 		}
-		return slices.get(time);
+		return slices.get(time - firstSliceInMemory);
 	}
 
 	/**
@@ -802,7 +987,7 @@ public class DynamicBayesNetModel implements StateUpdatedListener {
 	/**
 	 * Subscribes an object to this model depending on what interfaces it has
 	 * implemented. VariableUpdatedListener EdgeUpdatedListener
-	 * ModelUpdatedListner
+	 * ModelUpdatedListner SliceInferredListener
 	 * 
 	 * @param obj
 	 */
@@ -816,6 +1001,9 @@ public class DynamicBayesNetModel implements StateUpdatedListener {
 		if (obj instanceof ModelUpdatedListener) {
 			modelUpdatedEvent.subscribe((ModelUpdatedListener) obj);
 		}
+		if (obj instanceof SliceInferredListener) {
+			sliceInferredEvent.subscribe((SliceInferredListener) obj);
+		}
 	}
 
 	/**
@@ -851,6 +1039,9 @@ public class DynamicBayesNetModel implements StateUpdatedListener {
 		if (obj instanceof ModelUpdatedListener) {
 			modelUpdatedEvent.unsubscribe((ModelUpdatedListener) obj);
 		}
+		if (obj instanceof SliceInferredListener) {
+			sliceInferredEvent.unsubscribe((SliceInferredListener) obj);
+		}
 	}
 
 	/**
@@ -879,7 +1070,10 @@ public class DynamicBayesNetModel implements StateUpdatedListener {
 	 */
 	public void setMaxNumberSlices(int maxNumberSlices) {
 		this.maxNumberSlices = maxNumberSlices;
-		while (maxNumberSlices < slices.size()) {
+		if (maxNumberSlices <= firstSliceInMemory) {
+			clearTransientVariables();
+		}
+		while (maxNumberSlices < firstSliceInMemory + slices.size()) {
 			slices.remove(slices.size() - 1);
 		}
 	}
@@ -892,13 +1086,41 @@ public class DynamicBayesNetModel implements StateUpdatedListener {
 	}
 
 	/**
+	 * Limits the number of slices kept in memory. Slices past this are
+	 * released oldest first as new ones get generated, and junction tree
+	 * inference switches over to interface filtering so it never needs more
+	 * than a couple of slices at once. Evidence for the whole sequence can
+	 * still be set by walking forward through getSlice, it is remembered for
+	 * the slices that get released until discardEvidenceBefore throws it away.
+	 * 
 	 * @param maxSlicesInMemory
 	 *            the maxSlicesInMemory to set
 	 */
 	public void setMaxSlicesInMemory(int maxSlicesInMemory) throws Exception {
-		throw new Exception(
-				"Marginalization of old timeslices not done yet, do not change the maxslices in memory");
-		// this.maxSlicesInMemory = maxSlicesInMemory;
+		if (maxSlicesInMemory < numberTemplateSlices) {
+			throw new Exception("At least " + numberTemplateSlices
+					+ " slices have to be kept in memory for this model");
+		}
+		this.maxSlicesInMemory = maxSlicesInMemory;
+		while (slices.size() > maxSlicesInMemory) {
+			releaseSlice();
+		}
+	}
+
+	/**
+	 * Are there more slices in the model than we can keep in memory at once?
+	 * 
+	 * @return
+	 */
+	public boolean isMemoryBounded() {
+		return maxSlicesInMemory < maxNumberSlices;
+	}
+
+	/**
+	 * @return the time of the first slice still in memory
+	 */
+	public int getFirstSliceInMemory() {
+		return firstSliceInMemory;
 	}
 
 	/**
@@ -140,6 +140,24 @@ public abstract class Utility {
 		return ind;
 	}
 
+	/**
+	 * Calculates how far apart two consecutive states of each dimension are in
+	 * the flat representation of a table with the given state layout. The
+	 * last dimension moves the fastest so it has a stride of 1.
+	 * 
+	 * @param stateLayout
+	 * @return the stride of each dimension
+	 */
+	static public int[] calculateStrides(int[] stateLayout) {
+		int[] strides = new int[stateLayout.length];
+		int factor = 1;
+		for (int i = stateLayout.length - 1; i >= 0; i--) {
+			strides[i] = factor;
+			factor *= stateLayout[i];
+		}
+		return strides;
+	}
+
 	/**
 	 * Assumes ascending order of independent indices. Basically returns the
 	 * indices that are not present in the current indices set given a total
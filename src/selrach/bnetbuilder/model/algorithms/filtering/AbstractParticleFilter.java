@@ -0,0 +1,331 @@
+package selrach.bnetbuilder.model.algorithms.filtering;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import selrach.bnetbuilder.model.algorithms.filtering.interfaces.Filter;
+import selrach.bnetbuilder.model.variable.TransientVariable;
+import cern.jet.random.Uniform;
+
+/**
+ * What every particle filter shares: the normalized log weights of the
+ * particles, resampling them once the effective sample size drops, the
+ * estimate of the log likelihood, and running fixed size chunks of particles
+ * on the pool. Chunks do not depend on the number of threads so a seeded run
+ * comes out the same however many there are.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public abstract class AbstractParticleFilter implements Filter {
+
+	/**
+	 * How the particles are resampled
+	 */
+	public enum Resampling {
+		/**
+		 * One uniform draw, the particles are picked at evenly spaced points
+		 */
+		SYSTEMATIC,
+		/**
+		 * One uniform draw in each of the evenly spaced strata
+		 */
+		STRATIFIED
+	}
+
+	/**
+	 * Resample once the effective sample size is below this fraction of the
+	 * number of particles
+	 */
+	public static final double DEFAULT_RESAMPLE_THRESHOLD = 0.5;
+
+	/**
+	 * Particles handled by each task
+	 */
+	static final int CHUNK_SIZE = 1024;
+
+	private static final ForkJoinPool pool = new ForkJoinPool(Runtime
+			.getRuntime().availableProcessors());
+
+	private final boolean parallel;
+
+	private Resampling resampling = Resampling.SYSTEMATIC;
+
+	private double resampleThreshold = DEFAULT_RESAMPLE_THRESHOLD;
+
+	protected int numParticles = 0;
+
+	/**
+	 * The normalized log weight of each particle, null until the first slice
+	 */
+	protected double[] logWeights = null;
+
+	private double effectiveSampleSize = 0.0;
+
+	private double logLikelihood = 0.0;
+
+	/**
+	 * @param parallel
+	 *            run the chunks of particles on the pool, otherwise one after
+	 *            the other in the calling thread
+	 */
+	protected AbstractParticleFilter(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	/**
+	 * @return how the particles are resampled
+	 */
+	public Resampling getResampling() {
+		return resampling;
+	}
+
+	/**
+	 * @param resampling
+	 */
+	public void setResampling(Resampling resampling) {
+		this.resampling = resampling;
+	}
+
+	/**
+	 * @return the fraction of the number of particles the effective sample
+	 *         size has to drop below for the particles to be resampled
+	 */
+	public double getResampleThreshold() {
+		return resampleThreshold;
+	}
+
+	/**
+	 * @param resampleThreshold
+	 *            0 to never resample unless the number of particles changes,
+	 *            1 to resample before every slice
+	 */
+	public void setResampleThreshold(double resampleThreshold) {
+		this.resampleThreshold = resampleThreshold;
+	}
+
+	/**
+	 * @return the number of particles
+	 */
+	public int getNumberParticles() {
+		return numParticles;
+	}
+
+	/**
+	 * @return the effective sample size of the weights after the last slice
+	 */
+	public double getEffectiveSampleSize() {
+		return effectiveSampleSize;
+	}
+
+	/**
+	 * @return the estimate of the log probability of all the evidence
+	 *         filtered so far
+	 */
+	public double getLogLikelihood() {
+		return logLikelihood;
+	}
+
+	/**
+	 * @return the normalized log weight of each particle, null before the
+	 *         first slice
+	 */
+	public double[] getLogWeights() {
+		return logWeights;
+	}
+
+	/**
+	 * Throws out the particles so the next slice filtered is started over
+	 * from the priors
+	 */
+	public void reset() {
+		numParticles = 0;
+		logWeights = null;
+		effectiveSampleSize = 0.0;
+		logLikelihood = 0.0;
+	}
+
+	/**
+	 * Starts off the weights on the first slice, or resamples the particles
+	 * if their effective sample size is too low or a different number of
+	 * them is asked for
+	 *
+	 * @param maxSamples
+	 *            the number of particles wanted
+	 * @param uniform
+	 * @return the particle each new particle is a copy of, null if the
+	 *         particles were not resampled
+	 */
+	protected int[] start(int maxSamples, Uniform uniform) throws Exception {
+		if (maxSamples < 1) {
+			throw new Exception("A particle filter needs at least one particle");
+		}
+		if (logWeights == null) {
+			numParticles = maxSamples;
+			logWeights = new double[numParticles];
+			Arrays.fill(logWeights, -Math.log(numParticles));
+			return null;
+		}
+		if (maxSamples == numParticles
+				&& effectiveSampleSize >= resampleThreshold * numParticles) {
+			return null;
+		}
+
+		int[] ancestors = new int[maxSamples];
+		double step = 1.0 / maxSamples;
+		double offset = uniform.nextDouble() * step;
+		int j = 0;
+		double cumulative = Math.exp(logWeights[0]);
+		for (int k = 0; k < maxSamples; k++) {
+			if (resampling == Resampling.STRATIFIED && k > 0) {
+				offset = uniform.nextDouble() * step;
+			}
+			double position = k * step + offset;
+			while (position > cumulative && j < numParticles - 1) {
+				cumulative += Math.exp(logWeights[++j]);
+			}
+			ancestors[k] = j;
+		}
+		numParticles = maxSamples;
+		logWeights = new double[numParticles];
+		Arrays.fill(logWeights, -Math.log(numParticles));
+		effectiveSampleSize = numParticles;
+		return ancestors;
+	}
+
+	/**
+	 * @param column
+	 *            a value for each of the old particles
+	 * @param ancestors
+	 * @param width
+	 *            how many values each particle has
+	 * @return the values of the new particles
+	 */
+	protected static double[] gather(double[] column, int[] ancestors,
+			int width) {
+		double[] ret = new double[ancestors.length * width];
+		for (int k = 0; k < ancestors.length; k++) {
+			System.arraycopy(column, ancestors[k] * width, ret, k * width,
+					width);
+		}
+		return ret;
+	}
+
+	/**
+	 * Normalizes the log weights, adding the log of their sum to the log
+	 * likelihood, and works out the effective sample size
+	 *
+	 * @param time
+	 * @throws Exception
+	 */
+	protected void normalize(int time) throws Exception {
+		double max = Double.NEGATIVE_INFINITY;
+		for (double lw : logWeights) {
+			if (lw > max) {
+				max = lw;
+			}
+		}
+		if (max == Double.NEGATIVE_INFINITY || Double.isNaN(max)) {
+			throw new Exception("No particle can explain the evidence at time "
+					+ time);
+		}
+		double sum = 0.0;
+		for (double lw : logWeights) {
+			sum += Math.exp(lw - max);
+		}
+		double logSum = max + Math.log(sum);
+		logLikelihood += logSum;
+		double sumSquares = 0.0;
+		for (int i = 0; i < numParticles; i++) {
+			logWeights[i] -= logSum;
+			double w = Math.exp(logWeights[i]);
+			sumSquares += w * w;
+		}
+		effectiveSampleSize = 1.0 / sumSquares;
+	}
+
+	/**
+	 * @param tv
+	 * @param time
+	 * @return whether no slice from time on can have tv as a parent
+	 */
+	protected static boolean isReleased(TransientVariable tv, int time) {
+		int lag = Math.max(1, tv.getReference().getMaxChildrenTemplateSlices()) - 1;
+		return tv.getTime() + lag < time;
+	}
+
+	/**
+	 * @return how many chunks the particles are split into
+	 */
+	protected int getNumberChunks() {
+		return (numParticles + CHUNK_SIZE - 1) / CHUNK_SIZE;
+	}
+
+	/**
+	 * Runs the tasks on the pool, or in order in this thread, and throws the
+	 * first problem any of them had
+	 *
+	 * @param tasks
+	 * @throws Exception
+	 */
+	protected void run(ChunkTask[] tasks) throws Exception {
+		if (parallel && tasks.length > 1) {
+			pool.invoke(new RunAllTask(tasks));
+		} else {
+			for (ChunkTask task : tasks) {
+				task.invoke();
+			}
+		}
+		for (ChunkTask task : tasks) {
+			if (task.error != null) {
+				throw task.error;
+			}
+		}
+	}
+
+	private static class RunAllTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final ChunkTask[] tasks;
+
+		RunAllTask(ChunkTask[] tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			ForkJoinTask.invokeAll(tasks);
+		}
+	}
+
+	/**
+	 * Works on one chunk of the particles, from up to but not including to
+	 */
+	protected abstract class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		protected final int from;
+		protected final int to;
+		private Exception error = null;
+
+		/**
+		 * @param chunk
+		 *            which chunk of the particles
+		 */
+		protected ChunkTask(int chunk) {
+			this.from = chunk * CHUNK_SIZE;
+			this.to = Math.min(numParticles, from + CHUNK_SIZE);
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				work();
+			} catch (Exception ex) {
+				error = ex;
+			}
+		}
+
+		protected abstract void work() throws Exception;
+	}
+}
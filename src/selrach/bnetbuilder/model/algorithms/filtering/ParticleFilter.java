@@ -1,5 +1,300 @@
 package selrach.bnetbuilder.model.algorithms.filtering;
 
-public class ParticleFilter {
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.log4j.Logger;
+
+import selrach.bnetbuilder.model.BayesNetSlice;
+import selrach.bnetbuilder.model.distributions.Random;
+import selrach.bnetbuilder.model.distributions.RandomStream;
+import selrach.bnetbuilder.model.distributions.accumulators.SampleAccumulator;
+import selrach.bnetbuilder.model.distributions.interfaces.ConditionalDistribution;
+import selrach.bnetbuilder.model.variable.TransientVariable;
+import cern.colt.matrix.DoubleFactory1D;
+import cern.colt.matrix.DoubleMatrix1D;
+
+/**
+ * Sequential importance resampling particle filter. Every call to execute
+ * moves the particles forward one slice: each hidden variable is sampled from
+ * its conditional distribution given the particle's values of its parents
+ * and each particle is weighted by the probability of the evidence. The
+ * marginals of the slice are then set from the weighted particles through
+ * the sample accumulators of its variables. This works for any mix of
+ * discrete and continuous variables and never builds a junction tree, so it
+ * is what we can afford on large continuous models.
+ *
+ * The values of the particles are kept an array per variable, and only as
+ * long as a later slice can have that variable as a parent. Particles are
+ * propagated and summarized in fixed size chunks, in parallel on the pool
+ * unless asked not to. Each chunk draws from its own stream split from the
+ * caller's, so a seeded run gives the same particles however many threads
+ * there are.
+ *
+ * Before a slice is propagated the particles are resampled, systematically
+ * or stratified, if the effective sample size has dropped below a fraction of
+ * the number of particles, or if a different number of particles is asked
+ * for.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public class ParticleFilter extends AbstractParticleFilter {
+
+	private static final Logger logger = Logger.getLogger(ParticleFilter.class);
+
+	/**
+	 * The value of each particle for every variable a later slice may need
+	 */
+	private final Map<TransientVariable, double[]> values = new HashMap<TransientVariable, double[]>();
+
+	/**
+	 * A filter that runs on every processor
+	 */
+	public ParticleFilter() {
+		this(true);
+	}
+
+	/**
+	 * @param parallel
+	 *            run the chunks of particles on the pool, otherwise one after
+	 *            the other in the calling thread
+	 */
+	public ParticleFilter(boolean parallel) {
+		super(parallel);
+	}
+
+	/**
+	 * @param tv
+	 * @return the value of each particle for a variable, null if it has not
+	 *         been filtered or is no longer needed
+	 */
+	public double[] getValues(TransientVariable tv) {
+		return values.get(tv);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		values.clear();
+	}
+
+	public void execute(BayesNetSlice slice, int maxSamples) throws Exception {
+		List<TransientVariable> variables = slice.getVariables();
+		if (variables.isEmpty()) {
+			return;
+		}
+		int time = variables.get(0).getTime();
+		RandomStream random = Random.getStream();
+
+		int[] ancestors = start(maxSamples, random.getUniform());
+		Iterator<Map.Entry<TransientVariable, double[]>> it = values
+				.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<TransientVariable, double[]> entry = it.next();
+			if (isReleased(entry.getKey(), time)) {
+				it.remove();
+			} else if (ancestors != null) {
+				entry.setValue(gather(entry.getValue(), ancestors, 1));
+			}
+		}
+		if (ancestors != null && logger.isDebugEnabled()) {
+			logger.debug("Resampled " + numParticles + " particles at time "
+					+ time);
+		}
+
+		int numVariables = variables.size();
+		TransientVariable[] slicedVariables = variables
+				.toArray(new TransientVariable[numVariables]);
+		double[][] columns = new double[numVariables][];
+		double[][][] parentColumns = new double[numVariables][][];
+		for (int v = 0; v < numVariables; v++) {
+			TransientVariable tv = slicedVariables[v];
+			List<TransientVariable> parents = tv.getParents();
+			parentColumns[v] = new double[parents.size()][];
+			for (int k = 0; k < parents.size(); k++) {
+				parentColumns[v][k] = parentColumn(parents.get(k));
+			}
+			columns[v] = new double[numParticles];
+			values.put(tv, columns[v]);
+		}
+
+		int numChunks = getNumberChunks();
+		PropagateTask[] propagate = new PropagateTask[numChunks];
+		for (int c = 0; c < numChunks; c++) {
+			propagate[c] = new PropagateTask(c, random.split(),
+					slicedVariables, columns, parentColumns);
+		}
+		run(propagate);
+
+		normalize(time);
+
+		summarize(slicedVariables, columns, numChunks);
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Filtered time " + time + " with "
+					+ getEffectiveSampleSize() + " effective of "
+					+ numParticles + " particles, log likelihood "
+					+ getLogLikelihood());
+		}
+	}
+
+	/**
+	 * @param p
+	 * @return the value of each particle for a parent
+	 * @throws Exception
+	 */
+	private double[] parentColumn(TransientVariable p) throws Exception {
+		double[] column = values.get(p);
+		if (column != null) {
+			return column;
+		}
+		if (p.isEvidence()) {
+			column = new double[numParticles];
+			Arrays.fill(column, p.getEvidence());
+			return column;
+		}
+		throw new Exception("No particles for " + p
+				+ ", slices must be filtered in order");
+	}
+
+	/**
+	 * Sets the marginals of the hidden variables of a slice from the weighted
+	 * particles. Every chunk fills its own copies of the accumulators which
+	 * are merged in order.
+	 *
+	 * @param slicedVariables
+	 * @param columns
+	 * @param numChunks
+	 * @throws Exception
+	 */
+	private void summarize(TransientVariable[] slicedVariables,
+			double[][] columns, int numChunks) throws Exception {
+		int numHidden = 0;
+		for (TransientVariable tv : slicedVariables) {
+			if (!tv.isEvidence()) {
+				numHidden++;
+			}
+		}
+		if (numHidden == 0) {
+			return;
+		}
+		TransientVariable[] hidden = new TransientVariable[numHidden];
+		double[][] hiddenColumns = new double[numHidden][];
+		int h = 0;
+		for (int v = 0; v < slicedVariables.length; v++) {
+			if (!slicedVariables[v].isEvidence()) {
+				hidden[h] = slicedVariables[v];
+				hiddenColumns[h++] = columns[v];
+			}
+		}
+
+		SummarizeTask[] tasks = new SummarizeTask[numChunks];
+		for (int c = 0; c < numChunks; c++) {
+			SampleAccumulator[] samples = new SampleAccumulator[numHidden];
+			for (h = 0; h < numHidden; h++) {
+				samples[h] = hidden[h].getSampleAccumulator().emptyCopy();
+			}
+			tasks[c] = new SummarizeTask(c, hiddenColumns, samples);
+		}
+		run(tasks);
+
+		for (h = 0; h < numHidden; h++) {
+			hidden[h].clearSamples();
+			SampleAccumulator samples = hidden[h].getSampleAccumulator();
+			for (SummarizeTask task : tasks) {
+				samples.merge(task.samples[h]);
+			}
+			hidden[h].generateMarginalFromSamples();
+		}
+	}
+
+	/**
+	 * Samples the hidden variables of a slice and weights by the evidence.
+	 * Distributions cache their densities so each chunk works on its own
+	 * copies.
+	 */
+	private class PropagateTask extends ChunkTask {
+		private static final long serialVersionUID = 1L;
+		private final RandomStream random;
+		private final TransientVariable[] variables;
+		private final double[][] columns;
+		private final double[][][] parentColumns;
+
+		PropagateTask(int chunk, RandomStream random,
+				TransientVariable[] variables, double[][] columns,
+				double[][][] parentColumns) {
+			super(chunk);
+			this.random = random;
+			this.variables = variables;
+			this.columns = columns;
+			this.parentColumns = parentColumns;
+		}
+
+		@Override
+		protected void work() throws Exception {
+			int numVariables = variables.length;
+			ConditionalDistribution[] cpds = new ConditionalDistribution[numVariables];
+			DoubleMatrix1D[] parentValues = new DoubleMatrix1D[numVariables];
+			DoubleMatrix1D[] evidence = new DoubleMatrix1D[numVariables];
+			for (int v = 0; v < numVariables; v++) {
+				cpds[v] = variables[v].getDistribution().copy();
+				parentValues[v] = DoubleFactory1D.dense.make(cpds[v]
+						.getNumberParentDimensions());
+				if (variables[v].isEvidence()) {
+					evidence[v] = DoubleFactory1D.dense.make(1, variables[v]
+							.getEvidence());
+				}
+			}
+
+			for (int i = from; i < to; i++) {
+				double lw = logWeights[i];
+				for (int v = 0; v < numVariables; v++) {
+					double[][] pc = parentColumns[v];
+					DoubleMatrix1D pv = parentValues[v];
+					for (int k = 0; k < pc.length; k++) {
+						pv.setQuick(k, pc[k][i]);
+					}
+					if (evidence[v] != null) {
+						columns[v][i] = evidence[v].getQuick(0);
+						lw += cpds[v].getLogProbability(pv, evidence[v]);
+					} else {
+						columns[v][i] = cpds[v].sample(pv, random).getQuick(0);
+					}
+				}
+				logWeights[i] = lw;
+			}
+		}
+	}
+
+	/**
+	 * Adds the weighted particles of a chunk to its own accumulators. The
+	 * weights are scaled to add up to the number of particles, as if they were
+	 * counts.
+	 */
+	private class SummarizeTask extends ChunkTask {
+		private static final long serialVersionUID = 1L;
+		private final double[][] columns;
+		private final SampleAccumulator[] samples;
+
+		SummarizeTask(int chunk, double[][] columns, SampleAccumulator[] samples) {
+			super(chunk);
+			this.columns = columns;
+			this.samples = samples;
+		}
+
+		@Override
+		protected void work() throws Exception {
+			double scale = numParticles;
+			for (int i = from; i < to; i++) {
+				double w = Math.exp(logWeights[i]) * scale;
+				for (int h = 0; h < columns.length; h++) {
+					samples[h].add(columns[h][i], w);
+				}
+			}
+		}
+	}
 }
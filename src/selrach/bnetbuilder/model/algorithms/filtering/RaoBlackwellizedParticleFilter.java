@@ -0,0 +1,623 @@
+package selrach.bnetbuilder.model.algorithms.filtering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import selrach.bnetbuilder.model.BayesNetSlice;
+import selrach.bnetbuilder.model.distributions.Random;
+import selrach.bnetbuilder.model.distributions.RandomStream;
+import selrach.bnetbuilder.model.distributions.accumulators.SampleAccumulator;
+import selrach.bnetbuilder.model.distributions.conditional.LinearGaussian;
+import selrach.bnetbuilder.model.distributions.conditional.Mixture;
+import selrach.bnetbuilder.model.distributions.interfaces.ConditionalDistribution;
+import selrach.bnetbuilder.model.distributions.unconditional.Gaussian;
+import selrach.bnetbuilder.model.variable.DiscreteVariable;
+import selrach.bnetbuilder.model.variable.TransientVariable;
+import cern.colt.matrix.DoubleFactory1D;
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.DoubleMatrix2D;
+
+/**
+ * Rao-Blackwellized particle filter for conditionally linear Gaussian models.
+ * Only the discrete variables are sampled; given them the continuous
+ * variables are jointly Gaussian, so each particle carries the exact mean and
+ * covariance of the continuous variables still needed and updates them like
+ * a Kalman filter. A continuous variable is added to the Gaussian through its
+ * linear Gaussian component for the particle's discrete parents, and
+ * continuous evidence weights the particle by its predictive density and
+ * then conditions the Gaussian on it. Integrating out the continuous part
+ * this way needs far fewer particles than plain sampling for the same
+ * accuracy.
+ *
+ * Discrete variables may only have discrete parents, with any discrete
+ * distribution. Continuous variables have to be one dimensional with a
+ * Gaussian, GaussianMix, LinearGaussian or LinearGaussianMix distribution.
+ *
+ * The marginal of a hidden continuous variable is the Gaussian with the mean
+ * and variance of the weighted mixture of the particles' Gaussians; the
+ * discrete marginals come from the sample accumulators as in the
+ * {@link ParticleFilter}, which this shares its resampling and chunking
+ * with.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public class RaoBlackwellizedParticleFilter extends AbstractParticleFilter {
+
+	private static final Logger logger = Logger
+			.getLogger(RaoBlackwellizedParticleFilter.class);
+
+	private static final double LOG_TWO_PI = Math.log(2.0 * Math.PI);
+
+	/**
+	 * The sampled value of each particle for every discrete variable a later
+	 * slice may need
+	 */
+	private final Map<TransientVariable, double[]> values = new HashMap<TransientVariable, double[]>();
+
+	/**
+	 * The continuous variables the particles have a Gaussian over, in the
+	 * order of its dimensions
+	 */
+	private List<TransientVariable> continuous = new ArrayList<TransientVariable>();
+
+	/**
+	 * The mean of every particle, one entry per continuous variable each
+	 */
+	private double[] means = new double[0];
+
+	/**
+	 * The covariance of every particle, row by row
+	 */
+	private double[] covariances = new double[0];
+
+	/**
+	 * A filter that runs on every processor
+	 */
+	public RaoBlackwellizedParticleFilter() {
+		this(true);
+	}
+
+	/**
+	 * @param parallel
+	 *            run the chunks of particles on the pool, otherwise one after
+	 *            the other in the calling thread
+	 */
+	public RaoBlackwellizedParticleFilter(boolean parallel) {
+		super(parallel);
+	}
+
+	/**
+	 * @param tv
+	 *            a discrete variable
+	 * @return the value of each particle, null if it has not been filtered or
+	 *         is no longer needed
+	 */
+	public double[] getValues(TransientVariable tv) {
+		return values.get(tv);
+	}
+
+	/**
+	 * @param tv
+	 *            a continuous variable
+	 * @param particle
+	 * @return the mean of the variable given the particle's discrete values
+	 * @throws Exception
+	 */
+	public double getMean(TransientVariable tv, int particle) throws Exception {
+		int d = dimension(tv);
+		return means[particle * continuous.size() + d];
+	}
+
+	/**
+	 * @param tv
+	 *            a continuous variable
+	 * @param particle
+	 * @return the variance of the variable given the particle's discrete
+	 *         values
+	 * @throws Exception
+	 */
+	public double getVariance(TransientVariable tv, int particle)
+			throws Exception {
+		int d = dimension(tv);
+		int k = continuous.size();
+		return covariances[particle * k * k + d * k + d];
+	}
+
+	private int dimension(TransientVariable tv) throws Exception {
+		int d = continuous.indexOf(tv);
+		if (d < 0) {
+			throw new Exception("No particles track " + tv);
+		}
+		return d;
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		values.clear();
+		continuous = new ArrayList<TransientVariable>();
+		means = new double[0];
+		covariances = new double[0];
+	}
+
+	public void execute(BayesNetSlice slice, int maxSamples) throws Exception {
+		List<TransientVariable> variables = slice.getVariables();
+		if (variables.isEmpty()) {
+			return;
+		}
+		int time = variables.get(0).getTime();
+		RandomStream random = Random.getStream();
+
+		int oldK = continuous.size();
+		int[] ancestors = start(maxSamples, random.getUniform());
+		if (ancestors != null) {
+			means = gather(means, ancestors, oldK);
+			covariances = gather(covariances, ancestors, oldK * oldK);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Resampled " + numParticles
+						+ " particles at time " + time);
+			}
+		}
+		Iterator<Map.Entry<TransientVariable, double[]>> it = values
+				.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<TransientVariable, double[]> entry = it.next();
+			if (isReleased(entry.getKey(), time)) {
+				it.remove();
+			} else if (ancestors != null) {
+				entry.setValue(gather(entry.getValue(), ancestors, 1));
+			}
+		}
+
+		// The continuous variables still needed keep their dimensions, in
+		// order, and the ones of this slice are added after them
+		List<TransientVariable> layout = new ArrayList<TransientVariable>();
+		int[] kept = new int[oldK];
+		int numKept = 0;
+		for (int d = 0; d < oldK; d++) {
+			if (!isReleased(continuous.get(d), time)) {
+				kept[numKept++] = d;
+				layout.add(continuous.get(d));
+			}
+		}
+		kept = Arrays.copyOf(kept, numKept);
+
+		int numVariables = variables.size();
+		TransientVariable[] slicedVariables = variables
+				.toArray(new TransientVariable[numVariables]);
+		double[][] columns = new double[numVariables][];
+		double[][][] parentColumns = new double[numVariables][][];
+		LinearTable[] linear = new LinearTable[numVariables];
+		for (int v = 0; v < numVariables; v++) {
+			TransientVariable tv = slicedVariables[v];
+			if (tv.getReference() instanceof DiscreteVariable) {
+				List<TransientVariable> parents = tv.getParents();
+				parentColumns[v] = new double[parents.size()][];
+				for (int k = 0; k < parents.size(); k++) {
+					TransientVariable p = parents.get(k);
+					if (!(p.getReference() instanceof DiscreteVariable)) {
+						throw new Exception(
+								"Rao-Blackwellized filtering needs discrete variables with only discrete parents: "
+										+ tv);
+					}
+					parentColumns[v][k] = parentColumn(p);
+				}
+				columns[v] = new double[numParticles];
+				values.put(tv, columns[v]);
+			} else {
+				layout.add(tv);
+				linear[v] = new LinearTable(tv, layout);
+			}
+		}
+
+		int numChunks = getNumberChunks();
+		PropagateTask[] propagate = new PropagateTask[numChunks];
+		int k = layout.size();
+		double[] newMeans = new double[numParticles * k];
+		double[] newCovariances = new double[numParticles * k * k];
+		for (int c = 0; c < numChunks; c++) {
+			propagate[c] = new PropagateTask(c, random.split(),
+					slicedVariables, columns, parentColumns, linear, kept,
+					oldK, newMeans, newCovariances, k);
+		}
+		run(propagate);
+		continuous = layout;
+		means = newMeans;
+		covariances = newCovariances;
+
+		normalize(time);
+
+		summarize(slicedVariables, columns, linear, numChunks);
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Filtered time " + time + " with "
+					+ getEffectiveSampleSize() + " effective of "
+					+ numParticles + " particles, log likelihood "
+					+ getLogLikelihood());
+		}
+	}
+
+	/**
+	 * @param p
+	 * @return the value of each particle for a discrete parent
+	 * @throws Exception
+	 */
+	private double[] parentColumn(TransientVariable p) throws Exception {
+		double[] column = values.get(p);
+		if (column != null) {
+			return column;
+		}
+		if (p.isEvidence()) {
+			column = new double[numParticles];
+			Arrays.fill(column, p.getEvidence());
+			return column;
+		}
+		throw new Exception("No particles for " + p
+				+ ", slices must be filtered in order");
+	}
+
+	/**
+	 * Sets the marginals of the hidden variables of a slice from the weighted
+	 * particles, merging what each chunk added up in order
+	 *
+	 * @throws Exception
+	 */
+	private void summarize(TransientVariable[] slicedVariables,
+			double[][] columns, LinearTable[] linear, int numChunks)
+			throws Exception {
+		List<Integer> discrete = new ArrayList<Integer>();
+		List<Integer> gaussian = new ArrayList<Integer>();
+		for (int v = 0; v < slicedVariables.length; v++) {
+			if (slicedVariables[v].isEvidence()) {
+				continue;
+			}
+			if (linear[v] == null) {
+				discrete.add(v);
+			} else {
+				gaussian.add(v);
+			}
+		}
+		double[][] discreteColumns = new double[discrete.size()][];
+		for (int h = 0; h < discrete.size(); h++) {
+			discreteColumns[h] = columns[discrete.get(h)];
+		}
+		int[] dimensions = new int[gaussian.size()];
+		for (int h = 0; h < gaussian.size(); h++) {
+			dimensions[h] = linear[gaussian.get(h)].dimension;
+		}
+
+		SummarizeTask[] tasks = new SummarizeTask[numChunks];
+		for (int c = 0; c < numChunks; c++) {
+			SampleAccumulator[] samples = new SampleAccumulator[discrete.size()];
+			for (int h = 0; h < samples.length; h++) {
+				samples[h] = slicedVariables[discrete.get(h)]
+						.getSampleAccumulator().emptyCopy();
+			}
+			tasks[c] = new SummarizeTask(c, discreteColumns, samples,
+					dimensions);
+		}
+		run(tasks);
+
+		for (int h = 0; h < discrete.size(); h++) {
+			TransientVariable tv = slicedVariables[discrete.get(h)];
+			tv.clearSamples();
+			SampleAccumulator samples = tv.getSampleAccumulator();
+			for (SummarizeTask task : tasks) {
+				samples.merge(task.samples[h]);
+			}
+			tv.generateMarginalFromSamples();
+		}
+		for (int h = 0; h < gaussian.size(); h++) {
+			double mean = 0.0;
+			double second = 0.0;
+			for (SummarizeTask task : tasks) {
+				mean += task.moments[2 * h];
+				second += task.moments[2 * h + 1];
+			}
+			double variance = Math.max(second - mean * mean, 0.0);
+			slicedVariables[gaussian.get(h)].setMarginal(new Gaussian(mean,
+					variance > 0.0 ? variance : Double.MIN_NORMAL));
+		}
+	}
+
+	/**
+	 * The linear Gaussian component of a continuous variable for every
+	 * configuration of its discrete parents, laid out flat
+	 */
+	private class LinearTable {
+		final int dimension;
+		final double[][] discreteColumns;
+		final int[] strides;
+		final int[] continuousParents;
+		final double[] offsets;
+		final double[] coefficients;
+		final double[] variances;
+
+		LinearTable(TransientVariable tv, List<TransientVariable> layout)
+				throws Exception {
+			dimension = layout.indexOf(tv);
+			ConditionalDistribution cpd = tv.getDistribution();
+			if (cpd.getNumberDimensions() != 1) {
+				throw new Exception(
+						"Rao-Blackwellized filtering only handles one dimensional continuous variables: "
+								+ tv);
+			}
+			List<TransientVariable> parents = tv.getParents();
+			int numDiscrete = 0;
+			for (TransientVariable p : parents) {
+				if (p.getReference() instanceof DiscreteVariable) {
+					numDiscrete++;
+				}
+			}
+			discreteColumns = new double[numDiscrete][];
+			strides = new int[numDiscrete];
+			continuousParents = new int[parents.size() - numDiscrete];
+			int numConfigurations = 1;
+			for (int k = parents.size() - 1, d = numDiscrete, c = continuousParents.length; k >= 0; k--) {
+				TransientVariable p = parents.get(k);
+				if (p.getReference() instanceof DiscreteVariable) {
+					d--;
+					discreteColumns[d] = parentColumn(p);
+					strides[d] = numConfigurations;
+					numConfigurations *= ((DiscreteVariable) p.getReference())
+							.getStates().size();
+				} else {
+					c--;
+					continuousParents[c] = layout.indexOf(p);
+					if (continuousParents[c] < 0) {
+						throw new Exception("No particles track " + p
+								+ ", slices must be filtered in order");
+					}
+				}
+			}
+
+			int numContinuous = continuousParents.length;
+			offsets = new double[numConfigurations];
+			coefficients = new double[numConfigurations * numContinuous];
+			variances = new double[numConfigurations];
+			for (int i = 0; i < numConfigurations; i++) {
+				ConditionalDistribution component = cpd;
+				if (cpd instanceof Mixture) {
+					component = ((Mixture) cpd).getDistributions()[i];
+				} else if (numConfigurations > 1) {
+					throw new Exception(tv
+							+ " has discrete parents but is not a mixture");
+				}
+				DoubleMatrix2D covariance;
+				if (component instanceof Gaussian) {
+					if (numContinuous > 0) {
+						throw new Exception(tv
+								+ " has continuous parents but is not linear");
+					}
+					offsets[i] = ((Gaussian) component).getExpectedValue()
+							.getQuick(0);
+					covariance = ((Gaussian) component).getCovariance();
+				} else if (component instanceof LinearGaussian) {
+					LinearGaussian lg = (LinearGaussian) component;
+					DoubleMatrix2D coefs = lg.getCoefficients();
+					int columns = coefs == null ? 0 : coefs.columns();
+					if (columns != numContinuous) {
+						throw new Exception(tv + " has " + numContinuous
+								+ " continuous parents but " + columns
+								+ " coefficients");
+					}
+					offsets[i] = lg.getBaseMean().getQuick(0);
+					for (int k = 0; k < numContinuous; k++) {
+						coefficients[i * numContinuous + k] = coefs.getQuick(0,
+								k);
+					}
+					covariance = lg.getCovariance();
+				} else {
+					throw new Exception(
+							"Rao-Blackwellized filtering needs linear Gaussian continuous variables: "
+									+ tv);
+				}
+				variances[i] = covariance.getQuick(0, 0);
+			}
+		}
+
+		/**
+		 * @param i
+		 *            a particle
+		 * @return the configuration of its discrete parents
+		 */
+		int configuration(int i) {
+			int ret = 0;
+			for (int k = 0; k < strides.length; k++) {
+				ret += (int) discreteColumns[k][i] * strides[k];
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Samples the discrete variables of a slice, extends the Gaussian of each
+	 * particle by the continuous ones, and weights by the evidence
+	 */
+	private class PropagateTask extends ChunkTask {
+		private static final long serialVersionUID = 1L;
+		private final RandomStream random;
+		private final TransientVariable[] variables;
+		private final double[][] columns;
+		private final double[][][] parentColumns;
+		private final LinearTable[] linear;
+		private final int[] kept;
+		private final int oldK;
+		private final double[] m;
+		private final double[] p;
+		private final int k;
+
+		PropagateTask(int chunk, RandomStream random,
+				TransientVariable[] variables, double[][] columns,
+				double[][][] parentColumns, LinearTable[] linear, int[] kept,
+				int oldK, double[] m, double[] p, int k) {
+			super(chunk);
+			this.random = random;
+			this.variables = variables;
+			this.columns = columns;
+			this.parentColumns = parentColumns;
+			this.linear = linear;
+			this.kept = kept;
+			this.oldK = oldK;
+			this.m = m;
+			this.p = p;
+			this.k = k;
+		}
+
+		@Override
+		protected void work() throws Exception {
+			int numVariables = variables.length;
+			ConditionalDistribution[] cpds = new ConditionalDistribution[numVariables];
+			DoubleMatrix1D[] parentValues = new DoubleMatrix1D[numVariables];
+			DoubleMatrix1D[] evidence = new DoubleMatrix1D[numVariables];
+			for (int v = 0; v < numVariables; v++) {
+				if (variables[v].isEvidence()) {
+					evidence[v] = DoubleFactory1D.dense.make(1, variables[v]
+							.getEvidence());
+				}
+				if (linear[v] == null) {
+					cpds[v] = variables[v].getDistribution().copy();
+					parentValues[v] = DoubleFactory1D.dense.make(cpds[v]
+							.getNumberParentDimensions());
+				}
+			}
+			double[] gain = new double[k];
+
+			for (int i = from; i < to; i++) {
+				int mb = i * k;
+				int pb = i * k * k;
+				int oldMb = i * oldK;
+				int oldPb = i * oldK * oldK;
+				for (int a = 0; a < kept.length; a++) {
+					m[mb + a] = means[oldMb + kept[a]];
+					for (int b = 0; b < kept.length; b++) {
+						p[pb + a * k + b] = covariances[oldPb + kept[a] * oldK
+								+ kept[b]];
+					}
+				}
+
+				double lw = logWeights[i];
+				for (int v = 0; v < numVariables; v++) {
+					LinearTable t = linear[v];
+					if (t == null) {
+						double[][] pc = parentColumns[v];
+						DoubleMatrix1D pv = parentValues[v];
+						for (int j = 0; j < pc.length; j++) {
+							pv.setQuick(j, pc[j][i]);
+						}
+						if (evidence[v] != null) {
+							columns[v][i] = evidence[v].getQuick(0);
+							lw += cpds[v].getLogProbability(pv, evidence[v]);
+						} else {
+							columns[v][i] = cpds[v].sample(pv, random)
+									.getQuick(0);
+						}
+						continue;
+					}
+
+					int x = t.dimension;
+					int config = t.configuration(i);
+					int[] cp = t.continuousParents;
+					int co = config * cp.length;
+					double mean = t.offsets[config];
+					for (int j = 0; j < cp.length; j++) {
+						mean += t.coefficients[co + j] * m[mb + cp[j]];
+					}
+					for (int a = 0; a < x; a++) {
+						double c = 0.0;
+						for (int j = 0; j < cp.length; j++) {
+							c += t.coefficients[co + j] * p[pb + cp[j] * k + a];
+						}
+						p[pb + x * k + a] = c;
+						p[pb + a * k + x] = c;
+					}
+					double variance = t.variances[config];
+					for (int j = 0; j < cp.length; j++) {
+						variance += t.coefficients[co + j] * p[pb + x * k + cp[j]];
+					}
+					m[mb + x] = mean;
+					p[pb + x * k + x] = variance;
+
+					if (evidence[v] == null) {
+						continue;
+					}
+					// Weight by the predictive density and condition on the
+					// evidence, a Kalman update
+					double y = evidence[v].getQuick(0);
+					double residual = y - mean;
+					if (variance <= 0.0) {
+						if (residual != 0.0) {
+							lw = Double.NEGATIVE_INFINITY;
+						}
+						continue;
+					}
+					lw -= 0.5 * (LOG_TWO_PI + Math.log(variance) + residual
+							* residual / variance);
+					for (int a = 0; a <= x; a++) {
+						gain[a] = p[pb + a * k + x];
+					}
+					for (int a = 0; a <= x; a++) {
+						m[mb + a] += gain[a] * residual / variance;
+						for (int b = 0; b <= x; b++) {
+							p[pb + a * k + b] -= gain[a] * gain[b] / variance;
+						}
+					}
+					m[mb + x] = y;
+					for (int a = 0; a <= x; a++) {
+						p[pb + a * k + x] = 0.0;
+						p[pb + x * k + a] = 0.0;
+					}
+				}
+				logWeights[i] = lw;
+			}
+		}
+	}
+
+	/**
+	 * Adds up the weighted particles of a chunk: counts of the discrete
+	 * variables, scaled to add up to the number of particles, and the first
+	 * two moments of the continuous ones
+	 */
+	private class SummarizeTask extends ChunkTask {
+		private static final long serialVersionUID = 1L;
+		private final double[][] columns;
+		private final SampleAccumulator[] samples;
+		private final int[] dimensions;
+		private final double[] moments;
+
+		SummarizeTask(int chunk, double[][] columns,
+				SampleAccumulator[] samples, int[] dimensions) {
+			super(chunk);
+			this.columns = columns;
+			this.samples = samples;
+			this.dimensions = dimensions;
+			this.moments = new double[2 * dimensions.length];
+		}
+
+		@Override
+		protected void work() throws Exception {
+			int k = continuous.size();
+			double scale = numParticles;
+			for (int i = from; i < to; i++) {
+				double w = Math.exp(logWeights[i]);
+				for (int h = 0; h < columns.length; h++) {
+					samples[h].add(columns[h][i], w * scale);
+				}
+				for (int h = 0; h < dimensions.length; h++) {
+					int x = dimensions[h];
+					double mean = means[i * k + x];
+					moments[2 * h] += w * mean;
+					moments[2 * h + 1] += w
+							* (covariances[i * k * k + x * k + x] + mean * mean);
+				}
+			}
+		}
+	}
+}
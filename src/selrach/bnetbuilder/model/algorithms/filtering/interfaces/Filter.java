@@ -17,6 +17,7 @@ public interface Filter {
 	 * before execute is called the values for the variables must be set.
 	 * @param slice
 	 * @param maxSamples
+	 * @throws Exception
 	 */
-	public void execute(BayesNetSlice slice, int maxSamples);
+	public void execute(BayesNetSlice slice, int maxSamples) throws Exception;
 }
@@ -0,0 +1,111 @@
+package selrach.bnetbuilder.model.algorithms.graph;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import selrach.bnetbuilder.model.variable.Clique;
+import selrach.bnetbuilder.model.variable.CliqueSeparator;
+import selrach.bnetbuilder.model.variable.GraphVariable;
+
+/**
+ * The cliques and separators of one template slice by the ids of their
+ * variables, so they outlive the GraphVariables they were made from and can
+ * be made again from the ones of a later moralization.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+class CliqueTreeStructure {
+
+	final List<Set<String>> cliques = new ArrayList<Set<String>>();
+	final List<Integer> forwardInterfaces = new ArrayList<Integer>();
+	final List<int[]> separators = new ArrayList<int[]>();
+	final List<Set<String>> separatorMembers = new ArrayList<Set<String>>();
+
+	static CliqueTreeStructure of(List<Clique> cliques,
+			List<CliqueSeparator> separators) {
+		CliqueTreeStructure ret = new CliqueTreeStructure();
+		Map<Clique, Integer> index = new IdentityHashMap<Clique, Integer>();
+		for (Clique c : cliques) {
+			index.put(c, ret.addClique(c.getMembers().keySet(), c
+					.getForwardInterface()));
+		}
+		for (CliqueSeparator cs : separators) {
+			Set<String> members = new TreeSet<String>();
+			for (GraphVariable gv : cs.getMembers()) {
+				members.add(gv.getId());
+			}
+			ret.addSeparator(index.get(cs.getCliqueA()), index.get(cs
+					.getCliqueB()), members);
+		}
+		return ret;
+	}
+
+	int addClique(Set<String> members, int forwardInterface) {
+		cliques.add(new TreeSet<String>(members));
+		forwardInterfaces.add(forwardInterface);
+		return cliques.size() - 1;
+	}
+
+	void addSeparator(int a, int b, Set<String> members) {
+		separators.add(new int[] { a, b });
+		separatorMembers.add(new TreeSet<String>(members));
+	}
+
+	boolean isForwardInterface(int clique) {
+		return forwardInterfaces.get(clique) != -1;
+	}
+
+	/**
+	 * Makes the cliques and separators out of the variables of a template
+	 * slice, connecting them up the same way GenerateJunctionTreeFromCliques
+	 * does
+	 *
+	 * @param variables
+	 *            the moralized variables of the template slice
+	 * @param cliquesOut
+	 * @param separatorsOut
+	 * @throws Exception
+	 *             if a variable is not in the template slice
+	 */
+	void apply(Map<String, GraphVariable> variables, List<Clique> cliquesOut,
+			List<CliqueSeparator> separatorsOut) throws Exception {
+		List<Clique> made = new ArrayList<Clique>(cliques.size());
+		for (int i = 0; i < cliques.size(); i++) {
+			Clique c = new Clique(members(variables, cliques.get(i)));
+			c.setForwardInterface(forwardInterfaces.get(i));
+			made.add(c);
+		}
+		for (int i = 0; i < separators.size(); i++) {
+			Clique c1 = made.get(separators.get(i)[0]);
+			Clique c2 = made.get(separators.get(i)[1]);
+			CliqueSeparator cs = new CliqueSeparator(new TreeSet<GraphVariable>(
+					members(variables, separatorMembers.get(i)).values()), c1, c2);
+			c1.addNeighbor(c2);
+			c2.addNeighbor(c1);
+			c1.addSeparator(cs);
+			c2.addSeparator(cs);
+			separatorsOut.add(cs);
+		}
+		cliquesOut.addAll(made);
+	}
+
+	private static Map<String, GraphVariable> members(
+			Map<String, GraphVariable> variables, Set<String> ids)
+			throws Exception {
+		Map<String, GraphVariable> members = new TreeMap<String, GraphVariable>();
+		for (String id : ids) {
+			GraphVariable gv = variables.get(id);
+			if (gv == null) {
+				throw new Exception(id + " is not in the template slice");
+			}
+			members.put(id, gv);
+		}
+		return members;
+	}
+}
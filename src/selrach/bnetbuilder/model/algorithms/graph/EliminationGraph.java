@@ -0,0 +1,390 @@
+package selrach.bnetbuilder.model.algorithms.graph;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An undirected graph of variables that is used to pick an elimination
+ * order. Each node has a weight, the number of states of its variable, and
+ * eliminating a node connects all of its neighbors into a clique. The weight
+ * of a clique is the size of its table, the product of the weights of its
+ * discrete nodes, and for every one of those entries a clique with d
+ * continuous nodes also holds a mean vector and a covariance matrix.
+ *
+ * An order is measured either by the weight of the largest clique it creates,
+ * which is what variable elimination pays for, or by the total weight of the
+ * cliques of the triangulation it makes, which is the state space of the
+ * junction tree built from it.
+ *
+ * Orders are found greedily with an EliminationHeuristic, always eliminating
+ * the node that scores lowest. Nodes are kept in a priority queue and only
+ * the ones near an eliminated node are scored again. Ties go to the lowest
+ * node unless a random number generator is given, in which case they are
+ * broken randomly so that several restarts can find different orders.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public class EliminationGraph {
+
+	private final static Logger logger = Logger
+			.getLogger(EliminationGraph.class);
+
+	/**
+	 * An elimination order along with what it costs
+	 *
+	 * @author <a href="mailto:charleswrobertson@gmail.com">Charles
+	 *         Robertson</a>
+	 *
+	 */
+	public enum Measure {
+		/**
+		 * The weight of the largest clique
+		 */
+		LARGEST_CLIQUE,
+
+		/**
+		 * The total weight of the cliques that are not inside another one
+		 */
+		TOTAL_WEIGHT
+	}
+
+	public static class Order {
+		private final int[] order;
+		private final double cost;
+		private final String name;
+
+		Order(int[] order, double cost, String name) {
+			this.order = order;
+			this.cost = cost;
+			this.name = name;
+		}
+
+		/**
+		 * @return the nodes in the order they are eliminated
+		 */
+		public int[] getOrder() {
+			return order;
+		}
+
+		/**
+		 * @return the cost of the order by the measure it was found with
+		 */
+		public double getCost() {
+			return cost;
+		}
+
+		/**
+		 * @return what found the order
+		 */
+		public String getName() {
+			return name;
+		}
+	}
+
+	private final double[] weights;
+	private final boolean[] continuous;
+	private final List<Set<Integer>> neighbors;
+	private final boolean[] eliminated;
+
+	/**
+	 * @param weights
+	 *            the weight of each node, the number of states of its
+	 *            variable
+	 */
+	public EliminationGraph(double[] weights) {
+		this(weights, new boolean[weights.length]);
+	}
+
+	/**
+	 * @param weights
+	 *            the weight of each node, the number of states of its
+	 *            variable or 1 if it is continuous
+	 * @param continuous
+	 *            which nodes are continuous
+	 */
+	public EliminationGraph(double[] weights, boolean[] continuous) {
+		this.weights = weights.clone();
+		this.continuous = continuous.clone();
+		this.neighbors = new ArrayList<Set<Integer>>(weights.length);
+		for (int i = 0; i < weights.length; i++) {
+			neighbors.add(new LinkedHashSet<Integer>());
+		}
+		this.eliminated = new boolean[weights.length];
+	}
+
+	private EliminationGraph(EliminationGraph copy) {
+		this.weights = copy.weights;
+		this.continuous = copy.continuous;
+		this.neighbors = new ArrayList<Set<Integer>>(copy.neighbors.size());
+		for (Set<Integer> set : copy.neighbors) {
+			neighbors.add(new LinkedHashSet<Integer>(set));
+		}
+		this.eliminated = copy.eliminated.clone();
+	}
+
+	/**
+	 * Connects every pair of nodes, the nodes of a factor or of a family
+	 */
+	public void addClique(Collection<Integer> nodes) {
+		for (int a : nodes) {
+			for (int b : nodes) {
+				if (a != b) {
+					neighbors.get(a).add(b);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Connects two nodes, an edge of a moral graph
+	 */
+	public void addEdge(int a, int b) {
+		if (a != b) {
+			neighbors.get(a).add(b);
+			neighbors.get(b).add(a);
+		}
+	}
+
+	public int size() {
+		return weights.length;
+	}
+
+	public double getWeight(int node) {
+		return weights[node];
+	}
+
+	/**
+	 * @return the neighbors of a node that have not been eliminated
+	 */
+	public List<Integer> getNeighbors(int node) {
+		return new ArrayList<Integer>(neighbors.get(node));
+	}
+
+	public boolean isNeighbor(int a, int b) {
+		return neighbors.get(a).contains(b);
+	}
+
+	/**
+	 * @return the weight of a clique made of the nodes
+	 */
+	public double getWeight(Collection<Integer> clique) {
+		double weight = 1.0;
+		int dimensions = 0;
+		for (int node : clique) {
+			weight *= weights[node];
+			if (continuous[node]) {
+				dimensions++;
+			}
+		}
+		return weight * (1 + dimensions + dimensions * dimensions);
+	}
+
+	/**
+	 * @return the clique eliminating a node would create
+	 */
+	public Set<Integer> getClique(int node) {
+		Set<Integer> clique = new LinkedHashSet<Integer>(neighbors.get(node));
+		clique.add(node);
+		return clique;
+	}
+
+	/**
+	 * Removes a node and connects its neighbors
+	 */
+	private void eliminate(int node) {
+		Set<Integer> adjacent = neighbors.get(node);
+		for (int a : adjacent) {
+			Set<Integer> set = neighbors.get(a);
+			set.remove(node);
+			for (int b : adjacent) {
+				if (a != b) {
+					set.add(b);
+				}
+			}
+		}
+		neighbors.set(node, new LinkedHashSet<Integer>());
+		eliminated[node] = true;
+	}
+
+	/**
+	 * Greedily finds an order that eliminates the nodes asked for. The graph
+	 * itself is left as it is.
+	 *
+	 * @param heuristic
+	 * @param eliminate
+	 *            which nodes to eliminate, the rest are kept to the end
+	 * @param random
+	 *            breaks ties randomly if given, otherwise the lowest node wins
+	 * @return the nodes in the order they are eliminated
+	 */
+	public int[] order(EliminationHeuristic heuristic, boolean[] eliminate,
+			Random random) {
+		final EliminationGraph graph = new EliminationGraph(this);
+		final double[] scores = new double[weights.length];
+		final long[] ties = new long[weights.length];
+		TreeSet<Integer> queue = new TreeSet<Integer>(new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				if (scores[a] != scores[b]) {
+					return scores[a] < scores[b] ? -1 : 1;
+				}
+				if (ties[a] != ties[b]) {
+					return ties[a] < ties[b] ? -1 : 1;
+				}
+				return a.compareTo(b);
+			}
+		});
+		for (int i = 0; i < weights.length; i++) {
+			if (eliminate[i]) {
+				scores[i] = heuristic.score(graph, i);
+				ties[i] = random == null ? i : random.nextLong();
+				queue.add(i);
+			}
+		}
+
+		int[] ret = new int[queue.size()];
+		int k = 0;
+		while (!queue.isEmpty()) {
+			int node = queue.pollFirst();
+			Set<Integer> affected = new LinkedHashSet<Integer>(graph.neighbors
+					.get(node));
+			if (heuristic.dependsOnNeighborEdges()) {
+				for (int a : graph.neighbors.get(node)) {
+					affected.addAll(graph.neighbors.get(a));
+				}
+			}
+			graph.eliminate(node);
+			for (int a : affected) {
+				if (eliminate[a] && !graph.eliminated[a]) {
+					queue.remove(a);
+					scores[a] = heuristic.score(graph, a);
+					queue.add(a);
+				}
+			}
+			ret[k++] = node;
+		}
+		return ret;
+	}
+
+	/**
+	 * The cliques an order creates, one for each node eliminated in the order
+	 * it is eliminated, followed by the one left over the nodes that are not
+	 * eliminated if there are any. The graph itself is left as it is.
+	 */
+	public List<Set<Integer>> cliques(int[] order) {
+		EliminationGraph graph = new EliminationGraph(this);
+		List<Set<Integer>> cliques = new ArrayList<Set<Integer>>();
+		for (int node : order) {
+			cliques.add(graph.getClique(node));
+			graph.eliminate(node);
+		}
+		Set<Integer> rest = new LinkedHashSet<Integer>();
+		for (int i = 0; i < weights.length; i++) {
+			if (!graph.eliminated[i]) {
+				rest.add(i);
+			}
+		}
+		if (!rest.isEmpty()) {
+			cliques.add(rest);
+		}
+		return cliques;
+	}
+
+	/**
+	 * The cost of an order. The largest clique is compared against the one
+	 * left over the nodes that are not eliminated too, and the total weight
+	 * counts that one as well.
+	 */
+	public double cost(int[] order, Measure measure) {
+		List<Set<Integer>> cliques = cliques(order);
+		double cost = 0.0;
+		if (measure == Measure.LARGEST_CLIQUE) {
+			for (Set<Integer> clique : cliques) {
+				cost = Math.max(cost, getWeight(clique));
+			}
+			return cost;
+		}
+		// A clique can only be inside one made before it that holds its
+		// first node
+		List<List<Set<Integer>>> holding = new ArrayList<List<Set<Integer>>>(
+				weights.length);
+		for (int i = 0; i < weights.length; i++) {
+			holding.add(new ArrayList<Set<Integer>>());
+		}
+		for (Set<Integer> clique : cliques) {
+			boolean inside = false;
+			for (Set<Integer> before : holding.get(clique.iterator().next())) {
+				if (before.containsAll(clique)) {
+					inside = true;
+					break;
+				}
+			}
+			if (inside) {
+				continue;
+			}
+			cost += getWeight(clique);
+			for (int node : clique) {
+				holding.get(node).add(clique);
+			}
+		}
+		return cost;
+	}
+
+	/**
+	 * Tries each heuristic once breaking ties by node and then again with
+	 * random tie breaking for each restart, and keeps the cheapest order.
+	 *
+	 * @param eliminate
+	 *            which nodes to eliminate
+	 * @param measure
+	 *            what makes an order cheaper
+	 * @param heuristics
+	 * @param restarts
+	 *            how many times to rerun each heuristic with random tie
+	 *            breaking
+	 * @param random
+	 * @param given
+	 *            an order to start with, it is kept unless another one is
+	 *            cheaper, null if there is none
+	 * @param givenName
+	 *            what to call the given order
+	 * @return the cheapest order found
+	 */
+	public Order findOrder(boolean[] eliminate, Measure measure,
+			List<? extends EliminationHeuristic> heuristics, int restarts,
+			Random random, int[] given, String givenName) {
+		Order best = null;
+		if (given != null) {
+			best = new Order(given, cost(given, measure), givenName);
+		}
+		for (EliminationHeuristic heuristic : heuristics) {
+			for (int r = 0; r <= restarts; r++) {
+				int[] order = order(heuristic, eliminate, r == 0 ? null
+						: random);
+				double cost = cost(order, measure);
+				if (logger.isDebugEnabled()) {
+					logger.debug(heuristic.getName()
+							+ (r == 0 ? "" : " restart " + r) + " costs "
+							+ cost);
+				}
+				if (best == null || cost < best.getCost()) {
+					best = new Order(order, cost, heuristic.getName()
+							+ (r == 0 ? "" : " (restart " + r + ")"));
+				}
+			}
+		}
+		if (best == null) {
+			int[] order = new int[0];
+			best = new Order(order, cost(order, measure), "empty");
+		}
+		return best;
+	}
+}
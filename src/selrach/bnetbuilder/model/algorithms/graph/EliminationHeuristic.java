@@ -0,0 +1,29 @@
+package selrach.bnetbuilder.model.algorithms.graph;
+
+/**
+ * Scores how good a choice a node is to eliminate next, the node with the
+ * lowest score is eliminated first.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public interface EliminationHeuristic {
+
+	/**
+	 * @param graph
+	 * @param node
+	 *            a node still in the graph
+	 * @return the score of eliminating the node now
+	 */
+	public double score(EliminationGraph graph, int node);
+
+	/**
+	 * Which nodes need to be scored again after a node is eliminated
+	 *
+	 * @return true if the score of a node depends on the edges between its
+	 *         neighbors, not just on its neighbors
+	 */
+	public boolean dependsOnNeighborEdges();
+
+	public String getName();
+}
@@ -1,13 +1,19 @@
 package selrach.bnetbuilder.model.algorithms.graph;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
+import org.apache.log4j.Logger;
+
 import selrach.bnetbuilder.model.variable.Clique;
+import selrach.bnetbuilder.model.variable.DiscreteVariable;
 import selrach.bnetbuilder.model.variable.GraphVariable;
 import selrach.bnetbuilder.model.variable.JunctionTreeTemplate;
 
@@ -15,12 +21,64 @@ import selrach.bnetbuilder.model.variable.JunctionTreeTemplate;
  * Generate the elimination cliques from a set of moralized graphs
  * As a precondition, the moralized graphs for each time step that we are
  * interested in must be set up in the JunctionTreeTemplate 
+ * 
+ * The elimination order is the one out of several heuristics and randomized
+ * restarts of them that gives the junction tree with the fewest entries in
+ * its clique tables, see EliminationGraph.
  *
  * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
  *
  */
 public class GenerateEliminationCliques {
 
+	private final static Logger logger = Logger
+			.getLogger(GenerateEliminationCliques.class);
+
+	/**
+	 * How many times each heuristic is run again with random tie breaking
+	 */
+	public static final int DEFAULT_RESTARTS = 4;
+
+	private static List<? extends EliminationHeuristic> heuristics = Arrays.asList(
+			StandardEliminationHeuristic.MIN_FILL,
+			StandardEliminationHeuristic.WEIGHTED_MIN_FILL,
+			StandardEliminationHeuristic.MIN_WEIGHT);
+
+	private static int restarts = DEFAULT_RESTARTS;
+
+	/**
+	 * @return the heuristics tried when triangulating
+	 */
+	public static List<? extends EliminationHeuristic> getHeuristics() {
+		return heuristics;
+	}
+
+	/**
+	 * @param heuristics
+	 *            the heuristics to try when triangulating, the first one
+	 *            breaking ties by the order of the variables is kept unless
+	 *            another order makes a smaller junction tree
+	 */
+	public static void setHeuristics(List<? extends EliminationHeuristic> heuristics) {
+		GenerateEliminationCliques.heuristics = heuristics;
+	}
+
+	/**
+	 * @return the restarts
+	 */
+	public static int getRestarts() {
+		return restarts;
+	}
+
+	/**
+	 * @param restarts
+	 *            how many times each heuristic is run again with random tie
+	 *            breaking
+	 */
+	public static void setRestarts(int restarts) {
+		GenerateEliminationCliques.restarts = restarts;
+	}
+
 	public static void execute(final JunctionTreeTemplate jtt)
 	{
 		final List<Map<String, GraphVariable>> moralizedGraphs = jtt.getVariableSets();
@@ -64,31 +122,18 @@ public class GenerateEliminationCliques {
 		}
 		
 		
-		while(variableCopy.size() > 0)
-		{	
-		/* minCliqueCardinality <-- MAX
-		 * foreach variable:
-		 *   cliqueCardinality <-- calculate clique cardinality
-		 *   if(v.cliqueCardinality < minCliqueCardinality
-		 *     useVariable <-- variable
-		 *     minCliqueCardinality <-- cliqueCardinality
-		 *   fi
-		 * end
-		 */
-			GraphVariable toEliminate=null;
-			int minCardinality = Integer.MAX_VALUE;
-			for(final GraphVariable variable : variableCopy)
-			{
-				final int cardinality = calculateCliqueCardinality(variable);
-				if(cardinality < minCardinality)
-				{
-					toEliminate = variable;
-					minCardinality = cardinality;
-					if(minCardinality==0) {
-						break;
-					}
-				}
-			}
+		//Pick the order on a copy of the graph, then eliminate for real
+		final List<GraphVariable> nodes = new ArrayList<GraphVariable>(variableCopy);
+		final EliminationGraph.Order best = findOrder(nodes);
+		if(logger.isDebugEnabled())
+		{
+			logger.debug("Triangulating with the order from " + best.getName() 
+					+ ", the junction tree holds " + best.getCost() + " entries");
+		}
+		
+		for(final int node : best.getOrder())
+		{
+			final GraphVariable toEliminate = nodes.get(node);
 			//Connect all neighbors of the elimination node together
 			final List<GraphVariable> neighbors = toEliminate.getNeighborList();
 			
@@ -154,37 +199,47 @@ public class GenerateEliminationCliques {
 		return minCliques;
 	}
 	
-	private static int calculateCliqueCardinality(final GraphVariable variable)
+	/**
+	 * Runs each heuristic once, and then again with random tie breaking for
+	 * each restart, keeping the order whose junction tree holds the fewest
+	 * entries. Min-fill breaking ties by the order of the variables goes
+	 * first so it is kept unless something is cheaper.
+	 */
+	private static EliminationGraph.Order findOrder(final List<GraphVariable> nodes)
 	{
-		/*
-		//Min-Weight Heuristic for eliminaton ordering
-		RandomVariable var = variable.getReference();
-		int card = var.getCpd(variable.getSlice()).getNumberStates();
-		if(card==-1) card = 1;
-		for(GraphVariable gv : variable.getNeighborList())
+		final int sz = nodes.size();
+		final Map<GraphVariable, Integer> index = new HashMap<GraphVariable, Integer>();
+		final double[] weights = new double[sz];
+		final boolean[] continuous = new boolean[sz];
+		final boolean[] eliminate = new boolean[sz];
+		for(int i=0; i<sz; i++)
 		{
-			RandomVariable rv = gv.getReference();
-			int v = rv.getCpd(gv.getSlice()).getNumberStates();
-			if(v==-1) v = 1;
-			card *= v;
+			final GraphVariable gv = nodes.get(i);
+			index.put(gv, i);
+			if(gv.getReference() instanceof DiscreteVariable)
+			{
+				weights[i] = ((DiscreteVariable)gv.getReference()).getStates().size();
+			}
+			else
+			{
+				weights[i] = 1;
+				continuous[i] = true;
+			}
+			eliminate[i] = true;
 		}
-		*/
-		  
-		//Min-Fill Heuristic for elimination ordering
-		int card = 0;
-		final List<GraphVariable> neighbors = variable.getNeighborList();
-		final int sz = neighbors.size();
+		final EliminationGraph graph = new EliminationGraph(weights, continuous);
 		for(int i=0; i<sz; i++)
 		{
-			final GraphVariable gv1 = neighbors.get(i);
-			for(int j=i+1; j<sz; j++)
+			for(final GraphVariable gv : nodes.get(i).getNeighborList())
 			{
-				final GraphVariable gv2 = neighbors.get(j);
-				if(!gv1.hasNeighbor(gv2)) {
-					card++;
+				final Integer j = index.get(gv);
+				if(j != null)
+				{
+					graph.addEdge(i, j);
 				}
 			}
 		}
-		return card;
+		return graph.findOrder(eliminate, EliminationGraph.Measure.TOTAL_WEIGHT, 
+				heuristics, restarts, new Random(0), null, null);
 	}
 }
@@ -0,0 +1,581 @@
+package selrach.bnetbuilder.model.algorithms.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+import org.apache.log4j.Logger;
+
+import selrach.bnetbuilder.model.variable.Clique;
+import selrach.bnetbuilder.model.variable.CliqueSeparator;
+import selrach.bnetbuilder.model.variable.DiscreteVariable;
+import selrach.bnetbuilder.model.variable.GraphVariable;
+import selrach.bnetbuilder.model.variable.JunctionTreeTemplate;
+
+/**
+ * Keeps the junction tree template of a network up to date after arcs are
+ * added or removed without triangulating every template slice again.
+ *
+ * The moral graph and cliques of each template slice are remembered when a
+ * junction tree template is built. When the template is built again with the
+ * same variables, the moral edges that changed are found and only the part of
+ * the old junction tree they touch is thrown out: the path of cliques joining
+ * the ends of an added edge, and the cliques holding both ends of a removed
+ * one. That region grows across every separator that is not complete in the
+ * new moral graph, so it is made of whole maximal prime subgraphs, the parts
+ * of the moral graph that have to be triangulated together.
+ *
+ * The region is triangulated on its own with its boundary separators made
+ * complete, and the rest of the tree is hung off of the new cliques that hold
+ * those separators. Cliques and separators outside the region are kept.
+ *
+ * Anything other than changed edges, like added variables or a changed
+ * number of states, needs the template built from scratch.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public class IncrementalJunctionTree {
+
+	private final static Logger logger = Logger
+			.getLogger(IncrementalJunctionTree.class);
+
+	private static final Map<JunctionTreeTemplate, IncrementalJunctionTree> instances = Collections
+			.synchronizedMap(new WeakHashMap<JunctionTreeTemplate, IncrementalJunctionTree>());
+
+	private static boolean enabled = true;
+
+	/**
+	 * @return whether junction tree templates are updated incrementally
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param enabled
+	 *            false to always build junction tree templates from scratch
+	 */
+	public static void setEnabled(boolean enabled) {
+		IncrementalJunctionTree.enabled = enabled;
+	}
+
+	/**
+	 * @param jtt
+	 * @return the one that keeps track of the junction tree template
+	 */
+	public static IncrementalJunctionTree getInstance(JunctionTreeTemplate jtt) {
+		synchronized (instances) {
+			IncrementalJunctionTree ret = instances.get(jtt);
+			if (ret == null) {
+				ret = new IncrementalJunctionTree();
+				instances.put(jtt, ret);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * A template slice by the ids of its variables
+	 */
+	private static class Slice {
+		final Map<String, Set<String>> neighbors = new TreeMap<String, Set<String>>();
+		final Map<String, String> descriptions = new TreeMap<String, String>();
+		final Map<String, Double> weights = new HashMap<String, Double>();
+		final Set<String> continuous = new HashSet<String>();
+		CliqueTreeStructure structure = null;
+	}
+
+	private List<Slice> built = null;
+	private List<Slice> moralized = null;
+
+	private IncrementalJunctionTree() {
+	}
+
+	/**
+	 * Remembers the moral graphs of the template, this has to be called after
+	 * moralization and before elimination adds to them
+	 *
+	 * @param jtt
+	 */
+	public void moralized(JunctionTreeTemplate jtt) {
+		moralized = new ArrayList<Slice>();
+		for (Map<String, GraphVariable> map : jtt.getVariableSets()) {
+			Slice slice = new Slice();
+			for (GraphVariable gv : map.values()) {
+				slice.neighbors.put(gv.getId(), new HashSet<String>(gv
+						.getNeighborMap().keySet()));
+				String description;
+				if (gv.getReference() instanceof DiscreteVariable) {
+					int states = ((DiscreteVariable) gv.getReference())
+							.getStates().size();
+					description = Integer.toString(states);
+					slice.weights.put(gv.getId(), (double) states);
+				} else {
+					description = "c";
+					slice.weights.put(gv.getId(), 1.0);
+					slice.continuous.add(gv.getId());
+				}
+				slice.descriptions.put(gv.getId(), description + " "
+						+ gv.isInInterface());
+			}
+			moralized.add(slice);
+		}
+	}
+
+	/**
+	 * Remembers the cliques and separators the template was built with
+	 *
+	 * @param jtt
+	 */
+	public void built(JunctionTreeTemplate jtt) {
+		List<List<Clique>> cliqueSets = jtt.getCliqueSets();
+		List<List<CliqueSeparator>> separatorSets = jtt.getCliqueSeparatorSets();
+		if (moralized == null || moralized.size() != cliqueSets.size()) {
+			built = null;
+			return;
+		}
+		for (int i = 0; i < moralized.size(); i++) {
+			moralized.get(i).structure = CliqueTreeStructure.of(cliqueSets
+					.get(i), separatorSets.get(i));
+		}
+		built = moralized;
+		moralized = null;
+	}
+
+	/**
+	 * Updates the cliques and separators of the last template built to the
+	 * moral graphs of the template
+	 *
+	 * @param jtt
+	 *            a moralized junction tree template
+	 * @return true if the template was updated, false if it needs to be built
+	 *         from scratch
+	 */
+	public boolean update(JunctionTreeTemplate jtt) {
+		if (!enabled || built == null || moralized == null
+				|| built.size() != moralized.size()) {
+			return false;
+		}
+		try {
+			List<CliqueTreeStructure> structures = new ArrayList<CliqueTreeStructure>();
+			for (int i = 0; i < moralized.size(); i++) {
+				Slice before = built.get(i);
+				Slice now = moralized.get(i);
+				if (!before.descriptions.equals(now.descriptions)) {
+					return false;
+				}
+				CliqueTreeStructure structure = update(before, now);
+				if (structure == null) {
+					return false;
+				}
+				structures.add(structure);
+			}
+
+			List<List<Clique>> cliqueSets = new ArrayList<List<Clique>>();
+			List<List<CliqueSeparator>> separatorSets = new ArrayList<List<CliqueSeparator>>();
+			for (int i = 0; i < structures.size(); i++) {
+				List<Clique> cliques = new ArrayList<Clique>();
+				List<CliqueSeparator> separators = new ArrayList<CliqueSeparator>();
+				structures.get(i).apply(jtt.getVariableSets().get(i), cliques,
+						separators);
+				cliqueSets.add(cliques);
+				separatorSets.add(separators);
+			}
+			jtt.setCliqueSets(cliqueSets);
+			jtt.setCliqueSeparatorSets(separatorSets);
+			jtt.resetCutVariables();
+			return true;
+		} catch (Exception ex) {
+			logger.warn("Could not update the junction tree template", ex);
+			return false;
+		}
+	}
+
+	/**
+	 * @return the clique tree of one template slice for its new moral graph,
+	 *         or null if it has to be triangulated from scratch
+	 */
+	private CliqueTreeStructure update(Slice before, Slice now) {
+		final CliqueTreeStructure tree = before.structure;
+		final int n = tree.cliques.size();
+		final List<List<Integer>> adjacent = new ArrayList<List<Integer>>(n);
+		final List<List<Integer>> adjacentSeparators = new ArrayList<List<Integer>>(
+				n);
+		for (int i = 0; i < n; i++) {
+			adjacent.add(new ArrayList<Integer>());
+			adjacentSeparators.add(new ArrayList<Integer>());
+		}
+		for (int s = 0; s < tree.separators.size(); s++) {
+			int a = tree.separators.get(s)[0];
+			int b = tree.separators.get(s)[1];
+			adjacent.get(a).add(b);
+			adjacentSeparators.get(a).add(s);
+			adjacent.get(b).add(a);
+			adjacentSeparators.get(b).add(s);
+		}
+		final Map<String, List<Integer>> containing = new HashMap<String, List<Integer>>();
+		for (int i = 0; i < n; i++) {
+			if (tree.isForwardInterface(i)) {
+				continue;
+			}
+			for (String id : tree.cliques.get(i)) {
+				List<Integer> list = containing.get(id);
+				if (list == null) {
+					list = new ArrayList<Integer>();
+					containing.put(id, list);
+				}
+				list.add(i);
+			}
+		}
+
+		// The cliques the changed edges touch
+		final Set<Integer> region = new TreeSet<Integer>();
+		int changed = 0;
+		for (Map.Entry<String, Set<String>> entry : now.neighbors.entrySet()) {
+			String u = entry.getKey();
+			Set<String> was = before.neighbors.get(u);
+			for (String v : entry.getValue()) {
+				if (u.compareTo(v) < 0 && !was.contains(v)) {
+					changed++;
+					List<Integer> path = path(tree, adjacent, containing, u, v);
+					if (path == null) {
+						return null;
+					}
+					region.addAll(path);
+				}
+			}
+			for (String v : was) {
+				if (u.compareTo(v) < 0 && !entry.getValue().contains(v)) {
+					changed++;
+					for (int c : containing.get(u)) {
+						if (tree.cliques.get(c).contains(v)) {
+							region.add(c);
+						}
+					}
+				}
+			}
+		}
+		if (region.isEmpty()) {
+			return tree;
+		}
+
+		// Grow the region out to whole maximal prime subgraphs, and join its
+		// pieces so that it is one subtree
+		boolean grown = true;
+		while (grown) {
+			LinkedList<Integer> queue = new LinkedList<Integer>(region);
+			while (!queue.isEmpty()) {
+				int a = queue.removeFirst();
+				for (int k = 0; k < adjacent.get(a).size(); k++) {
+					int b = adjacent.get(a).get(k);
+					if (region.contains(b) || tree.isForwardInterface(b)) {
+						continue;
+					}
+					Set<String> separator = tree.separatorMembers
+							.get(adjacentSeparators.get(a).get(k));
+					if (!isComplete(separator, now.neighbors)) {
+						region.add(b);
+						queue.add(b);
+					}
+				}
+			}
+			grown = region.addAll(between(adjacent, region));
+		}
+
+		// Triangulate the region with its boundary separators made complete
+		final List<String> nodes = new ArrayList<String>();
+		final Map<String, Integer> index = new HashMap<String, Integer>();
+		for (int c : region) {
+			for (String id : tree.cliques.get(c)) {
+				if (!index.containsKey(id)) {
+					index.put(id, nodes.size());
+					nodes.add(id);
+				}
+			}
+		}
+		final double[] weights = new double[nodes.size()];
+		final boolean[] continuous = new boolean[nodes.size()];
+		final boolean[] eliminate = new boolean[nodes.size()];
+		for (int i = 0; i < nodes.size(); i++) {
+			weights[i] = now.weights.get(nodes.get(i));
+			continuous[i] = now.continuous.contains(nodes.get(i));
+			eliminate[i] = true;
+		}
+		final EliminationGraph graph = new EliminationGraph(weights, continuous);
+		for (int i = 0; i < nodes.size(); i++) {
+			for (String id : now.neighbors.get(nodes.get(i))) {
+				Integer j = index.get(id);
+				if (j != null) {
+					graph.addEdge(i, j);
+				}
+			}
+		}
+		final List<int[]> boundary = new ArrayList<int[]>();
+		for (int s = 0; s < tree.separators.size(); s++) {
+			int a = tree.separators.get(s)[0];
+			int b = tree.separators.get(s)[1];
+			if (region.contains(a) != region.contains(b)) {
+				boundary.add(region.contains(a) ? new int[] { s, b }
+						: new int[] { s, a });
+				graph.addClique(indices(tree.separatorMembers.get(s), index));
+			}
+		}
+		final EliminationGraph.Order best = graph.findOrder(eliminate,
+				EliminationGraph.Measure.TOTAL_WEIGHT, GenerateEliminationCliques
+						.getHeuristics(), GenerateEliminationCliques
+						.getRestarts(), new Random(0), null, null);
+
+		// Backwards the maximal elimination cliques have the running
+		// intersection property
+		final List<Set<Integer>> eliminated = graph.cliques(best.getOrder());
+		final List<Set<String>> made = new ArrayList<Set<String>>();
+		for (int i = eliminated.size() - 1; i >= 0; i--) {
+			boolean maximal = true;
+			for (int j = i - 1; j >= 0 && maximal; j--) {
+				maximal = !eliminated.get(j).containsAll(eliminated.get(i));
+			}
+			if (maximal) {
+				Set<String> clique = new TreeSet<String>();
+				for (int node : eliminated.get(i)) {
+					clique.add(nodes.get(node));
+				}
+				made.add(clique);
+			}
+		}
+
+		// Put the tree back together, keeping what is outside of the region
+		final CliqueTreeStructure ret = new CliqueTreeStructure();
+		final int[] renumber = new int[n];
+		for (int i = 0; i < n; i++) {
+			renumber[i] = region.contains(i) || tree.isForwardInterface(i) ? -1
+					: ret.addClique(tree.cliques.get(i), -1);
+		}
+		final int first = ret.cliques.size();
+		for (Set<String> clique : made) {
+			ret.addClique(clique, -1);
+		}
+		// The interface cliques go last, like GenerateEliminationCliques puts
+		// them, so that none of the distributions are assigned to them
+		for (int i = 0; i < n; i++) {
+			if (tree.isForwardInterface(i)) {
+				renumber[i] = ret.addClique(tree.cliques.get(i),
+						tree.forwardInterfaces.get(i));
+			}
+		}
+		final List<int[]> separators = new ArrayList<int[]>();
+		final List<Set<String>> separatorMembers = new ArrayList<Set<String>>();
+		for (int s = 0; s < tree.separators.size(); s++) {
+			int a = tree.separators.get(s)[0];
+			int b = tree.separators.get(s)[1];
+			if (!region.contains(a) && !region.contains(b)) {
+				separators.add(new int[] { renumber[a], renumber[b] });
+				separatorMembers.add(tree.separatorMembers.get(s));
+			}
+		}
+		Set<String> seen = new HashSet<String>(made.get(0));
+		for (int j = 1; j < made.size(); j++) {
+			Set<String> intersect = new TreeSet<String>(made.get(j));
+			intersect.retainAll(seen);
+			seen.addAll(made.get(j));
+			if (intersect.isEmpty()) {
+				// The start of another part of the region, it is joined up
+				// through the kept cliques or below
+				continue;
+			}
+			int i = j - 1;
+			while (i >= 0 && !made.get(i).containsAll(intersect)) {
+				i--;
+			}
+			if (i < 0) {
+				return null;
+			}
+			separators.add(new int[] { first + j, first + i });
+			separatorMembers.add(intersect);
+		}
+		// A new clique inside the kept clique it is hung off of is merged
+		// into it
+		final int[] merged = new int[ret.cliques.size()];
+		for (int i = 0; i < merged.length; i++) {
+			merged[i] = i;
+		}
+		for (int[] edge : boundary) {
+			Set<String> separator = tree.separatorMembers.get(edge[0]);
+			int kept = renumber[edge[1]];
+			int attach = -1;
+			for (int j = 0; j < made.size(); j++) {
+				if (made.get(j).containsAll(separator)
+						&& (attach == -1 || made.get(j).size() < made.get(
+								attach - first).size())) {
+					attach = first + j;
+				}
+			}
+			if (attach == -1) {
+				return null;
+			}
+			if (merged[attach] == attach && !ret.isForwardInterface(kept)
+					&& ret.cliques.get(kept).containsAll(
+							ret.cliques.get(attach))) {
+				merged[attach] = kept;
+			} else {
+				separators.add(new int[] { kept, attach });
+				separatorMembers.add(separator);
+			}
+		}
+
+		// Drop the merged cliques and number what is left
+		final CliqueTreeStructure compact = new CliqueTreeStructure();
+		final int[] compacted = new int[ret.cliques.size()];
+		for (int i = 0; i < ret.cliques.size(); i++) {
+			compacted[i] = merged[i] != i ? -1 : compact.addClique(ret.cliques
+					.get(i), ret.forwardInterfaces.get(i));
+		}
+		final int[] parts = new int[compact.cliques.size()];
+		for (int i = 0; i < parts.length; i++) {
+			parts[i] = i;
+		}
+		for (int s = 0; s < separators.size(); s++) {
+			int a = compacted[merged[separators.get(s)[0]]];
+			int b = compacted[merged[separators.get(s)[1]]];
+			if (a != b) {
+				compact.addSeparator(a, b, separatorMembers.get(s));
+				parts[find(parts, a)] = find(parts, b);
+			}
+		}
+		// Parts of the moral graph that are no longer connected are joined
+		// by empty separators, as GenerateJunctionTreeFromCliques does
+		for (int i = 1; i < parts.length; i++) {
+			if (find(parts, i) != find(parts, 0)) {
+				compact.addSeparator(i, 0, Collections.<String> emptySet());
+				parts[find(parts, i)] = find(parts, 0);
+			}
+		}
+		if (logger.isInfoEnabled()) {
+			logger.info(changed + " moral edges changed, re-triangulated "
+					+ region.size() + " of " + n + " cliques into "
+					+ made.size());
+		}
+		return compact;
+	}
+
+	/**
+	 * The shortest path of cliques from one holding u to one holding v,
+	 * empty if a clique already holds both
+	 */
+	private static List<Integer> path(CliqueTreeStructure tree,
+			List<List<Integer>> adjacent, Map<String, List<Integer>> containing,
+			String u, String v) {
+		List<Integer> starts = containing.get(u);
+		if (starts == null || containing.get(v) == null) {
+			return null;
+		}
+		Map<Integer, Integer> parents = new HashMap<Integer, Integer>();
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		for (int c : starts) {
+			if (tree.cliques.get(c).contains(v)) {
+				return Collections.emptyList();
+			}
+			parents.put(c, -1);
+			queue.add(c);
+		}
+		while (!queue.isEmpty()) {
+			int a = queue.removeFirst();
+			for (int b : adjacent.get(a)) {
+				if (parents.containsKey(b) || tree.isForwardInterface(b)) {
+					continue;
+				}
+				parents.put(b, a);
+				if (tree.cliques.get(b).contains(v)) {
+					List<Integer> ret = new ArrayList<Integer>();
+					for (int c = b; c != -1; c = parents.get(c)) {
+						ret.add(c);
+					}
+					return ret;
+				}
+				queue.add(b);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The cliques on the paths between cliques of the region that are not in
+	 * it themselves
+	 */
+	private static Set<Integer> between(List<List<Integer>> adjacent,
+			Set<Integer> region) {
+		final int n = adjacent.size();
+		final int root = region.iterator().next();
+		final int[] parents = new int[n];
+		final List<Integer> order = new ArrayList<Integer>(n);
+		Arrays.fill(parents, -2);
+		parents[root] = -1;
+		LinkedList<Integer> stack = new LinkedList<Integer>();
+		stack.add(root);
+		while (!stack.isEmpty()) {
+			int a = stack.removeLast();
+			order.add(a);
+			for (int b : adjacent.get(a)) {
+				if (parents[b] == -2) {
+					parents[b] = a;
+					stack.add(b);
+				}
+			}
+		}
+		// A clique is on a path from the root to the region if the region
+		// reaches below it
+		final boolean[] reaches = new boolean[n];
+		final Set<Integer> ret = new TreeSet<Integer>();
+		for (int k = order.size() - 1; k >= 0; k--) {
+			int a = order.get(k);
+			if (region.contains(a)) {
+				reaches[a] = true;
+			} else if (reaches[a]) {
+				ret.add(a);
+			}
+			if (reaches[a] && parents[a] >= 0) {
+				reaches[parents[a]] = true;
+			}
+		}
+		return ret;
+	}
+
+	private static int find(int[] parts, int i) {
+		while (parts[i] != i) {
+			i = parts[i] = parts[parts[i]];
+		}
+		return i;
+	}
+
+	private static boolean isComplete(Set<String> ids,
+			Map<String, Set<String>> neighbors) {
+		for (String a : ids) {
+			Set<String> adjacent = neighbors.get(a);
+			for (String b : ids) {
+				if (!a.equals(b) && !adjacent.contains(b)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static List<Integer> indices(Set<String> ids,
+			Map<String, Integer> index) {
+		List<Integer> ret = new ArrayList<Integer>(ids.size());
+		for (String id : ids) {
+			ret.add(index.get(id));
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,289 @@
+package selrach.bnetbuilder.model.algorithms.graph;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import selrach.bnetbuilder.model.variable.Clique;
+import selrach.bnetbuilder.model.variable.CliqueSeparator;
+import selrach.bnetbuilder.model.variable.DiscreteVariable;
+import selrach.bnetbuilder.model.variable.GraphVariable;
+import selrach.bnetbuilder.model.variable.JunctionTreeTemplate;
+
+/**
+ * Keeps the cliques and separators of junction tree templates on disk so that
+ * a network that has been triangulated before does not have to be again.
+ *
+ * Entries are keyed by a hash of the moralized template slices: every
+ * variable with its number of states, whether it is in the interface, its
+ * parents and its neighbors, along with the heuristics and restarts used to
+ * triangulate. Changing the structure of the network changes the key, so an
+ * entry never has to be thrown out, it just stops being found.
+ *
+ * Nothing is cached until a directory is set. Problems reading or writing an
+ * entry are logged and the junction tree template is built as usual.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public class JunctionTreeCache {
+
+	private final static Logger logger = Logger
+			.getLogger(JunctionTreeCache.class);
+
+	private static final String VERSION = "jtt 1";
+
+	private static File directory = null;
+
+	/**
+	 * @return the directory entries are kept in, null if nothing is cached
+	 */
+	public static File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @param directory
+	 *            the directory to keep entries in, it is created if needed,
+	 *            null to stop caching
+	 */
+	public static void setDirectory(File directory) {
+		JunctionTreeCache.directory = directory;
+	}
+
+	/**
+	 * The key for the moralized template slices
+	 *
+	 * @param jtt
+	 * @return a hex string, the same for the same structure
+	 * @throws Exception
+	 */
+	public static String hash(JunctionTreeTemplate jtt) throws Exception {
+		StringBuilder sb = new StringBuilder(VERSION);
+		sb.append('\n');
+		for (EliminationHeuristic heuristic : GenerateEliminationCliques
+				.getHeuristics()) {
+			sb.append(heuristic.getName()).append('\t');
+		}
+		sb.append(GenerateEliminationCliques.getRestarts()).append('\n');
+		for (Map<String, GraphVariable> map : jtt.getVariableSets()) {
+			sb.append("slice\n");
+			for (GraphVariable gv : new TreeMap<String, GraphVariable>(map)
+					.values()) {
+				sb.append(gv.getId()).append('\t');
+				if (gv.getReference() instanceof DiscreteVariable) {
+					sb.append(((DiscreteVariable) gv.getReference()).getStates()
+							.size());
+				} else {
+					sb.append('c');
+				}
+				sb.append('\t').append(gv.isInInterface()).append('\t');
+				for (GraphVariable p : new TreeSet<GraphVariable>(gv
+						.getParents())) {
+					sb.append(p.getId()).append(',');
+				}
+				sb.append('\t');
+				for (String n : new TreeSet<String>(gv.getNeighborMap()
+						.keySet())) {
+					sb.append(n).append(',');
+				}
+				sb.append('\n');
+			}
+		}
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		byte[] bytes = digest.digest(sb.toString().getBytes("UTF-8"));
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+		}
+		return hex.toString();
+	}
+
+	private static File entry(String hash) {
+		return new File(directory, "jtt-" + hash + ".txt");
+	}
+
+	/**
+	 * Fills in the cliques and separators of a moralized junction tree
+	 * template from the cache
+	 *
+	 * @param jtt
+	 * @param hash
+	 * @return true if they were found
+	 */
+	public static boolean load(JunctionTreeTemplate jtt, String hash) {
+		if (directory == null) {
+			return false;
+		}
+		File file = entry(hash);
+		if (!file.isFile()) {
+			return false;
+		}
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(
+					file), "UTF-8"));
+			if (!VERSION.equals(in.readLine())) {
+				throw new Exception("Unknown cache entry version");
+			}
+			List<Map<String, GraphVariable>> variableSets = jtt
+					.getVariableSets();
+			List<List<Clique>> cliqueSets = new ArrayList<List<Clique>>();
+			List<List<CliqueSeparator>> separatorSets = new ArrayList<List<CliqueSeparator>>();
+			String[] counts = in.readLine().split("\t");
+			if (Integer.parseInt(counts[1]) != variableSets.size()) {
+				throw new Exception("Wrong number of template slices");
+			}
+			for (Map<String, GraphVariable> variables : variableSets) {
+				counts = in.readLine().split("\t");
+				int numCliques = Integer.parseInt(counts[1]);
+				int numSeparators = Integer.parseInt(counts[2]);
+				CliqueTreeStructure structure = new CliqueTreeStructure();
+				for (int i = 0; i < numCliques; i++) {
+					String[] fields = in.readLine().split("\t");
+					structure.addClique(ids(fields, 2), Integer
+							.parseInt(fields[1]));
+				}
+				for (int i = 0; i < numSeparators; i++) {
+					String[] fields = in.readLine().split("\t");
+					structure.addSeparator(Integer.parseInt(fields[1]), Integer
+							.parseInt(fields[2]), ids(fields, 3));
+				}
+				List<Clique> cliques = new ArrayList<Clique>();
+				List<CliqueSeparator> separators = new ArrayList<CliqueSeparator>();
+				structure.apply(variables, cliques, separators);
+				cliqueSets.add(cliques);
+				separatorSets.add(separators);
+			}
+			jtt.setCliqueSets(cliqueSets);
+			jtt.setCliqueSeparatorSets(separatorSets);
+			jtt.resetCutVariables();
+			if (logger.isInfoEnabled()) {
+				logger.info("Junction tree template read from " + file);
+			}
+			return true;
+		} catch (Exception ex) {
+			logger.warn("Could not read junction tree cache entry " + file, ex);
+			return false;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (Exception ex) {
+					logger.warn("Could not close " + file, ex);
+				}
+			}
+		}
+	}
+
+	private static Set<String> ids(String[] fields, int start) {
+		Set<String> ids = new TreeSet<String>();
+		for (int i = start; i < fields.length; i++) {
+			ids.add(fields[i]);
+		}
+		return ids;
+	}
+
+	/**
+	 * Writes the cliques and separators of a junction tree template to the
+	 * cache. The entry is written to a temporary file first so a half
+	 * written one is never read.
+	 *
+	 * @param jtt
+	 * @param hash
+	 */
+	public static void store(JunctionTreeTemplate jtt, String hash) {
+		if (directory == null) {
+			return;
+		}
+		File file = entry(hash);
+		File tmp = null;
+		BufferedWriter out = null;
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new Exception("Could not create " + directory);
+			}
+			tmp = File.createTempFile("jtt-", ".tmp", directory);
+			out = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(tmp), "UTF-8"));
+			List<List<Clique>> cliqueSets = jtt.getCliqueSets();
+			List<List<CliqueSeparator>> separatorSets = jtt
+					.getCliqueSeparatorSets();
+			out.write(VERSION + "\n");
+			out.write("slices\t" + cliqueSets.size() + "\n");
+			for (int s = 0; s < cliqueSets.size(); s++) {
+				CliqueTreeStructure structure = CliqueTreeStructure.of(
+						cliqueSets.get(s), separatorSets.get(s));
+				out.write("slice\t" + structure.cliques.size() + "\t"
+						+ structure.separators.size() + "\n");
+				for (int i = 0; i < structure.cliques.size(); i++) {
+					out.write("clique\t" + structure.forwardInterfaces.get(i));
+					write(out, structure.cliques.get(i));
+				}
+				for (int i = 0; i < structure.separators.size(); i++) {
+					out.write("separator\t" + structure.separators.get(i)[0]
+							+ "\t" + structure.separators.get(i)[1]);
+					write(out, structure.separatorMembers.get(i));
+				}
+			}
+			out.close();
+			out = null;
+			if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+				throw new Exception("Could not replace " + file);
+			}
+			tmp = null;
+			if (logger.isInfoEnabled()) {
+				logger.info("Junction tree template written to " + file);
+			}
+		} catch (Exception ex) {
+			logger.warn("Could not write junction tree cache entry " + file, ex);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (Exception ex) {
+					logger.warn("Could not close " + tmp, ex);
+				}
+			}
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+	}
+
+	private static void write(BufferedWriter out, Set<String> ids)
+			throws Exception {
+		for (String id : ids) {
+			out.write("\t" + id);
+		}
+		out.write("\n");
+	}
+
+	/**
+	 * Throws out every entry
+	 */
+	public static void clear() {
+		if (directory == null || !directory.isDirectory()) {
+			return;
+		}
+		File[] files = directory.listFiles();
+		for (File file : files) {
+			if (file.getName().startsWith("jtt-")) {
+				file.delete();
+			}
+		}
+	}
+}
@@ -9,6 +9,12 @@ import selrach.bnetbuilder.model.variable.JunctionTreeTemplate;
  * Creates the junction tree templates, basically groups together all the steps
  * necessary to create a junction tree from the raw network
  * 
+ * If a JunctionTreeCache directory is set, the cliques and separators of a
+ * network with the same moralized structure as one built before are read
+ * from it instead of triangulating again. Otherwise, if only some edges have
+ * changed since the template was last built, IncrementalJunctionTree
+ * re-triangulates just the part of it they touch.
+ * 
  * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
  * 
  */
@@ -28,12 +34,29 @@ public class MakeJunctionTreeTemplate {
 				logger.debug("Junction Tree after Moralization:");
 				logger.debug(jtt);
 			}
-			GenerateEliminationCliques.execute(jtt);
-			if (logger.isDebugEnabled()) {
-				logger.debug("Junction Tree after Elimination Cliques:");
-				logger.debug(jtt);
+			IncrementalJunctionTree incremental = IncrementalJunctionTree
+					.getInstance(jtt);
+			incremental.moralized(jtt);
+			String hash = null;
+			if (JunctionTreeCache.getDirectory() != null) {
+				hash = JunctionTreeCache.hash(jtt);
+			}
+			if (hash == null || !JunctionTreeCache.load(jtt, hash)) {
+				if (!incremental.update(jtt)) {
+					GenerateEliminationCliques.execute(jtt);
+					if (logger.isDebugEnabled()) {
+						logger.debug("Junction Tree after Elimination Cliques:");
+						logger.debug(jtt);
+					}
+					GenerateJunctionTreeFromCliques.execute(jtt);
+				}
+				// Whichever way it was built, the next network with this
+				// structure can read it back
+				if (hash != null) {
+					JunctionTreeCache.store(jtt, hash);
+				}
 			}
-			GenerateJunctionTreeFromCliques.execute(jtt);
+			incremental.built(jtt);
 			if (logger.isDebugEnabled()) {
 				logger.debug("Junction Tree after GenerateJunctionTree:");
 				logger.debug(jtt);
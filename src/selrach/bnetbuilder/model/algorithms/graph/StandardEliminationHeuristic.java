@@ -0,0 +1,97 @@
+package selrach.bnetbuilder.model.algorithms.graph;
+
+import java.util.List;
+
+/**
+ * The usual greedy heuristics for picking an elimination order
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public enum StandardEliminationHeuristic implements EliminationHeuristic {
+
+	/**
+	 * Fewest neighbors
+	 */
+	MIN_DEGREE("min-degree") {
+		public double score(EliminationGraph graph, int node) {
+			return graph.getNeighbors(node).size();
+		}
+
+		public boolean dependsOnNeighborEdges() {
+			return false;
+		}
+	},
+
+	/**
+	 * Fewest edges added between the neighbors
+	 */
+	MIN_FILL("min-fill") {
+		public double score(EliminationGraph graph, int node) {
+			List<Integer> neighbors = graph.getNeighbors(node);
+			int fill = 0;
+			for (int i = 0; i < neighbors.size(); i++) {
+				int a = neighbors.get(i);
+				for (int j = i + 1; j < neighbors.size(); j++) {
+					if (!graph.isNeighbor(a, neighbors.get(j))) {
+						fill++;
+					}
+				}
+			}
+			return fill;
+		}
+
+		public boolean dependsOnNeighborEdges() {
+			return true;
+		}
+	},
+
+	/**
+	 * Least weight of the edges added between the neighbors, each edge
+	 * weighing the product of the number of states of its ends
+	 */
+	WEIGHTED_MIN_FILL("weighted min-fill") {
+		public double score(EliminationGraph graph, int node) {
+			List<Integer> neighbors = graph.getNeighbors(node);
+			double fill = 0.0;
+			for (int i = 0; i < neighbors.size(); i++) {
+				int a = neighbors.get(i);
+				for (int j = i + 1; j < neighbors.size(); j++) {
+					int b = neighbors.get(j);
+					if (!graph.isNeighbor(a, b)) {
+						fill += graph.getWeight(a) * graph.getWeight(b);
+					}
+				}
+			}
+			return fill;
+		}
+
+		public boolean dependsOnNeighborEdges() {
+			return true;
+		}
+	},
+
+	/**
+	 * Least weight of the clique created, counting the means and covariances
+	 * held for its continuous nodes
+	 */
+	MIN_WEIGHT("min-weight") {
+		public double score(EliminationGraph graph, int node) {
+			return graph.getWeight(graph.getClique(node));
+		}
+
+		public boolean dependsOnNeighborEdges() {
+			return false;
+		}
+	};
+
+	private final String name;
+
+	private StandardEliminationHeuristic(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+}
@@ -0,0 +1,16 @@
+package selrach.bnetbuilder.model.algorithms.inference;
+
+/**
+ * Constants that correspond to useful properties for iterative approximate
+ * algorithms
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public enum ApproximateAlgorithmConstants {
+	MAX_ITERATIONS, // How many iterations to run before giving up on
+					// converging
+	CONVERGENCE_THRESHOLD, // Largest change of any message at which the
+							// algorithm has converged
+	DAMPING, // Fraction of the old message kept in each update
+}
@@ -0,0 +1,349 @@
+package selrach.bnetbuilder.model.algorithms.inference;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import selrach.bnetbuilder.model.BayesNetSlice;
+import selrach.bnetbuilder.model.DynamicBayesNetModel;
+import selrach.bnetbuilder.model.algorithms.graph.MakeJunctionTreeTemplate;
+import selrach.bnetbuilder.model.distributions.DistributionFactory;
+import selrach.bnetbuilder.model.distributions.interfaces.UnconditionalDistribution;
+import selrach.bnetbuilder.model.distributions.unconditional.Table;
+import selrach.bnetbuilder.model.variable.Factor;
+import selrach.bnetbuilder.model.variable.JunctionTree;
+import selrach.bnetbuilder.model.variable.JunctionTreeTemplate;
+import selrach.bnetbuilder.model.variable.TransientClique;
+import selrach.bnetbuilder.model.variable.TransientVariable;
+
+/**
+ * Interface (frontier) filtering over the junction tree slices. Instead of
+ * unrolling every slice at once, each slice is built on its own, the belief
+ * over the interface of the slice before it is multiplied into its past
+ * interface clique, and it is collected into its forward interface clique.
+ * That belief is all that gets passed on, so once a slice is done it can be
+ * released and the memory used stays the same no matter how long the
+ * sequence is.
+ *
+ * Without smoothing the marginals of each slice are the filtered ones,
+ * P(X_t|y_0..t). With smoothing the forward beliefs are the only thing kept
+ * from the forward pass, and a backward pass rebuilds each slice one at a
+ * time, replaces its forward interface with the smoothed belief and
+ * distributes it, giving the same marginals as calibrating the whole
+ * unrolled tree.
+ *
+ * The model remembers the evidence of every slice it releases so they can be
+ * rebuilt. When filtering a long stream once, setDiscardingEvidence lets the
+ * filter throw that evidence away as it moves past each slice, the evidence
+ * then has to be set again before the model is used for anything else.
+ *
+ * With checkpointing on, the smoothing keeps only the forward belief at the
+ * end of every sqrt(T)-th slice (the "island" algorithm). Going backwards each
+ * segment recomputes its own forward beliefs from the checkpoint before it,
+ * so memory is O(sqrt(T)) beliefs for about one more forward pass of work.
+ * The segments only depend on their checkpoint, so they could be recomputed
+ * independently, but slices are generated through the model's window so it is
+ * done one segment at a time here.
+ *
+ * Each slice announces itself through DynamicBayesNetModel.notifySliceInferred
+ * once its marginals are set. This only handles first order models, where the
+ * forward interface separates a slice from everything before it.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public class CalibrateJunctionTreeInterface {
+
+	private final static Logger logger = Logger
+			.getLogger(CalibrateJunctionTreeInterface.class);
+
+	private static final CalibrateJunctionTreeInterface instance = new CalibrateJunctionTreeInterface();
+
+	/**
+	 * Run the backward pass after filtering?
+	 */
+	private boolean smoothing = true;
+
+	/**
+	 * Only keep a forward belief every sqrt(T) slices when smoothing?
+	 */
+	private boolean checkpointing = false;
+
+	/**
+	 * Throw away the model's evidence for the slices behind the filter?
+	 */
+	private boolean discardingEvidence = false;
+
+	private CalibrateJunctionTreeInterface() {
+	}
+
+	public static CalibrateJunctionTreeInterface getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return is the backward pass run after filtering
+	 */
+	public boolean isSmoothing() {
+		return smoothing;
+	}
+
+	/**
+	 * @param smoothing
+	 *            run the backward pass after filtering, otherwise the
+	 *            marginals are the filtered ones
+	 */
+	public void setSmoothing(boolean smoothing) {
+		this.smoothing = smoothing;
+	}
+
+	/**
+	 * @return are only a sqrt(T) forward beliefs kept when smoothing
+	 */
+	public boolean isCheckpointing() {
+		return checkpointing;
+	}
+
+	/**
+	 * @param checkpointing
+	 *            keep the forward belief of only every sqrt(T)-th slice when
+	 *            smoothing and recompute the rest one segment at a time
+	 *            during the backward pass, otherwise every forward belief is
+	 *            kept
+	 */
+	public void setCheckpointing(boolean checkpointing) {
+		this.checkpointing = checkpointing;
+	}
+
+	/**
+	 * @return is the evidence of slices the filter has moved past thrown away
+	 */
+	public boolean isDiscardingEvidence() {
+		return discardingEvidence;
+	}
+
+	/**
+	 * @param discardingEvidence
+	 *            throw away the evidence the model keeps for the slices the
+	 *            filter has moved past, only done without smoothing on a
+	 *            model that does not keep every slice in memory
+	 */
+	public void setDiscardingEvidence(boolean discardingEvidence) {
+		this.discardingEvidence = discardingEvidence;
+	}
+
+	/**
+	 * Runs the algorithm, utilizes any evidence set in the model and sets the
+	 * marginals of every transient variable as it goes.
+	 *
+	 * @param model
+	 */
+	public void execute(DynamicBayesNetModel model, PrintStream updateTracking)
+			throws Exception {
+		JunctionTreeTemplate jtt = model.getJunctionTreeTemplate();
+		if (jtt.isStale()) {
+			MakeJunctionTreeTemplate.execute(model);
+		}
+		if (model.getNumberTemplateSlices() > 2) {
+			throw new Exception(
+					"Interface filtering only handles first order models");
+		}
+
+		final int slices = model.getMaxNumberSlices();
+		final int interval = checkpointing ? (int) Math.ceil(Math
+				.sqrt(slices)) : 1;
+
+		// The forward beliefs at the end of each segment, only the last one
+		// is kept unless we smooth
+		List<Factor> checkpoints = new ArrayList<Factor>();
+		final boolean discard = discardingEvidence && !smoothing
+				&& model.isMemoryBounded();
+		Factor belief = null;
+		for (int i = 0; i < slices; i++) {
+			JunctionTree jt = collect(model, jtt, i, belief);
+			TransientClique root = getRoot(jt);
+			belief = copy(root.getFactor());
+			if (!smoothing) {
+				distribute(model, jt, root, i, true);
+				if (discard) {
+					model.discardEvidenceBefore(i);
+				}
+			} else if ((i + 1) % interval == 0 || i == slices - 1) {
+				checkpoints.add(belief);
+			}
+		}
+		if (!smoothing) {
+			return;
+		}
+
+		Factor smoothed = null;
+		for (int s = checkpoints.size() - 1; s >= 0; s--) {
+			int start = s * interval;
+			int end = Math.min(start + interval, slices);
+			Factor checkpoint = s > 0 ? checkpoints.get(s - 1) : null;
+
+			// Recompute the forward beliefs inside the segment, the last one
+			// is never needed going backwards
+			List<Factor> beliefs = new ArrayList<Factor>(end - start);
+			belief = checkpoint;
+			for (int i = start; i < end - 1; i++) {
+				belief = copy(getRoot(collect(model, jtt, i, belief))
+						.getFactor());
+				beliefs.add(belief);
+			}
+
+			for (int i = end - 1; i >= start; i--) {
+				smoothed = smooth(model, jtt, i, i > start ? beliefs.get(i
+						- start - 1) : checkpoint, smoothed, true);
+			}
+			checkpoints.set(s, null);
+		}
+	}
+
+	/**
+	 * Runs the backward step for a slice
+	 *
+	 * @param belief
+	 *            the forward belief of the slice before
+	 * @param smoothed
+	 *            the smoothed belief over the forward interface of this
+	 *            slice, null for the last slice
+	 * @param notify
+	 *            announce that the marginals of the slice are done
+	 * @return the smoothed belief over the forward interface of the slice
+	 *         before
+	 */
+	Factor smooth(DynamicBayesNetModel model, JunctionTreeTemplate jtt,
+			int slice, Factor belief, Factor smoothed, boolean notify)
+			throws Exception {
+		JunctionTree jt = collect(model, jtt, slice, belief);
+		TransientClique root = getRoot(jt);
+		if (smoothed != null) {
+			root.setFactor(rebind(smoothed));
+		}
+		distribute(model, jt, root, slice, notify);
+
+		if (slice == 0 || jt.getNumberInterfaces() < 2) {
+			return null;
+		}
+		TransientClique past = jt.getForwardInterface(1);
+		Factor marginal = past.getFactor();
+		if (past.getParentSeparator() != null) {
+			marginal = past.getParentSeparator().getFactor().combine(marginal);
+		}
+		return copy(marginal.marginalize(past.getMembers().values()));
+	}
+
+	/**
+	 * Builds the junction tree for a slice, puts in the belief from the slice
+	 * before it and collects it into the forward interface
+	 */
+	JunctionTree collect(DynamicBayesNetModel model,
+			JunctionTreeTemplate jtt, int slice, Factor belief)
+			throws Exception {
+		// Get the slice first, it may need to be generated again
+		BayesNetSlice bnSlice = model.getSlice(slice);
+		int tSlice = Math.min(slice, model.getNumberTemplateSlices() - 1);
+		JunctionTree jt = new JunctionTree(jtt.getCliqueSets().get(tSlice), jtt
+				.getCliqueSeparatorSets().get(tSlice), slice);
+		jt.setEvidence(bnSlice);
+
+		if (belief != null && jt.getNumberInterfaces() > 1) {
+			TransientClique past = jt.getForwardInterface(1);
+			past.setFactor(past.getFactor().combine(rebind(belief)));
+		}
+
+		jt.clearParents();
+		CalibrateJunctionTreeSerial.getInstance().collect(getRoot(jt));
+		if (logger.isDebugEnabled()) {
+			logger.debug("Collected slice " + slice);
+		}
+		return jt;
+	}
+
+	/**
+	 * Distributes from the root, normalizes and sets the marginals of the
+	 * variables that belong to this slice
+	 */
+	private void distribute(DynamicBayesNetModel model, JunctionTree jt,
+			TransientClique root, int slice, boolean notify) throws Exception {
+		CalibrateJunctionTreeSerial serial = CalibrateJunctionTreeSerial
+				.getInstance();
+		jt.clearParents();
+		serial.distribute(root);
+		serial.normalize(jt);
+
+		for (TransientVariable tv : model.getSlice(slice).getVariables()) {
+			tv.setMarginal(null);
+		}
+		for (TransientClique clique : jt.getCliques()) {
+			Factor cliqueMarginal = null;
+			for (TransientVariable tv : clique.getMembers().values()) {
+				if (tv.getTime() != slice || tv.isEvidence()
+						|| tv.getMarginal() != null) {
+					continue;
+				}
+				if (cliqueMarginal == null) {
+					cliqueMarginal = clique.getFactor();
+					if (clique.getParentSeparator() != null) {
+						cliqueMarginal = clique.getParentSeparator()
+								.getFactor().combine(cliqueMarginal);
+					}
+				}
+				UnconditionalDistribution marginal = DistributionFactory
+						.downgradeCPD(cliqueMarginal.marginalize(
+								Collections.singleton(tv)).getDistribution());
+				if (marginal instanceof Table) {
+					((Table) marginal).normalize();
+				}
+				tv.setMarginal(marginal);
+			}
+		}
+		if (notify) {
+			model.notifySliceInferred(slice);
+		}
+	}
+
+	/**
+	 * The forward interface of the slice if there is one, otherwise this
+	 * slice does not connect to the next one and any root will do
+	 */
+	TransientClique getRoot(JunctionTree jt) {
+		if (jt.getNumberInterfaces() > 0) {
+			return jt.getForwardInterface(0);
+		}
+		return jt.getRoot();
+	}
+
+	/**
+	 * Copies a belief and normalizes it so it does not underflow over long
+	 * sequences
+	 */
+	Factor copy(Factor factor) throws Exception {
+		Factor ret = new Factor(factor);
+		ret.normalize();
+		return ret;
+	}
+
+	/**
+	 * The slice a belief was made from may have been released and generated
+	 * again since, so point it at the transient variables in memory now
+	 */
+	private Factor rebind(Factor factor) throws Exception {
+		return new Factor(rebind(factor.getDependencies()), rebind(factor
+				.getHeadDependencies()), rebind(factor.getTailDependencies()),
+				factor.getDistribution().copy());
+	}
+
+	private List<TransientVariable> rebind(List<TransientVariable> variables) {
+		List<TransientVariable> ret = new ArrayList<TransientVariable>(
+				variables.size());
+		for (TransientVariable tv : variables) {
+			ret.add(tv.getReference().getTransientVariable(tv.getTime()));
+		}
+		return ret;
+	}
+}
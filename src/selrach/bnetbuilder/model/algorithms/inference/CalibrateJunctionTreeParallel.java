@@ -0,0 +1,89 @@
+package selrach.bnetbuilder.model.algorithms.inference;
+
+import java.io.PrintStream;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.log4j.Logger;
+
+import selrach.bnetbuilder.model.DynamicBayesNetModel;
+import selrach.bnetbuilder.model.algorithms.graph.MakeJunctionTreeTemplate;
+import selrach.bnetbuilder.model.variable.CompiledJunctionTree;
+import selrach.bnetbuilder.model.variable.JunctionTreeTemplate;
+
+/**
+ * A fork/join implementation of message passing on a constructed junction
+ * tree. During collect the children of a clique send their messages
+ * concurrently and the clique absorbs them once they have all joined, during
+ * distribute each clique fans out to its children concurrently. Subtrees
+ * smaller than the threshold are run on the thread that reaches them.
+ *
+ * The results are identical to CalibrateJunctionTreeSerial, trees that cannot
+ * be compiled are handed to it.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public class CalibrateJunctionTreeParallel {
+
+	private final static Logger logger = Logger
+			.getLogger(CalibrateJunctionTreeParallel.class);
+
+	/**
+	 * Subtrees touching fewer table entries than this are not worth the
+	 * overhead of forking
+	 */
+	public static final int DEFAULT_THRESHOLD = 1 << 14;
+
+	private static final CalibrateJunctionTreeParallel instance = new CalibrateJunctionTreeParallel();
+
+	private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime()
+			.availableProcessors());
+
+	private int threshold = DEFAULT_THRESHOLD;
+
+	private CalibrateJunctionTreeParallel() {
+	}
+
+	public static CalibrateJunctionTreeParallel getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return the threshold
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @param threshold
+	 *            the threshold to set
+	 */
+	public void setThreshold(int threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Runs the algorithm, utilizes any evidence set in the model.
+	 *
+	 * @param model
+	 */
+	public void execute(DynamicBayesNetModel model, PrintStream updateTracking)
+			throws Exception {
+		JunctionTreeTemplate jtt = model.getJunctionTreeTemplate();
+		if (jtt.isStale()) {
+			MakeJunctionTreeTemplate.execute(model);
+		}
+
+		CompiledJunctionTree compiled = jtt.getCompiledJunctionTree(model);
+		if (!compiled.isApplicable()) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("Junction tree is not compiled, running serially");
+			}
+			CalibrateJunctionTreeSerial.getInstance().execute(model,
+					updateTracking);
+			return;
+		}
+		compiled.calibrate(model, pool, threshold);
+	}
+}
@@ -10,6 +10,7 @@ import selrach.bnetbuilder.model.DynamicBayesNetModel;
 import selrach.bnetbuilder.model.algorithms.graph.MakeJunctionTreeTemplate;
 import selrach.bnetbuilder.model.distributions.interfaces.ConditionalDistribution;
 import selrach.bnetbuilder.model.distributions.unconditional.Table;
+import selrach.bnetbuilder.model.variable.CompiledJunctionTree;
 import selrach.bnetbuilder.model.variable.Factor;
 import selrach.bnetbuilder.model.variable.JunctionTree;
 import selrach.bnetbuilder.model.variable.JunctionTreeTemplate;
@@ -49,6 +50,14 @@ public class CalibrateJunctionTreeSerial {
 			MakeJunctionTreeTemplate.execute(model);
 		}
 
+		// Discrete trees run off of the precompiled schedule, which reuses the
+		// same slices and tables from one calibration to the next
+		CompiledJunctionTree compiled = jtt.getCompiledJunctionTree(model);
+		if (compiled.isApplicable()) {
+			compiled.calibrate(model);
+			return;
+		}
+
 		// For each junction tree created in the model 0...T, Go forward and do
 		// the
 		// distributions to each node
@@ -141,7 +150,17 @@ public class CalibrateJunctionTreeSerial {
 		// potential
 		//
 
-		TransientClique root = jt.getRoot();
+		collect(jt.getRoot());
+	}
+
+	/**
+	 * Runs the collect phase of a single junction tree slice towards the given
+	 * root, the parents of the slice should already be cleared.
+	 * 
+	 * @param root
+	 * @throws Exception
+	 */
+	void collect(TransientClique root) throws Exception {
 		if (logger.isDebugEnabled()) {
 			logger.debug("Root = " + root);
 		}
@@ -187,7 +206,17 @@ public class CalibrateJunctionTreeSerial {
 		// potential
 		// Normalize parent potential
 
-		TransientClique root = jt.getRoot();
+		distribute(jt.getRoot());
+	}
+
+	/**
+	 * Runs the distribute phase of a single junction tree slice from the given
+	 * root, the parents of the slice should already be cleared.
+	 * 
+	 * @param root
+	 * @throws Exception
+	 */
+	void distribute(TransientClique root) throws Exception {
 		root.setParent(root);
 		if (logger.isDebugEnabled()) {
 			logger.debug("Root = " + root);
@@ -244,7 +273,7 @@ public class CalibrateJunctionTreeSerial {
 		}
 	}
 
-	private void normalize(JunctionTree jt) {
+	void normalize(JunctionTree jt) {
 		for (TransientClique clique : jt.getCliques()) {
 			if (logger.isDebugEnabled()) {
 				logger.debug("Normalizing: " + clique);
@@ -0,0 +1,132 @@
+package selrach.bnetbuilder.model.algorithms.inference;
+
+/**
+ * Convergence diagnostics over several chains of the same scalar. Every chain
+ * is split in half first so a chain that is still drifting shows up as two
+ * chains that disagree, which also lets a single chain be checked.
+ *
+ * The potential scale reduction factor (R-hat) compares the variance between
+ * the halves to the variance within them and goes to 1 as the chains mix.
+ * The effective sample size divides the number of draws by the integrated
+ * autocorrelation time, summing the autocorrelations in pairs until a pair
+ * goes negative (Geyer's initial positive sequence).
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+class ChainDiagnostics {
+
+	private final int numSequences;
+	private final int length;
+	private final double[] means;
+	private final double[] variances;
+	private final double withinVariance;
+	private final double pooledVariance;
+	private final double[][] sequences;
+
+	/**
+	 * @param chains
+	 *            the draws of each chain
+	 * @param n
+	 *            how many draws of each chain to use
+	 */
+	ChainDiagnostics(double[][] chains, int n) {
+		length = n / 2;
+		numSequences = chains.length * 2;
+		sequences = new double[numSequences][];
+		means = new double[numSequences];
+		variances = new double[numSequences];
+		for (int c = 0; c < chains.length; c++) {
+			// Drop the first draw of an odd length chain
+			int start = n - 2 * length;
+			sequences[2 * c] = copy(chains[c], start);
+			sequences[2 * c + 1] = copy(chains[c], start + length);
+		}
+
+		double meanOfMeans = 0.0;
+		double within = 0.0;
+		for (int i = 0; i < numSequences; i++) {
+			double mean = 0.0;
+			for (double x : sequences[i]) {
+				mean += x;
+			}
+			mean /= length;
+			double var = 0.0;
+			for (double x : sequences[i]) {
+				var += (x - mean) * (x - mean);
+			}
+			var /= length - 1;
+			means[i] = mean;
+			variances[i] = var;
+			meanOfMeans += mean;
+			within += var;
+		}
+		meanOfMeans /= numSequences;
+		withinVariance = within / numSequences;
+
+		double between = 0.0;
+		for (int i = 0; i < numSequences; i++) {
+			between += (means[i] - meanOfMeans) * (means[i] - meanOfMeans);
+		}
+		between *= (double) length / (numSequences - 1);
+		pooledVariance = (length - 1.0) / length * withinVariance + between
+				/ length;
+	}
+
+	private double[] copy(double[] chain, int start) {
+		double[] ret = new double[length];
+		System.arraycopy(chain, start, ret, 0, length);
+		return ret;
+	}
+
+	/**
+	 * @return the split R-hat, 1 if nothing varies and infinite if the
+	 *         halves are each stuck on a different value
+	 */
+	double getRHat() {
+		if (withinVariance <= 0.0) {
+			return pooledVariance <= 0.0 ? 1.0 : Double.POSITIVE_INFINITY;
+		}
+		return Math.sqrt(pooledVariance / withinVariance);
+	}
+
+	/**
+	 * @return the effective number of independent draws over all the
+	 *         chains, the number of draws if nothing varies
+	 */
+	double getEffectiveSampleSize() {
+		double total = (double) numSequences * length;
+		if (pooledVariance <= 0.0) {
+			return total;
+		}
+		double tau = -1.0;
+		double lastPair = Double.POSITIVE_INFINITY;
+		for (int t = 0; t + 1 < length; t += 2) {
+			double pair = autocorrelation(t) + autocorrelation(t + 1);
+			if (pair <= 0.0) {
+				break;
+			}
+			// Keep the sequence monotone
+			pair = Math.min(pair, lastPair);
+			tau += 2.0 * pair;
+			lastPair = pair;
+		}
+		return total / Math.max(tau, 1.0 / Math.log10(total + 10.0));
+	}
+
+	private double autocorrelation(int lag) {
+		double acov = 0.0;
+		for (int i = 0; i < numSequences; i++) {
+			double[] x = sequences[i];
+			double mean = means[i];
+			double sum = 0.0;
+			for (int s = 0; s + lag < length; s++) {
+				sum += (x[s] - mean) * (x[s + lag] - mean);
+			}
+			acov += sum / length;
+		}
+		acov /= numSequences;
+		return 1.0 - (withinVariance * (length - 1.0) / length - acov)
+				/ pooledVariance;
+	}
+}
@@ -0,0 +1,236 @@
+package selrach.bnetbuilder.model.algorithms.inference;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import selrach.bnetbuilder.model.BayesNetSlice;
+import selrach.bnetbuilder.model.DynamicBayesNetModel;
+import selrach.bnetbuilder.model.algorithms.graph.MakeJunctionTreeTemplate;
+import selrach.bnetbuilder.model.distributions.interfaces.UnconditionalDistribution;
+import selrach.bnetbuilder.model.variable.Factor;
+import selrach.bnetbuilder.model.variable.JunctionTreeTemplate;
+import selrach.bnetbuilder.model.variable.TransientVariable;
+
+/**
+ * An online inference session over a stream of observations. Each call to push
+ * adds the evidence for the next time step and returns the filtered marginals
+ * for that time along with the marginals of the time L steps back, smoothed
+ * with everything seen since.
+ *
+ * The model is switched over to keeping only the L+2 slices the session needs
+ * in memory, the evidence of slices that fall out of the window is thrown
+ * away, and the forward interface beliefs of the last L+1 slices are the only
+ * other thing kept, so a session can run for as long as the feed does.
+ * Every push runs one forward step and L+1 backward steps of
+ * CalibrateJunctionTreeInterface over the slices in the window.
+ *
+ * The session takes over the model while it runs, it should not be used for
+ * anything else until the session is done.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public class FixedLagSmoother {
+
+	private final static Logger logger = Logger
+			.getLogger(FixedLagSmoother.class);
+
+	/**
+	 * The marginals that come out of a single push
+	 *
+	 * @author <a href="mailto:charleswrobertson@gmail.com">Charles
+	 *         Robertson</a>
+	 *
+	 */
+	public static class Step {
+		private final int time;
+		private final Map<String, UnconditionalDistribution> filtered;
+		private final int smoothedTime;
+		private final Map<String, UnconditionalDistribution> smoothed;
+
+		Step(int time, Map<String, UnconditionalDistribution> filtered,
+				int smoothedTime, Map<String, UnconditionalDistribution> smoothed) {
+			this.time = time;
+			this.filtered = filtered;
+			this.smoothedTime = smoothedTime;
+			this.smoothed = smoothed;
+		}
+
+		/**
+		 * @return the time of the observation that was pushed
+		 */
+		public int getTime() {
+			return time;
+		}
+
+		/**
+		 * @return the filtered marginals at getTime, by random variable id,
+		 *         evidence variables are left out
+		 */
+		public Map<String, UnconditionalDistribution> getFiltered() {
+			return filtered;
+		}
+
+		/**
+		 * @return the time the smoothed marginals are for, -1 until more than
+		 *         L observations have been pushed
+		 */
+		public int getSmoothedTime() {
+			return smoothedTime;
+		}
+
+		/**
+		 * @return the smoothed marginals at getSmoothedTime, by random
+		 *         variable id, null until more than L observations have been
+		 *         pushed
+		 */
+		public Map<String, UnconditionalDistribution> getSmoothed() {
+			return smoothed;
+		}
+	}
+
+	private final DynamicBayesNetModel model;
+	private final int lag;
+
+	/**
+	 * Forward beliefs of the last lag+1 slices, oldest first
+	 */
+	private final LinkedList<Factor> beliefs = new LinkedList<Factor>();
+
+	private int time = -1;
+
+	/**
+	 * Starts a session, any slices and evidence already in the model are
+	 * cleared out.
+	 *
+	 * @param model
+	 * @param lag
+	 *            how many steps back the smoothed marginals are
+	 * @throws Exception
+	 */
+	public FixedLagSmoother(DynamicBayesNetModel model, int lag)
+			throws Exception {
+		if (lag < 0) {
+			throw new Exception("The lag cannot be negative");
+		}
+		if (model.getNumberTemplateSlices() > 2) {
+			throw new Exception(
+					"Fixed lag smoothing only handles first order models");
+		}
+		this.model = model;
+		this.lag = lag;
+		model.clearTransientVariables();
+		model.setMaxNumberSlices(Integer.MAX_VALUE);
+		model.setMaxSlicesInMemory(Math.max(lag + 2, model
+				.getNumberTemplateSlices()));
+	}
+
+	/**
+	 * @return the lag
+	 */
+	public int getLag() {
+		return lag;
+	}
+
+	/**
+	 * @return the time of the last observation pushed, -1 if none have been
+	 */
+	public int getTime() {
+		return time;
+	}
+
+	/**
+	 * The variables of the next slice in the order push expects their
+	 * observations
+	 *
+	 * @return
+	 * @throws Exception
+	 */
+	public List<TransientVariable> getVariables() throws Exception {
+		return model.getSlice(time + 1).getVariables();
+	}
+
+	/**
+	 * Adds the observations for the next time step.
+	 *
+	 * @param observation
+	 *            a value for each variable of the slice in the order of
+	 *            getVariables, NaN if the variable was not observed
+	 * @return the filtered marginals for this time and the smoothed ones for
+	 *         the time lag steps back
+	 * @throws Exception
+	 */
+	public Step push(double[] observation) throws Exception {
+		BayesNetSlice slice = model.getSlice(time + 1);
+		List<TransientVariable> variables = slice.getVariables();
+		if (observation.length != variables.size()) {
+			throw new Exception("Expected " + variables.size()
+					+ " observations, got " + observation.length);
+		}
+		for (int i = 0; i < observation.length; i++) {
+			if (Double.isNaN(observation[i])) {
+				variables.get(i).setHidden(false);
+			} else {
+				variables.get(i).setEvidence(observation[i], false);
+			}
+		}
+		time++;
+
+		JunctionTreeTemplate jtt = model.getJunctionTreeTemplate();
+		if (jtt.isStale()) {
+			MakeJunctionTreeTemplate.execute(model);
+		}
+		CalibrateJunctionTreeInterface calibrate = CalibrateJunctionTreeInterface
+				.getInstance();
+
+		Factor previous = beliefs.isEmpty() ? null : beliefs.getLast();
+		beliefs.add(calibrate.copy(calibrate.getRoot(
+				calibrate.collect(model, jtt, time, previous)).getFactor()));
+
+		// Walk back over the window, the first step is the filtered slice
+		Map<String, UnconditionalDistribution> filtered = null;
+		Map<String, UnconditionalDistribution> smoothed = null;
+		Factor smoothedBelief = null;
+		final int last = Math.max(0, time - lag);
+		for (int i = time; i >= last; i--) {
+			int index = beliefs.size() - 1 - (time - i);
+			Factor belief = index > 0 ? beliefs.get(index - 1) : null;
+			smoothedBelief = calibrate.smooth(model, jtt, i, belief,
+					smoothedBelief, false);
+			if (i == time) {
+				filtered = getMarginals(i);
+			}
+		}
+		if (time - lag >= 0) {
+			smoothed = getMarginals(time - lag);
+			model.notifySliceInferred(time - lag);
+		}
+
+		while (beliefs.size() > lag + 1) {
+			beliefs.removeFirst();
+		}
+		// The window never reaches back past time - lag - 1 again
+		model.discardEvidenceBefore(time - lag - 1);
+		if (logger.isDebugEnabled()) {
+			logger.debug("Pushed observation for time " + time);
+		}
+		return new Step(time, filtered, smoothed == null ? -1 : time - lag,
+				smoothed);
+	}
+
+	private Map<String, UnconditionalDistribution> getMarginals(int slice)
+			throws Exception {
+		Map<String, UnconditionalDistribution> ret = new HashMap<String, UnconditionalDistribution>();
+		for (TransientVariable tv : model.getSlice(slice).getVariables()) {
+			if (tv.getMarginal() != null) {
+				ret.put(tv.getReference().getId(), tv.getMarginal());
+			}
+		}
+		return Collections.unmodifiableMap(ret);
+	}
+}
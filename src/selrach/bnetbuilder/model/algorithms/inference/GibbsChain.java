@@ -0,0 +1,217 @@
+package selrach.bnetbuilder.model.algorithms.inference;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+import selrach.bnetbuilder.model.distributions.RandomStream;
+import selrach.bnetbuilder.model.distributions.accumulators.JointStateCountAccumulator;
+import selrach.bnetbuilder.model.distributions.accumulators.SampleAccumulator;
+import cern.jet.random.Uniform;
+
+/**
+ * One chain of a Gibbs sampler over compiled Markov blankets. It has its own
+ * states and random stream, so any number of chains can run at once. A chain
+ * is run a number of steps at a time so the caller can check on convergence
+ * in between.
+ *
+ * Each step samples one unit of the blankets, a block or a single variable.
+ * Past the burn in time a chain adds the state of every variable it samples
+ * to its own accumulators (or the joint states of the query variables
+ * whenever one of them is sampled), to be merged with the other chains', and,
+ * once every sweep, the states of the monitored variables
+ * for the convergence diagnostics. A sweep is as many steps as there are
+ * units. Once a trace gets long every other entry is thrown out and it is
+ * kept from then on every other sweep as often, which bounds the cost of the
+ * diagnostics and only makes them more cautious.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+class GibbsChain extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The most entries kept in a trace
+	 */
+	static final int MAX_TRACE_LENGTH = 4096;
+
+	private final MarkovBlankets blankets;
+	private final Uniform random;
+	private final int numUnits;
+	private final int burnInTime;
+
+	/**
+	 * The sampled indices of the query variables, and whether each sampled
+	 * variable is one
+	 */
+	private final int[] queries;
+	private final boolean[] isQuery;
+
+	/**
+	 * The sampled indices of the variables whose traces are kept
+	 */
+	private final int[] monitored;
+
+	private final SampleAccumulator[] samples;
+	private final JointStateCountAccumulator querySamples;
+	private final int[] queryStates;
+	private int[][] traces;
+	private int traceLength = 0;
+	private int sweepsPerTrace = 1;
+
+	private int step = 0;
+	private int until = 0;
+
+	/**
+	 * @param blankets
+	 *            the states this chain samples, they are started off again
+	 *            from the priors
+	 * @param random
+	 *            this chain's own random stream
+	 * @param numSampled
+	 *            how many variables are sampled
+	 * @param burnInTime
+	 *            steps before anything is counted
+	 * @param samples
+	 *            an accumulator for every sampled variable, null to count the
+	 *            joint states of the queries instead
+	 * @param querySamples
+	 *            the accumulator for the joint states of the queries
+	 * @param queries
+	 *            the sampled indices of the query variables
+	 * @param monitored
+	 *            the sampled indices of the variables to keep traces of
+	 */
+	GibbsChain(MarkovBlankets blankets, RandomStream random, int numSampled,
+			int burnInTime, SampleAccumulator[] samples,
+			JointStateCountAccumulator querySamples, int[] queries,
+			int[] monitored) {
+		this.blankets = blankets;
+		this.random = random.getUniform();
+		this.numUnits = blankets.getNumberUnits();
+		this.burnInTime = burnInTime;
+		this.samples = samples;
+		this.querySamples = querySamples;
+		this.queryStates = new int[queries.length];
+		this.queries = queries;
+		this.isQuery = new boolean[numSampled];
+		for (int q : queries) {
+			isQuery[q] = true;
+		}
+		this.monitored = monitored;
+		this.traces = new int[monitored.length][16];
+		blankets.initialize(this.random);
+	}
+
+	/**
+	 * Sets how many more steps the next run takes
+	 *
+	 * @param steps
+	 */
+	void advance(int steps) {
+		reinitialize();
+		until = step + steps;
+	}
+
+	@Override
+	protected void compute() {
+		final int numUnits = this.numUnits;
+		for (; step < until; step++) {
+			int u = random.nextIntFromTo(0, numUnits - 1);
+			blankets.sampleUnit(u, random);
+			if (step > burnInTime) {
+				boolean query = false;
+				for (int j : blankets.getUnit(u)) {
+					if (samples != null) {
+						samples[j].add(blankets.getSampledState(j));
+					} else {
+						query |= isQuery[j];
+					}
+				}
+				if (query) {
+					recordQueries();
+				}
+			}
+			if (step >= burnInTime
+					&& (step - burnInTime) % (numUnits * sweepsPerTrace) == 0) {
+				recordTraces();
+			}
+		}
+	}
+
+	private void recordQueries() {
+		for (int q = 0; q < queries.length; q++) {
+			queryStates[q] = blankets.getSampledState(queries[q]);
+		}
+		querySamples.add(queryStates);
+	}
+
+	private void recordTraces() {
+		if (traceLength == MAX_TRACE_LENGTH) {
+			for (int m = 0; m < monitored.length; m++) {
+				for (int i = 0; i < traceLength / 2; i++) {
+					traces[m][i] = traces[m][2 * i];
+				}
+			}
+			traceLength /= 2;
+			sweepsPerTrace *= 2;
+		}
+		if (monitored.length > 0 && traceLength == traces[0].length) {
+			for (int m = 0; m < monitored.length; m++) {
+				traces[m] = Arrays.copyOf(traces[m], traceLength * 2);
+			}
+		}
+		for (int m = 0; m < monitored.length; m++) {
+			traces[m][traceLength] = blankets.getSampledState(monitored[m]);
+		}
+		traceLength++;
+	}
+
+	/**
+	 * @return the steps taken so far
+	 */
+	int getStep() {
+		return step;
+	}
+
+	/**
+	 * @return how many entries are in the traces
+	 */
+	int getTraceLength() {
+		return traceLength;
+	}
+
+	/**
+	 * @param m
+	 *            which monitored variable
+	 * @return its state at each traced sweep, only the first getTraceLength
+	 *         are filled in and they are getSweepsPerTrace sweeps apart
+	 */
+	int[] getTrace(int m) {
+		return traces[m];
+	}
+
+	/**
+	 * @return how many sweeps apart the trace entries are
+	 */
+	int getSweepsPerTrace() {
+		return sweepsPerTrace;
+	}
+
+	/**
+	 * @return the accumulator of each sampled variable, null unless all
+	 *         marginals are being counted
+	 */
+	SampleAccumulator[] getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return the accumulator of the joint query states, null if all
+	 *         marginals are being counted
+	 */
+	JointStateCountAccumulator getQuerySamples() {
+		return querySamples;
+	}
+}
@@ -4,6 +4,9 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.log4j.Logger;
 
@@ -12,7 +15,12 @@ import selrach.bnetbuilder.model.DynamicBayesNetModel;
 import selrach.bnetbuilder.model.algorithms.exceptions.QueryVariableNotSetException;
 import selrach.bnetbuilder.model.distributions.DistributionFactory;
 import selrach.bnetbuilder.model.distributions.Random;
+import selrach.bnetbuilder.model.distributions.RandomStream;
+import selrach.bnetbuilder.model.distributions.accumulators.JointStateCountAccumulator;
+import selrach.bnetbuilder.model.distributions.accumulators.SampleAccumulator;
+import selrach.bnetbuilder.model.variable.DiscreteVariable;
 import selrach.bnetbuilder.model.variable.Factor;
+import selrach.bnetbuilder.model.variable.RandomVariable;
 import selrach.bnetbuilder.model.variable.TransientVariable;
 import cern.colt.matrix.DoubleFactory1D;
 import cern.colt.matrix.DoubleMatrix1D;
@@ -40,20 +48,87 @@ public class GibbsSampler implements InferenceAlgorithm {
 
 	private static final Logger logger = Logger.getLogger(GibbsSampler.class);
 
-	private static final GibbsSampler instance = new GibbsSampler();
+	/**
+	 * Chains are stopped once the split R-hat of every monitored quantity is
+	 * at most this
+	 */
+	public static final double DEFAULT_R_HAT_THRESHOLD = 1.01;
+
+	/**
+	 * ...and the effective number of sweeps of every monitored quantity over
+	 * all chains is at least this
+	 */
+	public static final double DEFAULT_EFFECTIVE_SAMPLE_SIZE = 1000;
+
+	/**
+	 * Sweeps each chain takes between convergence checks, at least. Checks
+	 * run over the whole trace so they get further apart as the chains run,
+	 * each round is at least this fraction of the steps already taken.
+	 */
+	private static final int CHECK_SWEEPS = 100;
+
+	private static final double CHECK_GROWTH = 0.1;
+
+	/**
+	 * Traced sweeps needed before the diagnostics are trusted
+	 */
+	private static final int MIN_TRACE_LENGTH = 20;
+
+	/**
+	 * Run one chain per processor on the pool
+	 */
+	private final boolean parallel;
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * Sample chains of a variable through time as blocks
+	 */
+	private boolean blocked = true;
 
-	private GibbsSampler() {
+	private GibbsSampler(boolean parallel) {
+		this.parallel = parallel;
+		this.pool = parallel ? new ForkJoinPool(Runtime.getRuntime()
+				.availableProcessors()) : null;
 	}
 
+	private static final GibbsSampler instance = new GibbsSampler(false);
+
+	private static final GibbsSampler parallelInstance = new GibbsSampler(true);
+
 	public static GibbsSampler getInstance() {
 		return instance;
 	}
 
+	public static GibbsSampler getParallelInstance() {
+		return parallelInstance;
+	}
+
+	/**
+	 * @return whether the instances of a variable in consecutive slices are
+	 *         sampled together
+	 */
+	public boolean isBlocked() {
+		return blocked;
+	}
+
+	/**
+	 * @param blocked
+	 *            sample the instances of a variable in consecutive slices
+	 *            together by forward filtering backward sampling wherever
+	 *            nothing else ties them together, otherwise every variable is
+	 *            sampled on its own
+	 */
+	public void setBlocked(boolean blocked) {
+		this.blocked = blocked;
+	}
+
 	PrintStream out;
 	boolean doOut = false;
 
 	/**
-	 * Does the gibbs sampler
+	 * Does the gibbs sampler with the default number of chains and
+	 * convergence thresholds
 	 * 
 	 * @param slices
 	 *            - an instantiation of all slices of interest in temporal order
@@ -64,6 +139,48 @@ public class GibbsSampler implements InferenceAlgorithm {
 	public Factor execute(DynamicBayesNetModel model, boolean allMarginals,
 			int burnInTime, int maxSamples, PrintStream updateTracking)
 			throws Exception {
+		return execute(model, allMarginals, burnInTime, maxSamples,
+				getDefaultNumberChains(), DEFAULT_R_HAT_THRESHOLD,
+				DEFAULT_EFFECTIVE_SAMPLE_SIZE, updateTracking);
+	}
+
+	/**
+	 * @return one chain, or one per processor for the parallel instance
+	 */
+	public int getDefaultNumberChains() {
+		return parallel ? pool.getParallelism() : 1;
+	}
+
+	/**
+	 * Does the gibbs sampler. When every variable's Markov blanket is made of
+	 * discrete tables the sampling is split over independent chains that
+	 * each burn in on their own and share the rest of the samples. The chains
+	 * are stopped early once the query variables (all variables if there
+	 * are none) have converged by both split R-hat and effective sample size.
+	 * Each of their steps samples either a block (see setBlocked) or a single
+	 * variable. Otherwise a single chain runs for all the samples.
+	 * 
+	 * @param model
+	 * @param allMarginals
+	 * @param burnInTime
+	 *            - steps each chain takes before its samples are kept
+	 * @param maxSamples
+	 *            - maximum amount of times the sampler should sample each
+	 *            variable in the network, not counting the burn in of chains
+	 *            past the first.
+	 * @param numChains
+	 *            - how many chains to run
+	 * @param rHatThreshold
+	 *            - the largest split R-hat counted as converged
+	 * @param effectiveSampleSize
+	 *            - the smallest effective number of sweeps counted as
+	 *            converged
+	 * @param updateTracking
+	 */
+	public Factor execute(DynamicBayesNetModel model, boolean allMarginals,
+			int burnInTime, int maxSamples, int numChains,
+			double rHatThreshold, double effectiveSampleSize,
+			PrintStream updateTracking) throws Exception {
 		// all variables should be topologically sorted.
 		this.out = updateTracking;
 		this.doOut = this.out != null;
@@ -72,11 +189,13 @@ public class GibbsSampler implements InferenceAlgorithm {
 			throw new Exception(
 					"burn in time must be less than max sample size.");
 		}
+		if (numChains < 1) {
+			throw new Exception("There must be at least one chain.");
+		}
 
 		List<TransientVariable> nonevidenceVariables = new ArrayList<TransientVariable>();
 		List<TransientVariable> evidenceVariables = new ArrayList<TransientVariable>();
 		List<TransientVariable> queryVariables = new ArrayList<TransientVariable>();
-		List<List<Double>> querySamples = new ArrayList<List<Double>>();
 
 		for (int i = 0; i < model.getMaxNumberSlices(); i++) {
 			BayesNetSlice slice = model.getSlice(i);
@@ -151,9 +270,71 @@ public class GibbsSampler implements InferenceAlgorithm {
 			throw new QueryVariableNotSetException();
 		}
 
+		// The joint states of the queries are counted as we go, so memory
+		// does not grow with the number of samples
+		JointStateCountAccumulator querySamples = null;
+		if (!allMarginals) {
+			int[] stateLayout = new int[queryVariables.size()];
+			for (int q = 0; q < stateLayout.length; q++) {
+				RandomVariable rv = queryVariables.get(q).getReference();
+				if (!(rv instanceof DiscreteVariable)) {
+					cleanup(nonevidenceVariables, queryVariables, allMarginals);
+					throw new Exception(
+							"Cannot generate factor with continuous dependencies at this time");
+				}
+				stateLayout[q] = ((DiscreteVariable) rv).getStates().size();
+			}
+			querySamples = new JointStateCountAccumulator(stateLayout);
+		}
+
+		// Discrete tables get compiled into direct lookups, everything else
+		// goes through Factor. If everything compiled we can run as many
+		// chains as we like, each on its own copy of the compiled states.
+		List<TransientVariable> allVariables = new ArrayList<TransientVariable>(
+				evidenceVariables);
+		allVariables.addAll(nonevidenceVariables);
+		MarkovBlankets blankets = new MarkovBlankets(allVariables,
+				nonevidenceVariables);
+		if (blankets.isComplete()) {
+			sampleChains(blankets, nonevidenceVariables, queryVariables,
+					querySamples, allMarginals, burnInTime, maxSamples,
+					numChains, rHatThreshold, effectiveSampleSize);
+		} else {
+			sample(blankets, nonevidenceVariables, queryVariables,
+					querySamples, allMarginals, burnInTime, maxSamples);
+		}
+
+		// Okay we should have a nice set of samples to analyze
+		// and figure out what the answers we are looking for are.
+
+		cleanup(nonevidenceVariables, queryVariables, allMarginals);
+
+		Factor f = null;
+		if (allMarginals) {
+			for (TransientVariable tv : nonevidenceVariables) {
+				tv.generateMarginalFromSamples();
+			}
+		} else {
+			f = new Factor(queryVariables, querySamples);
+		}
+
+		return f;
+	}
+
+	/**
+	 * A single chain on the evidence of the transient variables themselves,
+	 * for networks where some Markov blanket could not be compiled
+	 */
+	private void sample(MarkovBlankets blankets,
+			List<TransientVariable> nonevidenceVariables,
+			List<TransientVariable> queryVariables,
+			JointStateCountAccumulator querySamples, boolean allMarginals,
+			int burnInTime, int maxSamples) {
 		int j = -1;
 		TransientVariable nonevidence;
 
+		final int numNonevidence = nonevidenceVariables.size() - 1;
+		final int[] queryStates = new int[queryVariables.size()];
 		Uniform random = Random.getUniform();
 
 		boolean hasNotConverged = true;
@@ -164,6 +345,18 @@ public class GibbsSampler implements InferenceAlgorithm {
 				out.println("Sample #" + i);
 			}
 			nonevidence = nonevidenceVariables.get(j);
+			if (blankets.isCompiled(j)) {
+				int state = blankets.sample(j, random);
+				nonevidence.setEvidence((double) state, false);
+				if (i > burnInTime) {
+					if (allMarginals) {
+						nonevidence.addSample((double) state);
+					} else if (queryVariables.contains(nonevidence)) {
+						recordQueries(queryVariables, queryStates, querySamples);
+					}
+				}
+				continue;
+			}
 			nonevidence.setEvidence(null, false);
 			nonevidence.setQuery();
 			if (logger.isDebugEnabled()) {
@@ -201,17 +394,15 @@ public class GibbsSampler implements InferenceAlgorithm {
 						.getDistribution())).sample().get(0);
 
 				nonevidence.setEvidence(sample, false);
+				blankets.setState(nonevidence, sample);
 
 				if (i > burnInTime) {
 					if (allMarginals) {
 						nonevidence.addSample(sample);
 					} else {
 						if (queryVariables.contains(nonevidence)) {
-							List<Double> sampleList = new ArrayList<Double>();
-							for (TransientVariable qv : queryVariables) {
-								sampleList.add(new Double(qv.getEvidence()));
-							}
-							querySamples.add(sampleList);
+							recordQueries(queryVariables, queryStates,
+									querySamples);
 						}
 					}
 				}
@@ -223,22 +414,156 @@ public class GibbsSampler implements InferenceAlgorithm {
 				}
 			}
 		}
+	}
 
-		// Okay we should have a nice set of samples to analyze
-		// and figure out what the answers we are looking for are.
+	private void recordQueries(List<TransientVariable> queryVariables,
+			int[] queryStates, JointStateCountAccumulator querySamples) {
+		for (int q = 0; q < queryStates.length; q++) {
+			queryStates[q] = queryVariables.get(q).getEvidence().intValue();
+		}
+		querySamples.add(queryStates);
+	}
 
-		cleanup(nonevidenceVariables, queryVariables, allMarginals);
+	/**
+	 * Runs the chains a few sweeps at a time until they have converged or
+	 * taken all their steps, then merges what they counted
+	 */
+	private void sampleChains(MarkovBlankets blankets,
+			List<TransientVariable> nonevidenceVariables,
+			List<TransientVariable> queryVariables,
+			JointStateCountAccumulator querySamples, boolean allMarginals,
+			int burnInTime, int maxSamples, int numChains,
+			double rHatThreshold, double effectiveSampleSize) throws Exception {
+		final int numSampled = nonevidenceVariables.size();
+		if (blocked) {
+			blankets.makeBlocks(nonevidenceVariables);
+		}
+		int[] queries = new int[queryVariables.size()];
+		for (int q = 0; q < queries.length; q++) {
+			queries[q] = nonevidenceVariables.indexOf(queryVariables.get(q));
+		}
+		int[] monitored = queries;
+		if (monitored.length == 0) {
+			monitored = new int[numSampled];
+			for (int j = 0; j < numSampled; j++) {
+				monitored[j] = j;
+			}
+		}
 
-		Factor f = null;
-		if (allMarginals) {
-			for (TransientVariable tv : nonevidenceVariables) {
-				tv.generateMarginalFromSamples();
+		// Chains are given streams split from the caller's, so a seeded run
+		// comes out the same whichever threads the chains land on
+		RandomStream streams = Random.getStream();
+		GibbsChain[] chains = new GibbsChain[numChains];
+		for (int c = 0; c < numChains; c++) {
+			RandomStream random = streams.split();
+			SampleAccumulator[] samples = null;
+			if (allMarginals) {
+				samples = new SampleAccumulator[numSampled];
+				for (int j = 0; j < numSampled; j++) {
+					samples[j] = nonevidenceVariables.get(j)
+							.getSampleAccumulator().emptyCopy();
+				}
 			}
-		} else {
-			f = new Factor(queryVariables, querySamples);
+			chains[c] = new GibbsChain(c == 0 ? blankets : new MarkovBlankets(
+					blankets), random, numSampled, burnInTime, samples,
+					allMarginals ? null : querySamples.emptyCopy(), queries,
+					monitored);
 		}
 
-		return f;
+		final int stepsPerChain = burnInTime
+				+ (maxSamples - burnInTime + numChains - 1) / numChains;
+		final int stepsPerCheck = CHECK_SWEEPS * blankets.getNumberUnits();
+		int steps = 0;
+		boolean hasNotConverged = true;
+		while (steps < stepsPerChain && hasNotConverged) {
+			int next = Math.min(Math.max(stepsPerCheck,
+					(int) (steps * CHECK_GROWTH)), stepsPerChain - steps);
+			for (GibbsChain chain : chains) {
+				chain.advance(next);
+			}
+			if (pool != null && numChains > 1) {
+				pool.invoke(new RunChainsTask(chains));
+			} else {
+				for (GibbsChain chain : chains) {
+					chain.invoke();
+				}
+			}
+			steps += next;
+			if (doOut) {
+				out.println("Sample #" + steps * numChains);
+			}
+			hasNotConverged = !hasConverged(chains, blankets, monitored,
+					rHatThreshold, effectiveSampleSize);
+		}
+		if (logger.isInfoEnabled()) {
+			logger.info(numChains + " Gibbs chains "
+					+ (hasNotConverged ? "did not converge" : "converged")
+					+ " after " + steps + " steps each");
+		}
+
+		for (GibbsChain chain : chains) {
+			if (allMarginals) {
+				for (int j = 0; j < numSampled; j++) {
+					nonevidenceVariables.get(j).getSampleAccumulator().merge(
+							chain.getSamples()[j]);
+				}
+			} else {
+				querySamples.merge(chain.getQuerySamples());
+			}
+		}
+	}
+
+	/**
+	 * Checks the split R-hat and effective sample size of the indicator of
+	 * every state of every monitored variable over all of the chains
+	 */
+	private boolean hasConverged(GibbsChain[] chains, MarkovBlankets blankets,
+			int[] monitored, double rHatThreshold, double effectiveSampleSize) {
+		int n = chains[0].getTraceLength();
+		if (n < MIN_TRACE_LENGTH) {
+			return false;
+		}
+		double worstRHat = 1.0;
+		double worstEffectiveSampleSize = Double.POSITIVE_INFINITY;
+		double[][] indicators = new double[chains.length][n];
+		for (int m = 0; m < monitored.length; m++) {
+			int numStates = blankets.getNumberStates(monitored[m]);
+			// The last state's indicator is implied by the others
+			for (int s = 0; s < numStates - 1; s++) {
+				for (int c = 0; c < chains.length; c++) {
+					int[] trace = chains[c].getTrace(m);
+					for (int i = 0; i < n; i++) {
+						indicators[c][i] = trace[i] == s ? 1.0 : 0.0;
+					}
+				}
+				ChainDiagnostics diagnostics = new ChainDiagnostics(
+						indicators, n);
+				worstRHat = Math.max(worstRHat, diagnostics.getRHat());
+				worstEffectiveSampleSize = Math.min(worstEffectiveSampleSize,
+						diagnostics.getEffectiveSampleSize());
+			}
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("After " + n * chains[0].getSweepsPerTrace()
+					+ " sweeps R-hat is " + worstRHat
+					+ ", effective sample size " + worstEffectiveSampleSize);
+		}
+		return worstRHat <= rHatThreshold
+				&& worstEffectiveSampleSize >= effectiveSampleSize;
+	}
+
+	private static class RunChainsTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final GibbsChain[] chains;
+
+		RunChainsTask(GibbsChain[] chains) {
+			this.chains = chains;
+		}
+
+		@Override
+		protected void compute() {
+			ForkJoinTask.invokeAll(chains);
+		}
 	}
 
 	// Let's put the network back to how we found it except for leaving the
@@ -259,12 +584,19 @@ public class GibbsSampler implements InferenceAlgorithm {
 	 * Execute for Gibbs Sampler requires additional properties of:
 	 * RandomizedAlgorithmConstants.BURN_IN_TIME
 	 * RandomizedAlgorithmConstants.MAX_SAMPLES
+	 * and optionally
+	 * RandomizedAlgorithmConstants.NUM_CHAINS
+	 * RandomizedAlgorithmConstants.R_HAT_THRESHOLD
+	 * RandomizedAlgorithmConstants.EFFECTIVE_SAMPLE_SIZE
 	 */
 	public Factor execute(DynamicBayesNetModel model, boolean allMarginals,
 			Map<String, Object> additionalProperties, PrintStream updateTracking)
 			throws Exception {
 		int burnInTime = 10000;
 		int maxSamples = 100000;
+		int numChains = getDefaultNumberChains();
+		double rHatThreshold = DEFAULT_R_HAT_THRESHOLD;
+		double effectiveSampleSize = DEFAULT_EFFECTIVE_SAMPLE_SIZE;
 		if (additionalProperties
 				.containsKey(RandomizedAlgorithmConstants.BURN_IN_TIME
 						.toString())) {
@@ -277,12 +609,31 @@ public class GibbsSampler implements InferenceAlgorithm {
 			maxSamples = (Integer) additionalProperties
 					.get(RandomizedAlgorithmConstants.MAX_SAMPLES.toString());
 		}
+		if (additionalProperties
+				.containsKey(RandomizedAlgorithmConstants.NUM_CHAINS.toString())) {
+			numChains = (Integer) additionalProperties
+					.get(RandomizedAlgorithmConstants.NUM_CHAINS.toString());
+		}
+		if (additionalProperties
+				.containsKey(RandomizedAlgorithmConstants.R_HAT_THRESHOLD
+						.toString())) {
+			rHatThreshold = ((Number) additionalProperties
+					.get(RandomizedAlgorithmConstants.R_HAT_THRESHOLD
+							.toString())).doubleValue();
+		}
+		if (additionalProperties
+				.containsKey(RandomizedAlgorithmConstants.EFFECTIVE_SAMPLE_SIZE
+						.toString())) {
+			effectiveSampleSize = ((Number) additionalProperties
+					.get(RandomizedAlgorithmConstants.EFFECTIVE_SAMPLE_SIZE
+							.toString())).doubleValue();
+		}
 		return execute(model, allMarginals, burnInTime, maxSamples,
-				updateTracking);
+				numChains, rHatThreshold, effectiveSampleSize, updateTracking);
 	}
 
 	public String getName() {
-		return "Gibbs Sampler";
+		return parallel ? "Gibbs Sampler (Parallel)" : "Gibbs Sampler";
 	}
 
 	public boolean isRandom() {
@@ -24,10 +24,26 @@ public class InferenceAlgorithmFactory {
 	static {
 		algorithms.put(QueryJunctionTree.getInstance().getName(),
 				QueryJunctionTree.getInstance());
+		algorithms.put(QueryJunctionTree.getParallelInstance().getName(),
+				QueryJunctionTree.getParallelInstance());
 		algorithms.put(VariableElimination.getInstance().getName(),
 				VariableElimination.getInstance());
+		algorithms.put(VariableElimination.getParallelInstance().getName(),
+				VariableElimination.getParallelInstance());
+		algorithms.put(QueryMostProbableExplanation.getInstance().getName(),
+				QueryMostProbableExplanation.getInstance());
 		algorithms.put(GibbsSampler.getInstance().getName(), GibbsSampler
 				.getInstance());
+		algorithms.put(GibbsSampler.getParallelInstance().getName(),
+				GibbsSampler.getParallelInstance());
+		algorithms.put(LikelihoodWeighting.getInstance().getName(),
+				LikelihoodWeighting.getInstance());
+		algorithms.put(LikelihoodWeighting.getParallelInstance().getName(),
+				LikelihoodWeighting.getParallelInstance());
+		algorithms.put(LoopyBeliefPropagation.getInstance().getName(),
+				LoopyBeliefPropagation.getInstance());
+		algorithms.put(LoopyBeliefPropagation.getParallelInstance().getName(),
+				LoopyBeliefPropagation.getParallelInstance());
 	}
 
 	public static List<String> getAlgorithmNameList() {
@@ -0,0 +1,14 @@
+package selrach.bnetbuilder.model.algorithms.inference;
+
+/**
+ * Constants that correspond to useful properties for the junction tree when
+ * the model does not keep every slice in memory
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public enum JunctionTreeConstants {
+	SMOOTHING, // Should the backward pass be run after filtering
+	CHECKPOINTING, // Should only every sqrt(T)-th forward belief be kept
+					// while smoothing
+}
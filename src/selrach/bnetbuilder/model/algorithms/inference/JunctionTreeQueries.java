@@ -0,0 +1,312 @@
+package selrach.bnetbuilder.model.algorithms.inference;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import selrach.bnetbuilder.model.DynamicBayesNetModel;
+import selrach.bnetbuilder.model.variable.ContinuousVariable;
+import selrach.bnetbuilder.model.variable.Factor;
+import selrach.bnetbuilder.model.variable.JunctionTree;
+import selrach.bnetbuilder.model.variable.TransientClique;
+import selrach.bnetbuilder.model.variable.TransientCliqueSeparator;
+import selrach.bnetbuilder.model.variable.TransientVariable;
+
+/**
+ * Answers joint queries off of a calibrated junction tree without changing
+ * it, so any number of them can be asked between calibrations.
+ *
+ * The interface cliques that are copied between slices during calibration
+ * are treated as one clique, which makes the slices one big tree. A query
+ * inside a single clique is the marginal of that clique summed down. A query
+ * spread over several cliques uses the smallest subtree that connects them:
+ * the joint over the subtree is the marginal of its top clique times the
+ * conditional of every other clique given the separator to its parent, which
+ * we sum down onto the query a clique at a time from the leaves up.
+ *
+ * Everything worked out along the way (the tree layout, clique marginals and
+ * conditionals, and the answers themselves) is kept, so queries that land in
+ * the same cliques share the work.
+ *
+ * Summing discrete variables out from under continuous ones is not exact, so
+ * multi-clique queries on hybrid trees are left to the caller.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+class JunctionTreeQueries {
+
+	/**
+	 * One clique, or a set of interface cliques that are copies of each other
+	 */
+	private final List<TransientClique> nodes = new ArrayList<TransientClique>();
+	private final Map<TransientClique, Integer> nodeIndices = new HashMap<TransientClique, Integer>();
+	private final Map<TransientVariable, List<Integer>> containing = new HashMap<TransientVariable, List<Integer>>();
+	private final List<List<Integer>> neighbors = new ArrayList<List<Integer>>();
+	private final List<List<Set<TransientVariable>>> neighborSeparators = new ArrayList<List<Set<TransientVariable>>>();
+
+	/**
+	 * Each node hangs off of the first node of its part of the tree
+	 */
+	private int[] parents;
+	private int[] roots;
+	private List<Set<TransientVariable>> parentSeparators;
+
+	private final Factor[] marginals;
+	private final Factor[] conditionals;
+	private final Map<Set<TransientVariable>, Factor> answers = new HashMap<Set<TransientVariable>, Factor>();
+
+	private boolean hybrid = false;
+
+	JunctionTreeQueries(DynamicBayesNetModel model) throws Exception {
+		List<JunctionTree> slices = model.getJunctionTreeTemplate()
+				.getJunctionTreeSlices();
+		final int numTemplateSlices = model.getNumberTemplateSlices() - 1;
+
+		for (int i = 0; i < slices.size(); i++) {
+			JunctionTree jt = slices.get(i);
+			for (TransientClique tc : jt.getCliques()) {
+				nodeIndices.put(tc, nodes.size());
+				nodes.add(tc);
+			}
+			// The past interfaces are copies of the forward interface of the
+			// slice they overlap with
+			for (int j = 0; j < Math.min(i, numTemplateSlices); j++) {
+				TransientClique past = jt.getForwardInterface(j + 1);
+				int node = nodeIndices.get(slices.get(i - j - 1)
+						.getForwardInterface(0));
+				nodes.set(nodeIndices.get(past), null);
+				nodeIndices.put(past, node);
+			}
+		}
+		for (int i = 0; i < nodes.size(); i++) {
+			neighbors.add(new ArrayList<Integer>());
+			neighborSeparators.add(new ArrayList<Set<TransientVariable>>());
+			TransientClique tc = nodes.get(i);
+			if (tc == null) {
+				continue;
+			}
+			for (TransientVariable tv : tc.getMembers().values()) {
+				if (tv.getReference() instanceof ContinuousVariable) {
+					hybrid = true;
+				}
+				List<Integer> list = containing.get(tv);
+				if (list == null) {
+					list = new ArrayList<Integer>();
+					containing.put(tv, list);
+				}
+				list.add(i);
+			}
+		}
+		for (JunctionTree jt : slices) {
+			for (TransientCliqueSeparator tcs : jt.getCliqueSeparators()) {
+				int a = nodeIndices.get(tcs.getCliqueA());
+				int b = nodeIndices.get(tcs.getCliqueB());
+				Set<TransientVariable> separator = new HashSet<TransientVariable>(
+						tcs.getMembers());
+				neighbors.get(a).add(b);
+				neighborSeparators.get(a).add(separator);
+				neighbors.get(b).add(a);
+				neighborSeparators.get(b).add(separator);
+			}
+		}
+		marginals = new Factor[nodes.size()];
+		conditionals = new Factor[nodes.size()];
+		layoutTree();
+	}
+
+	/**
+	 * Hangs every node off of a root for its part of the tree, parts that do
+	 * not connect to each other are independent
+	 */
+	private void layoutTree() {
+		final int n = nodes.size();
+		parents = new int[n];
+		roots = new int[n];
+		parentSeparators = new ArrayList<Set<TransientVariable>>(n);
+		for (int i = 0; i < n; i++) {
+			parents[i] = -1;
+			roots[i] = -1;
+			parentSeparators.add(null);
+		}
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		for (int i = 0; i < n; i++) {
+			if (nodes.get(i) == null || roots[i] != -1) {
+				continue;
+			}
+			roots[i] = i;
+			queue.add(i);
+			while (!queue.isEmpty()) {
+				int u = queue.removeFirst();
+				List<Integer> adjacent = neighbors.get(u);
+				for (int k = 0; k < adjacent.size(); k++) {
+					int v = adjacent.get(k);
+					if (roots[v] == -1) {
+						roots[v] = i;
+						parents[v] = u;
+						parentSeparators.set(v, neighborSeparators.get(u).get(k));
+						queue.add(v);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The normalized joint distribution of the query variables
+	 *
+	 * @param query
+	 * @return the joint, or null if the query is spread over cliques of a
+	 *         hybrid tree
+	 * @throws Exception
+	 */
+	Factor answer(Collection<TransientVariable> query) throws Exception {
+		Set<TransientVariable> key = new HashSet<TransientVariable>(query);
+		Factor ret = answers.get(key);
+		if (ret != null) {
+			return new Factor(ret);
+		}
+		if (key.isEmpty()) {
+			throw new Exception("A query needs at least one variable");
+		}
+
+		// The smallest clique holding each variable, and the smallest one
+		// holding all of them if there is one
+		int best = -1;
+		Set<Integer> chosen = new HashSet<Integer>();
+		for (TransientVariable tv : key) {
+			List<Integer> list = containing.get(tv);
+			if (list == null) {
+				throw new Exception(tv + " is not in the junction tree");
+			}
+			int smallest = -1;
+			for (int node : list) {
+				if (smallest == -1 || size(node) < size(smallest)) {
+					smallest = node;
+				}
+				if ((best == -1 || size(node) < size(best))
+						&& nodes.get(node).getMembers().values().containsAll(
+								key)) {
+					best = node;
+				}
+			}
+			chosen.add(smallest);
+		}
+
+		if (best != -1) {
+			ret = marginal(best).marginalize(key);
+		} else if (hybrid) {
+			return null;
+		} else {
+			ret = null;
+			Map<Integer, Set<Integer>> byRoot = new HashMap<Integer, Set<Integer>>();
+			for (int node : chosen) {
+				Set<Integer> set = byRoot.get(roots[node]);
+				if (set == null) {
+					set = new HashSet<Integer>();
+					byRoot.put(roots[node], set);
+				}
+				set.add(node);
+			}
+			for (Map.Entry<Integer, Set<Integer>> entry : byRoot.entrySet()) {
+				Factor part = subtree(entry.getKey(), entry.getValue(), key);
+				ret = ret == null ? part : ret.combine(part);
+			}
+			ret = ret.marginalize(key);
+		}
+		ret.normalize();
+		answers.put(key, ret);
+		return new Factor(ret);
+	}
+
+	/**
+	 * Works out the smallest subtree below root that holds all of the chosen
+	 * nodes and sums it down onto the query
+	 */
+	private Factor subtree(int root, Set<Integer> chosen,
+			Set<TransientVariable> query) throws Exception {
+		Map<Integer, List<Integer>> children = new HashMap<Integer, List<Integer>>();
+		for (int node : chosen) {
+			if (children.containsKey(node)) {
+				continue;
+			}
+			children.put(node, new ArrayList<Integer>());
+			// Climb until we run into a path we already have
+			int u = node;
+			while (parents[u] != -1) {
+				List<Integer> siblings = children.get(parents[u]);
+				boolean seen = siblings != null;
+				if (!seen) {
+					siblings = new ArrayList<Integer>();
+					children.put(parents[u], siblings);
+				}
+				siblings.add(u);
+				if (seen) {
+					break;
+				}
+				u = parents[u];
+			}
+		}
+		int top = root;
+		while (!chosen.contains(top) && children.get(top).size() == 1) {
+			top = children.get(top).get(0);
+		}
+		return sumDown(top, true, children, query);
+	}
+
+	private Factor sumDown(int node, boolean top,
+			Map<Integer, List<Integer>> children, Set<TransientVariable> query)
+			throws Exception {
+		Factor ret = top ? marginal(node) : conditional(node);
+		for (int child : children.get(node)) {
+			ret = ret.combine(sumDown(child, false, children, query));
+		}
+		Set<TransientVariable> keep = new HashSet<TransientVariable>(query);
+		if (!top) {
+			keep.addAll(parentSeparators.get(node));
+		}
+		return ret.marginalize(keep);
+	}
+
+	private int size(int node) {
+		return nodes.get(node).getMembers().size();
+	}
+
+	/**
+	 * The normalized marginal of a clique
+	 */
+	private Factor marginal(int node) throws Exception {
+		if (marginals[node] == null) {
+			TransientClique tc = nodes.get(node);
+			Factor marginal;
+			if (tc.getParentSeparator() != null) {
+				marginal = tc.getParentSeparator().getFactor().combine(
+						tc.getFactor());
+			} else {
+				marginal = new Factor(tc.getFactor());
+			}
+			marginal.normalize();
+			marginals[node] = marginal;
+		}
+		return marginals[node];
+	}
+
+	/**
+	 * The distribution of a clique given the separator to its parent in our
+	 * layout of the tree
+	 */
+	private Factor conditional(int node) throws Exception {
+		if (conditionals[node] == null) {
+			Factor marginal = marginal(node);
+			Set<TransientVariable> separator = parentSeparators.get(node);
+			conditionals[node] = marginal.complement(marginal
+					.marginalize(separator), separator);
+		}
+		return conditionals[node];
+	}
+}
@@ -0,0 +1,477 @@
+package selrach.bnetbuilder.model.algorithms.inference;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.log4j.Logger;
+
+import selrach.bnetbuilder.model.BayesNetSlice;
+import selrach.bnetbuilder.model.DynamicBayesNetModel;
+import selrach.bnetbuilder.model.algorithms.exceptions.QueryVariableNotSetException;
+import selrach.bnetbuilder.model.distributions.Random;
+import selrach.bnetbuilder.model.distributions.RandomStream;
+import selrach.bnetbuilder.model.distributions.accumulators.JointStateCountAccumulator;
+import selrach.bnetbuilder.model.distributions.accumulators.SampleAccumulator;
+import selrach.bnetbuilder.model.distributions.interfaces.ConditionalDistribution;
+import selrach.bnetbuilder.model.variable.DiscreteVariable;
+import selrach.bnetbuilder.model.variable.Factor;
+import selrach.bnetbuilder.model.variable.RandomVariable;
+import selrach.bnetbuilder.model.variable.TransientVariable;
+import cern.colt.matrix.DoubleFactory1D;
+import cern.colt.matrix.DoubleMatrix1D;
+
+/**
+ * Implements likelihood weighting on our DBN. Every sample walks the
+ * variables of the slices in topological order, drawing each hidden variable
+ * from its distribution given the sampled values of its parents and weighting
+ * the sample by the probability of the evidence given its parents. Unlike
+ * the Gibbs sampler nothing is set on the transient variables while sampling,
+ * so the samples are independent of one another and are drawn in fixed size
+ * chunks, in parallel on the pool for the parallel instance.
+ *
+ * The samples are drawn twice. The first pass works out the log weight of
+ * every sample, the second draws the same samples again from the same
+ * streams and adds them to each chunk's accumulators weighted relative to the
+ * largest weight, so weights that would underflow on their own still count.
+ * The chunks' accumulators are then merged in order, and every chunk's stream
+ * is seeded from the caller's, so a seeded run gives the same answer however
+ * many threads there are.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public class LikelihoodWeighting implements InferenceAlgorithm {
+
+	private static final Logger logger = Logger
+			.getLogger(LikelihoodWeighting.class);
+
+	/**
+	 * Samples drawn by each task
+	 */
+	static final int CHUNK_SIZE = 1024;
+
+	private final ForkJoinPool pool;
+
+	private LikelihoodWeighting(boolean parallel) {
+		this.pool = parallel ? new ForkJoinPool(Runtime.getRuntime()
+				.availableProcessors()) : null;
+	}
+
+	private static final LikelihoodWeighting instance = new LikelihoodWeighting(
+			false);
+
+	private static final LikelihoodWeighting parallelInstance = new LikelihoodWeighting(
+			true);
+
+	public static LikelihoodWeighting getInstance() {
+		return instance;
+	}
+
+	public static LikelihoodWeighting getParallelInstance() {
+		return parallelInstance;
+	}
+
+	private double logLikelihood = 0.0;
+
+	private double effectiveSampleSize = 0.0;
+
+	/**
+	 * @return the estimate of the log probability of the evidence from the
+	 *         last run
+	 */
+	public double getLogLikelihood() {
+		return logLikelihood;
+	}
+
+	/**
+	 * @return the effective sample size of the weights of the last run
+	 */
+	public double getEffectiveSampleSize() {
+		return effectiveSampleSize;
+	}
+
+	/**
+	 * Does likelihood weighting
+	 *
+	 * @param model
+	 * @param allMarginals
+	 *            set the marginal of every hidden variable, otherwise return
+	 *            the joint of the query variables
+	 * @param maxSamples
+	 *            how many weighted samples to draw
+	 * @param updateTracking
+	 * @return Factor of the query variables or null if we are calculating all
+	 *         marginals
+	 * @throws Exception
+	 */
+	public synchronized Factor execute(DynamicBayesNetModel model,
+			boolean allMarginals, int maxSamples, PrintStream updateTracking)
+			throws Exception {
+		if (maxSamples < 1) {
+			throw new Exception("There must be at least one sample.");
+		}
+
+		// The slices are topologically sorted and come in order, so this is
+		// an order every parent comes before its children in
+		List<TransientVariable> variables = new ArrayList<TransientVariable>();
+		List<TransientVariable> nonevidenceVariables = new ArrayList<TransientVariable>();
+		List<TransientVariable> queryVariables = new ArrayList<TransientVariable>();
+		for (int i = 0; i < model.getMaxNumberSlices(); i++) {
+			BayesNetSlice slice = model.getSlice(i);
+			for (TransientVariable tv : slice.getVariables()) {
+				if (tv.getTime() != i) {
+					continue;
+				}
+				variables.add(tv);
+				if (!tv.isEvidence()) {
+					tv.clearSamples();
+					nonevidenceVariables.add(tv);
+					if (tv.isQuery()) {
+						queryVariables.add(tv);
+					}
+				}
+			}
+		}
+
+		if (nonevidenceVariables.isEmpty()) {
+			return null;
+		}
+		if (queryVariables.size() == 0 && !allMarginals) {
+			throw new QueryVariableNotSetException();
+		}
+
+		final int numVariables = variables.size();
+		Map<TransientVariable, Integer> indices = new HashMap<TransientVariable, Integer>();
+		for (int v = 0; v < numVariables; v++) {
+			indices.put(variables.get(v), v);
+		}
+		int[][] parentIndices = new int[numVariables][];
+		for (int v = 0; v < numVariables; v++) {
+			List<TransientVariable> parents = variables.get(v).getParents();
+			parentIndices[v] = new int[parents.size()];
+			for (int k = 0; k < parents.size(); k++) {
+				Integer index = indices.get(parents.get(k));
+				if (index == null || index >= v) {
+					throw new Exception("The parent " + parents.get(k) + " of "
+							+ variables.get(v)
+							+ " does not come before it in the slices");
+				}
+				parentIndices[v][k] = index;
+			}
+		}
+
+		// What each chunk counts, the samples of every hidden variable or the
+		// joint states of the queries
+		int[] counted;
+		JointStateCountAccumulator querySamples = null;
+		if (allMarginals) {
+			counted = new int[nonevidenceVariables.size()];
+			for (int h = 0; h < counted.length; h++) {
+				counted[h] = indices.get(nonevidenceVariables.get(h));
+			}
+		} else {
+			counted = new int[queryVariables.size()];
+			int[] stateLayout = new int[counted.length];
+			for (int q = 0; q < counted.length; q++) {
+				RandomVariable rv = queryVariables.get(q).getReference();
+				if (!(rv instanceof DiscreteVariable)) {
+					throw new Exception(
+							"Cannot generate factor with continuous dependencies at this time");
+				}
+				stateLayout[q] = ((DiscreteVariable) rv).getStates().size();
+				counted[q] = indices.get(queryVariables.get(q));
+			}
+			querySamples = new JointStateCountAccumulator(stateLayout);
+		}
+
+		TransientVariable[] sampledVariables = variables
+				.toArray(new TransientVariable[numVariables]);
+		double[] logWeights = new double[maxSamples];
+		int numChunks = (maxSamples + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		RandomStream random = Random.getStream();
+		SampleTask[] tasks = new SampleTask[numChunks];
+		for (int c = 0; c < numChunks; c++) {
+			tasks[c] = new SampleTask(c, maxSamples, random.getGenerator(),
+					random.nextLong(), sampledVariables, parentIndices,
+					logWeights);
+		}
+
+		// First pass, weigh every sample
+		run(tasks);
+		double max = Double.NEGATIVE_INFINITY;
+		for (double lw : logWeights) {
+			if (lw > max) {
+				max = lw;
+			}
+		}
+		if (max == Double.NEGATIVE_INFINITY || Double.isNaN(max)) {
+			throw new Exception("None of the samples can explain the evidence");
+		}
+		double sum = 0.0;
+		double sumSquares = 0.0;
+		for (double lw : logWeights) {
+			double w = Math.exp(lw - max);
+			sum += w;
+			sumSquares += w * w;
+		}
+		logLikelihood = max + Math.log(sum / maxSamples);
+		effectiveSampleSize = sum * sum / sumSquares;
+		if (logger.isInfoEnabled()) {
+			logger.info("Likelihood weighting drew " + maxSamples
+					+ " samples, effective sample size "
+					+ effectiveSampleSize + ", log likelihood "
+					+ logLikelihood);
+		}
+
+		// Second pass, count the same samples with the weights scaled to add
+		// up to the number of samples, as if they were counts
+		double logScale = max + Math.log(sum / maxSamples);
+		for (SampleTask task : tasks) {
+			SampleAccumulator[] samples = null;
+			JointStateCountAccumulator chunkQuerySamples = null;
+			if (allMarginals) {
+				samples = new SampleAccumulator[counted.length];
+				for (int h = 0; h < counted.length; h++) {
+					samples[h] = sampledVariables[counted[h]]
+							.getSampleAccumulator().emptyCopy();
+				}
+			} else {
+				chunkQuerySamples = querySamples.emptyCopy();
+			}
+			task.count(logScale, counted, samples, chunkQuerySamples);
+		}
+		run(tasks);
+
+		for (SampleTask task : tasks) {
+			if (allMarginals) {
+				for (int h = 0; h < counted.length; h++) {
+					sampledVariables[counted[h]].getSampleAccumulator().merge(
+							task.samples[h]);
+				}
+			} else {
+				querySamples.merge(task.querySamples);
+			}
+			if (updateTracking != null) {
+				updateTracking.println("Sample #" + task.to);
+			}
+		}
+
+		Factor f = null;
+		if (allMarginals) {
+			for (TransientVariable tv : nonevidenceVariables) {
+				tv.generateMarginalFromSamples();
+			}
+		} else {
+			f = new Factor(queryVariables, querySamples);
+		}
+		return f;
+	}
+
+	/**
+	 * Runs the tasks on the pool, or in order in this thread, and throws the
+	 * first problem any of them had
+	 *
+	 * @param tasks
+	 * @throws Exception
+	 */
+	private void run(SampleTask[] tasks) throws Exception {
+		for (SampleTask task : tasks) {
+			task.reinitialize();
+		}
+		if (pool != null && tasks.length > 1) {
+			pool.invoke(new RunAllTask(tasks));
+		} else {
+			for (SampleTask task : tasks) {
+				task.invoke();
+			}
+		}
+		for (SampleTask task : tasks) {
+			if (task.error != null) {
+				throw task.error;
+			}
+		}
+	}
+
+	private static class RunAllTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final SampleTask[] tasks;
+
+		RunAllTask(SampleTask[] tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			ForkJoinTask.invokeAll(tasks);
+		}
+	}
+
+	/**
+	 * Draws one chunk of the samples, from up to but not including to. Each
+	 * pass starts a new stream from the chunk's seed so both draw the same
+	 * samples. Distributions cache their densities so each pass works on its
+	 * own copies.
+	 */
+	private static class SampleTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from;
+		private final int to;
+		private final RandomStream.Generator generator;
+		private final long seed;
+		private final TransientVariable[] variables;
+		private final int[][] parentIndices;
+		private final double[] logWeights;
+
+		private double logScale;
+		private int[] counted = null;
+		private SampleAccumulator[] samples = null;
+		private JointStateCountAccumulator querySamples = null;
+
+		private Exception error = null;
+
+		SampleTask(int chunk, int maxSamples,
+				RandomStream.Generator generator, long seed,
+				TransientVariable[] variables, int[][] parentIndices,
+				double[] logWeights) {
+			this.from = chunk * CHUNK_SIZE;
+			this.to = Math.min(maxSamples, from + CHUNK_SIZE);
+			this.generator = generator;
+			this.seed = seed;
+			this.variables = variables;
+			this.parentIndices = parentIndices;
+			this.logWeights = logWeights;
+		}
+
+		/**
+		 * Makes the next run count the samples instead of weighing them
+		 *
+		 * @param logScale
+		 *            subtracted from every log weight
+		 * @param counted
+		 *            the variables counted
+		 * @param samples
+		 *            an accumulator for each of them, or null to count their
+		 *            joint states
+		 * @param querySamples
+		 */
+		void count(double logScale, int[] counted, SampleAccumulator[] samples,
+				JointStateCountAccumulator querySamples) {
+			this.logScale = logScale;
+			this.counted = counted;
+			this.samples = samples;
+			this.querySamples = querySamples;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				work();
+			} catch (Exception ex) {
+				error = ex;
+			}
+		}
+
+		private void work() throws Exception {
+			RandomStream random = new RandomStream(generator, seed);
+			final int numVariables = variables.length;
+			final boolean weigh = counted == null;
+			ConditionalDistribution[] cpds = new ConditionalDistribution[numVariables];
+			DoubleMatrix1D[] parentValues = new DoubleMatrix1D[numVariables];
+			DoubleMatrix1D[] evidence = new DoubleMatrix1D[numVariables];
+			double[] values = new double[numVariables];
+			for (int v = 0; v < numVariables; v++) {
+				cpds[v] = variables[v].getDistribution().copy();
+				parentValues[v] = DoubleFactory1D.dense.make(cpds[v]
+						.getNumberParentDimensions());
+				if (variables[v].isEvidence()) {
+					values[v] = variables[v].getEvidence();
+					evidence[v] = DoubleFactory1D.dense.make(1, values[v]);
+				}
+			}
+			int[] states = querySamples == null ? null
+					: new int[counted.length];
+
+			for (int i = from; i < to; i++) {
+				double lw = 0.0;
+				for (int v = 0; v < numVariables; v++) {
+					if (evidence[v] != null && !weigh) {
+						continue;
+					}
+					int[] pi = parentIndices[v];
+					DoubleMatrix1D pv = parentValues[v];
+					for (int k = 0; k < pi.length; k++) {
+						pv.setQuick(k, values[pi[k]]);
+					}
+					if (evidence[v] != null) {
+						lw += cpds[v].getLogProbability(pv, evidence[v]);
+					} else {
+						values[v] = cpds[v].sample(pv, random).getQuick(0);
+					}
+				}
+				if (weigh) {
+					logWeights[i] = lw;
+					continue;
+				}
+				double w = Math.exp(logWeights[i] - logScale);
+				if (samples != null) {
+					for (int h = 0; h < counted.length; h++) {
+						samples[h].add(values[counted[h]], w);
+					}
+				} else {
+					for (int q = 0; q < counted.length; q++) {
+						states[q] = (int) values[counted[q]];
+					}
+					querySamples.add(states, w);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Execute for likelihood weighting takes the additional property
+	 * RandomizedAlgorithmConstants.MAX_SAMPLES
+	 */
+	public Factor execute(DynamicBayesNetModel model, boolean allMarginals,
+			Map<String, Object> additionalProperties, PrintStream updateTracking)
+			throws Exception {
+		int maxSamples = 100000;
+		if (additionalProperties
+				.containsKey(RandomizedAlgorithmConstants.MAX_SAMPLES
+						.toString())) {
+			maxSamples = (Integer) additionalProperties
+					.get(RandomizedAlgorithmConstants.MAX_SAMPLES.toString());
+		}
+		return execute(model, allMarginals, maxSamples, updateTracking);
+	}
+
+	public String getName() {
+		return pool != null ? "Likelihood Weighting (Parallel)"
+				: "Likelihood Weighting";
+	}
+
+	public boolean isRandom() {
+		return true;
+	}
+
+	public Factor getFactorForSufficientStatistics(DynamicBayesNetModel model,
+			TransientVariable variable, Map<String, Object> additionalProperties) {
+		return null;
+	}
+
+	@Override
+	public void evidenceSet(DynamicBayesNetModel model) {
+		// Doesn't care
+	}
+
+	@Override
+	public void parameterLearningDone(DynamicBayesNetModel model) {
+		// Doesn't care
+	}
+
+}
@@ -0,0 +1,887 @@
+package selrach.bnetbuilder.model.algorithms.inference;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.log4j.Logger;
+
+import selrach.bnetbuilder.model.DynamicBayesNetModel;
+import selrach.bnetbuilder.model.Utility;
+import selrach.bnetbuilder.model.algorithms.exceptions.QueryVariableNotSetException;
+import selrach.bnetbuilder.model.distributions.unconditional.Table;
+import selrach.bnetbuilder.model.variable.DiscreteVariable;
+import selrach.bnetbuilder.model.variable.Factor;
+import selrach.bnetbuilder.model.variable.TransientVariable;
+
+/**
+ * Loopy belief propagation on the factor graph of the unrolled network, for
+ * networks whose junction tree has cliques too big to work with. Every
+ * variable's distribution gives a factor over it and its parents, reduced by
+ * the evidence the same way the exact algorithms build their factors, so
+ * continuous evidence with discrete parents is fine but every hidden variable
+ * has to be discrete. Messages are passed between the factors and the hidden
+ * variables until none of them changes by more than the convergence
+ * threshold or the iterations run out, and the marginals are read off of the
+ * messages into each variable. The answers are approximate unless the
+ * network is a polytree.
+ *
+ * Messages are either updated asynchronously, always sending next the
+ * messages of the factor whose messages would change the most (residual
+ * belief propagation), or synchronously, every factor then every variable
+ * once an iteration. Synchronous updates are run in chunks on the pool by the
+ * parallel instance. Each new message can be damped by keeping a fraction of
+ * the old one, which helps synchronous updates that oscillate. How long each
+ * iteration took and its largest change are logged.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public class LoopyBeliefPropagation implements InferenceAlgorithm {
+
+	private static final Logger logger = Logger
+			.getLogger(LoopyBeliefPropagation.class);
+
+	/**
+	 * How the messages are scheduled
+	 */
+	public enum Schedule {
+		/**
+		 * One factor at a time, the one whose messages would change the most
+		 */
+		RESIDUAL,
+		/**
+		 * Every factor then every variable, all from the last iteration's
+		 * messages
+		 */
+		SYNCHRONOUS
+	}
+
+	public static final int DEFAULT_MAX_ITERATIONS = 200;
+
+	public static final double DEFAULT_CONVERGENCE_THRESHOLD = 1e-6;
+
+	/**
+	 * Factors or variables updated by each task of a synchronous iteration
+	 */
+	static final int CHUNK_SIZE = 256;
+
+	private final boolean parallel;
+
+	private final ForkJoinPool pool;
+
+	private Schedule schedule;
+
+	private double damping;
+
+	private int maxIterations = DEFAULT_MAX_ITERATIONS;
+
+	private double convergenceThreshold = DEFAULT_CONVERGENCE_THRESHOLD;
+
+	private int iterations = 0;
+
+	private double residual = 0.0;
+
+	private LoopyBeliefPropagation(boolean parallel) {
+		this.parallel = parallel;
+		this.pool = parallel ? new ForkJoinPool(Runtime.getRuntime()
+				.availableProcessors()) : null;
+		this.schedule = parallel ? Schedule.SYNCHRONOUS : Schedule.RESIDUAL;
+		this.damping = parallel ? 0.5 : 0.0;
+	}
+
+	private static final LoopyBeliefPropagation instance = new LoopyBeliefPropagation(
+			false);
+
+	private static final LoopyBeliefPropagation parallelInstance = new LoopyBeliefPropagation(
+			true);
+
+	public static LoopyBeliefPropagation getInstance() {
+		return instance;
+	}
+
+	public static LoopyBeliefPropagation getParallelInstance() {
+		return parallelInstance;
+	}
+
+	/**
+	 * @return how the messages are scheduled, residual for the instance and
+	 *         synchronous for the parallel instance unless set
+	 */
+	public Schedule getSchedule() {
+		return schedule;
+	}
+
+	/**
+	 * @param schedule
+	 */
+	public void setSchedule(Schedule schedule) {
+		this.schedule = schedule;
+	}
+
+	/**
+	 * @return the fraction of the old message kept in each update, none for
+	 *         the instance and half for the parallel instance unless set
+	 */
+	public double getDamping() {
+		return damping;
+	}
+
+	/**
+	 * @param damping
+	 *            the fraction of the old message kept in each update, from 0
+	 *            up to but not including 1
+	 */
+	public void setDamping(double damping) {
+		this.damping = damping;
+	}
+
+	/**
+	 * @return the maxIterations
+	 */
+	public int getMaxIterations() {
+		return maxIterations;
+	}
+
+	/**
+	 * @param maxIterations
+	 *            how many iterations to run before giving up on converging, a
+	 *            residual iteration is as many updates as there are factors
+	 */
+	public void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * @return the convergenceThreshold
+	 */
+	public double getConvergenceThreshold() {
+		return convergenceThreshold;
+	}
+
+	/**
+	 * @param convergenceThreshold
+	 *            the largest change of any entry of any message at which the
+	 *            messages have converged
+	 */
+	public void setConvergenceThreshold(double convergenceThreshold) {
+		this.convergenceThreshold = convergenceThreshold;
+	}
+
+	/**
+	 * @return how many iterations the last run took
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * @return the largest change of a message when the last run stopped
+	 */
+	public double getResidual() {
+		return residual;
+	}
+
+	/**
+	 * @return whether the messages of the last run converged
+	 */
+	public boolean hasConverged() {
+		return residual < convergenceThreshold;
+	}
+
+	PrintStream out;
+	boolean doOut = false;
+
+	/**
+	 * Runs belief propagation on the network with the current settings
+	 *
+	 * @param model
+	 * @param allMarginals
+	 *            set the marginal of every hidden variable, otherwise return
+	 *            the joint of the query variables
+	 * @param updateTracking
+	 * @return Factor of the query variables or null if we are calculating all
+	 *         marginals. If no factor covers all of the query variables
+	 *         their joint is the product of their marginals.
+	 * @throws Exception
+	 */
+	public synchronized Factor execute(DynamicBayesNetModel model,
+			boolean allMarginals, PrintStream updateTracking) throws Exception {
+		this.out = updateTracking;
+		this.doOut = this.out != null;
+		if (damping < 0 || damping >= 1) {
+			throw new Exception("Damping must be at least 0 and less than 1.");
+		}
+
+		FactorGraph graph = new FactorGraph(model);
+		if (graph.numVariables == 0) {
+			return null;
+		}
+		List<TransientVariable> queryVariables = new ArrayList<TransientVariable>();
+		for (TransientVariable tv : graph.variables) {
+			if (tv.isQuery()) {
+				queryVariables.add(tv);
+			}
+		}
+		if (queryVariables.isEmpty() && !allMarginals) {
+			throw new QueryVariableNotSetException("No Query Variables set!");
+		}
+
+		long start = System.nanoTime();
+		if (schedule == Schedule.SYNCHRONOUS) {
+			runSynchronous(graph);
+		} else {
+			runResidual(graph);
+		}
+		if (logger.isInfoEnabled()) {
+			logger.info("Belief propagation "
+					+ (hasConverged() ? "converged" : "did not converge")
+					+ " after " + iterations + " iterations in "
+					+ (System.nanoTime() - start) / 1000000
+					+ " ms, largest change " + residual);
+		}
+
+		if (allMarginals) {
+			for (int i = 0; i < graph.numVariables; i++) {
+				graph.variables[i].setMarginal(new Table(graph.belief(i)));
+			}
+			return null;
+		}
+		return graph.queryFactor(queryVariables);
+	}
+
+	/**
+	 * Updates every factor's messages then every variable's, on the pool for
+	 * the parallel instance, until they converge
+	 */
+	private void runSynchronous(FactorGraph graph) throws Exception {
+		int numFactorChunks = (graph.numFactors + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		int numVariableChunks = (graph.numVariables + CHUNK_SIZE - 1)
+				/ CHUNK_SIZE;
+		UpdateTask[] factorTasks = new UpdateTask[numFactorChunks];
+		for (int c = 0; c < numFactorChunks; c++) {
+			factorTasks[c] = new UpdateTask(graph, true, c * CHUNK_SIZE, Math
+					.min(graph.numFactors, (c + 1) * CHUNK_SIZE));
+		}
+		UpdateTask[] variableTasks = new UpdateTask[numVariableChunks];
+		for (int c = 0; c < numVariableChunks; c++) {
+			variableTasks[c] = new UpdateTask(graph, false, c * CHUNK_SIZE,
+					Math.min(graph.numVariables, (c + 1) * CHUNK_SIZE));
+		}
+
+		iterations = 0;
+		residual = Double.POSITIVE_INFINITY;
+		while (iterations < maxIterations && !hasConverged()) {
+			long start = System.nanoTime();
+			run(factorTasks);
+			run(variableTasks);
+			residual = 0.0;
+			for (UpdateTask task : factorTasks) {
+				residual = Math.max(residual, task.residual);
+			}
+			iterations++;
+			iterationDone(start);
+		}
+	}
+
+	private void run(UpdateTask[] tasks) throws Exception {
+		for (UpdateTask task : tasks) {
+			task.reinitialize();
+		}
+		if (pool != null && tasks.length > 1) {
+			pool.invoke(new RunAllTask(tasks));
+		} else {
+			for (UpdateTask task : tasks) {
+				task.invoke();
+			}
+		}
+		for (UpdateTask task : tasks) {
+			if (task.error != null) {
+				throw task.error;
+			}
+		}
+	}
+
+	/**
+	 * Keeps sending the messages of the factor whose messages would change
+	 * the most, until no message would change by more than the threshold
+	 */
+	private void runResidual(FactorGraph graph) throws Exception {
+		final int numFactors = graph.numFactors;
+		double[][][] pending = new double[numFactors][][];
+		double[] residuals = new double[numFactors];
+		PriorityQueue<Pending> queue = new PriorityQueue<Pending>();
+		for (int a = 0; a < numFactors; a++) {
+			pending[a] = graph.factorMessages(a);
+			residuals[a] = graph.change(a, pending[a]);
+			queue.add(new Pending(residuals[a], a));
+		}
+
+		iterations = 0;
+		residual = Double.POSITIVE_INFINITY;
+		long start = System.nanoTime();
+		int updates = 0;
+		while (iterations < maxIterations) {
+			Pending next = queue.poll();
+			if (next.residual != residuals[next.factor]) {
+				continue; // Stale, the factor has been queued again since
+			}
+			if (next.residual < convergenceThreshold) {
+				residual = next.residual;
+				break;
+			}
+			int a = next.factor;
+			graph.send(a, pending[a], damping);
+			for (int i : graph.scopes[a]) {
+				graph.variableMessages(i);
+			}
+			for (int i : graph.scopes[a]) {
+				for (int e : graph.variableEdges[i]) {
+					int b = graph.edgeFactors[e];
+					if (residuals[b] < 0) {
+						continue; // Already requeued for this update
+					}
+					pending[b] = graph.factorMessages(b);
+					residuals[b] = -1;
+				}
+			}
+			for (int i : graph.scopes[a]) {
+				for (int e : graph.variableEdges[i]) {
+					int b = graph.edgeFactors[e];
+					if (residuals[b] < 0) {
+						residuals[b] = graph.change(b, pending[b]);
+						queue.add(new Pending(residuals[b], b));
+					}
+				}
+			}
+			if (++updates == numFactors) {
+				updates = 0;
+				iterations++;
+				residual = max(residuals);
+				iterationDone(start);
+				start = System.nanoTime();
+			}
+		}
+		if (!hasConverged()) {
+			residual = max(residuals);
+		}
+	}
+
+	private static double max(double[] values) {
+		double max = 0.0;
+		for (double v : values) {
+			max = Math.max(max, v);
+		}
+		return max;
+	}
+
+	private void iterationDone(long start) {
+		if (logger.isDebugEnabled()) {
+			logger.debug("Iteration " + iterations + " took "
+					+ (System.nanoTime() - start) / 1000 + " us, largest change "
+					+ residual);
+		}
+		if (doOut) {
+			out.println("Iteration #" + iterations + ": "
+					+ (System.nanoTime() - start) / 1000 + " us, largest change "
+					+ residual);
+		}
+	}
+
+	/**
+	 * A factor waiting to send its messages, the factor with the largest
+	 * change comes first and ties go to the first factor
+	 */
+	private static class Pending implements Comparable<Pending> {
+		final double residual;
+		final int factor;
+
+		Pending(double residual, int factor) {
+			this.residual = residual;
+			this.factor = factor;
+		}
+
+		public int compareTo(Pending o) {
+			int c = Double.compare(o.residual, residual);
+			return c != 0 ? c : factor - o.factor;
+		}
+	}
+
+	private static class RunAllTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final UpdateTask[] tasks;
+
+		RunAllTask(UpdateTask[] tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			ForkJoinTask.invokeAll(tasks);
+		}
+	}
+
+	/**
+	 * Updates the messages out of a chunk of the factors, or of the variables,
+	 * in a synchronous iteration. Each message is only ever written by the
+	 * factor or variable it comes from, and a factor's messages are only read
+	 * by variables, so the chunks never get in each other's way.
+	 */
+	private class UpdateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final FactorGraph graph;
+		private final boolean factors;
+		private final int from;
+		private final int to;
+		private double residual;
+		private Exception error = null;
+
+		UpdateTask(FactorGraph graph, boolean factors, int from, int to) {
+			this.graph = graph;
+			this.factors = factors;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				residual = 0.0;
+				for (int k = from; k < to; k++) {
+					if (factors) {
+						double[][] messages = graph.factorMessages(k);
+						residual = Math.max(residual, graph.change(k, messages));
+						graph.send(k, messages, damping);
+					} else {
+						graph.variableMessages(k);
+					}
+				}
+			} catch (Exception ex) {
+				error = ex;
+			}
+		}
+	}
+
+	/**
+	 * The factors of the network over its hidden variables, and the messages
+	 * along every edge between a factor and a variable in both directions
+	 */
+	private static class FactorGraph {
+		final int numVariables;
+		final TransientVariable[] variables;
+		final int[] numStates;
+
+		final int numFactors;
+		/**
+		 * The variables of each factor, the first moving the slowest through
+		 * its table
+		 */
+		final int[][] scopes;
+		final double[][] tables;
+		/**
+		 * The edge to each of the variables of each factor
+		 */
+		final int[][] factorEdges;
+
+		final int[][] variableEdges;
+		final int[] edgeFactors;
+		final int[] edgeVariables;
+
+		/**
+		 * Messages from the factor to the variable of each edge, and back
+		 */
+		final double[][] toVariable;
+		final double[][] toFactor;
+
+		FactorGraph(DynamicBayesNetModel model) throws Exception {
+			List<TransientVariable> hidden = new ArrayList<TransientVariable>();
+			List<Factor> factors = new ArrayList<Factor>();
+			for (int i = 0; i < model.getMaxNumberSlices(); i++) {
+				for (TransientVariable tv : model.getSlice(i).getVariables()) {
+					if (tv.getTime() != i) {
+						continue;
+					}
+					if (!tv.isEvidence()) {
+						if (!(tv.getReference() instanceof DiscreteVariable)) {
+							throw new Exception(
+									"Belief propagation needs every hidden variable to be discrete: "
+											+ tv);
+						}
+						hidden.add(tv);
+					}
+					Factor factor = new Factor(tv);
+					if (!factor.getHeadDependencies().isEmpty()
+							|| !factor.getTailDependencies().isEmpty()) {
+						throw new Exception(
+								"Belief propagation needs every hidden variable to be discrete: "
+										+ tv);
+					}
+					if (!factor.getDependencies().isEmpty()) {
+						factors.add(factor);
+					}
+				}
+			}
+
+			numVariables = hidden.size();
+			variables = hidden.toArray(new TransientVariable[numVariables]);
+			numStates = new int[numVariables];
+			Map<TransientVariable, Integer> indices = new HashMap<TransientVariable, Integer>();
+			for (int i = 0; i < numVariables; i++) {
+				indices.put(variables[i], i);
+				numStates[i] = variables[i].getDistribution().getNumberStates();
+			}
+
+			numFactors = factors.size();
+			scopes = new int[numFactors][];
+			tables = new double[numFactors][];
+			factorEdges = new int[numFactors][];
+			int numEdges = 0;
+			for (int a = 0; a < numFactors; a++) {
+				Factor factor = factors.get(a);
+				List<TransientVariable> dependencies = factor.getDependencies();
+				int[] scope = new int[dependencies.size()];
+				int[] layout = new int[scope.length];
+				for (int k = 0; k < scope.length; k++) {
+					scope[k] = indices.get(dependencies.get(k));
+					layout[k] = numStates[scope[k]];
+				}
+				double[] table = ((Table) factor.getDistribution())
+						.getProbabilityArray();
+				int size = 1;
+				for (int n : layout) {
+					size *= n;
+				}
+				if (table.length != size) {
+					throw new Exception("The factor of " + dependencies
+							+ " does not match the states of its variables");
+				}
+				scopes[a] = scope;
+				tables[a] = table.clone();
+				factorEdges[a] = new int[scope.length];
+				for (int k = 0; k < scope.length; k++) {
+					factorEdges[a][k] = numEdges++;
+				}
+			}
+
+			edgeFactors = new int[numEdges];
+			edgeVariables = new int[numEdges];
+			toVariable = new double[numEdges][];
+			toFactor = new double[numEdges][];
+			int[] degrees = new int[numVariables];
+			for (int a = 0; a < numFactors; a++) {
+				for (int k = 0; k < scopes[a].length; k++) {
+					int e = factorEdges[a][k];
+					int i = scopes[a][k];
+					edgeFactors[e] = a;
+					edgeVariables[e] = i;
+					degrees[i]++;
+					toVariable[e] = new double[numStates[i]];
+					toFactor[e] = new double[numStates[i]];
+					Arrays.fill(toVariable[e], 1.0 / numStates[i]);
+					Arrays.fill(toFactor[e], 1.0 / numStates[i]);
+				}
+			}
+			variableEdges = new int[numVariables][];
+			for (int i = 0; i < numVariables; i++) {
+				variableEdges[i] = new int[degrees[i]];
+				degrees[i] = 0;
+			}
+			for (int e = 0; e < numEdges; e++) {
+				int i = edgeVariables[e];
+				variableEdges[i][degrees[i]++] = e;
+			}
+		}
+
+		/**
+		 * Works out the messages a factor would send now, by summing the
+		 * factor times the messages into it from every other variable
+		 *
+		 * @param a
+		 * @return the normalized message to each of its variables
+		 * @throws Exception
+		 *             if the evidence is impossible
+		 */
+		double[][] factorMessages(int a) throws Exception {
+			final int[] scope = scopes[a];
+			final int[] edges = factorEdges[a];
+			final double[] table = tables[a];
+			final int d = scope.length;
+			double[][] messages = new double[d][];
+			double[][] incoming = new double[d][];
+			for (int k = 0; k < d; k++) {
+				messages[k] = new double[numStates[scope[k]]];
+				incoming[k] = toFactor[edges[k]];
+			}
+			int[] states = new int[d];
+			double[] prefix = new double[d + 1];
+			prefix[0] = 1.0;
+			for (int index = 0; index < table.length; index++) {
+				double f = table[index];
+				if (f != 0) {
+					for (int k = 0; k < d; k++) {
+						prefix[k + 1] = prefix[k] * incoming[k][states[k]];
+					}
+					double suffix = f;
+					for (int k = d - 1; k >= 0; k--) {
+						messages[k][states[k]] += prefix[k] * suffix;
+						suffix *= incoming[k][states[k]];
+					}
+				}
+				// The last variable moves the fastest
+				for (int k = d - 1; k >= 0 && ++states[k] == incoming[k].length; k--) {
+					states[k] = 0;
+				}
+			}
+			for (int k = 0; k < d; k++) {
+				normalize(messages[k], scope[k]);
+			}
+			return messages;
+		}
+
+		/**
+		 * @param a
+		 * @param messages
+		 * @return the largest change of the messages of a factor
+		 */
+		double change(int a, double[][] messages) {
+			double change = 0.0;
+			int[] edges = factorEdges[a];
+			for (int k = 0; k < edges.length; k++) {
+				double[] old = toVariable[edges[k]];
+				for (int s = 0; s < old.length; s++) {
+					change = Math.max(change, Math.abs(messages[k][s] - old[s]));
+				}
+			}
+			return change;
+		}
+
+		/**
+		 * Sends the messages of a factor, keeping a fraction of the old ones
+		 */
+		void send(int a, double[][] messages, double damping) {
+			int[] edges = factorEdges[a];
+			for (int k = 0; k < edges.length; k++) {
+				double[] message = toVariable[edges[k]];
+				for (int s = 0; s < message.length; s++) {
+					message[s] = damping * message[s] + (1 - damping)
+							* messages[k][s];
+				}
+			}
+		}
+
+		/**
+		 * Sends the messages of a variable, each the product of the messages
+		 * into it from every other factor
+		 *
+		 * @param i
+		 * @throws Exception
+		 *             if the evidence is impossible
+		 */
+		void variableMessages(int i) throws Exception {
+			final int[] edges = variableEdges[i];
+			final int n = numStates[i];
+			for (int s = 0; s < n; s++) {
+				double prefix = 1.0;
+				for (int e : edges) {
+					toFactor[e][s] = prefix;
+					prefix *= toVariable[e][s];
+				}
+				double suffix = 1.0;
+				for (int k = edges.length - 1; k >= 0; k--) {
+					toFactor[edges[k]][s] *= suffix;
+					suffix *= toVariable[edges[k]][s];
+				}
+			}
+			for (int e : edges) {
+				normalize(toFactor[e], i);
+			}
+		}
+
+		/**
+		 * @param i
+		 * @return the normalized product of the messages into a variable
+		 * @throws Exception
+		 *             if the evidence is impossible
+		 */
+		double[] belief(int i) throws Exception {
+			double[] belief = new double[numStates[i]];
+			Arrays.fill(belief, 1.0);
+			for (int e : variableEdges[i]) {
+				for (int s = 0; s < belief.length; s++) {
+					belief[s] *= toVariable[e][s];
+				}
+			}
+			normalize(belief, i);
+			return belief;
+		}
+
+		/**
+		 * @param queryVariables
+		 * @return the joint of the query variables from the belief of a
+		 *         factor over all of them, or the product of their beliefs if
+		 *         there is none
+		 * @throws Exception
+		 */
+		Factor queryFactor(List<TransientVariable> queryVariables)
+				throws Exception {
+			final int numQueries = queryVariables.size();
+			int[] queries = new int[numQueries];
+			int[] layout = new int[numQueries];
+			for (int q = 0; q < numQueries; q++) {
+				for (int i = 0; i < numVariables; i++) {
+					if (variables[i] == queryVariables.get(q)) {
+						queries[q] = i;
+					}
+				}
+				layout[q] = numStates[queries[q]];
+			}
+			int[] queryStrides = Utility.calculateStrides(layout);
+			int size = 1;
+			for (int n : layout) {
+				size *= n;
+			}
+			double[] joint = new double[size];
+
+			int covering = -1;
+			int[] positions = new int[numQueries];
+			for (int a = 0; a < numFactors && covering < 0; a++) {
+				covering = a;
+				for (int q = 0; q < numQueries && covering >= 0; q++) {
+					positions[q] = -1;
+					for (int k = 0; k < scopes[a].length; k++) {
+						if (scopes[a][k] == queries[q]) {
+							positions[q] = k;
+						}
+					}
+					if (positions[q] < 0) {
+						covering = -1;
+					}
+				}
+			}
+
+			if (covering >= 0) {
+				// The factor times the messages into it from all of its
+				// variables, summed down to the queries
+				final int[] scope = scopes[covering];
+				final int[] edges = factorEdges[covering];
+				final double[] table = tables[covering];
+				int[] states = new int[scope.length];
+				for (int index = 0; index < table.length; index++) {
+					double p = table[index];
+					for (int k = 0; k < scope.length; k++) {
+						p *= toFactor[edges[k]][states[k]];
+					}
+					int queryIndex = 0;
+					for (int q = 0; q < numQueries; q++) {
+						queryIndex += queryStrides[q] * states[positions[q]];
+					}
+					joint[queryIndex] += p;
+					for (int k = scope.length - 1; k >= 0
+							&& ++states[k] == numStates[scope[k]]; k--) {
+						states[k] = 0;
+					}
+				}
+			} else {
+				double[][] beliefs = new double[numQueries][];
+				for (int q = 0; q < numQueries; q++) {
+					beliefs[q] = belief(queries[q]);
+				}
+				int[] states = new int[numQueries];
+				for (int index = 0; index < size; index++) {
+					double p = 1.0;
+					for (int q = 0; q < numQueries; q++) {
+						p *= beliefs[q][states[q]];
+					}
+					joint[index] = p;
+					for (int q = numQueries - 1; q >= 0
+							&& ++states[q] == layout[q]; q--) {
+						states[q] = 0;
+					}
+				}
+			}
+			Table table = new Table(layout, joint);
+			table.normalize();
+			return new Factor(queryVariables, table);
+		}
+
+		private void normalize(double[] message, int i) throws Exception {
+			double sum = 0.0;
+			for (double m : message) {
+				sum += m;
+			}
+			if (!(sum > 0)) {
+				throw new Exception("The evidence is impossible around "
+						+ variables[i]);
+			}
+			for (int s = 0; s < message.length; s++) {
+				message[s] /= sum;
+			}
+		}
+	}
+
+	/**
+	 * Execute for belief propagation takes the optional additional
+	 * properties of:
+	 * ApproximateAlgorithmConstants.MAX_ITERATIONS
+	 * ApproximateAlgorithmConstants.CONVERGENCE_THRESHOLD
+	 * ApproximateAlgorithmConstants.DAMPING
+	 * which are kept for later runs
+	 */
+	public Factor execute(DynamicBayesNetModel model, boolean allMarginals,
+			Map<String, Object> additionalProperties, PrintStream updateTracking)
+			throws Exception {
+		if (additionalProperties
+				.containsKey(ApproximateAlgorithmConstants.MAX_ITERATIONS
+						.toString())) {
+			maxIterations = (Integer) additionalProperties
+					.get(ApproximateAlgorithmConstants.MAX_ITERATIONS
+							.toString());
+		}
+		if (additionalProperties
+				.containsKey(ApproximateAlgorithmConstants.CONVERGENCE_THRESHOLD
+						.toString())) {
+			convergenceThreshold = ((Number) additionalProperties
+					.get(ApproximateAlgorithmConstants.CONVERGENCE_THRESHOLD
+							.toString())).doubleValue();
+		}
+		if (additionalProperties
+				.containsKey(ApproximateAlgorithmConstants.DAMPING.toString())) {
+			damping = ((Number) additionalProperties
+					.get(ApproximateAlgorithmConstants.DAMPING.toString()))
+					.doubleValue();
+		}
+		return execute(model, allMarginals, updateTracking);
+	}
+
+	public String getName() {
+		return parallel ? "Loopy Belief Propagation (Parallel)"
+				: "Loopy Belief Propagation";
+	}
+
+	public boolean isRandom() {
+		return false;
+	}
+
+	public Factor getFactorForSufficientStatistics(DynamicBayesNetModel model,
+			TransientVariable variable, Map<String, Object> additionalProperties) {
+		return null;
+	}
+
+	@Override
+	public void evidenceSet(DynamicBayesNetModel model) {
+		// Doesn't care
+	}
+
+	@Override
+	public void parameterLearningDone(DynamicBayesNetModel model) {
+		// Doesn't care
+	}
+
+}
@@ -0,0 +1,655 @@
+package selrach.bnetbuilder.model.algorithms.inference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import selrach.bnetbuilder.model.Utility;
+import selrach.bnetbuilder.model.distributions.conditional.ConditionalTable;
+import selrach.bnetbuilder.model.distributions.interfaces.ConditionalDistribution;
+import selrach.bnetbuilder.model.distributions.unconditional.Table;
+import selrach.bnetbuilder.model.variable.DiscreteVariable;
+import selrach.bnetbuilder.model.variable.TransientVariable;
+import cern.jet.random.Uniform;
+
+/**
+ * The Markov blankets of the variables a Gibbs sampler visits, compiled down
+ * to flat probability arrays and strides so a sampling step is a loop over
+ * primitives.
+ *
+ * The current state of every discrete variable is kept in one array. For a
+ * variable we keep its conditional probability table laid out with the
+ * parents first and its own states last, the position of each parent's
+ * state in that array and the stride of each parent in the table. For each
+ * child we keep the same for the child's table along with the stride of the
+ * variable we are sampling in it. The distribution over the states of a
+ * variable is then its row of its own table times the matching column of
+ * each child's table.
+ *
+ * Only variables whose own table and whose children's tables are discrete
+ * tables over discrete parents are compiled, the rest are left to Factor.
+ *
+ * The instances of a template variable in consecutive slices can also be
+ * sampled together as a block. Given everything else, a run of them that is
+ * linked only through the arcs from each one to the next is a hidden Markov
+ * chain, so it can be sampled jointly by filtering forward along the run and
+ * then sampling backward from the last one. On strongly correlated chains
+ * this mixes far faster than changing one slice at a time. Sampling is done
+ * a unit at a time, a unit being either a block or a variable outside of
+ * every block.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+class MarkovBlankets {
+
+	/**
+	 * A conditional probability table flattened to parents first, the variable
+	 * last
+	 */
+	private static class CompiledTable {
+		int variable;
+		int numStates;
+		double[] probabilities;
+		int[] parents;
+		int[] parentStrides;
+	}
+
+	/**
+	 * A variable's own table and the tables of its children
+	 */
+	private static class Blanket {
+		CompiledTable own;
+		CompiledTable[] children;
+		/**
+		 * Where the variable being sampled sits in each child's parents
+		 */
+		int[] childStrides;
+	}
+
+	/**
+	 * A run of instances of one template variable, each the parent of the
+	 * next, to be sampled jointly
+	 */
+	private static class Block {
+		/**
+		 * The sampled indices in temporal order
+		 */
+		int[] members;
+		/**
+		 * Where the previous member sits in each member's parents, -1 for the
+		 * first
+		 */
+		int[] previous;
+		/**
+		 * The children of each member other than the next member
+		 */
+		int[][] children;
+		/**
+		 * Where each member's forward probabilities start
+		 */
+		int[] offsets;
+	}
+
+	private final Map<TransientVariable, Integer> indices;
+	private final Map<TransientVariable, CompiledTable> tables;
+	private final int[] states;
+	private final Blanket[] blankets;
+	private final double[] weights;
+	private boolean complete = true;
+
+	private Block[] blocks = new Block[0];
+	private int[][] units;
+	private double[] forward = new double[0];
+
+	/**
+	 * @param variables
+	 *            every variable in the network, each needs a value assigned
+	 * @param sampled
+	 *            the variables that will be sampled, in the order they will
+	 *            be asked for
+	 */
+	MarkovBlankets(List<TransientVariable> variables,
+			List<TransientVariable> sampled) {
+		indices = new HashMap<TransientVariable, Integer>();
+		tables = new HashMap<TransientVariable, CompiledTable>();
+		states = new int[variables.size()];
+		for (int i = 0; i < variables.size(); i++) {
+			TransientVariable tv = variables.get(i);
+			indices.put(tv, i);
+			Double value = tv.getEvidence();
+			states[i] = value == null ? -1 : value.intValue();
+		}
+		blankets = new Blanket[sampled.size()];
+		int maxStates = 0;
+		for (int j = 0; j < sampled.size(); j++) {
+			blankets[j] = compileBlanket(sampled.get(j));
+			if (blankets[j] == null) {
+				complete = false;
+			} else {
+				maxStates = Math.max(maxStates, blankets[j].own.numStates);
+			}
+		}
+		weights = new double[maxStates];
+		units = new int[blankets.length][];
+		for (int j = 0; j < blankets.length; j++) {
+			units[j] = new int[] { j };
+		}
+	}
+
+	/**
+	 * Another set of states over the same compiled blankets, so several
+	 * chains can sample at once
+	 *
+	 * @param copy
+	 */
+	MarkovBlankets(MarkovBlankets copy) {
+		indices = copy.indices;
+		tables = copy.tables;
+		blankets = copy.blankets;
+		complete = copy.complete;
+		states = copy.states.clone();
+		weights = new double[copy.weights.length];
+		blocks = copy.blocks;
+		units = copy.units;
+		forward = new double[copy.forward.length];
+	}
+
+	/**
+	 * Groups the compiled variables into blocks wherever the instances of a
+	 * template variable in consecutive slices form a chain that nothing else
+	 * ties together. Only call this when every variable compiled.
+	 *
+	 * @param sampled
+	 *            the same variables the blankets were compiled for
+	 */
+	void makeBlocks(List<TransientVariable> sampled) {
+		Map<TransientVariable, Integer> sampledIndices = new HashMap<TransientVariable, Integer>();
+		for (int j = 0; j < sampled.size(); j++) {
+			sampledIndices.put(sampled.get(j), j);
+		}
+		// Link every variable to its own instance in the slice after
+		int[] next = new int[sampled.size()];
+		boolean[] hasPrevious = new boolean[sampled.size()];
+		Arrays.fill(next, -1);
+		for (int j = 0; j < sampled.size(); j++) {
+			TransientVariable tv = sampled.get(j);
+			for (TransientVariable p : tv.getParents()) {
+				Integer i = sampledIndices.get(p);
+				if (i != null && p.getReference() == tv.getReference()
+						&& next[i] == -1) {
+					next[i] = j;
+					hasPrevious[j] = true;
+					break;
+				}
+			}
+		}
+
+		List<Block> found = new ArrayList<Block>();
+		boolean[] inBlock = new boolean[sampled.size()];
+		int size = 0;
+		for (int j = 0; j < sampled.size(); j++) {
+			if (hasPrevious[j] || next[j] == -1) {
+				continue;
+			}
+			List<Integer> members = new ArrayList<Integer>();
+			for (int k = j; k != -1; k = next[k]) {
+				members.add(k);
+			}
+			Block block = makeBlock(sampled, sampledIndices, members);
+			if (block != null) {
+				found.add(block);
+				block.offsets = new int[block.members.length];
+				for (int t = 0; t < block.members.length; t++) {
+					block.offsets[t] = size;
+					size += blankets[block.members[t]].own.numStates;
+					inBlock[block.members[t]] = true;
+				}
+			}
+		}
+
+		blocks = found.toArray(new Block[found.size()]);
+		List<int[]> newUnits = new ArrayList<int[]>();
+		for (Block block : blocks) {
+			newUnits.add(block.members);
+		}
+		for (int j = 0; j < sampled.size(); j++) {
+			if (!inBlock[j]) {
+				newUnits.add(new int[] { j });
+			}
+		}
+		units = newUnits.toArray(new int[newUnits.size()][]);
+		forward = new double[size];
+	}
+
+	/**
+	 * Checks that the members are only tied together by the arcs from each
+	 * to the next, no member can share a child with another or be the parent
+	 * of any member but the next.
+	 */
+	private Block makeBlock(List<TransientVariable> sampled,
+			Map<TransientVariable, Integer> sampledIndices,
+			List<Integer> members) {
+		Map<Integer, Integer> position = new HashMap<Integer, Integer>();
+		for (int t = 0; t < members.size(); t++) {
+			position.put(members.get(t), t);
+		}
+		Block block = new Block();
+		block.members = new int[members.size()];
+		block.previous = new int[members.size()];
+		block.children = new int[members.size()][];
+		for (int t = 0; t < members.size(); t++) {
+			int j = members.get(t);
+			TransientVariable tv = sampled.get(j);
+			block.members[t] = j;
+			block.previous[t] = -1;
+			List<TransientVariable> parents = tv.getParents();
+			for (int p = 0; p < parents.size(); p++) {
+				Integer i = sampledIndices.get(parents.get(p));
+				if (i != null && position.containsKey(i)) {
+					if (t == 0 || i.intValue() != members.get(t - 1)) {
+						return null;
+					}
+					block.previous[t] = p;
+				}
+			}
+			List<TransientVariable> children = tv.getChildren();
+			List<Integer> others = new ArrayList<Integer>();
+			for (int c = 0; c < children.size(); c++) {
+				TransientVariable child = children.get(c);
+				Integer i = sampledIndices.get(child);
+				if (i != null && position.containsKey(i)) {
+					if (t + 1 == members.size()
+							|| i.intValue() != members.get(t + 1)) {
+						return null;
+					}
+					continue;
+				}
+				for (TransientVariable p : child.getParents()) {
+					Integer k = sampledIndices.get(p);
+					if (p != tv && k != null && position.containsKey(k)) {
+						return null;
+					}
+				}
+				others.add(c);
+			}
+			block.children[t] = new int[others.size()];
+			for (int c = 0; c < others.size(); c++) {
+				block.children[t][c] = others.get(c);
+			}
+		}
+		return block;
+	}
+
+	/**
+	 * @return how many units there are to sample
+	 */
+	int getNumberUnits() {
+		return units.length;
+	}
+
+	/**
+	 * @param u
+	 *            which unit
+	 * @return the sampled indices of the variables in it
+	 */
+	int[] getUnit(int u) {
+		return units[u];
+	}
+
+	/**
+	 * Samples every variable of a unit given the current state of the rest
+	 *
+	 * @param u
+	 *            which unit
+	 * @param random
+	 */
+	void sampleUnit(int u, Uniform random) {
+		if (u < blocks.length) {
+			sampleBlock(blocks[u], random);
+		} else {
+			sample(units[u][0], random);
+		}
+	}
+
+	private Blanket compileBlanket(TransientVariable tv) {
+		CompiledTable own = compileTable(tv);
+		if (own == null) {
+			return null;
+		}
+		List<TransientVariable> children = tv.getChildren();
+		Blanket blanket = new Blanket();
+		blanket.own = own;
+		blanket.children = new CompiledTable[children.size()];
+		blanket.childStrides = new int[children.size()];
+		for (int c = 0; c < children.size(); c++) {
+			TransientVariable child = children.get(c);
+			CompiledTable table = compileTable(child);
+			if (table == null) {
+				return null;
+			}
+			int p = child.getParents().indexOf(tv);
+			if (p < 0) {
+				return null;
+			}
+			blanket.children[c] = table;
+			blanket.childStrides[c] = table.parentStrides[p];
+		}
+		return blanket;
+	}
+
+	private CompiledTable compileTable(TransientVariable tv) {
+		if (tables.containsKey(tv)) {
+			return tables.get(tv);
+		}
+		CompiledTable table = null;
+		try {
+			table = flatten(tv);
+		} catch (Exception ex) {
+			table = null;
+		}
+		tables.put(tv, table);
+		return table;
+	}
+
+	private CompiledTable flatten(TransientVariable tv) throws Exception {
+		Integer index = indices.get(tv);
+		if (index == null || states[index] < 0
+				|| !(tv.getReference() instanceof DiscreteVariable)) {
+			return null;
+		}
+		List<TransientVariable> parents = tv.getParents();
+		CompiledTable table = new CompiledTable();
+		table.variable = index;
+		table.parents = new int[parents.size()];
+		for (int i = 0; i < parents.size(); i++) {
+			Integer p = indices.get(parents.get(i));
+			if (p == null || states[p] < 0) {
+				return null;
+			}
+			table.parents[i] = p;
+		}
+
+		ConditionalDistribution cpd = tv.getDistribution();
+		ConditionalDistribution[] rows;
+		int[] parentLayout;
+		if (cpd instanceof Table) {
+			rows = new ConditionalDistribution[] { cpd };
+			parentLayout = new int[0];
+		} else if (cpd instanceof ConditionalTable) {
+			rows = ((ConditionalTable) cpd).getDistributions();
+			parentLayout = parents.size() == 0 ? new int[0]
+					: ((ConditionalTable) cpd).getParentLayout();
+		} else {
+			return null;
+		}
+		if (parentLayout.length != parents.size()) {
+			return null;
+		}
+		int numRows = 1;
+		for (int n : parentLayout) {
+			if (n <= 0) {
+				return null;
+			}
+			numRows *= n;
+		}
+		if (rows.length != numRows) {
+			return null;
+		}
+
+		table.numStates = ((DiscreteVariable) tv.getReference()).getStates()
+				.size();
+		table.probabilities = new double[numRows * table.numStates];
+		for (int r = 0; r < numRows; r++) {
+			if (!(rows[r] instanceof Table)) {
+				return null;
+			}
+			double[] row = ((Table) rows[r]).getProbabilityArray();
+			if (row.length != table.numStates) {
+				return null;
+			}
+			System.arraycopy(row, 0, table.probabilities, r * table.numStates,
+					row.length);
+		}
+		table.parentStrides = Utility.calculateStrides(parentLayout);
+		for (int i = 0; i < table.parentStrides.length; i++) {
+			table.parentStrides[i] *= table.numStates;
+		}
+		return table;
+	}
+
+	/**
+	 * @return true if every sampled variable was compiled
+	 */
+	boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @param j
+	 *            which sampled variable
+	 * @return true if it can be sampled here
+	 */
+	boolean isCompiled(int j) {
+		return blankets[j] != null;
+	}
+
+	/**
+	 * @param tv
+	 * @return the current state of a variable
+	 */
+	int getState(TransientVariable tv) {
+		return states[indices.get(tv)];
+	}
+
+	/**
+	 * @param j
+	 *            which sampled variable
+	 * @return its current state
+	 */
+	int getSampledState(int j) {
+		return states[blankets[j].own.variable];
+	}
+
+	/**
+	 * @param j
+	 *            which sampled variable
+	 * @return how many states it has
+	 */
+	int getNumberStates(int j) {
+		return blankets[j].own.numStates;
+	}
+
+	/**
+	 * Gives every sampled variable a new state drawn given its parents only.
+	 * The sampled variables need to be in topological order.
+	 *
+	 * @param random
+	 */
+	void initialize(Uniform random) {
+		for (int j = 0; j < blankets.length; j++) {
+			final CompiledTable own = blankets[j].own;
+			int base = 0;
+			for (int p = 0; p < own.parents.length; p++) {
+				base += own.parentStrides[p] * states[own.parents[p]];
+			}
+			System.arraycopy(own.probabilities, base, weights, 0,
+					own.numStates);
+			states[own.variable] = draw(own.numStates, random);
+		}
+	}
+
+	/**
+	 * Keeps the states in step with a variable sampled somewhere else
+	 *
+	 * @param tv
+	 * @param value
+	 */
+	void setState(TransientVariable tv, double value) {
+		Integer index = indices.get(tv);
+		if (index != null) {
+			states[index] = (int) value;
+		}
+	}
+
+	/**
+	 * Samples a compiled variable given the current state of its Markov
+	 * blanket and records the new state
+	 *
+	 * @param j
+	 *            which sampled variable
+	 * @param random
+	 * @return the state sampled
+	 */
+	int sample(int j, Uniform random) {
+		final Blanket blanket = blankets[j];
+		final CompiledTable own = blanket.own;
+		final int numStates = own.numStates;
+		final int[] states = this.states;
+		final double[] weights = this.weights;
+
+		int base = 0;
+		for (int p = 0; p < own.parents.length; p++) {
+			base += own.parentStrides[p] * states[own.parents[p]];
+		}
+		System.arraycopy(own.probabilities, base, weights, 0, numStates);
+
+		for (int c = 0; c < blanket.children.length; c++) {
+			final CompiledTable child = blanket.children[c];
+			final int stride = blanket.childStrides[c];
+			// Everything but the variable we are sampling, which is 0 here
+			int offset = states[child.variable];
+			for (int p = 0; p < child.parents.length; p++) {
+				if (child.parents[p] != own.variable) {
+					offset += child.parentStrides[p] * states[child.parents[p]];
+				}
+			}
+			for (int s = 0; s < numStates; s++) {
+				weights[s] *= child.probabilities[offset + s * stride];
+			}
+		}
+
+		int sample = draw(numStates, random);
+		states[own.variable] = sample;
+		return sample;
+	}
+
+	/**
+	 * Forward filtering backward sampling along a block. The forward
+	 * probabilities of each member fold in its children outside the block,
+	 * then the last member is drawn from its forward probabilities and each
+	 * one before it from its forward probabilities times the probability of
+	 * the state just drawn for the next one.
+	 */
+	private void sampleBlock(Block block, Uniform random) {
+		final int[] states = this.states;
+		final double[] forward = this.forward;
+		final int length = block.members.length;
+		for (int t = 0; t < length; t++) {
+			final Blanket blanket = blankets[block.members[t]];
+			final CompiledTable own = blanket.own;
+			final int numStates = own.numStates;
+			final int offset = block.offsets[t];
+			final int previous = block.previous[t];
+			int base = base(own, previous);
+			if (previous < 0) {
+				System.arraycopy(own.probabilities, base, forward, offset,
+						numStates);
+			} else {
+				final int stride = own.parentStrides[previous];
+				final int last = block.offsets[t - 1];
+				final int numLast = blankets[block.members[t - 1]].own.numStates;
+				for (int s = 0; s < numStates; s++) {
+					double sum = 0.0;
+					for (int r = 0; r < numLast; r++) {
+						sum += forward[last + r]
+								* own.probabilities[base + r * stride + s];
+					}
+					forward[offset + s] = sum;
+				}
+			}
+			for (int c : block.children[t]) {
+				final CompiledTable child = blanket.children[c];
+				final int stride = blanket.childStrides[c];
+				int childOffset = states[child.variable];
+				for (int p = 0; p < child.parents.length; p++) {
+					if (child.parents[p] != own.variable) {
+						childOffset += child.parentStrides[p]
+								* states[child.parents[p]];
+					}
+				}
+				for (int s = 0; s < numStates; s++) {
+					forward[offset + s] *= child.probabilities[childOffset + s
+							* stride];
+				}
+			}
+			// Keep the forward probabilities from underflowing
+			double total = 0.0;
+			for (int s = 0; s < numStates; s++) {
+				total += forward[offset + s];
+			}
+			for (int s = 0; s < numStates; s++) {
+				forward[offset + s] = total > 0.0 ? forward[offset + s] / total
+						: 1.0 / numStates;
+			}
+		}
+
+		int t = length - 1;
+		CompiledTable own = blankets[block.members[t]].own;
+		System.arraycopy(forward, block.offsets[t], weights, 0, own.numStates);
+		int drawn = draw(own.numStates, random);
+		states[own.variable] = drawn;
+		for (t--; t >= 0; t--) {
+			final CompiledTable next = own;
+			own = blankets[block.members[t]].own;
+			final int stride = next.parentStrides[block.previous[t + 1]];
+			final int base = base(next, block.previous[t + 1]) + drawn;
+			final int offset = block.offsets[t];
+			for (int s = 0; s < own.numStates; s++) {
+				weights[s] = forward[offset + s]
+						* next.probabilities[base + s * stride];
+			}
+			drawn = draw(own.numStates, random);
+			states[own.variable] = drawn;
+		}
+	}
+
+	/**
+	 * Where the row of a table for the current states of its parents starts,
+	 * leaving out one of the parents
+	 */
+	private int base(CompiledTable table, int skip) {
+		int base = 0;
+		for (int p = 0; p < table.parents.length; p++) {
+			if (p != skip) {
+				base += table.parentStrides[p] * states[table.parents[p]];
+			}
+		}
+		return base;
+	}
+
+	/**
+	 * Draws a state in proportion to the first numStates weights
+	 */
+	private int draw(int numStates, Uniform random) {
+		double total = 0.0;
+		for (int s = 0; s < numStates; s++) {
+			total += weights[s];
+		}
+		if (total > 0.0) {
+			double u = random.nextDouble() * total;
+			for (int s = 0; s < numStates; s++) {
+				u -= weights[s];
+				if (u <= 0.0) {
+					return s;
+				}
+			}
+			return numStates - 1;
+		}
+		// Nothing fits the blanket, same as the uniform a normalized
+		// factor falls back to
+		return random.nextIntFromTo(0, numStates - 1);
+	}
+}
@@ -2,6 +2,7 @@ package selrach.bnetbuilder.model.algorithms.inference;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -37,15 +38,40 @@ public class QueryJunctionTree implements InferenceAlgorithm {
 	private static final Logger logger = Logger
 			.getLogger(QueryJunctionTree.class);
 
-	private QueryJunctionTree() {
+	/**
+	 * Calibrate with CalibrateJunctionTreeParallel instead of the serial version
+	 */
+	private final boolean parallel;
+
+	private QueryJunctionTree(boolean parallel) {
+		this.parallel = parallel;
 	}
 
-	private static final QueryJunctionTree instance = new QueryJunctionTree();
+	private static final QueryJunctionTree instance = new QueryJunctionTree(
+			false);
+
+	private static final QueryJunctionTree parallelInstance = new QueryJunctionTree(
+			true);
 
 	public static QueryJunctionTree getInstance() {
 		return instance;
 	}
 
+	public static QueryJunctionTree getParallelInstance() {
+		return parallelInstance;
+	}
+
+	private void calibrate(DynamicBayesNetModel model,
+			PrintStream updateTracking) throws Exception {
+		if (parallel) {
+			CalibrateJunctionTreeParallel.getInstance().execute(model,
+					updateTracking);
+		} else {
+			CalibrateJunctionTreeSerial.getInstance().execute(model,
+					updateTracking);
+		}
+	}
+
 	/**
 	 * Run just the query set in the model
 	 * 
@@ -68,6 +94,17 @@ public class QueryJunctionTree implements InferenceAlgorithm {
 	 */
 	public Factor execute(DynamicBayesNetModel model, boolean allMarginals,
 			PrintStream updateTracking) throws Exception {
+		if (model.isMemoryBounded()) {
+			// Not every slice fits in memory, filter through the interfaces
+			// one slice at a time instead
+			if (!allMarginals) {
+				throw new Exception(
+						"Queries need every slice in memory, only marginals can be calculated with a limited number of slices in memory");
+			}
+			CalibrateJunctionTreeInterface.getInstance().execute(model,
+					updateTracking);
+			return null;
+		}
 		for (int i = 0; i < model.getMaxNumberSlices(); i++) 
 			// Run this for each timeslice
 		{
@@ -75,23 +112,102 @@ public class QueryJunctionTree implements InferenceAlgorithm {
 		}
 		
 		if (!model.getJunctionTreeTemplate().isCalibrated()) {
-			CalibrateJunctionTreeSerial.getInstance().execute(model,
-					updateTracking);
+			calibrate(model, updateTracking);
 		}
 		if (allMarginals) {
 			setIndependentMarginals(model);
 			return null;
 		} else {
-			return processQueryFromModel(model);
+			Factor ret = processQueryFromModel(model);
+			// Pushing the query through the tree changes the clique
+			// potentials, so they have to be calibrated again
+			model.getJunctionTreeTemplate().setCalibratedFalse();
+			return ret;
 		}
 	}
 
+	/**
+	 * Execute for the junction tree takes the optional additional properties
+	 * of:
+	 * JunctionTreeConstants.SMOOTHING
+	 * JunctionTreeConstants.CHECKPOINTING
+	 * which are only used when the model does not keep every slice in memory
+	 * and are kept for later runs
+	 */
 	public Factor execute(DynamicBayesNetModel model, boolean allMarginals,
 			Map<String, Object> additionalProperties, PrintStream updateTracking)
 			throws Exception {
+		CalibrateJunctionTreeInterface calibrate = CalibrateJunctionTreeInterface
+				.getInstance();
+		if (additionalProperties.containsKey(JunctionTreeConstants.SMOOTHING
+				.toString())) {
+			calibrate.setSmoothing((Boolean) additionalProperties
+					.get(JunctionTreeConstants.SMOOTHING.toString()));
+		}
+		if (additionalProperties
+				.containsKey(JunctionTreeConstants.CHECKPOINTING.toString())) {
+			calibrate.setCheckpointing((Boolean) additionalProperties
+					.get(JunctionTreeConstants.CHECKPOINTING.toString()));
+		}
 		return execute(model, allMarginals, updateTracking);
 	}
 
+	/**
+	 * Answers several queries off of one calibration. The calibrated tree is
+	 * left as it is, and queries that fall in the same cliques share the work
+	 * done for them.
+	 * 
+	 * @param model
+	 * @param queries
+	 *            each set of variables to find the joint distribution of,
+	 *            the query flags in the model are not used
+	 * @return the normalized joint of each query, in the same order
+	 */
+	public List<Factor> execute(DynamicBayesNetModel model,
+			List<? extends Collection<TransientVariable>> queries,
+			PrintStream updateTracking) throws Exception {
+		if (model.isMemoryBounded()) {
+			throw new Exception(
+					"Queries need every slice in memory, only marginals can be calculated with a limited number of slices in memory");
+		}
+		for (int i = 0; i < model.getMaxNumberSlices(); i++) {
+			model.getSlice(i);
+		}
+
+		List<Factor> ret = new ArrayList<Factor>(queries.size());
+		JunctionTreeQueries batch = null;
+		for (Collection<TransientVariable> query : queries) {
+			if (!model.getJunctionTreeTemplate().isCalibrated()) {
+				calibrate(model, updateTracking);
+				batch = null;
+			}
+			if (batch == null) {
+				batch = new JunctionTreeQueries(model);
+			}
+			Factor answer = batch.answer(query);
+			if (answer == null) {
+				// Spread over a hybrid tree, push it through the tree like a
+				// query set in the model
+				model.storeState();
+				for (int i = 0; i < model.getMaxNumberSlices(); i++) {
+					for (TransientVariable tv : model.getSlice(i)
+							.getVariables()) {
+						if (query.contains(tv)) {
+							tv.setQuery(false);
+						} else if (tv.isQuery()) {
+							tv.setHidden(false);
+						}
+					}
+				}
+				answer = processQueryFromModel(model);
+				model.getJunctionTreeTemplate().setCalibratedFalse();
+				model.restoreState();
+			}
+			ret.add(answer);
+		}
+		return ret;
+	}
+
 	private void doMarginals(DynamicBayesNetModel model,
 			TransientClique clique, int time) throws Exception {
 
@@ -328,7 +444,7 @@ public class QueryJunctionTree implements InferenceAlgorithm {
 	}
 
 	public String getName() {
-		return "Junction Tree";
+		return parallel ? "Junction Tree (Parallel)" : "Junction Tree";
 	}
 
 	public boolean isRandom() {
@@ -338,8 +454,12 @@ public class QueryJunctionTree implements InferenceAlgorithm {
 	public Factor getFactorForSufficientStatistics(DynamicBayesNetModel model,
 			TransientVariable variable, Map<String, Object> additionalProperties)
 			throws Exception {
+		if (model.isMemoryBounded()) {
+			throw new Exception(
+					"Sufficient statistics need every slice in memory");
+		}
 		if (!model.getJunctionTreeTemplate().isCalibrated()) {
-			CalibrateJunctionTreeSerial.getInstance().execute(model, null);
+			calibrate(model, null);
 		}
 
 		int time = variable.getTime();
@@ -375,6 +495,8 @@ public class QueryJunctionTree implements InferenceAlgorithm {
 
 	@Override
 	public void parameterLearningDone(DynamicBayesNetModel model) {
+		// Both instances share the template, whichever was used for learning
+		// regenerates it
 		if (!model.getJunctionTreeTemplate().isStale()) {
 			GenerateEliminationCliques.execute(model.getJunctionTreeTemplate());
 			GenerateJunctionTreeFromCliques.execute(model
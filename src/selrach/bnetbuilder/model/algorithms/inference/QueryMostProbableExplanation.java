@@ -0,0 +1,204 @@
+package selrach.bnetbuilder.model.algorithms.inference;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import cern.colt.matrix.DoubleFactory1D;
+import cern.colt.matrix.DoubleMatrix1D;
+
+import selrach.bnetbuilder.model.DynamicBayesNetModel;
+import selrach.bnetbuilder.model.Utility;
+import selrach.bnetbuilder.model.algorithms.exceptions.QueryVariableNotSetException;
+import selrach.bnetbuilder.model.algorithms.graph.MakeJunctionTreeTemplate;
+import selrach.bnetbuilder.model.distributions.unconditional.Table;
+import selrach.bnetbuilder.model.variable.CompiledJunctionTree;
+import selrach.bnetbuilder.model.variable.DiscreteVariable;
+import selrach.bnetbuilder.model.variable.Factor;
+import selrach.bnetbuilder.model.variable.JunctionTreeTemplate;
+import selrach.bnetbuilder.model.variable.TransientVariable;
+
+/**
+ * Finds the most probable explanation (the Viterbi path for a hidden Markov
+ * model), the single assignment of every hidden variable over all slices that
+ * is jointly most probable given the evidence. It runs max-product message
+ * passing over the unrolled junction tree and traces the assignment back, so
+ * it is exact and linear in the number of slices.
+ *
+ * When all marginals are asked for, each hidden variable gets a marginal with
+ * all of its mass on its state in the explanation. A query gets a factor with
+ * all of its mass on the states of the query variables in the explanation.
+ * The explanation itself is kept until the next run.
+ *
+ * Only completely discrete networks with every slice in memory are handled.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public class QueryMostProbableExplanation implements InferenceAlgorithm {
+
+	private final static Logger logger = Logger
+			.getLogger(QueryMostProbableExplanation.class);
+
+	private static final QueryMostProbableExplanation instance = new QueryMostProbableExplanation();
+
+	private Map<TransientVariable, Integer> explanation = Collections
+			.emptyMap();
+	private double logProbability = Double.NEGATIVE_INFINITY;
+
+	private QueryMostProbableExplanation() {
+	}
+
+	public static QueryMostProbableExplanation getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return the state of each variable in the last explanation found,
+	 *         evidence variables included
+	 */
+	public Map<TransientVariable, Integer> getExplanation() {
+		return explanation;
+	}
+
+	/**
+	 * @return the log of the joint probability of the last explanation found
+	 *         and the evidence
+	 */
+	public double getLogProbability() {
+		return logProbability;
+	}
+
+	public Factor execute(DynamicBayesNetModel model, boolean allMarginals,
+			Map<String, Object> additionalProperties, PrintStream updateTracking)
+			throws Exception {
+		if (model.isMemoryBounded()) {
+			throw new Exception(
+					"The most probable explanation needs every slice in memory");
+		}
+		for (int i = 0; i < model.getMaxNumberSlices(); i++) {
+			model.getSlice(i);
+		}
+		JunctionTreeTemplate jtt = model.getJunctionTreeTemplate();
+		if (jtt.isStale()) {
+			MakeJunctionTreeTemplate.execute(model);
+		}
+		CompiledJunctionTree compiled = jtt.getCompiledJunctionTree(model);
+		if (!compiled.isApplicable()) {
+			throw new Exception(
+					"The most probable explanation can only be found for completely discrete networks");
+		}
+
+		Map<TransientVariable, Integer> assignment = new HashMap<TransientVariable, Integer>();
+		compiled.maximize(model, assignment);
+		explanation = Collections.unmodifiableMap(assignment);
+
+		// The clique potentials are only proportional to the joint, so go
+		// back to the conditional distributions for the probability
+		logProbability = 0.0;
+		for (int i = 0; i < model.getMaxNumberSlices(); i++) {
+			for (TransientVariable tv : model.getSlice(i).getVariables()) {
+				if (tv.getTime() != i) {
+					continue;
+				}
+				DoubleMatrix1D parentValues = DoubleFactory1D.dense.make(tv
+						.getDistribution().getNumberParentDimensions());
+				int k = 0;
+				for (TransientVariable p : tv.getParents()) {
+					parentValues.setQuick(k++, explanation.get(p));
+				}
+				logProbability += tv.getDistribution().getLogProbability(
+						parentValues,
+						DoubleFactory1D.dense.make(1, explanation.get(tv)));
+			}
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("Most probable explanation has log probability "
+					+ logProbability);
+		}
+
+		if (allMarginals) {
+			for (int i = 0; i < model.getMaxNumberSlices(); i++) {
+				for (TransientVariable tv : model.getSlice(i).getVariables()) {
+					if (tv.getTime() == i && !tv.isEvidence()) {
+						tv.setMarginal(pointMass(Collections.singletonList(tv)));
+					}
+				}
+			}
+			return null;
+		}
+
+		List<TransientVariable> query = new ArrayList<TransientVariable>();
+		for (int i = 0; i < model.getMaxNumberSlices(); i++) {
+			for (TransientVariable tv : model.getSlice(i).getVariables()) {
+				if (tv.getTime() == i && tv.isQuery()) {
+					query.add(tv);
+				}
+			}
+		}
+		if (query.isEmpty()) {
+			throw new QueryVariableNotSetException("No Query Variables set!");
+		}
+		return new Factor(query, pointMass(query));
+	}
+
+	/**
+	 * A table over the variables with all of its mass on their states in the
+	 * explanation
+	 */
+	private Table pointMass(List<TransientVariable> variables)
+			throws Exception {
+		int[] layout = new int[variables.size()];
+		for (int i = 0; i < layout.length; i++) {
+			layout[i] = ((DiscreteVariable) variables.get(i).getReference())
+					.getStates().size();
+		}
+		int[] strides = Utility.calculateStrides(layout);
+		int index = 0;
+		for (int i = 0; i < layout.length; i++) {
+			Integer state = explanation.get(variables.get(i));
+			if (state == null) {
+				throw new Exception(variables.get(i)
+						+ " is not in the junction tree");
+			}
+			index += state * strides[i];
+		}
+		Table table = new Table(layout);
+		double[] p = table.getProbabilityArray();
+		Arrays.fill(p, 0.0);
+		p[index] = 1.0;
+		table.clearCaches();
+		return table;
+	}
+
+	public Factor getFactorForSufficientStatistics(DynamicBayesNetModel model,
+			TransientVariable variable, Map<String, Object> additionalProperties)
+			throws Exception {
+		throw new Exception(
+				"The most probable explanation does not give sufficient statistics, use a marginal inference algorithm");
+	}
+
+	public String getName() {
+		return "Most Probable Explanation";
+	}
+
+	public boolean isRandom() {
+		return false;
+	}
+
+	@Override
+	public void evidenceSet(DynamicBayesNetModel model) {
+		// The compiled junction tree picks up the evidence itself
+	}
+
+	@Override
+	public void parameterLearningDone(DynamicBayesNetModel model) {
+		// The junction tree template is regenerated by QueryJunctionTree
+	}
+}
@@ -10,4 +10,8 @@ public enum RandomizedAlgorithmConstants {
 	BURN_IN_TIME, // How long should the sampling run before samples start being
 					// gathered
 	MAX_SAMPLES, // What is the maximum amount of allowable samples
+	NUM_CHAINS, // How many independent chains to sample with
+	R_HAT_THRESHOLD, // Largest split R-hat at which the chains have converged
+	EFFECTIVE_SAMPLE_SIZE, // Smallest effective sample size at which the
+							// chains have converged
 }
@@ -2,25 +2,53 @@ package selrach.bnetbuilder.model.algorithms.inference;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.log4j.Logger;
 
 import selrach.bnetbuilder.model.DynamicBayesNetModel;
 import selrach.bnetbuilder.model.algorithms.exceptions.QueryVariableNotSetException;
+import selrach.bnetbuilder.model.algorithms.graph.EliminationGraph;
+import selrach.bnetbuilder.model.algorithms.graph.EliminationHeuristic;
+import selrach.bnetbuilder.model.algorithms.graph.StandardEliminationHeuristic;
 import selrach.bnetbuilder.model.distributions.DistributionFactory;
 import selrach.bnetbuilder.model.distributions.unconditional.Table;
 import selrach.bnetbuilder.model.variable.ContinuousVariable;
+import selrach.bnetbuilder.model.variable.DiscreteVariable;
 import selrach.bnetbuilder.model.variable.Factor;
 import selrach.bnetbuilder.model.variable.TransientVariable;
 
 /**
  * Variable elimination algorithm
  * 
+ * On a completely discrete network the order the variables are summed out in
+ * is picked by trying each of the elimination heuristics, plus a few restarts
+ * of each with random tie breaking, and keeping whichever order creates the
+ * smallest largest table. Eliminating the slices from last to first is kept
+ * unless something is cheaper. The order chosen and its cost are logged.
+ * Networks with continuous variables are always eliminated from the last
+ * slice to the first with the continuous variables first.
+ * 
+ * When all marginals are asked for on a completely discrete network, the
+ * variables are eliminated once while keeping each bucket
+ * and the message it sends on (bucket tree elimination). A second pass sends
+ * messages back down the buckets, and every variable's marginal is read off of
+ * its own bucket, so the shared work is only done once instead of once per
+ * variable. The parallel instance runs the subtrees of the downward pass on a
+ * fork/join pool. Networks with continuous variables still run a full
+ * elimination per variable.
+ * 
  * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
  * 
  */
@@ -29,15 +57,100 @@ public class VariableElimination implements InferenceAlgorithm {
 	private static final Logger logger = Logger
 			.getLogger(VariableElimination.class);
 
-	private static final VariableElimination instance = new VariableElimination();
+	/**
+	 * Subtrees of the bucket tree with fewer buckets than this are not worth
+	 * the overhead of forking
+	 */
+	public static final int DEFAULT_THRESHOLD = 16;
+
+	/**
+	 * Run the downward pass of the bucket tree on the pool
+	 */
+	private final boolean parallel;
+
+	private final ForkJoinPool pool;
+
+	private int threshold = DEFAULT_THRESHOLD;
+
+	/**
+	 * How many times each heuristic is run again with random tie breaking
+	 * when looking for an elimination order
+	 */
+	public static final int DEFAULT_RESTARTS = 2;
+
+	private List<? extends EliminationHeuristic> heuristics = Arrays
+			.asList(StandardEliminationHeuristic.values());
+
+	private int restarts = DEFAULT_RESTARTS;
 
-	private VariableElimination() {
+	private VariableElimination(boolean parallel) {
+		this.parallel = parallel;
+		this.pool = parallel ? new ForkJoinPool(Runtime.getRuntime()
+				.availableProcessors()) : null;
 	}
 
+	private static final VariableElimination instance = new VariableElimination(
+			false);
+
+	private static final VariableElimination parallelInstance = new VariableElimination(
+			true);
+
 	public static VariableElimination getInstance() {
 		return instance;
 	}
 
+	public static VariableElimination getParallelInstance() {
+		return parallelInstance;
+	}
+
+	/**
+	 * @return the threshold
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @param threshold
+	 *            the threshold to set
+	 */
+	public void setThreshold(int threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @return the heuristics tried when looking for an elimination order
+	 */
+	public List<? extends EliminationHeuristic> getHeuristics() {
+		return heuristics;
+	}
+
+	/**
+	 * @param heuristics
+	 *            the heuristics to try when looking for an elimination order,
+	 *            the cheapest order they find is used unless eliminating the
+	 *            slices from last to first is cheaper
+	 */
+	public void setHeuristics(List<? extends EliminationHeuristic> heuristics) {
+		this.heuristics = heuristics;
+	}
+
+	/**
+	 * @return the restarts
+	 */
+	public int getRestarts() {
+		return restarts;
+	}
+
+	/**
+	 * @param restarts
+	 *            how many times each heuristic is run again with random tie
+	 *            breaking
+	 */
+	public void setRestarts(int restarts) {
+		this.restarts = restarts;
+	}
+
 	PrintStream out;
 	boolean doOut = false;
 
@@ -46,6 +159,10 @@ public class VariableElimination implements InferenceAlgorithm {
 		this.out = updateTracking;
 		this.doOut = this.out != null;
 		if (allMarginals) {
+			if (isDiscrete(model)) {
+				bucketTreeMarginals(model);
+				return null;
+			}
 			// Here we run execute once for each non-evidence variable in the
 			// model...this is really expensive
 			model.storeState();
@@ -162,23 +279,40 @@ public class VariableElimination implements InferenceAlgorithm {
 		// query
 
 		List<Factor> factors = new ArrayList<Factor>();
-		for (TransientVariable tv : variables) {
-			if (tv.isCut()) {
-				continue;
+		if (continuous.isEmpty()) {
+			// Every factor goes in up front and the variables are summed out
+			// in whatever order is cheapest. The factors do not keep track of
+			// what went into them, otherwise a hidden variable would be summed
+			// out as soon as its own factor is combined, which is only right
+			// when it is eliminated leaves first.
+			List<TransientVariable> order = eliminationOrder(variables, false);
+			for (TransientVariable tv : variables) {
+				if (!tv.isCut()) {
+					factors.add(detach(new Factor(tv)));
+				}
+			}
+			for (TransientVariable tv : order) {
+				factors = sumOut(tv, factors);
 			}
+		} else {
+			for (TransientVariable tv : variables) {
+				if (tv.isCut()) {
+					continue;
+				}
 
-			factors.add(new Factor(tv));
+				factors.add(new Factor(tv));
 
-			if ((!tv.isQuery()) 
-					// We are marginalizing over a particular variable
-			) {
-				factors = sumOut(tv, factors);
+				if ((!tv.isQuery()) 
+						// We are marginalizing over a particular variable
+				) {
+					factors = sumOut(tv, factors);
+				}
+				/*
+				 * if ((tv.isHidden() || (queryVariable != null &&
+				 * !tv.isEvidence())) && queryVariable != tv) // Its a hidden
+				 * variable { factors = sumOut(tv, factors); }
+				 */
 			}
-			/*
-			 * if ((tv.isHidden() || (queryVariable != null &&
-			 * !tv.isEvidence())) && queryVariable != tv) // Its a hidden
-			 * variable { factors = sumOut(tv, factors); }
-			 */
 		}
 		Factor mult = null;
 		for (Factor f : factors) {
@@ -214,6 +348,349 @@ public class VariableElimination implements InferenceAlgorithm {
 		return mult;
 	}
 
+	/**
+	 * The same factor without the record of the variables that went into it
+	 */
+	private Factor detach(Factor factor) throws Exception {
+		return new Factor(factor.getDependencies(), factor
+				.getHeadDependencies(), factor.getTailDependencies(), factor
+				.getDistribution());
+	}
+
+	/**
+	 * Picks the cheapest order to sum out the variables that are not cut,
+	 * starting from the order they are listed in
+	 * 
+	 * @param variables
+	 *            every variable, leaves first
+	 * @param all
+	 *            sum out the query variables too
+	 * @return the variables in the order they should be summed out
+	 */
+	private List<TransientVariable> eliminationOrder(
+			List<TransientVariable> variables, boolean all) {
+		List<TransientVariable> nodes = new ArrayList<TransientVariable>();
+		Map<TransientVariable, Integer> index = new HashMap<TransientVariable, Integer>();
+		for (TransientVariable tv : variables) {
+			if (!tv.isCut() && !tv.isEvidence()) {
+				index.put(tv, nodes.size());
+				nodes.add(tv);
+			}
+		}
+		double[] weights = new double[nodes.size()];
+		boolean[] eliminate = new boolean[nodes.size()];
+		List<Integer> given = new ArrayList<Integer>();
+		for (int i = 0; i < weights.length; i++) {
+			TransientVariable tv = nodes.get(i);
+			weights[i] = ((DiscreteVariable) tv.getReference()).getStates()
+					.size();
+			eliminate[i] = all || !tv.isQuery();
+			if (eliminate[i]) {
+				given.add(i);
+			}
+		}
+
+		// Each factor ties a variable to its parents
+		EliminationGraph graph = new EliminationGraph(weights);
+		for (TransientVariable tv : variables) {
+			if (tv.isCut()) {
+				continue;
+			}
+			List<Integer> family = new ArrayList<Integer>();
+			if (index.containsKey(tv)) {
+				family.add(index.get(tv));
+			}
+			for (TransientVariable p : tv.getParents()) {
+				if (index.containsKey(p)) {
+					family.add(index.get(p));
+				}
+			}
+			graph.addClique(family);
+		}
+
+		int[] slices = new int[given.size()];
+		for (int i = 0; i < slices.length; i++) {
+			slices[i] = given.get(i);
+		}
+		EliminationGraph.Order best = graph.findOrder(eliminate,
+				EliminationGraph.Measure.LARGEST_CLIQUE, heuristics, restarts,
+				new Random(0), slices, "the slices");
+
+		List<TransientVariable> ret = new ArrayList<TransientVariable>(best
+				.getOrder().length);
+		for (int i : best.getOrder()) {
+			ret.add(nodes.get(i));
+		}
+		if (logger.isInfoEnabled()) {
+			logger.info("Elimination order from " + best.getName()
+					+ " sums out " + ret.size()
+					+ " variables, the largest table has " + best.getCost()
+					+ " entries");
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("Elimination order " + ret);
+		}
+		return ret;
+	}
+
+	private boolean isDiscrete(DynamicBayesNetModel model) throws Exception {
+		for (int i = 0; i < model.getMaxNumberSlices(); i++) {
+			for (TransientVariable tv : model.getSlice(i).getVariables()) {
+				if (tv.getReference() instanceof ContinuousVariable) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The factors left over when a variable is eliminated
+	 */
+	private static class Bucket {
+		private final TransientVariable variable;
+		private final List<Factor> functions = new ArrayList<Factor>();
+		private final List<Bucket> children = new ArrayList<Bucket>();
+		private final List<Factor> messages = new ArrayList<Factor>();
+
+		/**
+		 * The variables of the message sent to the parent
+		 */
+		private Set<TransientVariable> separator;
+		private int size = 1;
+
+		Bucket(TransientVariable variable) {
+			this.variable = variable;
+		}
+	}
+
+	/**
+	 * Sets the marginal of every non-evidence variable off of a single
+	 * elimination up the buckets and one pass back down
+	 */
+	private void bucketTreeMarginals(DynamicBayesNetModel model)
+			throws Exception {
+		List<TransientVariable> variables = new ArrayList<TransientVariable>();
+		for (int i = model.getMaxNumberSlices() - 1; i >= 0; i--) {
+			List<TransientVariable> vars = new ArrayList<TransientVariable>(
+					model.getSlice(i).getVariables());
+			Collections.reverse(vars);
+			variables.addAll(vars);
+		}
+
+		for (TransientVariable tv : variables) {
+			tv.setCut(false);
+		}
+		List<TransientVariable> elimination = eliminationOrder(variables,
+				true);
+
+		// Every variable is kept around until we sum it out ourselves, a
+		// hidden one would be summed out from under us when factors combine
+		model.storeState();
+		Map<TransientVariable, Integer> order = new HashMap<TransientVariable, Integer>();
+		List<Bucket> eliminated = new ArrayList<Bucket>();
+		for (TransientVariable tv : elimination) {
+			tv.setQuery(false);
+			order.put(tv, eliminated.size());
+			eliminated.add(new Bucket(tv));
+		}
+		try {
+			for (TransientVariable tv : variables) {
+				Factor f = new Factor(tv);
+				Bucket bucket = first(f.getDependencies(), order, eliminated);
+				if (bucket != null) {
+					bucket.functions.add(f);
+				}
+			}
+
+			List<Bucket> roots = new ArrayList<Bucket>();
+			for (Bucket bucket : eliminated) {
+				Factor mult = product(bucket, null, null);
+				Set<TransientVariable> separator = new HashSet<TransientVariable>(
+						mult.getDependencies());
+				separator.remove(bucket.variable);
+				Bucket parent = first(separator, order, eliminated);
+				if (parent == null) {
+					roots.add(bucket);
+					continue;
+				}
+				Factor message = message(mult, separator);
+				bucket.separator = separator;
+				parent.children.add(bucket);
+				parent.messages.add(message);
+				parent.size += bucket.size;
+			}
+			if (logger.isDebugEnabled()) {
+				logger.debug("Eliminated " + eliminated.size()
+						+ " variables into " + roots.size() + " bucket trees");
+			}
+
+			if (parallel) {
+				List<DistributeTask> tasks = new ArrayList<DistributeTask>(
+						roots.size());
+				for (Bucket root : roots) {
+					tasks.add(new DistributeTask(root, null));
+				}
+				try {
+					pool.invoke(new DistributeAllTask(tasks));
+				} catch (RuntimeException e) {
+					for (Throwable t = e; t != null; t = t.getCause()) {
+						if (t instanceof Exception
+								&& !(t instanceof RuntimeException)) {
+							throw (Exception) t;
+						}
+					}
+					throw e;
+				}
+			} else {
+				for (Bucket root : roots) {
+					distribute(root, null, false);
+				}
+			}
+		} finally {
+			model.restoreState();
+		}
+	}
+
+	/**
+	 * The bucket of whichever variable is eliminated first
+	 */
+	private Bucket first(Iterable<TransientVariable> dependencies,
+			Map<TransientVariable, Integer> order, List<Bucket> eliminated) {
+		int first = -1;
+		for (TransientVariable tv : dependencies) {
+			Integer index = order.get(tv);
+			if (index != null && (first == -1 || index < first)) {
+				first = index;
+			}
+		}
+		return first == -1 ? null : eliminated.get(first);
+	}
+
+	/**
+	 * Everything in a bucket multiplied together, leaving out the message
+	 * from one child
+	 */
+	private Factor product(Bucket bucket, Factor fromParent, Bucket skip)
+			throws Exception {
+		Factor mult = fromParent;
+		for (Factor f : bucket.functions) {
+			mult = mult == null ? f : Factor.combine(mult, f);
+		}
+		for (int i = 0; i < bucket.children.size(); i++) {
+			if (bucket.children.get(i) != skip) {
+				Factor f = bucket.messages.get(i);
+				mult = mult == null ? f : Factor.combine(mult, f);
+			}
+		}
+		return mult;
+	}
+
+	/**
+	 * Sets the marginals of a bucket and everything below it. The buckets of a
+	 * network unrolled over many slices chain a long way down, so this walks
+	 * them with a stack and only forks where the tree branches into subtrees
+	 * big enough to be worth it.
+	 */
+	private void distribute(Bucket bucket, Factor fromParent, boolean fork)
+			throws Exception {
+		LinkedList<Bucket> buckets = new LinkedList<Bucket>();
+		LinkedList<Factor> messages = new LinkedList<Factor>();
+		buckets.add(bucket);
+		messages.add(fromParent);
+		List<DistributeTask> tasks = null;
+		while (!buckets.isEmpty()) {
+			Bucket b = buckets.removeLast();
+			Factor m = messages.removeLast();
+			Factor marginal = product(b, m, null).marginalize(
+					Collections.singleton(b.variable));
+			((Table) marginal.getDistribution()).normalize();
+			b.variable.setMarginal(DistributionFactory.downgradeCPD(marginal
+					.getDistribution()));
+
+			boolean kept = false;
+			for (Bucket child : b.children) {
+				Factor message = message(product(b, m, child),
+						child.separator);
+				if (fork && kept && child.size >= threshold) {
+					if (tasks == null) {
+						tasks = new ArrayList<DistributeTask>();
+					}
+					DistributeTask task = new DistributeTask(child, message);
+					task.fork();
+					tasks.add(task);
+				} else {
+					kept |= child.size >= threshold;
+					buckets.add(child);
+					messages.add(message);
+				}
+			}
+		}
+		if (tasks != null) {
+			for (DistributeTask task : tasks) {
+				task.join();
+			}
+		}
+	}
+
+	/**
+	 * Sums a product down onto the separator. The message starts out without
+	 * the record of every variable that went into it, which would otherwise
+	 * be copied along the whole chain of buckets. It is also scaled so it does
+	 * not underflow over long sequences, the marginals are normalized in the
+	 * end so only the proportions matter.
+	 */
+	private Factor message(Factor product, Set<TransientVariable> separator)
+			throws Exception {
+		Factor factor = detach(product.marginalize(separator));
+		double[] p = ((Table) factor.getDistribution()).getProbabilityArray();
+		double max = 0.0;
+		for (int i = 0; i < p.length; i++) {
+			max = Math.max(max, p[i]);
+		}
+		if (max > 0.0) {
+			for (int i = 0; i < p.length; i++) {
+				p[i] /= max;
+			}
+			((Table) factor.getDistribution()).clearCaches();
+		}
+		return factor;
+	}
+
+	@SuppressWarnings("serial")
+	private class DistributeTask extends RecursiveAction {
+		private final Bucket bucket;
+		private final Factor fromParent;
+
+		DistributeTask(Bucket bucket, Factor fromParent) {
+			this.bucket = bucket;
+			this.fromParent = fromParent;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				distribute(bucket, fromParent, true);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class DistributeAllTask extends RecursiveAction {
+		private final List<DistributeTask> tasks;
+
+		DistributeAllTask(List<DistributeTask> tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			ForkJoinTask.invokeAll(tasks);
+		}
+	}
+
 	private List<Factor> sumOut(TransientVariable tv, List<Factor> factors) throws Exception {
 		Factor mult = null;
 		List<Factor> newList = new ArrayList<Factor>();
@@ -245,7 +722,8 @@ public class VariableElimination implements InferenceAlgorithm {
 	}
 
 	public String getName() {
-		return "Variable Elimination";
+		return parallel ? "Variable Elimination (Parallel)"
+				: "Variable Elimination";
 	}
 
 	public boolean isRandom() {
@@ -12,8 +12,6 @@ import selrach.bnetbuilder.model.Utility;
 import selrach.bnetbuilder.model.distributions.conditional.LinearGaussianMix;
 import selrach.bnetbuilder.model.distributions.interfaces.ConditionalDistribution;
 import selrach.bnetbuilder.model.distributions.unconditional.Table;
-import cern.colt.matrix.DoubleFactory1D;
-import cern.colt.matrix.DoubleMatrix1D;
 
 /**
  * Handles several calculations that would be awkward to place directly in the
@@ -25,8 +23,6 @@ import cern.colt.matrix.DoubleMatrix1D;
  */
 public class Operation {
 
-	private static final double EPS = 0.00000001;
-
 	static public class Quadruple implements Comparable<Quadruple> {
 		public Quadruple(int r, int a, int b, String id) {
 			this.r = r;
@@ -188,45 +184,7 @@ public class Operation {
 	 */
 	static private Table combine(Table a, Table b, List<Quadruple> indices)
 			throws Exception {
-
-		DoubleMatrix1D aindices = DoubleFactory1D.dense.make(a
-				.getNumberDimensions(), 0);
-		DoubleMatrix1D bindices = DoubleFactory1D.dense.make(b
-				.getNumberDimensions(), 0);
-		DoubleMatrix1D retindices = DoubleFactory1D.dense.make(indices.size(),
-				0);
-
-		int[] stateLayout = new int[indices.size()];
-		for (int i = 0; i < stateLayout.length; i++) {
-			Quadruple t = indices.get(i);
-			if (t.a != -1) {
-				stateLayout[i] = a.getStateLayout()[t.a];
-			} else {
-				stateLayout[i] = b.getStateLayout()[t.b];
-			}
-		}
-
-		ArrayList<Double> dbl = new ArrayList<Double>();
-
-		do {
-			Utility.setupIndices(stateLayout, retindices, aindices, bindices,
-					indices);
-			double p = a.getProbability(aindices) * b.getProbability(bindices);
-			dbl.add(p);
-		} while (Utility.incrementIndice(retindices, stateLayout));
-
-		DoubleMatrix1D probabilities = DoubleFactory1D.dense.make(dbl.size());
-		for (int i = 0; i < probabilities.size(); i++) {
-			probabilities.setQuick(i, dbl.get(i));
-		}
-
-		if (stateLayout.length == 0) {
-			stateLayout = new int[1];
-			stateLayout[0] = 1;
-		}
-
-		return new Table(stateLayout, probabilities);
-
+		return pointwise(a, b, indices, false);
 	}
 
 	/**
@@ -471,44 +429,25 @@ public class Operation {
 	 */
 	static public Table divide(Table a, Table b, List<Quadruple> indices)
 			throws Exception {
+		return pointwise(a, b, indices, true);
+	}
 
-		DoubleMatrix1D aindices = DoubleFactory1D.dense.make(a
-				.getNumberDimensions(), 0);
-		DoubleMatrix1D bindices = DoubleFactory1D.dense.make(b
-				.getNumberDimensions(), 0);
-		DoubleMatrix1D retindices = DoubleFactory1D.dense.make(indices.size(),
-				0);
-
-		int[] stateLayout = new int[indices.size()];
-		for (int i = 0; i < stateLayout.length; i++) {
-			Quadruple t = indices.get(i);
-			if (t.a != -1) {
-				stateLayout[t.r] = a.getStateLayout()[t.a];
-			} else {
-				stateLayout[t.r] = b.getStateLayout()[t.b];
-			}
-		}
-
-		ArrayList<Double> dbl = new ArrayList<Double>();
-
-		do {
-			Utility.setupIndices(stateLayout, retindices, aindices, bindices,
-					indices);
-			double pA = a.getProbability(aindices);
-			double pB = b.getProbability(bindices);
-			if (pB > EPS) {
-				double p = pA / pB;
-				dbl.add(p);
-			} else {
-				dbl.add(0.0);
-			}
-		} while (Utility.incrementIndice(retindices, stateLayout));
-
-		DoubleMatrix1D probabilities = DoubleFactory1D.dense.make(dbl.size());
-		for (int i = 0; i < probabilities.size(); i++) {
-			probabilities.setQuick(i, dbl.get(i));
-		}
-
-		return new Table(stateLayout, probabilities);
+	/**
+	 * Runs a point-wise operation through its precompiled plan, see TablePlan
+	 * 
+	 * @param a
+	 * @param b
+	 * @param indices
+	 * @param divide
+	 *            true-a/b false-a*b
+	 * @return
+	 * @throws Exception
+	 */
+	static private Table pointwise(Table a, Table b, List<Quadruple> indices,
+			boolean divide) throws Exception {
+		TablePlan plan = TablePlan.getPointwisePlan(a.getStateLayout(), b
+				.getStateLayout(), indices, divide);
+		return new Table(plan.getResultLayout(), plan.apply(a
+				.getProbabilityArray(), b.getProbabilityArray()));
 	}
 }
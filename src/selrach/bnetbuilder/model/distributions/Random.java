@@ -1,17 +1,17 @@
 package selrach.bnetbuilder.model.distributions;
 
-import java.util.Date;
-
 import cern.jet.random.Normal;
 import cern.jet.random.Uniform;
-import cern.jet.random.engine.MersenneTwister;
 
 /**
- * This is a wrapper for the random number generators we will
- * use to do our sampling.  I only wanted to create one
- * MersenneTwister engine because of its overhead, all sampling
- * distributions will use this engine.
- * 
+ * Hands out the random streams we use to do our sampling. Every stream is
+ * split off of one master stream made from a seed, so setting the seed makes
+ * a run repeatable. Each thread gets a stream of its own the first time it
+ * asks, so threads never contend for one generator. Code that runs in several
+ * threads at once, like independent chains, should be given streams split
+ * from the caller's instead, so what each one draws does not depend on which
+ * thread it lands on.
+ *
  * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
  *
  */
@@ -21,39 +21,110 @@ public class Random {
 	 * There should be no instances of this class floating about
 	 *
 	 */
-	private Random(){}
-	
-	private static MersenneTwister engine = null;
-	static
-	{
-		engine = new MersenneTwister(new Date());
+	private Random() {
 	}
-	
-	private static Normal normal = null;
+
+	private static long seed = System.currentTimeMillis();
+	private static RandomStream.Generator generator = RandomStream.Generator.MERSENNE_TWISTER;
+	private static RandomStream master = new RandomStream(generator, seed);
+
 	/**
-	 * Get a Gaussian sampler
-	 * @return
+	 * Bumped whenever the master stream is remade so threads drop their old
+	 * streams
 	 */
-	public static Normal getNormal()
-	{
-		if(normal == null)
-		{
-			normal = new Normal(0, 1, engine);
+	private static volatile int generation = 0;
+
+	private static class ThreadStream {
+		int generation;
+		RandomStream stream;
+	}
+
+	private static final ThreadLocal<ThreadStream> streams = new ThreadLocal<ThreadStream>() {
+		@Override
+		protected ThreadStream initialValue() {
+			return new ThreadStream();
 		}
-		return normal;
+	};
+
+	/**
+	 * @return the seed every stream is made from
+	 */
+	public static synchronized long getSeed() {
+		return seed;
 	}
-	
-	private static Uniform uniform = null;
+
 	/**
-	 * Get a uniform sampler.
-	 * @return
+	 * Remakes every stream from a new seed. The thread that asks for a stream
+	 * first after this gets the first split of the master stream, and so on.
+	 *
+	 * @param seed
+	 */
+	public static synchronized void setSeed(long seed) {
+		Random.seed = seed;
+		reset();
+	}
+
+	/**
+	 * @return what backs the streams
+	 */
+	public static synchronized RandomStream.Generator getGenerator() {
+		return generator;
+	}
+
+	/**
+	 * Remakes every stream from the current seed backed by a different
+	 * generator
+	 *
+	 * @param generator
 	 */
-	public static Uniform getUniform()
-	{
-		if(uniform == null)
-		{
-			uniform = new Uniform(engine);
+	public static synchronized void setGenerator(
+			RandomStream.Generator generator) {
+		Random.generator = generator;
+		reset();
+	}
+
+	private static void reset() {
+		master = new RandomStream(generator, seed);
+		generation++;
+	}
+
+	/**
+	 * @return a new stream split from the master stream
+	 */
+	public static synchronized RandomStream newStream() {
+		return master.split();
+	}
+
+	/**
+	 * @return the current thread's own stream
+	 */
+	public static RandomStream getStream() {
+		ThreadStream ts = streams.get();
+		int current = generation;
+		if (ts.stream == null || ts.generation != current) {
+			synchronized (Random.class) {
+				ts.generation = generation;
+				ts.stream = master.split();
+			}
 		}
-		return uniform;
+		return ts.stream;
+	}
+
+	/**
+	 * Get a Gaussian sampler drawing from the current thread's stream
+	 *
+	 * @return
+	 */
+	public static Normal getNormal() {
+		return getStream().getNormal();
+	}
+
+	/**
+	 * Get a uniform sampler drawing from the current thread's stream
+	 *
+	 * @return
+	 */
+	public static Uniform getUniform() {
+		return getStream().getUniform();
 	}
 }
@@ -0,0 +1,136 @@
+package selrach.bnetbuilder.model.distributions;
+
+import cern.jet.random.Normal;
+import cern.jet.random.Uniform;
+import cern.jet.random.engine.MersenneTwister;
+import cern.jet.random.engine.RandomEngine;
+
+/**
+ * A stream of random numbers that can be split into independent streams.
+ * Streams are not thread safe, each thread or chain should draw from its own,
+ * which {@link Random} hands out. Two streams made from the same seed give the
+ * same numbers, as do their splits made in the same order.
+ *
+ * A stream is backed by either a Mersenne Twister or by SplitMix64, which is
+ * much cheaper to create and to draw from. Either way the seeds of the splits
+ * come from a SplitMix64 sequence of their own, so splitting never disturbs
+ * the numbers the stream itself gives.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public class RandomStream extends RandomEngine {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The generators a stream can be backed by
+	 */
+	public enum Generator {
+		MERSENNE_TWISTER, SPLIT_MIX
+	}
+
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private static final double DOUBLE_UNIT = 1.0 / (1L << 53);
+
+	private final Generator generator;
+	private final MersenneTwister twister;
+	private long state;
+	private long splitState;
+
+	private Uniform uniform = null;
+	private Normal normal = null;
+
+	/**
+	 * @param generator
+	 *            what backs this stream
+	 * @param seed
+	 */
+	public RandomStream(Generator generator, long seed) {
+		this.generator = generator;
+		this.splitState = mix(seed ^ 0x6a09e667f3bcc909L);
+		this.state = mix(seed);
+		if (generator == Generator.MERSENNE_TWISTER) {
+			twister = new MersenneTwister((int) (state ^ (state >>> 32)));
+		} else {
+			twister = null;
+		}
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Makes a new stream, independent of this one and of its other splits
+	 *
+	 * @return a stream backed by the same kind of generator
+	 */
+	public RandomStream split() {
+		splitState += GOLDEN_GAMMA;
+		return new RandomStream(generator, mix(splitState));
+	}
+
+	/**
+	 * @return what backs this stream
+	 */
+	public Generator getGenerator() {
+		return generator;
+	}
+
+	@Override
+	public int nextInt() {
+		if (twister != null) {
+			return twister.nextInt();
+		}
+		return (int) (nextLong() >>> 32);
+	}
+
+	@Override
+	public long nextLong() {
+		if (twister != null) {
+			return twister.nextLong();
+		}
+		state += GOLDEN_GAMMA;
+		return mix(state);
+	}
+
+	/**
+	 * @return a uniform value in (0, 1), neither end included
+	 */
+	@Override
+	public double raw() {
+		if (twister != null) {
+			return twister.raw();
+		}
+		return ((nextLong() >>> 11) + 0.5) * DOUBLE_UNIT;
+	}
+
+	@Override
+	public double nextDouble() {
+		return raw();
+	}
+
+	/**
+	 * @return a uniform sampler drawing from this stream
+	 */
+	public Uniform getUniform() {
+		if (uniform == null) {
+			uniform = new Uniform(this);
+		}
+		return uniform;
+	}
+
+	/**
+	 * @return a standard Gaussian sampler drawing from this stream
+	 */
+	public Normal getNormal() {
+		if (normal == null) {
+			normal = new Normal(0, 1, this);
+		}
+		return normal;
+	}
+}
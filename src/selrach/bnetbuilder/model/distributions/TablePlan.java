@@ -0,0 +1,475 @@
+package selrach.bnetbuilder.model.distributions;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import selrach.bnetbuilder.model.Utility;
+import selrach.bnetbuilder.model.distributions.Operation.Quadruple;
+
+/**
+ * A precompiled walk over the flat storage of one or two tables. Building the
+ * step arrays for a product, division or marginalization only depends on the
+ * state layouts and on how the dimensions line up, so we build it once and
+ * keep it around. During learning the same pairs of scopes come up over and
+ * over again, so most operations just look up their plan and run the loop.
+ * 
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ * 
+ */
+public class TablePlan {
+
+	/**
+	 * How many plans we keep around before throwing out the least recently
+	 * used one
+	 */
+	private static final int MAX_CACHED_PLANS = 4096;
+
+	private static final int COMBINE = 0;
+	private static final int DIVIDE = 1;
+	private static final int MARGINALIZE = 2;
+	private static final int PROJECT = 3;
+
+	private static final double EPS = 0.00000001;
+
+	@SuppressWarnings("serial")
+	private static final Map<Key, TablePlan> cache = Collections
+			.synchronizedMap(new LinkedHashMap<Key, TablePlan>(256, 0.75f,
+					true) {
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<Key, TablePlan> eldest) {
+					return size() > MAX_CACHED_PLANS;
+				}
+			});
+
+	/**
+	 * Cache key, the layouts and dimension mapping packed into one array
+	 */
+	private static final class Key {
+		private final int[] data;
+		private final int hash;
+
+		Key(int[] data) {
+			this.data = data;
+			this.hash = Arrays.hashCode(data);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(data, ((Key) o).data);
+		}
+	}
+
+	private final int type;
+
+	/**
+	 * The layout we walk over, the result layout for a combine or divide and
+	 * the source layout for a marginalization
+	 */
+	private final int[] walkLayout;
+
+	/**
+	 * The layout of the table this plan produces
+	 */
+	private final int[] resultLayout;
+
+	/**
+	 * How far to move in the first operand (or the table multiplied in when
+	 * projecting) for each walked dimension
+	 */
+	private final int[] aSteps;
+
+	/**
+	 * How far to move in the second operand (or the result when
+	 * marginalizing) for each walked dimension
+	 */
+	private final int[] bSteps;
+
+	private final int walkSize;
+	private final int resultSize;
+
+	private TablePlan(int type, int[] walkLayout, int[] resultLayout,
+			int[] aSteps, int[] bSteps) {
+		this.type = type;
+		this.walkLayout = walkLayout;
+		this.resultLayout = resultLayout;
+		this.aSteps = aSteps;
+		this.bSteps = bSteps;
+		int size = 1;
+		for (int s : walkLayout) {
+			size *= s;
+		}
+		this.walkSize = size;
+		size = 1;
+		for (int s : resultLayout) {
+			size *= s;
+		}
+		this.resultSize = size;
+	}
+
+	/**
+	 * Gets the plan for a point-wise product or division of two tables
+	 * 
+	 * @param aLayout
+	 * @param bLayout
+	 * @param indices
+	 *            how the dimensions of a and b map into the result
+	 * @param divide
+	 *            true-a/b false-a*b
+	 * @return
+	 */
+	public static TablePlan getPointwisePlan(int[] aLayout, int[] bLayout,
+			List<Quadruple> indices, boolean divide) {
+		int n = indices.size();
+		int[] data = new int[4 + aLayout.length + bLayout.length + 3 * n];
+		int k = 0;
+		data[k++] = divide ? DIVIDE : COMBINE;
+		data[k++] = aLayout.length;
+		for (int s : aLayout) {
+			data[k++] = s;
+		}
+		data[k++] = bLayout.length;
+		for (int s : bLayout) {
+			data[k++] = s;
+		}
+		data[k++] = n;
+		for (Quadruple t : indices) {
+			data[k++] = t.r;
+			data[k++] = t.a;
+			data[k++] = t.b;
+		}
+		Key key = new Key(data);
+		TablePlan plan = cache.get(key);
+		if (plan == null) {
+			plan = compilePointwise(aLayout, bLayout, indices, divide);
+			cache.put(key, plan);
+		}
+		return plan;
+	}
+
+	/**
+	 * Gets the plan for summing one dimension out of a table
+	 * 
+	 * @param layout
+	 * @param index
+	 *            the dimension to sum out
+	 * @return
+	 */
+	public static TablePlan getMarginalizePlan(int[] layout, int index) {
+		int[] data = new int[2 + layout.length];
+		data[0] = MARGINALIZE;
+		data[1] = index;
+		System.arraycopy(layout, 0, data, 2, layout.length);
+		Key key = new Key(data);
+		TablePlan plan = cache.get(key);
+		if (plan == null) {
+			plan = compileMarginalize(layout, index);
+			cache.put(key, plan);
+		}
+		return plan;
+	}
+
+	private static TablePlan compilePointwise(int[] aLayout, int[] bLayout,
+			List<Quadruple> indices, boolean divide) {
+		int[] aStrides = Utility.calculateStrides(aLayout);
+		int[] bStrides = Utility.calculateStrides(bLayout);
+
+		int n = indices.size();
+		int[] stateLayout = new int[n];
+		int[] aSteps = new int[n];
+		int[] bSteps = new int[n];
+		for (Quadruple t : indices) {
+			if (t.a != -1) {
+				stateLayout[t.r] = aLayout[t.a];
+				aSteps[t.r] = aStrides[t.a];
+			} else {
+				stateLayout[t.r] = bLayout[t.b];
+			}
+			if (t.b != -1) {
+				bSteps[t.r] = bStrides[t.b];
+			}
+		}
+		int[] resultLayout = stateLayout;
+		if (resultLayout.length == 0) {
+			resultLayout = new int[] { 1 };
+		}
+		return new TablePlan(divide ? DIVIDE : COMBINE, stateLayout,
+				resultLayout, aSteps, bSteps);
+	}
+
+	private static TablePlan compileMarginalize(int[] layout, int index) {
+		int[] resultLayout;
+		int[] resultMap = new int[layout.length];
+		if (layout.length <= 1) {
+			resultLayout = new int[] { 1 };
+			resultMap[0] = -1;
+		} else {
+			resultLayout = new int[layout.length - 1];
+			for (int i = 0, j = 0; i < layout.length; i++) {
+				if (i != index) {
+					resultMap[i] = j;
+					resultLayout[j++] = layout[i];
+				} else {
+					resultMap[i] = -1;
+				}
+			}
+		}
+		return compileProjection(layout, null, null, resultLayout, resultMap);
+	}
+
+	/**
+	 * Gets the plan for summing a table onto some subset of its dimensions. If
+	 * another table is given, each entry is multiplied by the matching entry
+	 * of the other table before being summed, this lets us project a product
+	 * without ever building the product. The result dimensions can be in any
+	 * order, so this also serves to copy a table into a different dimension
+	 * ordering.
+	 * 
+	 * @param layout
+	 *            layout of the table being summed over
+	 * @param otherLayout
+	 *            layout of the table to multiply by, null if there is none
+	 * @param otherMap
+	 *            for each dimension of layout, the matching dimension of the
+	 *            other table or -1 if the other table does not have it
+	 * @param resultLayout
+	 *            layout of the result
+	 * @param resultMap
+	 *            for each dimension of layout, the matching dimension of the
+	 *            result or -1 if it gets summed out
+	 * @return
+	 */
+	public static TablePlan getProjectionPlan(int[] layout, int[] otherLayout,
+			int[] otherMap, int[] resultLayout, int[] resultMap) {
+		int otherLength = otherLayout == null ? -1 : otherLayout.length;
+		int[] data = new int[4 + 2 * layout.length
+				+ (otherLayout == null ? 0 : otherLength + layout.length)
+				+ resultLayout.length];
+		int k = 0;
+		data[k++] = PROJECT;
+		data[k++] = layout.length;
+		for (int i = 0; i < layout.length; i++) {
+			data[k++] = layout[i];
+			data[k++] = resultMap[i];
+		}
+		data[k++] = otherLength;
+		if (otherLayout != null) {
+			for (int i = 0; i < otherLayout.length; i++) {
+				data[k++] = otherLayout[i];
+			}
+			for (int i = 0; i < layout.length; i++) {
+				data[k++] = otherMap[i];
+			}
+		}
+		data[k++] = resultLayout.length;
+		for (int s : resultLayout) {
+			data[k++] = s;
+		}
+		Key key = new Key(data);
+		TablePlan plan = cache.get(key);
+		if (plan == null) {
+			plan = compileProjection(layout, otherLayout, otherMap,
+					resultLayout, resultMap);
+			cache.put(key, plan);
+		}
+		return plan;
+	}
+
+	private static TablePlan compileProjection(int[] layout,
+			int[] otherLayout, int[] otherMap, int[] resultLayout,
+			int[] resultMap) {
+		int[] resultStrides = Utility.calculateStrides(resultLayout);
+		int[] outSteps = new int[layout.length];
+		int[] otherSteps = new int[layout.length];
+		int[] otherStrides = otherLayout == null ? null : Utility
+				.calculateStrides(otherLayout);
+		for (int i = 0; i < layout.length; i++) {
+			if (resultMap[i] != -1) {
+				outSteps[i] = resultStrides[resultMap[i]];
+			}
+			if (otherLayout != null && otherMap[i] != -1) {
+				otherSteps[i] = otherStrides[otherMap[i]];
+			}
+		}
+		return new TablePlan(otherLayout == null ? MARGINALIZE : PROJECT,
+				layout.clone(), resultLayout.clone(), otherSteps, outSteps);
+	}
+
+	/**
+	 * @return the state layout of the table this plan produces
+	 */
+	public int[] getResultLayout() {
+		return resultLayout.clone();
+	}
+
+	/**
+	 * @return the number of entries in the table this plan produces
+	 */
+	public int getResultSize() {
+		return resultSize;
+	}
+
+	/**
+	 * @return the number of dimensions walked, the size of the counter needed
+	 *         by the apply methods that take one
+	 */
+	public int getCounterSize() {
+		return walkLayout.length;
+	}
+
+	/**
+	 * Runs a product or division plan
+	 * 
+	 * @param pa
+	 *            flat probabilities of the first operand
+	 * @param pb
+	 *            flat probabilities of the second operand
+	 * @return the flat probabilities of the result
+	 */
+	public double[] apply(double[] pa, double[] pb) {
+		double[] out = new double[resultSize];
+		applyInto(pa, pb, out, new int[walkLayout.length]);
+		return out;
+	}
+
+	/**
+	 * Runs a product or division plan into an existing array. The output may
+	 * be the same array as the first operand as long as the first operand has
+	 * the same layout as the result, which is how the junction tree updates
+	 * its clique potentials in place.
+	 * 
+	 * @param pa
+	 *            flat probabilities of the first operand
+	 * @param pb
+	 *            flat probabilities of the second operand
+	 * @param out
+	 *            where the result is written
+	 * @param current
+	 *            scratch counter with getCounterSize() entries
+	 */
+	public void applyInto(double[] pa, double[] pb, double[] out, int[] current) {
+		final int n = walkLayout.length;
+		int aOffset = 0, bOffset = 0;
+		Arrays.fill(current, 0);
+
+		for (int k = 0; k < walkSize; k++) {
+			if (type == DIVIDE) {
+				double pB = pb[bOffset];
+				out[k] = pB > EPS ? pa[aOffset] / pB : 0.0;
+			} else {
+				out[k] = pa[aOffset] * pb[bOffset];
+			}
+			for (int d = n - 1; d >= 0; d--) {
+				aOffset += aSteps[d];
+				bOffset += bSteps[d];
+				if (++current[d] < walkLayout[d]) {
+					break;
+				}
+				aOffset -= aSteps[d] * walkLayout[d];
+				bOffset -= bSteps[d] * walkLayout[d];
+				current[d] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Runs a marginalization plan
+	 * 
+	 * @param p
+	 *            flat probabilities of the table being summed over
+	 * @return the flat probabilities of the result
+	 */
+	public double[] apply(double[] p) {
+		double[] out = new double[resultSize];
+		project(p, null, out, new int[walkLayout.length]);
+		return out;
+	}
+
+	/**
+	 * Runs a marginalization or projection plan into an existing array, the
+	 * output is cleared first.
+	 * 
+	 * @param p
+	 *            flat probabilities of the table being summed over
+	 * @param other
+	 *            flat probabilities of the table to multiply by, null for a
+	 *            plain marginalization
+	 * @param out
+	 *            where the result is written, must not be p or other
+	 * @param current
+	 *            scratch counter with getCounterSize() entries
+	 */
+	public void project(double[] p, double[] other, double[] out,
+			int[] current) {
+		final int n = walkLayout.length;
+		int otherOffset = 0, outOffset = 0;
+		Arrays.fill(current, 0);
+		Arrays.fill(out, 0, resultSize, 0.0);
+
+		// The source is walked in order, so its offset is just k
+		for (int k = 0; k < walkSize; k++) {
+			if (other == null) {
+				out[outOffset] += p[k];
+			} else {
+				out[outOffset] += p[k] * other[otherOffset];
+			}
+			for (int d = n - 1; d >= 0; d--) {
+				otherOffset += aSteps[d];
+				outOffset += bSteps[d];
+				if (++current[d] < walkLayout[d]) {
+					break;
+				}
+				otherOffset -= aSteps[d] * walkLayout[d];
+				outOffset -= bSteps[d] * walkLayout[d];
+				current[d] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Runs a marginalization plan with a max in place of the sum, which is the
+	 * max-product counterpart of project. Along with each maximum we keep
+	 * where in the source it came from, so the entry that won can be found
+	 * again when tracing back. Any table the plan multiplies in is ignored.
+	 *
+	 * @param p
+	 *            flat probabilities of the table being maximized over
+	 * @param out
+	 *            where the maxima are written, must not be p
+	 * @param argmax
+	 *            where the offset into p of each maximum is written, ties go
+	 *            to the first entry
+	 * @param current
+	 *            scratch counter with getCounterSize() entries
+	 */
+	public void projectMax(double[] p, double[] out, int[] argmax,
+			int[] current) {
+		final int n = walkLayout.length;
+		int outOffset = 0;
+		Arrays.fill(current, 0);
+		Arrays.fill(out, 0, resultSize, Double.NEGATIVE_INFINITY);
+
+		for (int k = 0; k < walkSize; k++) {
+			if (p[k] > out[outOffset]) {
+				out[outOffset] = p[k];
+				argmax[outOffset] = k;
+			}
+			for (int d = n - 1; d >= 0; d--) {
+				outOffset += bSteps[d];
+				if (++current[d] < walkLayout[d]) {
+					break;
+				}
+				outOffset -= bSteps[d] * walkLayout[d];
+				current[d] = 0;
+			}
+		}
+	}
+}
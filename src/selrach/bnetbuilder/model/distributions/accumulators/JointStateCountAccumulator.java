@@ -0,0 +1,118 @@
+package selrach.bnetbuilder.model.distributions.accumulators;
+
+import selrach.bnetbuilder.model.Utility;
+import selrach.bnetbuilder.model.distributions.unconditional.Table;
+
+/**
+ * Counts how often a set of discrete variables is seen in each joint state,
+ * laid out the same as a Table over them with the last variable moving the
+ * fastest.
+ * 
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ * 
+ */
+public class JointStateCountAccumulator {
+
+	private final int[] stateLayout;
+	private final int[] strides;
+	private final double[] counts;
+	private long count = 0;
+	private double totalWeight = 0.0;
+
+	/**
+	 * @param stateLayout
+	 *            the number of states of each variable
+	 */
+	public JointStateCountAccumulator(int[] stateLayout) {
+		this.stateLayout = stateLayout.clone();
+		this.strides = Utility.calculateStrides(stateLayout);
+		int numberStates = 1;
+		for (int s : stateLayout) {
+			numberStates *= s;
+		}
+		counts = new double[numberStates];
+	}
+
+	/**
+	 * Adds a sample of the joint state
+	 * 
+	 * @param states
+	 *            the state of each variable
+	 */
+	public void add(int[] states) {
+		add(states, 1.0);
+	}
+
+	/**
+	 * Adds a weighted sample of the joint state
+	 * 
+	 * @param states
+	 *            the state of each variable
+	 * @param weight
+	 */
+	public void add(int[] states, double weight) {
+		int index = 0;
+		for (int i = 0; i < strides.length; i++) {
+			index += strides[i] * states[i];
+		}
+		counts[index] += weight;
+		count++;
+		totalWeight += weight;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getTotalWeight() {
+		return totalWeight;
+	}
+
+	/**
+	 * Adds in everything another accumulator has seen
+	 * 
+	 * @param other
+	 *            an accumulator over the same layout
+	 * @throws Exception
+	 *             if it is not
+	 */
+	public void merge(JointStateCountAccumulator other) throws Exception {
+		if (other.counts.length != counts.length) {
+			throw new Exception("Can only merge joint counts over the same states");
+		}
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		totalWeight += other.totalWeight;
+	}
+
+	/**
+	 * @return an empty accumulator over the same layout
+	 */
+	public JointStateCountAccumulator emptyCopy() {
+		return new JointStateCountAccumulator(stateLayout);
+	}
+
+	/**
+	 * Forgets every sample
+	 */
+	public void clear() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = 0.0;
+		}
+		count = 0;
+		totalWeight = 0.0;
+	}
+
+	/**
+	 * @return the joint distribution of the samples seen so far
+	 * @throws Exception
+	 */
+	public Table getDistribution() throws Exception {
+		Table table = stateLayout.length == 0 ? new Table(counts) : new Table(
+				stateLayout, counts.clone());
+		table.normalize();
+		return table;
+	}
+}
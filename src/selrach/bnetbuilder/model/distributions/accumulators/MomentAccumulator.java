@@ -0,0 +1,92 @@
+package selrach.bnetbuilder.model.distributions.accumulators;
+
+import selrach.bnetbuilder.model.distributions.interfaces.UnconditionalDistribution;
+import selrach.bnetbuilder.model.distributions.unconditional.Gaussian;
+
+/**
+ * Keeps the running mean and variance of a continuous variable, Welford's
+ * update for each sample (weighted as in West) and Chan's formula to merge.
+ * 
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ * 
+ */
+public class MomentAccumulator implements SampleAccumulator {
+
+	private long count = 0;
+	private double totalWeight = 0.0;
+	private double mean = 0.0;
+	/**
+	 * The weighted sum of squared differences from the mean
+	 */
+	private double m2 = 0.0;
+
+	public void add(double value) {
+		add(value, 1.0);
+	}
+
+	public void add(double value, double weight) {
+		if (weight <= 0.0) {
+			count++;
+			return;
+		}
+		count++;
+		totalWeight += weight;
+		double delta = value - mean;
+		mean += delta * weight / totalWeight;
+		m2 += weight * delta * (value - mean);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getTotalWeight() {
+		return totalWeight;
+	}
+
+	/**
+	 * @return the mean of the samples
+	 */
+	public double getMean() {
+		return mean;
+	}
+
+	/**
+	 * @return the unbiased variance of the samples, treating the weights as
+	 *         how many times each one was seen
+	 */
+	public double getVariance() {
+		return m2 / (totalWeight - 1.0);
+	}
+
+	public void merge(SampleAccumulator other) throws Exception {
+		if (!(other instanceof MomentAccumulator)) {
+			throw new Exception("Can only merge moments with moments");
+		}
+		MomentAccumulator o = (MomentAccumulator) other;
+		count += o.count;
+		if (o.totalWeight <= 0.0) {
+			return;
+		}
+		double weight = totalWeight + o.totalWeight;
+		double delta = o.mean - mean;
+		mean += delta * o.totalWeight / weight;
+		m2 += o.m2 + delta * delta * totalWeight * o.totalWeight / weight;
+		totalWeight = weight;
+	}
+
+	public SampleAccumulator emptyCopy() {
+		return new MomentAccumulator();
+	}
+
+	public void clear() {
+		count = 0;
+		totalWeight = 0.0;
+		mean = 0.0;
+		m2 = 0.0;
+	}
+
+	public UnconditionalDistribution getDistribution() throws Exception {
+		return new Gaussian(mean, getVariance());
+	}
+}
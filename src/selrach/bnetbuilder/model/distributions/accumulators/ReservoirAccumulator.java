@@ -0,0 +1,157 @@
+package selrach.bnetbuilder.model.distributions.accumulators;
+
+import java.util.Arrays;
+
+import selrach.bnetbuilder.model.distributions.Random;
+import selrach.bnetbuilder.model.distributions.interfaces.UnconditionalDistribution;
+import cern.jet.random.Uniform;
+
+/**
+ * Keeps a fixed size random subset of the samples next to another
+ * accumulator, for when quantiles are wanted as well as the distribution.
+ * Each sample is given the key u^(1/weight) for a uniform u and the samples
+ * with the largest keys are kept (Efraimidis and Spirakis), which is a
+ * weighted random sample of the ones seen and is merged by keeping the
+ * largest keys of both.
+ * 
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ * 
+ */
+public class ReservoirAccumulator implements SampleAccumulator {
+
+	private final SampleAccumulator inner;
+	private final int capacity;
+	private final Uniform random;
+
+	/**
+	 * Kept as a min heap on the keys so the smallest is the one replaced
+	 */
+	private final double[] keys;
+	private final double[] values;
+	private int size = 0;
+
+	/**
+	 * @param inner
+	 *            the accumulator that gives the distribution
+	 * @param capacity
+	 *            how many samples to keep
+	 */
+	public ReservoirAccumulator(SampleAccumulator inner, int capacity) {
+		this.inner = inner;
+		this.capacity = capacity;
+		this.keys = new double[capacity];
+		this.values = new double[capacity];
+		// Each reservoir gets its own stream so chains can fill theirs at once
+		this.random = Random.getStream().split().getUniform();
+	}
+
+	public void add(double value) {
+		add(value, 1.0);
+	}
+
+	public void add(double value, double weight) {
+		inner.add(value, weight);
+		if (weight > 0.0) {
+			offer(Math.pow(random.nextDouble(), 1.0 / weight), value);
+		}
+	}
+
+	private void offer(double key, double value) {
+		if (size < capacity) {
+			keys[size] = key;
+			values[size] = value;
+			for (int i = size++; i > 0;) {
+				int parent = (i - 1) / 2;
+				if (keys[parent] <= keys[i]) {
+					break;
+				}
+				swap(i, parent);
+				i = parent;
+			}
+		} else if (capacity > 0 && key > keys[0]) {
+			keys[0] = key;
+			values[0] = value;
+			for (int i = 0;;) {
+				int smallest = i;
+				int left = 2 * i + 1;
+				int right = left + 1;
+				if (left < size && keys[left] < keys[smallest]) {
+					smallest = left;
+				}
+				if (right < size && keys[right] < keys[smallest]) {
+					smallest = right;
+				}
+				if (smallest == i) {
+					break;
+				}
+				swap(i, smallest);
+				i = smallest;
+			}
+		}
+	}
+
+	private void swap(int a, int b) {
+		double k = keys[a];
+		keys[a] = keys[b];
+		keys[b] = k;
+		double v = values[a];
+		values[a] = values[b];
+		values[b] = v;
+	}
+
+	public long getCount() {
+		return inner.getCount();
+	}
+
+	public double getTotalWeight() {
+		return inner.getTotalWeight();
+	}
+
+	/**
+	 * @return the samples kept, in no particular order
+	 */
+	public double[] getSamples() {
+		return Arrays.copyOf(values, size);
+	}
+
+	/**
+	 * @param q
+	 *            between 0 and 1
+	 * @return the q quantile of the samples kept
+	 * @throws Exception
+	 *             if nothing has been kept
+	 */
+	public double getQuantile(double q) throws Exception {
+		if (size == 0) {
+			throw new Exception("No samples kept.");
+		}
+		double[] sorted = getSamples();
+		Arrays.sort(sorted);
+		int index = (int) Math.round(q * (size - 1));
+		return sorted[Math.max(0, Math.min(size - 1, index))];
+	}
+
+	public void merge(SampleAccumulator other) throws Exception {
+		if (!(other instanceof ReservoirAccumulator)) {
+			throw new Exception("Can only merge reservoirs with reservoirs");
+		}
+		ReservoirAccumulator o = (ReservoirAccumulator) other;
+		inner.merge(o.inner);
+		for (int i = 0; i < o.size; i++) {
+			offer(o.keys[i], o.values[i]);
+		}
+	}
+
+	public SampleAccumulator emptyCopy() {
+		return new ReservoirAccumulator(inner.emptyCopy(), capacity);
+	}
+
+	public void clear() {
+		inner.clear();
+		size = 0;
+	}
+
+	public UnconditionalDistribution getDistribution() throws Exception {
+		return inner.getDistribution();
+	}
+}
@@ -0,0 +1,70 @@
+package selrach.bnetbuilder.model.distributions.accumulators;
+
+import selrach.bnetbuilder.model.distributions.interfaces.UnconditionalDistribution;
+
+/**
+ * Keeps a running summary of the samples drawn for one variable instead of
+ * the samples themselves, so the memory used does not grow with the number
+ * of samples. Accumulators of the same kind can be merged, which is how the
+ * samples of chains that ran separately are put together.
+ * 
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ * 
+ */
+public interface SampleAccumulator {
+
+	/**
+	 * Adds a sample
+	 * 
+	 * @param value
+	 *            the state index of a discrete variable, or the value of a
+	 *            continuous one
+	 */
+	public void add(double value);
+
+	/**
+	 * Adds a weighted sample
+	 * 
+	 * @param value
+	 * @param weight
+	 *            how many samples this one counts as, it does not have to be
+	 *            whole
+	 */
+	public void add(double value, double weight);
+
+	/**
+	 * @return how many samples have been added
+	 */
+	public long getCount();
+
+	/**
+	 * @return the sum of the weights of the samples added
+	 */
+	public double getTotalWeight();
+
+	/**
+	 * Adds in everything another accumulator has seen
+	 * 
+	 * @param other
+	 *            an accumulator of the same kind over the same variable
+	 * @throws Exception
+	 *             if it is not
+	 */
+	public void merge(SampleAccumulator other) throws Exception;
+
+	/**
+	 * @return an empty accumulator of the same kind, set up the same way
+	 */
+	public SampleAccumulator emptyCopy();
+
+	/**
+	 * Forgets every sample
+	 */
+	public void clear();
+
+	/**
+	 * @return the distribution of the samples seen so far
+	 * @throws Exception
+	 */
+	public UnconditionalDistribution getDistribution() throws Exception;
+}
@@ -0,0 +1,88 @@
+package selrach.bnetbuilder.model.distributions.accumulators;
+
+import selrach.bnetbuilder.model.distributions.interfaces.UnconditionalDistribution;
+import selrach.bnetbuilder.model.distributions.unconditional.Table;
+
+/**
+ * Counts how often a discrete variable is seen in each of its states
+ * 
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ * 
+ */
+public class StateCountAccumulator implements SampleAccumulator {
+
+	private final double[] counts;
+	private long count = 0;
+	private double totalWeight = 0.0;
+
+	public StateCountAccumulator(int numberStates) {
+		counts = new double[numberStates];
+	}
+
+	/**
+	 * Adds a sample of a state
+	 * 
+	 * @param state
+	 */
+	public void add(int state) {
+		counts[state]++;
+		count++;
+		totalWeight++;
+	}
+
+	public void add(double value) {
+		add((int) value);
+	}
+
+	public void add(double value, double weight) {
+		counts[(int) value] += weight;
+		count++;
+		totalWeight += weight;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getTotalWeight() {
+		return totalWeight;
+	}
+
+	/**
+	 * @return how many times the variable was seen in each state, weighted
+	 */
+	public double[] getCounts() {
+		return counts.clone();
+	}
+
+	public void merge(SampleAccumulator other) throws Exception {
+		if (!(other instanceof StateCountAccumulator)
+				|| ((StateCountAccumulator) other).counts.length != counts.length) {
+			throw new Exception("Can only merge state counts over as many states");
+		}
+		StateCountAccumulator o = (StateCountAccumulator) other;
+		for (int s = 0; s < counts.length; s++) {
+			counts[s] += o.counts[s];
+		}
+		count += o.count;
+		totalWeight += o.totalWeight;
+	}
+
+	public SampleAccumulator emptyCopy() {
+		return new StateCountAccumulator(counts.length);
+	}
+
+	public void clear() {
+		for (int s = 0; s < counts.length; s++) {
+			counts[s] = 0.0;
+		}
+		count = 0;
+		totalWeight = 0.0;
+	}
+
+	public UnconditionalDistribution getDistribution() throws Exception {
+		Table table = new Table(counts);
+		table.normalize();
+		return table;
+	}
+}
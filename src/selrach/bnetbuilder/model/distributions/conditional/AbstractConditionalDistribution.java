@@ -3,6 +3,7 @@ package selrach.bnetbuilder.model.distributions.conditional;
 import java.util.List;
 
 import selrach.bnetbuilder.model.distributions.DistributionDescriptor;
+import selrach.bnetbuilder.model.distributions.RandomStream;
 import selrach.bnetbuilder.model.distributions.interfaces.ConditionalDistribution;
 import selrach.bnetbuilder.model.distributions.interfaces.UnconditionalDistribution;
 import selrach.bnetbuilder.model.variable.RandomVariable;
@@ -188,6 +189,11 @@ public abstract class AbstractConditionalDistribution implements
 		return getDensity(parentValues).sample();
 	}
 
+	public DoubleMatrix1D sample(DoubleMatrix1D parentValues,
+			RandomStream random) throws Exception {
+		return getDensity(parentValues).sample(random);
+	}
+
 	/**
 	 * Calculates the number of states for all the discrete parents and the
 	 * dimension of discrete and continuous parents.
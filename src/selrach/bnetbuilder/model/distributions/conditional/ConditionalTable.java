@@ -414,11 +414,16 @@ public class ConditionalTable extends Mixture {
 	 */
 	public ConditionalDistribution flatten() throws Exception {
 
-		DoubleMatrix1D probs = DoubleFactory1D.dense.make(0);
+		int size = 0;
 		for (ConditionalDistribution dist : distributions) {
-			Table tbl = (Table) dist;
-			probs = DoubleFactory1D.dense.append(probs, tbl
-					.getProbabilityVector());
+			size += ((Table) dist).getNumberStates();
+		}
+		double[] probs = new double[size];
+		int offset = 0;
+		for (ConditionalDistribution dist : distributions) {
+			double[] p = ((Table) dist).getProbabilityArray();
+			System.arraycopy(p, 0, probs, offset, p.length);
+			offset += p.length;
 		}
 
 		int[] newStateLayout = new int[parentLayout.length + stateLayout.length];
@@ -226,6 +226,29 @@ public class LinearGaussian extends AbstractConditionalDistribution {
 		return gaussian;
 	}
 
+	/**
+	 * @return the unconditional offset, B_0
+	 */
+	public DoubleMatrix1D getBaseMean() {
+		return basemu;
+	}
+
+	/**
+	 * @return the offsets for each continuous parent, B^T, null if there are
+	 *         no parents
+	 */
+	public DoubleMatrix2D getCoefficients() {
+		return coefficients;
+	}
+
+	/**
+	 * @return the covariance around the conditional mean
+	 * @throws Exception
+	 */
+	public DoubleMatrix2D getCovariance() throws Exception {
+		return gaussian.getCovariance();
+	}
+
 	/**
 	 * Reduces this distribution in respect to evidence parents.
 	 * 
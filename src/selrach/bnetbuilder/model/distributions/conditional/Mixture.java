@@ -62,13 +62,18 @@ public abstract class Mixture extends AbstractConditionalDistribution {
 	public UnconditionalDistribution getDensity(DoubleMatrix1D parentValues)
 			throws Exception {
 		int[] continuousIndices = new int[numberContinuousParentDimensions];
-		for(int i=0, j=0; i<parentLayout.length; i++)
+		int[] discreteIndices = new int[numberDiscreteParentDimensions];
+		for(int i=0, j=0, k=0; i<parentLayout.length; i++)
 		{
 			if(parentLayout[i] <=0) {
 				continuousIndices[j++] = i;
+			} else {
+				discreteIndices[k++] = i;
 			}
 		}
-		return distributions[Utility.calculateIndex(parentValues, parentLayout)]
+		// The index is worked out from the discrete parents only
+		return distributions[Utility.calculateIndex(parentValues
+				.viewSelection(discreteIndices), parentLayout)]
 				.getDensity(parentValues.viewSelection(continuousIndices));
 	}
 
@@ -5,6 +5,7 @@ import java.util.List;
 import java.util.Map;
 
 import selrach.bnetbuilder.model.distributions.DistributionDescriptor;
+import selrach.bnetbuilder.model.distributions.RandomStream;
 import selrach.bnetbuilder.model.distributions.Operation.Tuple;
 import selrach.bnetbuilder.model.variable.Factor;
 import selrach.bnetbuilder.model.variable.RandomVariable;
@@ -130,6 +131,17 @@ public interface ConditionalDistribution {
 	 */
 	public DoubleMatrix1D sample(DoubleMatrix1D parentValues) throws Exception;
 
+	/**
+	 * Returns a random sample from this distribution given the current values
+	 * in the parents, drawn from the given stream.
+	 * 
+	 * @param parentValues
+	 * @param random
+	 * @return
+	 */
+	public DoubleMatrix1D sample(DoubleMatrix1D parentValues,
+			RandomStream random) throws Exception;
+
 	/**
 	 * Gets a string representing the distribution type
 	 * 
@@ -1,5 +1,6 @@
 package selrach.bnetbuilder.model.distributions.interfaces;
 
+import selrach.bnetbuilder.model.distributions.RandomStream;
 import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.DoubleMatrix2D;
 
@@ -36,6 +37,15 @@ public interface UnconditionalDistribution extends ConditionalDistribution {
 	 */
 	public DoubleMatrix1D sample() throws Exception;
 
+	/**
+	 * Returns a random sample from the current distribution drawn from the
+	 * given stream
+	 * 
+	 * @param random
+	 * @return
+	 */
+	public DoubleMatrix1D sample(RandomStream random) throws Exception;
+
 	/**
 	 * Returns the expected value from this distribution
 	 * 
@@ -3,6 +3,7 @@ package selrach.bnetbuilder.model.distributions.unconditional;
 import java.util.List;
 
 import selrach.bnetbuilder.model.distributions.DistributionDescriptor;
+import selrach.bnetbuilder.model.distributions.RandomStream;
 import selrach.bnetbuilder.model.distributions.conditional.AbstractConditionalDistribution;
 import selrach.bnetbuilder.model.distributions.interfaces.ConditionalDistribution;
 import selrach.bnetbuilder.model.distributions.interfaces.UnconditionalDistribution;
@@ -53,6 +54,10 @@ public abstract class AbstractUnconditionalDistribution extends
 		throw new Exception(getClass().getName() + " sample not implemented");
 	}
 
+	public DoubleMatrix1D sample(RandomStream random) throws Exception {
+		throw new Exception(getClass().getName() + " sample not implemented");
+	}
+
 	@Override
 	public UnconditionalDistribution getDensity(DoubleMatrix1D parentValues)
 			throws Exception {
@@ -108,6 +113,12 @@ public abstract class AbstractUnconditionalDistribution extends
 		return sample();
 	}
 
+	@Override
+	public DoubleMatrix1D sample(DoubleMatrix1D parentValues,
+			RandomStream random) throws Exception {
+		return sample(random);
+	}
+
 	@Override
 	public int[] getStateLayout() {
 		return null;
@@ -8,6 +8,7 @@ import java.util.Map;
 import selrach.bnetbuilder.model.distributions.DistributionConstant;
 import selrach.bnetbuilder.model.distributions.DistributionDescriptor;
 import selrach.bnetbuilder.model.distributions.Random;
+import selrach.bnetbuilder.model.distributions.RandomStream;
 import selrach.bnetbuilder.model.distributions.Operation.Tuple;
 import selrach.bnetbuilder.model.distributions.interfaces.ConditionalDistribution;
 import selrach.bnetbuilder.model.distributions.interfaces.UnconditionalDistribution;
@@ -22,7 +23,6 @@ import cern.colt.matrix.DoubleMatrix2D;
 import cern.colt.matrix.linalg.Algebra;
 import cern.colt.matrix.linalg.CholeskyDecomposition;
 import cern.jet.math.PlusMult;
-import cern.jet.random.Normal;
 
 /**
  * This handles a Gaussian distribution, both single and multivariate.
@@ -66,11 +66,6 @@ public class Gaussian extends AbstractUnconditionalDistribution {
 	 */
 	private final Algebra algebra = new Algebra();
 
-	/**
-	 * Random number generator for this distribution
-	 */
-	private final Normal random = Random.getNormal();
-
 	// /
 	// /Constructors
 	// /
@@ -289,8 +284,13 @@ public class Gaussian extends AbstractUnconditionalDistribution {
 
 	@Override
 	public DoubleMatrix1D sample() throws Exception {
+		return sample(Random.getStream());
+	}
+
+	@Override
+	public DoubleMatrix1D sample(RandomStream random) throws Exception {
 		DoubleMatrix1D ret = DoubleFactory1D.dense.make(numberDimensions);
-		ret.assign(random);
+		ret.assign(random.getNormal());
 		ret = algebra.mult(covariance_cd.getL(), ret);
 		ret.assign(mu, PlusMult.plusMult(1.0));
 		return ret;
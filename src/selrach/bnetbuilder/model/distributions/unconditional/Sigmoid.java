@@ -8,6 +8,7 @@ import java.util.Map;
 import selrach.bnetbuilder.model.distributions.DistributionConstant;
 import selrach.bnetbuilder.model.distributions.DistributionDescriptor;
 import selrach.bnetbuilder.model.distributions.Random;
+import selrach.bnetbuilder.model.distributions.RandomStream;
 import selrach.bnetbuilder.model.distributions.Operation.Tuple;
 import selrach.bnetbuilder.model.distributions.interfaces.ConditionalDistribution;
 import selrach.bnetbuilder.model.distributions.interfaces.UnconditionalDistribution;
@@ -19,7 +20,6 @@ import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.DoubleMatrix2D;
 import cern.colt.matrix.linalg.Algebra;
 import cern.jet.math.Functions;
-import cern.jet.random.Uniform;
 
 /**
  * Handles a multi-state discrete representation through the use of a sigmoid
@@ -59,11 +59,6 @@ public class Sigmoid extends AbstractUnconditionalDistribution {
 	 */
 	private DoubleMatrix1D muCache = null;
 
-	/**
-	 * Uniform random number generator
-	 */
-	private final Uniform random = Random.getUniform();
-
 	/**
 	 * algebra object for matrix manipulation
 	 */
@@ -139,7 +134,7 @@ public class Sigmoid extends AbstractUnconditionalDistribution {
 			numberStates *= stateLayout[i];
 		}
 		this.lvalues = DoubleFactory1D.dense.make(numberStates);
-		this.lvalues.assign(this.random);
+		this.lvalues.assign(Random.getUniform());
 		this.lvalueSum = lvalues.aggregate(Functions.plus, Functions.exp);
 	}
 
@@ -260,6 +255,11 @@ public class Sigmoid extends AbstractUnconditionalDistribution {
 
 	@Override
 	public DoubleMatrix1D sample() throws Exception {
+		return sample(Random.getStream());
+	}
+
+	@Override
+	public DoubleMatrix1D sample(RandomStream random) throws Exception {
 		/*
 		 * The idea behind this is to take a uniform sampling, then subtract off
 		 * the probability of each state along each dimension until we hit 0 or
@@ -1,6 +1,7 @@
 package selrach.bnetbuilder.model.distributions.unconditional;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -10,6 +11,8 @@ import selrach.bnetbuilder.model.distributions.DistributionConstant;
 import selrach.bnetbuilder.model.distributions.DistributionDescriptor;
 import selrach.bnetbuilder.model.distributions.Operation;
 import selrach.bnetbuilder.model.distributions.Random;
+import selrach.bnetbuilder.model.distributions.RandomStream;
+import selrach.bnetbuilder.model.distributions.TablePlan;
 import selrach.bnetbuilder.model.distributions.Operation.Quadruple;
 import selrach.bnetbuilder.model.distributions.Operation.Tuple;
 import selrach.bnetbuilder.model.distributions.interfaces.ConditionalDistribution;
@@ -53,11 +56,6 @@ public class Table extends AbstractUnconditionalDistribution {
 	 */
 	private final Algebra algebra = new Algebra();
 
-	/**
-	 * Random uniform value generator
-	 */
-	private final Uniform random = Random.getUniform();
-
 	/**
 	 * Cache for mean
 	 */
@@ -75,8 +73,11 @@ public class Table extends AbstractUnconditionalDistribution {
 	 * states apiece, we get a total of 27 different states, the index ordering
 	 * is as follows 0 - 000, 1-001, 2-002, 3-010, 4-011, 5-012, 6-020, 7-021,
 	 * 8-022, 9-100, ..., 25-221, 26-222
+	 * 
+	 * Kept as a flat primitive array so the factor operations can walk it with
+	 * plain offset arithmetic instead of boxing or going through colt.
 	 */
-	private DoubleMatrix1D probabilities;
+	private double[] probabilities;
 
 	/**
 	 * This is used for sufficient statistics
@@ -102,7 +103,7 @@ public class Table extends AbstractUnconditionalDistribution {
 		super(copy);
 		this.stateLayout = copy.stateLayout.clone();
 		this.numberStates = copy.numberStates;
-		this.probabilities = copy.probabilities.copy();
+		this.probabilities = copy.probabilities.clone();
 		counts = new double[numberStates];
 	}
 
@@ -115,7 +116,7 @@ public class Table extends AbstractUnconditionalDistribution {
 	public Table(DoubleMatrix1D probabilities) throws Exception {
 		numberStates = probabilities.size();
 		stateLayout = new int[] { numberStates };
-		this.probabilities = probabilities.copy();
+		this.probabilities = probabilities.toArray();
 		counts = new double[numberStates];
 		// normalize();
 	}
@@ -129,7 +130,7 @@ public class Table extends AbstractUnconditionalDistribution {
 	public Table(double[] probabilities) throws Exception {
 		numberStates = probabilities.length;
 		stateLayout = new int[] { numberStates };
-		this.probabilities = DoubleFactory1D.dense.make(probabilities);
+		this.probabilities = probabilities.clone();
 		counts = new double[numberStates];
 		// normalize();
 	}
@@ -227,11 +228,40 @@ public class Table extends AbstractUnconditionalDistribution {
 		}
 		this.stateLayout = stateLayout.clone();
 		this.numberDimensions = this.stateLayout.length;
-		this.probabilities = probabilities.copy();
+		this.probabilities = probabilities.toArray();
 		counts = new double[numberStates];
 		// normalize();
 	}
 
+	/**
+	 * Creates a multi-dimensional discrete distribution with the given state
+	 * layout that takes ownership of the given probability array. The array is
+	 * not copied, so the caller must not hold on to it. This is what the table
+	 * operations use to hand back their results without an extra copy.
+	 * 
+	 * @param stateLayout
+	 * @param probabilities
+	 * @throws Exception
+	 */
+	public Table(int[] stateLayout, double[] probabilities) throws Exception {
+		if (stateLayout.length <= 0) {
+			throw new Exception(
+					"Discrete variables must have at least 1 dimension");
+		}
+		numberStates = 1;
+		for (int i : stateLayout) {
+			numberStates *= i;
+		}
+		if (numberStates != probabilities.length) {
+			throw new Exception(
+					"Dimensions of stateLayout and probabilities must match.");
+		}
+		this.stateLayout = stateLayout.clone();
+		this.numberDimensions = this.stateLayout.length;
+		this.probabilities = probabilities;
+		counts = new double[numberStates];
+	}
+
 	// /
 	// /Private Functions
 	// /
@@ -244,8 +274,8 @@ public class Table extends AbstractUnconditionalDistribution {
 	private void createUniform(int numStates) {
 		numberStates = numStates;
 		counts = new double[numberStates];
-		probabilities = DoubleFactory1D.dense.make(numberStates,
-				1.0 / numberStates);
+		probabilities = new double[numberStates];
+		Arrays.fill(probabilities, 1.0 / numberStates);
 	}
 
 	/**
@@ -256,8 +286,11 @@ public class Table extends AbstractUnconditionalDistribution {
 	private void createRandom(int numStates) {
 		numberStates = numStates;
 		counts = new double[numberStates];
-		probabilities = DoubleFactory1D.dense.make(numberStates);
-		probabilities.assign(random);
+		probabilities = new double[numberStates];
+		Uniform random = Random.getUniform();
+		for (int i = 0; i < numberStates; i++) {
+			probabilities[i] = random.nextDouble();
+		}
 		normalize();
 	}
 
@@ -269,18 +302,25 @@ public class Table extends AbstractUnconditionalDistribution {
 	 * 
 	 */
 	public void normalize() {
+		muCache = null;
+		covarianceCache = null;
 		normalize(probabilities);
 	}
 
-	private void normalize(DoubleMatrix1D p) {
-		double sum = p.zSum();
+	private void normalize(double[] p) {
+		final int sz = p.length;
+		double sum = 0.0;
+		for (int i = 0; i < sz; i++) {
+			sum += p[i];
+		}
 		if (Math.abs(sum) < eps) {
-			for (int i = 0; i < p.size(); i++) {
-				p.setQuick(i, 1.0 / numberStates);
+			final double u = 1.0 / numberStates;
+			for (int i = 0; i < sz; i++) {
+				p[i] = u;
 			}
 		} else if (Math.abs(sum - 1.0) > eps) {
-			for (int i = 0; i < p.size(); i++) {
-				p.setQuick(i, p.getQuick(i) / sum);
+			for (int i = 0; i < sz; i++) {
+				p[i] /= sum;
 			}
 		}
 	}
@@ -305,21 +345,53 @@ public class Table extends AbstractUnconditionalDistribution {
 			// ind = (stateLayout[i]) * (ind + (int) currentState[i]);
 		}
 		// ind += (int)currentState[i];
-		this.probabilities.setQuick(ind, probability);
+		this.probabilities[ind] = probability;
 	}
 
 	@Override
 	public double getProbability(DoubleMatrix1D elementValues) throws Exception {
 
 		if (numberDimensions == 0 || numberStates == 1) {
-			return probabilities.getQuick(0);
+			return probabilities[0];
 		}
-		return probabilities.getQuick(Utility.calculateIndex(elementValues,
-				stateLayout));
+		return probabilities[Utility.calculateIndex(elementValues, stateLayout)];
+	}
+
+	/**
+	 * Gets the probability stored at a flat index of this table, see the
+	 * ordering described on the probabilities member.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public double getProbability(int index) {
+		return probabilities[index];
 	}
 
 	public DoubleMatrix1D getProbabilityVector() {
-		return probabilities.copy();
+		return DoubleFactory1D.dense.make(probabilities);
+	}
+
+	/**
+	 * Gives direct access to the flat probability storage of this table. This
+	 * is intended for the table operations that need to run over the whole
+	 * table without copying, anything else should use getProbabilityVector. If
+	 * you write into the array you are responsible for calling
+	 * clearCaches/normalize afterwards.
+	 * 
+	 * @return the backing array, not a copy
+	 */
+	public double[] getProbabilityArray() {
+		return probabilities;
+	}
+
+	/**
+	 * Clears out the cached mean and covariance, needed after the backing array
+	 * has been written to directly.
+	 */
+	public void clearCaches() {
+		muCache = null;
+		covarianceCache = null;
 	}
 
 	/**
@@ -331,7 +403,37 @@ public class Table extends AbstractUnconditionalDistribution {
 	public void setProbability(DoubleMatrix1D probabilities) {
 		muCache = null;
 		covarianceCache = null;
-		this.probabilities = probabilities.copy();
+		this.probabilities = probabilities.toArray();
+	}
+
+	/**
+	 * Zeroes out every entry of this table that is not consistent with the
+	 * given dimension being in the given state. This is the in place version
+	 * of setEvidence, the dimension is kept in the table.
+	 * 
+	 * @param index
+	 *            the dimension the evidence is on
+	 * @param state
+	 *            the state the dimension has been observed in
+	 */
+	public void restrictToState(int index, int state) {
+		muCache = null;
+		covarianceCache = null;
+		int inner = 1;
+		for (int i = index + 1; i < stateLayout.length; i++) {
+			inner *= stateLayout[i];
+		}
+		final int dim = stateLayout[index];
+		final int block = inner * dim;
+		for (int o = 0; o < numberStates; o += block) {
+			for (int k = 0; k < dim; k++) {
+				if (k == state) {
+					continue;
+				}
+				final int from = o + k * inner;
+				Arrays.fill(probabilities, from, from + inner, 0.0);
+			}
+		}
 	}
 
 	/**
@@ -341,7 +443,10 @@ public class Table extends AbstractUnconditionalDistribution {
 	public void randomize() {
 		muCache = null;
 		covarianceCache = null;
-		probabilities.assign(random);
+		Uniform random = Random.getUniform();
+		for (int i = 0; i < numberStates; i++) {
+			probabilities[i] = random.nextDouble();
+		}
 		normalize();
 	}
 
@@ -357,7 +462,7 @@ public class Table extends AbstractUnconditionalDistribution {
 
 		DoubleMatrix1D ret = DoubleFactory1D.dense.make(numberDimensions, 0.0);
 		for (int i = 0; i < numberStates; i++) {
-			double p = probabilities.getQuick(i);
+			double p = probabilities[i];
 			int ind = i;
 			for (int j = numberDimensions - 1; j >= 0; j--) {
 				int states = stateLayout[j];
@@ -415,7 +520,7 @@ public class Table extends AbstractUnconditionalDistribution {
 			// we can skip 0
 			for (int j = 1; j < numberStates; j++) {
 				// This does not work when dimensions > 1
-				double tmp = j * probabilities.getQuick(j);
+				double tmp = j * probabilities[j];
 				eV += tmp;
 				eV2 += j * tmp;
 			}
@@ -427,7 +532,7 @@ public class Table extends AbstractUnconditionalDistribution {
 			DoubleMatrix2D ev2 = DoubleFactory2D.dense.make(numberDimensions,
 					numberDimensions, 0.0);
 			for (int i = 0; i < numberStates; i++) {
-				double p = probabilities.getQuick(i);
+				double p = probabilities[i];
 				int ind = i;
 				for (int j = numberDimensions - 1; j >= 0; j--) {
 					int s = stateLayout[j];
@@ -435,7 +540,7 @@ public class Table extends AbstractUnconditionalDistribution {
 					double tmp = v * p;
 					ev.setQuick(j, tmp + ev.getQuick(j));
 					for (int m = 0; m < numberStates; m++) {
-						double p2 = probabilities.getQuick(m);
+						double p2 = probabilities[m];
 						int ind2 = m;
 						for (int n = numberDimensions - 1; n >= 0; n--) {
 							int v2 = ind2 % stateLayout[n];
@@ -453,6 +558,11 @@ public class Table extends AbstractUnconditionalDistribution {
 
 	@Override
 	public DoubleMatrix1D sample() throws Exception {
+		return sample(Random.getStream());
+	}
+
+	@Override
+	public DoubleMatrix1D sample(RandomStream random) throws Exception {
 		/*
 		 * The idea behind this is to take a uniform sampling, then subtract off
 		 * the probability of each state along each dimension until we hit 0 or
@@ -462,10 +572,10 @@ public class Table extends AbstractUnconditionalDistribution {
 		 */
 		DoubleMatrix1D sample = DoubleFactory1D.dense.make(numberDimensions);
 		DoubleMatrix1D v = DoubleFactory1D.dense.make(numberDimensions);
-		v.assign(random);
+		v.assign(random.getUniform());
 		for (int i = 0; i < numberStates; i++) {
 			int ind = i;
-			double p = probabilities.getQuick(i);
+			double p = probabilities[i];
 			for (int j = 0; j < numberDimensions; j++) {
 				int s = stateLayout[j];
 				int val = ind % s;
@@ -493,8 +603,8 @@ public class Table extends AbstractUnconditionalDistribution {
 		List<DistributionDescriptor> mp;
 		list.add(mp = new ArrayList<DistributionDescriptor>());
 		for (int i = 0; i < numberStates; i++) {
-			mp.add(new DistributionDescriptor("$@" + i + "$$", probabilities
-					.get(i), "Probability of [$@" + i + "$$]"));
+			mp.add(new DistributionDescriptor("$@" + i + "$$",
+					probabilities[i], "Probability of [$@" + i + "$$]"));
 		}
 		return list;
 	}
@@ -512,7 +622,7 @@ public class Table extends AbstractUnconditionalDistribution {
 					+ " invalid number of descriptors");
 		}
 		for (int i = 0; i < numberStates; i++) {
-			probabilities.set(i, mp.get(i).getValue());
+			probabilities[i] = mp.get(i).getValue();
 		}
 		normalize();
 	}
@@ -532,7 +642,7 @@ public class Table extends AbstractUnconditionalDistribution {
 		StringBuilder sb = new StringBuilder();
 		for (int i = 0; i < numberStates; i++) {
 			sb.append(" ");
-			sb.append(probabilities.getQuick(i));
+			sb.append(probabilities[i]);
 		}
 		return sb.toString();
 	}
@@ -562,7 +672,7 @@ public class Table extends AbstractUnconditionalDistribution {
 					"You have a different number of probabilities than possible states in this table");
 		}
 		for (int i = 0; i < numberStates; i++) {
-			probabilities.setQuick(i, Double.parseDouble(probs[i]));
+			probabilities[i] = Double.parseDouble(probs[i]);
 		}
 	}
 
@@ -573,11 +683,13 @@ public class Table extends AbstractUnconditionalDistribution {
 	public double updateDistributionWithSufficientStatistic() throws Exception {
 		// There are no parents to worry about, update directly
 		double dif = 0.0;
-		DoubleMatrix1D newProb = DoubleFactory1D.dense.make(counts);
+		double[] newProb = counts.clone();
 		normalize(newProb);
 		for (int i = 0; i < counts.length; i++) {
-			dif += Math.abs(probabilities.getQuick(i) - newProb.getQuick(i));
+			dif += Math.abs(probabilities[i] - newProb[i]);
 		}
+		muCache = null;
+		covarianceCache = null;
 		probabilities = newProb;
 		return dif;
 	}
@@ -612,67 +724,43 @@ public class Table extends AbstractUnconditionalDistribution {
 
 	public ConditionalDistribution setEvidence(int index, double evidence)
 			throws Exception {
-		DoubleMatrix1D newProps = DoubleFactory1D.dense.make(numberStates
-				/ stateLayout[index]);
-		DoubleMatrix1D indices = DoubleFactory1D.dense.make(numberDimensions);
-		List<Integer> ignore = new ArrayList<Integer>();
-		ignore.add(index);
-		indices.setQuick(index, evidence);
-		int i = 0, j = 0;
-		do {
-			newProps.setQuick(i++, probabilities.getQuick(Utility
-					.calculateIndex(indices, stateLayout)));
-		} while (Utility.incrementIndice(indices, stateLayout, ignore));
-		int[] newLayout = new int[stateLayout.length - 1];
-		for (i = 0, j = 0; i < stateLayout.length; i++, j++) {
-			if (index == i) {
-				j--;
-			} else {
-				newLayout[j] = stateLayout[i];
-			}
-		}
-
-		if (newLayout.length == 0) {
-			newLayout = new int[1];
-			newLayout[0] = 1;
+		// Everything after the evidence dimension is contiguous, so we copy
+		// out one inner block per setting of the dimensions in front of it
+		final int inner = Utility.calculateStrides(stateLayout)[index];
+		final int block = inner * stateLayout[index];
+		final int offset = ((int) evidence) * inner;
+		double[] newProbs = new double[numberStates / stateLayout[index]];
+		for (int o = 0, i = 0; o < numberStates; o += block, i += inner) {
+			System.arraycopy(probabilities, o + offset, newProbs, i, inner);
 		}
 
-		return new Table(newLayout, newProps);
+		return new Table(removeDimension(index), newProbs);
 	}
 
 	public UnconditionalDistribution marginalize(int index,
 			boolean onDependencies) throws Exception {
-		List<Integer> ignore = new ArrayList<Integer>();
-		ignore.add(index);
+		TablePlan plan = TablePlan.getMarginalizePlan(stateLayout, index);
+		return new Table(plan.getResultLayout(), plan.apply(probabilities));
+	}
 
-		int numStates = 1;
-		int[] stateLayout = new int[this.stateLayout.length - 1];
-		if (stateLayout.length == 0) {
-			stateLayout = new int[1];
-			stateLayout[0] = 1;
+	/**
+	 * The state layout of this table with one dimension taken out, a table with
+	 * no dimensions left is represented by the single state layout
+	 * 
+	 * @param index
+	 * @return
+	 */
+	private int[] removeDimension(int index) {
+		if (stateLayout.length <= 1) {
+			return new int[] { 1 };
 		}
-		for (int i = 0, j = 0; i < this.stateLayout.length; i++) {
+		int[] newLayout = new int[stateLayout.length - 1];
+		for (int i = 0, j = 0; i < stateLayout.length; i++) {
 			if (index != i) {
-				stateLayout[j] = this.stateLayout[i];
-				numStates *= stateLayout[j++];
+				newLayout[j++] = stateLayout[i];
 			}
 		}
-
-		DoubleMatrix1D indices = DoubleFactory1D.dense.make(
-				this.stateLayout.length, 0);
-
-		double[] probs = new double[numStates];
-
-		for (int i = 0; i < this.stateLayout[index]; i++) {
-			indices.setQuick(ignore.get(0), i);
-			int j = 0;
-			do {
-				probs[j++] += getProbability(null, indices);
-			} while (Utility.incrementIndice(indices, this.stateLayout, ignore));
-		}
-
-		DoubleMatrix1D probabilities = DoubleFactory1D.dense.make(probs);
-		return new Table(stateLayout, probabilities);
+		return newLayout;
 	}
 
 	@Override
@@ -696,7 +784,17 @@ public class Table extends AbstractUnconditionalDistribution {
 		this.numberStates *= numStates;
 		newLayout[newLayout.length - 1] = numStates;
 
-		probabilities = DoubleFactory1D.dense.repeat(probabilities, numStates);
+		// Each old entry is repeated numStates times, matching the new last
+		// dimension
+		double[] newProbabilities = new double[this.numberStates];
+		for (int i = 0, k = 0; i < probabilities.length; i++) {
+			for (int j = 0; j < numStates; j++) {
+				newProbabilities[k++] = probabilities[i];
+			}
+		}
+		probabilities = newProbabilities;
+		muCache = null;
+		covarianceCache = null;
 
 		stateLayout = newLayout;
 		numberDimensions = stateLayout.length;
@@ -0,0 +1,18 @@
+package selrach.bnetbuilder.model.listener.interfaces;
+
+import selrach.bnetbuilder.model.BayesNetSlice;
+import selrach.bnetbuilder.model.DynamicBayesNetModel;
+
+/**
+ * Notification that the marginals of a slice have been worked out. When only
+ * a few slices are kept in memory this is the only chance to look at them
+ * before the slice is released.
+ * 
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ * 
+ */
+public interface SliceInferredListener {
+
+	public void sliceInferred(DynamicBayesNetModel model, BayesNetSlice slice,
+			int time);
+}
@@ -0,0 +1,1264 @@
+package selrach.bnetbuilder.model.variable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.log4j.Logger;
+
+import selrach.bnetbuilder.model.DynamicBayesNetModel;
+import selrach.bnetbuilder.model.Utility;
+import selrach.bnetbuilder.model.distributions.TablePlan;
+import selrach.bnetbuilder.model.distributions.Operation.Quadruple;
+import selrach.bnetbuilder.model.distributions.unconditional.Table;
+
+/**
+ * A junction tree calibration that has been worked out ahead of time. Running
+ * the serial calibration creates new junction tree slices, rediscovers the
+ * tree through recursion and allocates a new factor for every message. None of
+ * that changes between runs as long as the structure and the number of slices
+ * stay the same, only the evidence does.
+ *
+ * So here we build the junction tree slices once, walk the calibration once
+ * to record every message as an entry in a flat schedule along with its
+ * precompiled table plans, and hold on to the clique, separator and message
+ * tables. Recalibrating then just copies the initial potentials back into the
+ * clique tables, applies the evidence, and runs the schedule over the same
+ * arrays.
+ *
+ * Between calibrations only the evidence tends to change, and usually only a
+ * little of it. So we remember the evidence each clique table was made with
+ * and the clique tables as they stood at the end of the last collect pass.
+ * Recalibrating marks the cliques whose evidence changed as dirty, along with
+ * everything on their paths to the root through the collect pass. The clean
+ * cliques get their collected tables back, the messages they sent are still
+ * in their buffers, and only the dirty cliques are reset and collected again.
+ * The distribute pass still runs over the whole tree, since the marginal of
+ * every clique moves when any evidence does, but it is a single projection
+ * per separator. Every table ends up exactly as a full calibration would
+ * leave it.
+ *
+ * The same collect schedule also finds the most probable explanation. The
+ * messages are maximized instead of summed, keeping a backpointer to the child
+ * entry each maximum came from, and the assignment is traced back down from
+ * the root of the first slice, one slice after the other.
+ *
+ * This only handles completely discrete junction trees, anything else is left
+ * to the regular calibration.
+ *
+ * @author <a href="mailto:charleswrobertson@gmail.com">Charles Robertson</a>
+ *
+ */
+public class CompiledJunctionTree {
+
+	private final static Logger logger = Logger
+			.getLogger(CompiledJunctionTree.class);
+
+	/**
+	 * Copies the factor of one clique into the interface clique of another
+	 * slice, and points it at the same parent separator
+	 */
+	private static final int LINK = 0;
+
+	/**
+	 * Clears the parents of a slice and marks its root
+	 */
+	private static final int ROOT = 1;
+
+	/**
+	 * Sends a message from a child clique to its parent
+	 */
+	private static final int COLLECT = 2;
+
+	/**
+	 * Sets the separator between a parent and child from the parent marginal
+	 */
+	private static final int DISTRIBUTE = 3;
+
+	private final int numberSlices;
+	private final int numberTemplateSlices;
+
+	/**
+	 * The template cliques and separators the schedule was built from, used to
+	 * notice when the template gets rebuilt underneath us
+	 */
+	private final List<List<Clique>> cliqueSets = new ArrayList<List<Clique>>();
+	private final List<List<CliqueSeparator>> cliqueSeparatorSets = new ArrayList<List<CliqueSeparator>>();
+
+	private final List<JunctionTree> junctionTreeSlices = new ArrayList<JunctionTree>();
+
+	private boolean applicable = true;
+
+	//
+	// Buffers
+	//
+
+	private TransientClique[] cliques;
+	private Factor[] cliqueFactors;
+	private int[] cliqueMemberCounts;
+	private GraphVariable[][] cliqueGraphVariables;
+	private TransientVariable[][] cliqueTransientVariables;
+
+	/**
+	 * The variables of each clique that evidence can be set on in its slice,
+	 * and their dimension in the clique table
+	 */
+	private TransientVariable[][] evidenceVariables;
+	private int[][] evidenceDimensions;
+
+	/**
+	 * The evidence state each variable of evidenceVariables had the last time
+	 * the clique table was reset, -1 if it was hidden, and the potential it
+	 * was reset from
+	 */
+	private int[][] appliedEvidence;
+	private Potential[] appliedPotentials;
+
+	/**
+	 * The clique tables at the end of the last collect pass
+	 */
+	private double[][] collectedTables;
+
+	/**
+	 * Did the last calibration make it all the way through, if not the
+	 * collected tables cannot be trusted
+	 */
+	private boolean collected = false;
+
+	/**
+	 * Cliques that have to be collected again during this calibration
+	 */
+	private boolean[] dirty;
+
+	private TransientCliqueSeparator[] separators;
+	private Factor[] separatorFactors;
+	private int[] separatorMemberCounts;
+
+	//
+	// Schedule, entry i of each array describes operation i
+	//
+
+	private int[] operations;
+
+	/**
+	 * LINK-the interface, ROOT-the root, COLLECT-the child, DISTRIBUTE-the
+	 * child
+	 */
+	private TransientClique[] operationCliques;
+
+	/**
+	 * LINK-the source, COLLECT and DISTRIBUTE-the parent
+	 */
+	private TransientClique[] operationParents;
+
+	/**
+	 * Index into cliques of operationCliques and operationParents, -1 if there
+	 * is none
+	 */
+	private int[] operationCliqueIndices;
+	private int[] operationParentIndices;
+
+	/**
+	 * The first operation of the distribute pass
+	 */
+	private int distributeStart;
+
+	/**
+	 * LINK-the parent separator to point to, COLLECT-the separator
+	 */
+	private TransientCliqueSeparator[] operationSeparators;
+
+	/**
+	 * ROOT-the cliques of the slice
+	 */
+	private TransientClique[][] operationSlices;
+
+	/**
+	 * LINK-source, COLLECT-child, DISTRIBUTE-parent
+	 */
+	private double[][] firstTables;
+
+	/**
+	 * LINK-target, COLLECT-parent, DISTRIBUTE-separator
+	 */
+	private double[][] secondTables;
+
+	/**
+	 * COLLECT-the message, DISTRIBUTE-the parent separator or null
+	 */
+	private double[][] thirdTables;
+
+	/**
+	 * LINK-copy, COLLECT-project the child onto the message,
+	 * DISTRIBUTE-project the parent marginal onto the separator
+	 */
+	private TablePlan[] firstPlans;
+
+	/**
+	 * COLLECT-divide the child by the message
+	 */
+	private TablePlan[] secondPlans;
+
+	/**
+	 * COLLECT-multiply the parent by the message
+	 */
+	private TablePlan[] thirdPlans;
+
+	private int[][] counters;
+
+	/**
+	 * COLLECT-the variables of the message, in the order of its table
+	 */
+	private TransientVariable[][] messageVariables;
+
+	/**
+	 * COLLECT-where in the child the maximum of each message entry came from,
+	 * only allocated once an explanation is asked for
+	 */
+	private int[][] backpointers = null;
+
+	/**
+	 * For ROOT, COLLECT and DISTRIBUTE, the operations of the same pass that
+	 * hang directly below the clique this operation handles, in schedule order
+	 */
+	private int[][] children;
+
+	/**
+	 * For ROOT, the index of the first operation after the pass it starts
+	 */
+	private int[] blockEnds;
+
+	/**
+	 * Number of table entries touched in the subtree below an operation, used
+	 * to decide when it is not worth forking
+	 */
+	private long[] subtreeWork;
+
+	//
+	// Things only used while compiling
+	//
+
+	private final Map<TransientClique, TransientCliqueSeparator> parentSeparators = new HashMap<TransientClique, TransientCliqueSeparator>();
+	private final List<Object[]> schedule = new ArrayList<Object[]>();
+
+	private CompiledJunctionTree(int numberSlices, int numberTemplateSlices) {
+		this.numberSlices = numberSlices;
+		this.numberTemplateSlices = numberTemplateSlices;
+	}
+
+	/**
+	 * Builds the calibration schedule for the current template and number of
+	 * slices of the model.
+	 *
+	 * @param model
+	 * @return the compiled junction tree, check isApplicable to see if it can
+	 *         actually be used
+	 * @throws Exception
+	 */
+	public static CompiledJunctionTree compile(DynamicBayesNetModel model)
+			throws Exception {
+		JunctionTreeTemplate jtt = model.getJunctionTreeTemplate();
+		CompiledJunctionTree cjt = new CompiledJunctionTree(model
+				.getMaxNumberSlices(), model.getNumberTemplateSlices());
+		for (List<Clique> list : jtt.getCliqueSets()) {
+			cjt.cliqueSets.add(new ArrayList<Clique>(list));
+		}
+		for (List<CliqueSeparator> list : jtt.getCliqueSeparatorSets()) {
+			cjt.cliqueSeparatorSets.add(new ArrayList<CliqueSeparator>(list));
+		}
+
+		final int numTemplateSlices = cjt.numberTemplateSlices - 1;
+		for (int i = 0; i < cjt.numberSlices; i++) {
+			model.getSlice(i);
+			int tSlice = Math.min(i, numTemplateSlices);
+			cjt.junctionTreeSlices.add(new JunctionTree(jtt.getCliqueSets()
+					.get(tSlice), jtt.getCliqueSeparatorSets().get(tSlice), i));
+		}
+
+		if (!cjt.setupBuffers()) {
+			cjt.applicable = false;
+		} else {
+			try {
+				cjt.buildSchedule();
+			} catch (NotApplicableException ex) {
+				if (logger.isDebugEnabled()) {
+					logger.debug("Junction tree cannot be compiled: "
+							+ ex.getMessage());
+				}
+				cjt.applicable = false;
+			}
+		}
+		cjt.parentSeparators.clear();
+		cjt.schedule.clear();
+		if (logger.isDebugEnabled()) {
+			logger.debug("Compiled junction tree for " + cjt.numberSlices
+					+ " slices, applicable: " + cjt.applicable);
+		}
+		return cjt;
+	}
+
+	/**
+	 * Thrown internally when something in the tree is not a plain discrete
+	 * table we can run in place
+	 */
+	@SuppressWarnings("serial")
+	private static class NotApplicableException extends Exception {
+		NotApplicableException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * @return true if the tree is completely discrete and can be calibrated
+	 *         through the schedule
+	 */
+	public boolean isApplicable() {
+		return applicable;
+	}
+
+	/**
+	 * Checks to see if this schedule was built for the current structure of
+	 * the model.
+	 *
+	 * @param model
+	 * @return
+	 */
+	public boolean isValid(DynamicBayesNetModel model) {
+		JunctionTreeTemplate jtt = model.getJunctionTreeTemplate();
+		if (jtt.isStale() || numberSlices != model.getMaxNumberSlices()
+				|| numberTemplateSlices != model.getNumberTemplateSlices()) {
+			return false;
+		}
+		if (!cliqueSets.equals(jtt.getCliqueSets())
+				|| !cliqueSeparatorSets.equals(jtt.getCliqueSeparatorSets())) {
+			return false;
+		}
+		if (!applicable) {
+			return true;
+		}
+		for (int i = 0; i < cliques.length; i++) {
+			int slice = cliques[i].getSlice();
+			GraphVariable[] gvs = cliqueGraphVariables[i];
+			TransientVariable[] tvs = cliqueTransientVariables[i];
+			for (int j = 0; j < gvs.length; j++) {
+				if (gvs[j].getReference().getTransientVariable(
+						slice - gvs[j].getSlice()) != tvs[j]) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Runs the calibration, utilizes any evidence set in the model. The
+	 * calibrated slices are handed to the junction tree template just like the
+	 * serial calibration does.
+	 *
+	 * @param model
+	 * @throws Exception
+	 */
+	public void calibrate(DynamicBayesNetModel model) throws Exception {
+		reset(model);
+		for (int i = 0; i < operations.length; i++) {
+			if (i == distributeStart) {
+				saveCollected();
+			}
+			switch (operations[i]) {
+			case LINK:
+				link(i);
+				break;
+			case ROOT:
+				root(i);
+				break;
+			case COLLECT:
+				sendMessage(i);
+				absorbMessage(i);
+				break;
+			case DISTRIBUTE:
+				distribute(i);
+				break;
+			}
+		}
+		finish(model);
+	}
+
+	/**
+	 * Runs the calibration with the independent subtrees of each slice spread
+	 * over a fork/join pool. Every table still sees exactly the same sequence
+	 * of operations as in calibrate, a parent absorbs the messages of its
+	 * children in the original order once they are all in, so the results are
+	 * identical to the serial run.
+	 *
+	 * @param model
+	 * @param pool
+	 * @param threshold
+	 *            subtrees with fewer table entries than this are run on the
+	 *            current thread
+	 * @throws Exception
+	 */
+	public void calibrate(DynamicBayesNetModel model, ForkJoinPool pool,
+			int threshold) throws Exception {
+		reset(model);
+		int i = 0;
+		while (i < operations.length) {
+			if (i == distributeStart) {
+				saveCollected();
+			}
+			switch (operations[i]) {
+			case LINK:
+				link(i);
+				i++;
+				break;
+			case ROOT:
+				root(i);
+				pool.invoke(new RootTask(i, threshold));
+				i = blockEnds[i];
+				break;
+			default:
+				throw new Exception("Schedule is out of order at " + i);
+			}
+		}
+		finish(model);
+	}
+
+	/**
+	 * Finds the jointly most probable assignment of every variable in the
+	 * junction tree given the evidence set in the model. This runs the collect
+	 * pass with max-product messages, so it takes the same linear time in the
+	 * number of slices as a calibration. The clique tables are left holding
+	 * max-marginals, so the junction tree template is marked uncalibrated.
+	 *
+	 * @param model
+	 * @param assignment
+	 *            filled in with the state of each variable, evidence
+	 *            variables included
+	 * @throws Exception
+	 */
+	public void maximize(DynamicBayesNetModel model,
+			Map<TransientVariable, Integer> assignment) throws Exception {
+		collected = false;
+		model.getJunctionTreeTemplate().setCalibratedFalse();
+		reset(model);
+		if (backpointers == null) {
+			backpointers = new int[operations.length][];
+			for (int i = 0; i < distributeStart; i++) {
+				if (operations[i] == COLLECT) {
+					backpointers[i] = new int[thirdTables[i].length];
+				}
+			}
+		}
+
+		List<Integer> roots = new ArrayList<Integer>();
+		for (int i = 0; i < distributeStart; i++) {
+			switch (operations[i]) {
+			case LINK:
+				link(i);
+				break;
+			case ROOT:
+				root(i);
+				roots.add(i);
+				break;
+			case COLLECT:
+				sendMaxMessage(i);
+				absorbMessage(i);
+				break;
+			}
+		}
+
+		// The collect pass ends at the first slice, trace back from there. A
+		// clique sends its own message after its children, so going through
+		// a slice backwards reaches each parent before its children.
+		for (int r = roots.size() - 1; r >= 0; r--) {
+			int root = roots.get(r);
+			int clique = operationCliqueIndices[root];
+			assign(clique, argmax(clique, assignment), assignment);
+			for (int i = blockEnds[root] - 1; i > root; i--) {
+				TransientVariable[] variables = messageVariables[i];
+				int[] strides = Utility.calculateStrides(firstPlans[i]
+						.getResultLayout());
+				int index = 0;
+				for (int j = 0; j < variables.length; j++) {
+					index += assignment.get(variables[j]) * strides[j];
+				}
+				assign(operationCliqueIndices[i], backpointers[i][index],
+						assignment);
+			}
+		}
+	}
+
+	/**
+	 * Maximizes the child onto the message, the child is left as it is since
+	 * only its backpointers are needed afterwards. The message is scaled to a
+	 * maximum of one so long sequences do not underflow, which does not move
+	 * any of the maxima.
+	 */
+	private void sendMaxMessage(int i) throws Exception {
+		operationCliques[i].setParent(operationParents[i]);
+		operationCliques[i].setParentSeparator(operationSeparators[i]);
+		double[] message = thirdTables[i];
+		firstPlans[i].projectMax(firstTables[i], message, backpointers[i],
+				counters[i]);
+		double max = 0.0;
+		for (double d : message) {
+			max = Math.max(max, d);
+		}
+		if (max <= 0.0) {
+			throw new Exception(
+					"The evidence is impossible, there is no most probable explanation");
+		}
+		for (int j = 0; j < message.length; j++) {
+			message[j] /= max;
+		}
+	}
+
+	/**
+	 * The entry of a clique table with the largest value out of those that
+	 * agree with what has been assigned so far
+	 */
+	private int argmax(int clique, Map<TransientVariable, Integer> assignment) {
+		Table table = (Table) cliqueFactors[clique].getDistribution();
+		double[] p = table.getProbabilityArray();
+		int[] layout = table.getStateLayout();
+		List<TransientVariable> deps = cliqueFactors[clique].getDependencies();
+		int[] fixed = new int[layout.length];
+		for (int j = 0; j < fixed.length; j++) {
+			Integer state = j < deps.size() ? assignment.get(deps.get(j))
+					: null;
+			fixed[j] = state == null ? -1 : state;
+		}
+
+		int[] current = new int[layout.length];
+		int best = -1;
+		for (int k = 0; k < p.length; k++) {
+			boolean agrees = true;
+			for (int j = 0; j < fixed.length; j++) {
+				if (fixed[j] != -1 && fixed[j] != current[j]) {
+					agrees = false;
+					break;
+				}
+			}
+			if (agrees && (best == -1 || p[k] > p[best])) {
+				best = k;
+			}
+			for (int d = layout.length - 1; d >= 0; d--) {
+				if (++current[d] < layout[d]) {
+					break;
+				}
+				current[d] = 0;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Assigns the variables of a clique from an entry of its table
+	 */
+	private void assign(int clique, int index,
+			Map<TransientVariable, Integer> assignment) throws Exception {
+		int[] layout = ((Table) cliqueFactors[clique].getDistribution())
+				.getStateLayout();
+		int[] strides = Utility.calculateStrides(layout);
+		List<TransientVariable> deps = cliqueFactors[clique].getDependencies();
+		for (int j = 0; j < deps.size(); j++) {
+			int state = (index / strides[j]) % layout[j];
+			Integer previous = assignment.put(deps.get(j), state);
+			if (previous != null && previous != state) {
+				throw new Exception("Traceback disagrees on the state of "
+						+ deps.get(j));
+			}
+		}
+	}
+
+	/**
+	 * Put the dirty cliques back to the way a freshly made junction tree looks
+	 * and apply the evidence, the clean ones get the tables they had at the
+	 * end of the last collect pass
+	 */
+	private void reset(DynamicBayesNetModel model) throws Exception {
+		if (!applicable) {
+			throw new Exception(
+					"This junction tree cannot be calibrated from a compiled schedule");
+		}
+		for (int i = 0; i < numberSlices; i++) {
+			model.getSlice(i);
+		}
+
+		final boolean full = !collected;
+		collected = false;
+		for (int i = 0; i < cliques.length; i++) {
+			TransientClique tc = cliques[i];
+			if (tc.getMembers().size() != cliqueMemberCounts[i]) {
+				tc.resetMembers();
+			}
+			tc.setParent(null);
+			tc.setParentSeparator(null);
+			tc.setFactor(cliqueFactors[i]);
+
+			Potential potential = tc.getReference().getPotential();
+			boolean changed = full || potential != appliedPotentials[i];
+			appliedPotentials[i] = potential;
+			TransientVariable[] evidence = evidenceVariables[i];
+			int[] applied = appliedEvidence[i];
+			for (int j = 0; j < evidence.length; j++) {
+				int state = evidence[j].isEvidence() ? evidence[j]
+						.getEvidence().intValue() : -1;
+				if (state != applied[j]) {
+					applied[j] = state;
+					changed = true;
+				}
+			}
+			dirty[i] = changed;
+		}
+
+		// Anything downstream of a dirty clique in the collect pass has to be
+		// collected again too
+		for (int i = 0; i < distributeStart; i++) {
+			if (operations[i] == LINK) {
+				dirty[operationCliqueIndices[i]] |= dirty[operationParentIndices[i]];
+			} else if (operations[i] == COLLECT) {
+				dirty[operationParentIndices[i]] |= dirty[operationCliqueIndices[i]];
+			}
+		}
+
+		int numberDirty = 0;
+		for (int i = 0; i < cliques.length; i++) {
+			Table table = (Table) cliqueFactors[i].getDistribution();
+			if (!dirty[i]) {
+				double[] from = collectedTables[i];
+				System.arraycopy(from, 0, table.getProbabilityArray(), 0,
+						from.length);
+				table.clearCaches();
+				continue;
+			}
+			numberDirty++;
+			copyPotential(appliedPotentials[i], table);
+			for (int j = 0; j < appliedEvidence[i].length; j++) {
+				if (appliedEvidence[i][j] >= 0) {
+					table.restrictToState(evidenceDimensions[i][j],
+							appliedEvidence[i][j]);
+				}
+			}
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("Collecting " + numberDirty + " of " + cliques.length
+					+ " cliques");
+		}
+		for (int i = 0; i < separators.length; i++) {
+			TransientCliqueSeparator tcs = separators[i];
+			if (tcs.getMembers().size() != separatorMemberCounts[i]) {
+				tcs.resetMembers();
+			}
+			Factor factor = separatorFactors[i];
+			tcs.setFactor(factor);
+			copyPotential(tcs.getReference().getPotential(), (Table) factor
+					.getDistribution());
+		}
+	}
+
+	/**
+	 * Keeps the tables of the cliques that were just collected for the next
+	 * calibration
+	 */
+	private void saveCollected() {
+		for (int i = 0; i < cliques.length; i++) {
+			if (dirty[i]) {
+				double[] from = ((Table) cliqueFactors[i].getDistribution())
+						.getProbabilityArray();
+				System.arraycopy(from, 0, collectedTables[i], 0, from.length);
+			}
+		}
+		collected = true;
+	}
+
+	private void finish(DynamicBayesNetModel model) {
+		for (int i = 0; i < cliques.length; i++) {
+			((Table) cliqueFactors[i].getDistribution()).normalize();
+		}
+		for (int i = 0; i < separators.length; i++) {
+			((Table) separatorFactors[i].getDistribution()).clearCaches();
+		}
+
+		model.getJunctionTreeTemplate().setJunctionTreeSlices(
+				junctionTreeSlices);
+	}
+
+	private void link(int i) {
+		if (i >= distributeStart || dirty[operationCliqueIndices[i]]) {
+			firstPlans[i].project(firstTables[i], null, secondTables[i],
+					counters[i]);
+		}
+		operationCliques[i].setParentSeparator(operationSeparators[i]);
+	}
+
+	private void root(int i) {
+		for (TransientClique tc : operationSlices[i]) {
+			tc.setParent(null);
+		}
+		operationCliques[i].setParent(operationCliques[i]);
+	}
+
+	/**
+	 * Marginalizes the child onto the separator and takes the message back
+	 * out of the child, a clean child already sent it last time
+	 */
+	private void sendMessage(int i) {
+		operationCliques[i].setParent(operationParents[i]);
+		operationCliques[i].setParentSeparator(operationSeparators[i]);
+		if (!dirty[operationCliqueIndices[i]]) {
+			return;
+		}
+		firstPlans[i].project(firstTables[i], null, thirdTables[i],
+				counters[i]);
+		secondPlans[i].applyInto(firstTables[i], thirdTables[i],
+				firstTables[i], counters[i]);
+	}
+
+	/**
+	 * Multiplies the message into the parent, a clean parent already has it
+	 */
+	private void absorbMessage(int i) {
+		if (!dirty[operationParentIndices[i]]) {
+			return;
+		}
+		thirdPlans[i].applyInto(secondTables[i], thirdTables[i],
+				secondTables[i], counters[i]);
+	}
+
+	private void distribute(int i) {
+		operationCliques[i].setParent(operationParents[i]);
+		firstPlans[i].project(firstTables[i], thirdTables[i],
+				secondTables[i], counters[i]);
+	}
+
+	/**
+	 * Sequential version of a collect subtree, the child of operation i has
+	 * received all of its messages and sent its own once this returns
+	 */
+	private void collectSubtree(int i) {
+		for (int c : children[i]) {
+			collectSubtree(c);
+		}
+		for (int c : children[i]) {
+			absorbMessage(c);
+		}
+		sendMessage(i);
+	}
+
+	private void distributeSubtree(int i) {
+		distribute(i);
+		for (int c : children[i]) {
+			distributeSubtree(c);
+		}
+	}
+
+	/**
+	 * Runs the collect or distribute pass of one slice below its root
+	 */
+	@SuppressWarnings("serial")
+	private class RootTask extends RecursiveAction {
+		private final int root;
+		private final int threshold;
+
+		RootTask(int root, int threshold) {
+			this.root = root;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected void compute() {
+			int[] c = children[root];
+			if (c.length == 0) {
+				return;
+			}
+			if (operations[c[0]] == COLLECT) {
+				forkAll(c, threshold, true);
+				for (int j : c) {
+					absorbMessage(j);
+				}
+			} else {
+				forkAll(c, threshold, false);
+			}
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class SubtreeTask extends RecursiveAction {
+		private final int operation;
+		private final int threshold;
+		private final boolean collect;
+
+		SubtreeTask(int operation, int threshold, boolean collect) {
+			this.operation = operation;
+			this.threshold = threshold;
+			this.collect = collect;
+		}
+
+		@Override
+		protected void compute() {
+			if (subtreeWork[operation] < threshold) {
+				if (collect) {
+					collectSubtree(operation);
+				} else {
+					distributeSubtree(operation);
+				}
+				return;
+			}
+			int[] c = children[operation];
+			if (collect) {
+				forkAll(c, threshold, true);
+				for (int j : c) {
+					absorbMessage(j);
+				}
+				sendMessage(operation);
+			} else {
+				distribute(operation);
+				forkAll(c, threshold, false);
+			}
+		}
+	}
+
+	private void forkAll(int[] operations, int threshold, boolean collect) {
+		if (operations.length == 1) {
+			new SubtreeTask(operations[0], threshold, collect).compute();
+			return;
+		}
+		List<SubtreeTask> tasks = new ArrayList<SubtreeTask>(operations.length);
+		for (int i : operations) {
+			tasks.add(new SubtreeTask(i, threshold, collect));
+		}
+		ForkJoinTask.invokeAll(tasks);
+	}
+
+	private void copyPotential(Potential potential, Table table)
+			throws Exception {
+		double[] from = ((Table) potential.getDistribution())
+				.getProbabilityArray();
+		double[] to = table.getProbabilityArray();
+		if (from.length != to.length) {
+			throw new Exception(
+					"Potential no longer matches the compiled junction tree");
+		}
+		System.arraycopy(from, 0, to, 0, from.length);
+	}
+
+	/**
+	 * Grabs the factors the junction tree slices were created with, these
+	 * become the buffers we calibrate in.
+	 *
+	 * @return false if there is anything that is not a plain discrete table
+	 * @throws Exception
+	 */
+	private boolean setupBuffers() throws Exception {
+		List<TransientClique> cliqueList = new ArrayList<TransientClique>();
+		List<TransientCliqueSeparator> separatorList = new ArrayList<TransientCliqueSeparator>();
+		for (JunctionTree jt : junctionTreeSlices) {
+			cliqueList.addAll(jt.getCliques());
+			separatorList.addAll(jt.getCliqueSeparators());
+		}
+		final int nc = cliqueList.size();
+		cliques = cliqueList.toArray(new TransientClique[nc]);
+		cliqueFactors = new Factor[nc];
+		cliqueMemberCounts = new int[nc];
+		cliqueGraphVariables = new GraphVariable[nc][];
+		cliqueTransientVariables = new TransientVariable[nc][];
+		evidenceVariables = new TransientVariable[nc][];
+		evidenceDimensions = new int[nc][];
+		appliedEvidence = new int[nc][];
+		appliedPotentials = new Potential[nc];
+		collectedTables = new double[nc][];
+		dirty = new boolean[nc];
+		for (int i = 0; i < nc; i++) {
+			TransientClique tc = cliques[i];
+			Factor factor = tc.getFactor();
+			if (!isPlainTable(factor)
+					|| !(tc.getReference().getPotential().getDistribution() instanceof Table)) {
+				return false;
+			}
+			cliqueFactors[i] = factor;
+			cliqueMemberCounts[i] = tc.getMembers().size();
+
+			List<GraphVariable> gvs = new ArrayList<GraphVariable>(tc
+					.getReference().getMembers().values());
+			cliqueGraphVariables[i] = gvs.toArray(new GraphVariable[gvs
+					.size()]);
+			cliqueTransientVariables[i] = new TransientVariable[gvs.size()];
+			for (int j = 0; j < gvs.size(); j++) {
+				GraphVariable gv = gvs.get(j);
+				cliqueTransientVariables[i][j] = gv.getReference()
+						.getTransientVariable(tc.getSlice() - gv.getSlice());
+			}
+
+			List<TransientVariable> evidence = new ArrayList<TransientVariable>();
+			List<Integer> dimensions = new ArrayList<Integer>();
+			List<TransientVariable> deps = factor.getDependencies();
+			for (int j = 0; j < deps.size(); j++) {
+				if (deps.get(j).getTime() == tc.getSlice()) {
+					evidence.add(deps.get(j));
+					dimensions.add(j);
+				}
+			}
+			evidenceVariables[i] = evidence
+					.toArray(new TransientVariable[evidence.size()]);
+			evidenceDimensions[i] = new int[dimensions.size()];
+			for (int j = 0; j < dimensions.size(); j++) {
+				evidenceDimensions[i][j] = dimensions.get(j);
+			}
+			appliedEvidence[i] = new int[dimensions.size()];
+			collectedTables[i] = new double[((Table) factor.getDistribution())
+					.getProbabilityArray().length];
+		}
+
+		final int ns = separatorList.size();
+		separators = separatorList.toArray(new TransientCliqueSeparator[ns]);
+		separatorFactors = new Factor[ns];
+		separatorMemberCounts = new int[ns];
+		for (int i = 0; i < ns; i++) {
+			TransientCliqueSeparator tcs = separators[i];
+			if (!isPlainTable(tcs.getFactor())
+					|| !(tcs.getReference().getPotential().getDistribution() instanceof Table)) {
+				return false;
+			}
+			separatorFactors[i] = tcs.getFactor();
+			separatorMemberCounts[i] = tcs.getMembers().size();
+		}
+		return true;
+	}
+
+	private boolean isPlainTable(Factor factor) {
+		if (!(factor.getDistribution() instanceof Table)
+				|| factor.getHeadDependencies().size() > 0
+				|| factor.getTailDependencies().size() > 0) {
+			return false;
+		}
+		int dims = ((Table) factor.getDistribution()).getStateLayout().length;
+		int deps = factor.getDependencies().size();
+		return dims == deps || (deps == 0 && dims == 1);
+	}
+
+	/**
+	 * Walks the calibration the same way CalibrateJunctionTreeSerial does,
+	 * recording each step instead of running it.
+	 *
+	 * @throws Exception
+	 */
+	private void buildSchedule() throws Exception {
+		final int slices = numberSlices - 1;
+		final int numTemplateSlices = numberTemplateSlices - 1;
+
+		for (int i = slices; i >= 0; i--) {
+			JunctionTree jt = junctionTreeSlices.get(i);
+			for (int j = 0; j < Math.min(slices - i, numTemplateSlices); j++) {
+				addLink(jt.getForwardInterface(0), junctionTreeSlices.get(
+						i + j + 1).getForwardInterface(numTemplateSlices - j));
+			}
+			TransientClique root = addRoot(jt);
+			addCollect(root);
+		}
+
+		distributeStart = schedule.size();
+		for (int i = 0; i < numberSlices; i++) {
+			JunctionTree jt = junctionTreeSlices.get(i);
+			for (int j = 0; j < Math.min(i, numTemplateSlices); j++) {
+				addLink(jt.getForwardInterface(j + 1), junctionTreeSlices.get(
+						i - j - 1).getForwardInterface(0));
+			}
+			TransientClique root = addRoot(jt);
+			addDistribute(root);
+		}
+
+		final int n = schedule.size();
+		operations = new int[n];
+		operationCliques = new TransientClique[n];
+		operationParents = new TransientClique[n];
+		operationSeparators = new TransientCliqueSeparator[n];
+		operationSlices = new TransientClique[n][];
+		firstTables = new double[n][];
+		secondTables = new double[n][];
+		thirdTables = new double[n][];
+		firstPlans = new TablePlan[n];
+		secondPlans = new TablePlan[n];
+		thirdPlans = new TablePlan[n];
+		counters = new int[n][];
+		messageVariables = new TransientVariable[n][];
+		operationCliqueIndices = new int[n];
+		operationParentIndices = new int[n];
+		Map<TransientClique, Integer> cliqueIndices = new HashMap<TransientClique, Integer>();
+		for (int i = 0; i < cliques.length; i++) {
+			cliqueIndices.put(cliques[i], i);
+		}
+		for (int i = 0; i < n; i++) {
+			Object[] op = schedule.get(i);
+			operations[i] = (Integer) op[0];
+			operationCliques[i] = (TransientClique) op[1];
+			operationParents[i] = (TransientClique) op[2];
+			operationSeparators[i] = (TransientCliqueSeparator) op[3];
+			operationSlices[i] = (TransientClique[]) op[4];
+			firstTables[i] = (double[]) op[5];
+			secondTables[i] = (double[]) op[6];
+			thirdTables[i] = (double[]) op[7];
+			firstPlans[i] = (TablePlan) op[8];
+			secondPlans[i] = (TablePlan) op[9];
+			thirdPlans[i] = (TablePlan) op[10];
+			messageVariables[i] = (TransientVariable[]) op[11];
+			int size = 0;
+			for (int k = 8; k <= 10; k++) {
+				if (op[k] != null) {
+					size = Math.max(size, ((TablePlan) op[k]).getCounterSize());
+				}
+			}
+			counters[i] = new int[size];
+			operationCliqueIndices[i] = index(cliqueIndices,
+					operationCliques[i]);
+			operationParentIndices[i] = index(cliqueIndices,
+					operationParents[i]);
+		}
+		buildTree();
+	}
+
+	private static int index(Map<TransientClique, Integer> indices,
+			TransientClique clique) {
+		Integer index = clique == null ? null : indices.get(clique);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Works out which operations of each pass depend on which, so that
+	 * independent subtrees can be run at the same time
+	 */
+	private void buildTree() {
+		final int n = operations.length;
+		children = new int[n][];
+		blockEnds = new int[n];
+		subtreeWork = new long[n];
+		for (int i = 0; i < n; i++) {
+			children[i] = new int[0];
+		}
+		int i = 0;
+		while (i < n) {
+			if (operations[i] != ROOT) {
+				i++;
+				continue;
+			}
+			int end = i + 1;
+			while (end < n
+					&& (operations[end] == COLLECT || operations[end] == DISTRIBUTE)) {
+				end++;
+			}
+			blockEnds[i] = end;
+
+			Map<TransientClique, Integer> byClique = new HashMap<TransientClique, Integer>();
+			byClique.put(operationCliques[i], i);
+			for (int j = i + 1; j < end; j++) {
+				byClique.put(operationCliques[j], j);
+			}
+			Map<Integer, List<Integer>> lists = new HashMap<Integer, List<Integer>>();
+			for (int j = i + 1; j < end; j++) {
+				Integer parent = byClique.get(operationParents[j]);
+				List<Integer> list = lists.get(parent);
+				if (list == null) {
+					list = new ArrayList<Integer>();
+					lists.put(parent, list);
+				}
+				list.add(j);
+			}
+			for (Map.Entry<Integer, List<Integer>> entry : lists.entrySet()) {
+				int[] c = new int[entry.getValue().size()];
+				for (int k = 0; k < c.length; k++) {
+					c[k] = entry.getValue().get(k);
+				}
+				children[entry.getKey()] = c;
+			}
+			// Children come before their parent in a collect pass and after it
+			// in a distribute pass
+			boolean collect = end > i + 1 && operations[i + 1] == COLLECT;
+			for (int j = 0; j < end - i - 1; j++) {
+				int k = collect ? i + 1 + j : end - 1 - j;
+				long work = firstTables[k].length;
+				for (int c : children[k]) {
+					work += subtreeWork[c];
+				}
+				subtreeWork[k] = work;
+			}
+			i = end;
+		}
+	}
+
+	private void addLink(TransientClique target, TransientClique source)
+			throws Exception {
+		Factor from = source.getFactor();
+		Factor to = target.getFactor();
+		Table fromTable = (Table) from.getDistribution();
+		Table toTable = (Table) to.getDistribution();
+		if (fromTable.getNumberStates() != toTable.getNumberStates()
+				|| !to.getDependencies().containsAll(from.getDependencies())) {
+			throw new NotApplicableException(
+					"Interface cliques do not line up");
+		}
+		TablePlan copy = TablePlan.getProjectionPlan(fromTable
+				.getStateLayout(), null, null, toTable.getStateLayout(), map(
+				from, to));
+
+		TransientCliqueSeparator separator = parentSeparators.get(source);
+		parentSeparators.put(target, separator);
+
+		schedule.add(new Object[] { LINK, target, source, separator, null,
+				fromTable.getProbabilityArray(),
+				toTable.getProbabilityArray(), null, copy, null, null, null });
+	}
+
+	private TransientClique addRoot(JunctionTree jt) {
+		List<TransientClique> sliceCliques = jt.getCliques();
+		TransientClique root = jt.getRoot();
+		jt.clearParents();
+		root.setParent(root);
+		schedule.add(new Object[] { ROOT, root, null, null,
+				sliceCliques.toArray(new TransientClique[sliceCliques.size()]),
+				null, null, null, null, null, null, null });
+		return root;
+	}
+
+	private void addCollect(TransientClique parent) throws Exception {
+		for (TransientCliqueSeparator tcs : parent.getSeparators()) {
+			TransientClique child = null;
+			if (tcs.getCliqueA() == parent) {
+				child = tcs.getCliqueB();
+			} else if (tcs.getCliqueB() == parent) {
+				child = tcs.getCliqueA();
+			}
+
+			if (child.getParent() == null) {
+				child.setParent(parent);
+				parentSeparators.put(child, tcs);
+				addCollect(child);
+
+				Factor childFactor = child.getFactor();
+				Factor parentFactor = parent.getFactor();
+				Table childTable = (Table) childFactor.getDistribution();
+				Table parentTable = (Table) parentFactor.getDistribution();
+
+				// This is the buffer the message lives in
+				Factor message = childFactor.marginalize(tcs.getMembers());
+				Table messageTable = (Table) message.getDistribution();
+				if (!parentFactor.getDependencies().containsAll(
+						message.getDependencies())) {
+					throw new NotApplicableException(
+							"Message is not contained in the parent clique");
+				}
+
+				int[] childLayout = childTable.getStateLayout();
+				int[] parentLayout = parentTable.getStateLayout();
+				int[] messageLayout = messageTable.getStateLayout();
+
+				TablePlan project = TablePlan.getProjectionPlan(childLayout,
+						null, null, messageLayout, map(childFactor, message));
+				TablePlan divide = TablePlan.getPointwisePlan(childLayout,
+						messageLayout, inPlace(map(childFactor, message)), true);
+				TablePlan multiply = TablePlan.getPointwisePlan(parentLayout,
+						messageLayout, inPlace(map(parentFactor, message)),
+						false);
+
+				schedule.add(new Object[] { COLLECT, child, parent, tcs, null,
+						childTable.getProbabilityArray(),
+						parentTable.getProbabilityArray(),
+						messageTable.getProbabilityArray(), project, divide,
+						multiply, message.getDependencies().toArray(
+								new TransientVariable[0]) });
+			}
+		}
+	}
+
+	private void addDistribute(TransientClique parent) throws Exception {
+		for (TransientCliqueSeparator tcs : parent.getSeparators()) {
+			TransientClique child = null;
+			if (tcs.getCliqueA() == parent) {
+				child = tcs.getCliqueB();
+			} else if (tcs.getCliqueB() == parent) {
+				child = tcs.getCliqueA();
+			}
+
+			if (child.getParent() == null) {
+				child.setParent(parent);
+
+				Factor parentFactor = parent.getFactor();
+				Factor separatorFactor = tcs.getFactor();
+				Table parentTable = (Table) parentFactor.getDistribution();
+				Table separatorTable = (Table) separatorFactor
+						.getDistribution();
+				if (!parentFactor.getDependencies().containsAll(
+						separatorFactor.getDependencies())) {
+					throw new NotApplicableException(
+							"Separator is not contained in the parent clique");
+				}
+
+				TransientCliqueSeparator parentSeparator = parentSeparators
+						.get(parent);
+				int[] otherLayout = null;
+				int[] otherMap = null;
+				double[] other = null;
+				if (parentSeparator != null) {
+					Factor otherFactor = parentSeparator.getFactor();
+					if (!parentFactor.getDependencies().containsAll(
+							otherFactor.getDependencies())) {
+						throw new NotApplicableException(
+								"Parent separator is not contained in the parent clique");
+					}
+					Table otherTable = (Table) otherFactor.getDistribution();
+					otherLayout = otherTable.getStateLayout();
+					otherMap = map(parentFactor, otherFactor);
+					other = otherTable.getProbabilityArray();
+				}
+
+				TablePlan project = TablePlan.getProjectionPlan(parentTable
+						.getStateLayout(), otherLayout, otherMap,
+						separatorTable.getStateLayout(), map(parentFactor,
+								separatorFactor));
+
+				schedule.add(new Object[] { DISTRIBUTE, child, parent, tcs,
+						null, parentTable.getProbabilityArray(),
+						separatorTable.getProbabilityArray(), other, project,
+						null, null, null });
+
+				addDistribute(child);
+			}
+		}
+	}
+
+	/**
+	 * For each dimension of the from factor's table, where that variable is in
+	 * the to factor's table, -1 if it is not there.
+	 */
+	private static int[] map(Factor from, Factor to) {
+		List<TransientVariable> fromDeps = from.getDependencies();
+		List<TransientVariable> toDeps = to.getDependencies();
+		int[] map = new int[Math.max(fromDeps.size(), 1)];
+		map[0] = -1;
+		for (int i = 0; i < fromDeps.size(); i++) {
+			map[i] = toDeps.indexOf(fromDeps.get(i));
+		}
+		return map;
+	}
+
+	/**
+	 * Index list for multiplying or dividing a table in place by a table over
+	 * a subset of its dimensions
+	 */
+	private static List<Quadruple> inPlace(int[] map) {
+		List<Quadruple> indices = new ArrayList<Quadruple>();
+		for (int i = 0; i < map.length; i++) {
+			indices.add(new Quadruple(i, i, map[i], null));
+		}
+		return indices;
+	}
+
+	/**
+	 * @return the junction tree slices this schedule calibrates
+	 */
+	public List<JunctionTree> getJunctionTreeSlices() {
+		return junctionTreeSlices;
+	}
+}
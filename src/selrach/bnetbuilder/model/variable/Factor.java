@@ -14,6 +14,7 @@ import selrach.bnetbuilder.model.distributions.DistributionFactory;
 import selrach.bnetbuilder.model.distributions.Operation;
 import selrach.bnetbuilder.model.distributions.Operation.Quadruple;
 import selrach.bnetbuilder.model.distributions.Operation.Tuple;
+import selrach.bnetbuilder.model.distributions.accumulators.JointStateCountAccumulator;
 import selrach.bnetbuilder.model.distributions.conditional.ConditionalTable;
 import selrach.bnetbuilder.model.distributions.conditional.Mixture;
 import selrach.bnetbuilder.model.distributions.interfaces.ConditionalDistribution;
@@ -279,6 +280,21 @@ public class Factor {
 
 	}
 
+	/**
+	 * The joint distribution of a set of discrete variables from the counts of
+	 * their joint states
+	 * 
+	 * @param dependencies
+	 *            the variables in the order the counts are laid out
+	 * @param samples
+	 * @throws Exception
+	 */
+	public Factor(List<TransientVariable> dependencies,
+			JointStateCountAccumulator samples) throws Exception {
+		this.discreteDependencies.addAll(dependencies);
+		this.distribution = samples.getDistribution();
+	}
+
 	public Factor(List<TransientVariable> discreteDependencies,
 			List<TransientVariable> headDependencies,
 			List<TransientVariable> tailDependencies, List<List<Double>> samples)
@@ -469,24 +485,24 @@ public class Factor {
 		}
 
 		List<Quadruple> discreteIndexList = new ArrayList<Quadruple>();
-		for (TransientVariable tv : ret.discreteDependencies) {
-			int rind = ret.discreteDependencies.indexOf(tv);
+		for (int rind = 0; rind < ret.discreteDependencies.size(); rind++) {
+			TransientVariable tv = ret.discreteDependencies.get(rind);
 			int aind = discreteDependencies.indexOf(tv);
 			int bind = b.discreteDependencies.indexOf(tv);
 			discreteIndexList.add(new Quadruple(rind, aind, bind, tv.getId()));
 		}
 
 		List<Quadruple> headIndexList = new ArrayList<Quadruple>();
-		for (TransientVariable tv : ret.headContinuous) {
-			int rind = ret.headContinuous.indexOf(tv);
+		for (int rind = 0; rind < ret.headContinuous.size(); rind++) {
+			TransientVariable tv = ret.headContinuous.get(rind);
 			int aind = headContinuous.indexOf(tv);
 			int bind = b.headContinuous.indexOf(tv);
 			headIndexList.add(new Quadruple(rind, aind, bind, tv.getId()));
 		}
 
 		List<Quadruple> tailIndexList = new ArrayList<Quadruple>();
-		for (TransientVariable tv : ret.tailContinuous) {
-			int rind = ret.tailContinuous.indexOf(tv);
+		for (int rind = 0; rind < ret.tailContinuous.size(); rind++) {
+			TransientVariable tv = ret.tailContinuous.get(rind);
 			int aind = tailContinuous.indexOf(tv);
 			int bind = b.tailContinuous.indexOf(tv);
 			tailIndexList.add(new Quadruple(rind, aind, bind, tv.getId()));
@@ -751,17 +767,9 @@ public class Factor {
 		if (tv.getReference() instanceof DiscreteVariable) {
 			int evidence = tv.getEvidence().intValue();
 			Table table = (Table) distribution;
-			int[] indices = new int[table.getNumberDimensions()];
-			int[] stateLayout = table.getStateLayout();
 			int index = discreteDependencies.indexOf(tv);
-
-			do {
-				if (indices[index] != evidence) // 0 out everything not
-				// consistent with evidence
-				{
-					table.setProbability(indices, 0.0);
-				}
-			} while (Utility.incrementIndice(indices, stateLayout));
+			// 0 out everything not consistent with evidence
+			table.restrictToState(index, evidence);
 		}
 
 	}
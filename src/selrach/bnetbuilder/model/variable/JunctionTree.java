@@ -165,6 +165,14 @@ public class JunctionTree {
 		return interfaces.get(slice);
 	}
 
+	/**
+	 * @return the number of interface cliques in this slice, one for each
+	 *         slice it overlaps with including itself
+	 */
+	public int getNumberInterfaces() {
+		return interfaces.size();
+	}
+
 	TransientClique rootCache = null;
 
 	public TransientClique getRoot() {
@@ -26,6 +26,11 @@ public class JunctionTreeTemplate implements VariableUpdatedListener,
 
 	private boolean stale = true;
 
+	/**
+	 * The precompiled calibration schedule, kept across evidence changes
+	 */
+	private CompiledJunctionTree compiledJunctionTree = null;
+
 	/**
 	 * Is the junction tree template stale (ie we
 	 * 
@@ -64,6 +69,7 @@ public class JunctionTreeTemplate implements VariableUpdatedListener,
 	}
 
 	public void reset() {
+		compiledJunctionTree = null;
 		if (variableSets != null) {
 			for (Map<String, GraphVariable> map : variableSets) {
 				map.clear();
@@ -241,6 +247,24 @@ public class JunctionTreeTemplate implements VariableUpdatedListener,
 		return sb.toString();
 	}
 
+	/**
+	 * Gets the compiled calibration schedule for the current structure and
+	 * number of slices of the model, compiling it again if anything it was
+	 * built from has changed.
+	 * 
+	 * @param model
+	 * @return
+	 * @throws Exception
+	 */
+	public CompiledJunctionTree getCompiledJunctionTree(
+			DynamicBayesNetModel model) throws Exception {
+		if (compiledJunctionTree == null
+				|| !compiledJunctionTree.isValid(model)) {
+			compiledJunctionTree = CompiledJunctionTree.compile(model);
+		}
+		return compiledJunctionTree;
+	}
+
 	/**
 	 * @return the junctionTreeSlices
 	 */
@@ -382,17 +382,9 @@ public class Potential {
 		if (gv.getReference() instanceof DiscreteVariable) {
 			int evidence = tv.getEvidence().intValue();
 			Table table = (Table) distribution;
-			int[] indices = new int[table.getNumberDimensions()];
-			int[] stateLayout = table.getStateLayout();
 			int index = discreteDependencies.indexOf(gv);
-
-			do {
-				if (indices[index] != evidence) // 0 out everything not
-				// consistent with evidence
-				{
-					table.setProbability(indices, 0.0);
-				}
-			} while (Utility.incrementIndice(indices, stateLayout));
+			// 0 out everything not consistent with evidence
+			table.restrictToState(index, evidence);
 		}
 
 	}
@@ -50,15 +50,36 @@ public abstract class RandomVariable implements Serializable,
 	 */
 	final protected LinkedList<TransientVariable> transientVariables = new LinkedList<TransientVariable>();
 
+	/**
+	 * The time of the first transient variable still in the list, everything
+	 * before it has been released
+	 */
+	private int firstTransientVariable = 0;
+
 	DynamicBayesNetModel model = null;
 
 	protected ArrayList<GraphVariable> graphVariables = new ArrayList<GraphVariable>();
 
 	public TransientVariable getTransientVariable(int time) {
-		while (transientVariables.size() <= time) {
-			createNewTransientSlice(transientVariables.size());
+		if (time < firstTransientVariable) {
+			throw new IndexOutOfBoundsException("Transient variable for time "
+					+ time + " has been released from memory");
 		}
-		return transientVariables.get(time);
+		while (firstTransientVariable + transientVariables.size() <= time) {
+			createNewTransientSlice(firstTransientVariable
+					+ transientVariables.size());
+		}
+		return transientVariables.get(time - firstTransientVariable);
+	}
+
+	/**
+	 * Is the transient variable for this time in memory or can it be created
+	 * 
+	 * @param time
+	 * @return
+	 */
+	public boolean isTransientVariableAvailable(int time) {
+		return time >= firstTransientVariable;
 	}
 
 	/**
@@ -79,14 +100,39 @@ public abstract class RandomVariable implements Serializable,
 		// to the number of template slices we have
 		TransientVariable ret = new TransientVariable(this, slice);
 
-		transientVariables.add(slice, ret);
+		transientVariables.add(ret);
 		// while(transientVariables.size() > parents.size())
 		// transientVariables.pop();
 		return ret;
 	}
 
 	public void clearTransientVariables() {
+		clearTransientVariables(0);
+	}
+
+	/**
+	 * Clears out the transient variables and starts the list over at a later
+	 * time. The first few transient variables created after this will not be
+	 * linked to parents from before that time.
+	 * 
+	 * @param time
+	 */
+	public void clearTransientVariables(int time) {
 		transientVariables.clear();
+		firstTransientVariable = time;
+	}
+
+	/**
+	 * Releases every transient variable before the given time, unlinking them
+	 * from their own parents so the history can be garbage collected
+	 * 
+	 * @param time
+	 */
+	public void releaseTransientVariables(int time) {
+		while (firstTransientVariable < time && transientVariables.size() > 0) {
+			transientVariables.removeFirst().release();
+			firstTransientVariable++;
+		}
 	}
 
 	/**
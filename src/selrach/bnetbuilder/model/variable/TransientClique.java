@@ -22,19 +22,36 @@ public class TransientClique implements Comparable<TransientClique> {
 	private final Set<TransientClique> neighbors = new TreeSet<TransientClique>();
 	private final Set<TransientCliqueSeparator> separators = new TreeSet<TransientCliqueSeparator>();
 
-	final private Map<String, TransientVariable> members = new HashMap<String, TransientVariable>();;
+	final private Map<String, TransientVariable> members = new HashMap<String, TransientVariable>();
 
 	private TransientClique parent = null;
 	private TransientCliqueSeparator parentSeparator = null;
 
+	private final int slice;
+
 	public TransientClique(int slice, Clique reference) throws Exception {
 		this.reference = reference;
+		this.slice = slice;
+		resetMembers();
+		this.factor = new Factor(slice, reference.getPotential());
+	}
+
+	/**
+	 * Puts the members back to the variables of the reference clique, queries
+	 * can push extra variables into a clique so this is needed before a clique
+	 * is reused for another calibration.
+	 */
+	public void resetMembers() {
+		members.clear();
 		for (GraphVariable gv : reference.getMembers().values()) {
 			TransientVariable tv = gv.getReference().getTransientVariable(
 					slice - gv.getSlice());
 			members.put(tv.getId(), tv);
 		}
-		this.factor = new Factor(slice, reference.getPotential());
+	}
+
+	public int getSlice() {
+		return slice;
 	}
 
 	public void setupConnections(Map<Clique, TransientClique> cMap,
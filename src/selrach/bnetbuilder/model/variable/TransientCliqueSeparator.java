@@ -54,11 +54,7 @@ public class TransientCliqueSeparator implements
 		this.factor = new Factor(slice, reference.getPotential());
 		this.cliqueA = a;
 		this.cliqueB = b;
-		for (GraphVariable gv : reference.getMembers()) {
-			TransientVariable tv = gv.getReference().getTransientVariable(
-					slice - gv.getSlice());
-			members.add(tv);
-		}
+		resetMembers();
 		if (cliqueA.getReference() != reference.getCliqueA()
 				|| cliqueB.getReference() != reference.getCliqueB()) {
 			throw new Exception(
@@ -87,6 +83,22 @@ public class TransientCliqueSeparator implements
 		}
 	}
 
+	/**
+	 * Puts the members back to the variables of the reference separator, see
+	 * TransientClique.resetMembers
+	 */
+	public void resetMembers() {
+		if (reference == null) {
+			return;
+		}
+		members.clear();
+		for (GraphVariable gv : reference.getMembers()) {
+			TransientVariable tv = gv.getReference().getTransientVariable(
+					slice - gv.getSlice());
+			members.add(tv);
+		}
+	}
+
 	public CliqueSeparator getReference() {
 		return reference;
 	}
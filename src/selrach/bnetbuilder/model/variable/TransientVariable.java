@@ -4,10 +4,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import selrach.bnetbuilder.model.distributions.accumulators.MomentAccumulator;
+import selrach.bnetbuilder.model.distributions.accumulators.SampleAccumulator;
+import selrach.bnetbuilder.model.distributions.accumulators.StateCountAccumulator;
 import selrach.bnetbuilder.model.distributions.interfaces.ConditionalDistribution;
 import selrach.bnetbuilder.model.distributions.interfaces.UnconditionalDistribution;
-import selrach.bnetbuilder.model.distributions.unconditional.Gaussian;
-import selrach.bnetbuilder.model.distributions.unconditional.Table;
 
 /**
  * Realization variable of a template random variable for a particular time.
@@ -55,11 +56,12 @@ public class TransientVariable implements Comparable<TransientVariable> {
 	private UnconditionalDistribution prior;
 
 	/**
-	 * This is a list of all samples that we have taken for this variable with
-	 * each entry corresponding to the sample number...This is for use in things
-	 * like Gibbs Sampling in order to compute the expectation of this variable
+	 * This summarizes all samples that we have taken for this variable...This
+	 * is for use in things like Gibbs Sampling in order to compute the
+	 * expectation of this variable. Made the first time a sample is added
+	 * unless one has been set.
 	 */
-	private final List<Double> samples = new ArrayList<Double>();
+	private SampleAccumulator samples = null;
 
 	private int time = -1;
 	private int templateSlice = -1;
@@ -96,6 +98,11 @@ public class TransientVariable implements Comparable<TransientVariable> {
 		for (int i = 0; i <= maxTemp; i++) {
 			List<RandomVariable> sliceParents = reference.getParentsAt(i);
 			for (RandomVariable p : sliceParents) {
+				if (!p.isTransientVariableAvailable(time - i)) {
+					// Older slices have been released, this variable is only
+					// here as a parent to the slices still in memory
+					continue;
+				}
 				TransientVariable parent = p.getTransientVariable(time - i);
 				parents.add(parent);
 				parent.children.add(this);
@@ -103,6 +110,16 @@ public class TransientVariable implements Comparable<TransientVariable> {
 		}
 	}
 
+	/**
+	 * Called when this variable is released from memory, drops the links to
+	 * its parents and children so the rest of the history is not kept alive
+	 * through it.
+	 */
+	void release() {
+		parents.clear();
+		children.clear();
+	}
+
 	/**
 	 * Sets the evidence on this variable and notifies listeners
 	 * 
@@ -225,37 +242,55 @@ public class TransientVariable implements Comparable<TransientVariable> {
 	 * 
 	 * @param value
 	 */
-	public void addSample(Double value) {
-		this.samples.add(new Double(value));
+	public void addSample(double value) {
+		getSampleAccumulator().add(value);
+	}
+
+	/**
+	 * Adds a weighted sample to this transient variable
+	 * 
+	 * @param value
+	 * @param weight
+	 */
+	public void addSample(double value, double weight) {
+		getSampleAccumulator().add(value, weight);
 	}
 
 	/**
-	 * Gets a particular sample from the sample set.
+	 * Gets the summary of the samples generated, counts of each state for a
+	 * discrete variable and the mean and variance for a continuous one unless
+	 * something else was set.
 	 * 
-	 * @param sampleNumber
 	 * @return
 	 */
-	public Double getSample(int sampleNumber) {
-		if (sampleNumber > samples.size() || sampleNumber < 0) {
-			return null;
+	public SampleAccumulator getSampleAccumulator() {
+		if (samples == null) {
+			if (reference instanceof DiscreteVariable) {
+				samples = new StateCountAccumulator(((DiscreteVariable) reference)
+						.getStates().size());
+			} else {
+				samples = new MomentAccumulator();
+			}
 		}
-		return samples.get(sampleNumber);
+		return samples;
 	}
 
 	/**
-	 * Gets all the samples generated
+	 * Sets how the samples of this variable are summarized
 	 * 
-	 * @return
+	 * @param samples
 	 */
-	public List<Double> getSamples() {
-		return this.samples;
+	public void setSampleAccumulator(SampleAccumulator samples) {
+		this.samples = samples;
 	}
 
 	/**
-	 * Clears out the sample list.
+	 * Clears out the samples.
 	 */
 	public void clearSamples() {
-		samples.clear();
+		if (samples != null) {
+			samples.clear();
+		}
 	}
 
 	/**
@@ -369,37 +404,12 @@ public class TransientVariable implements Comparable<TransientVariable> {
 
 	public void generateMarginalFromSamples() throws Exception {
 
-		if(samples.size() < 3)
+		if(samples == null || samples.getCount() < 3)
 		{
 			throw new Exception("Sample size too small.");
 		}
 		
-		if (reference instanceof DiscreteVariable) {
-			double[] probabilites = new double[((DiscreteVariable) reference)
-					.getStates().size()];
-			for (Double sample : samples) {
-				int index = sample.intValue();
-				probabilites[index] += 0.001;
-			}
-
-			UnconditionalDistribution marginal = new Table(probabilites);
-			((Table) marginal).normalize();
-			setMarginal(marginal);
-		} else if (reference instanceof ContinuousVariable) {
-			//From Knuth
-			double n = 0;
-			double mean = 0;
-			double m_2 = 0;
-			for(Double smp : samples)
-			{
-				n++;
-				double delta = smp - mean;
-				mean += delta / n;
-				m_2 += delta*(smp - mean);
-			}
-			double unbiased_variance = m_2 / (n-1);			
-			setMarginal(new Gaussian(mean, unbiased_variance));
-		}
+		setMarginal(samples.getDistribution());
 	}
 
 	public String getId() {